@@ -14,15 +14,21 @@ import zebedee.*;
 import java.util.*;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
 import java.security.SecureRandom;
 
 import zebedee.Getopt;
 import zebedee.ZBDBasicLogger;
 import zebedee.ZBDException;
+import zebedee.ZBDExecutor;
+import zebedee.ZBDHandshakePool;
 import zebedee.ZBDParseException;
+import zebedee.ZBDPooledExecutor;
+import zebedee.ZBDThreadExecutor;
 import zebedee.ZBDTunnel;
 import zebedee.ZBDTunnelInfoList;
 import zebedee.ZBDValueException;
+import zebedee.ZBDVirtualExecutor;
 
 /**
  * This is the base class for the {@link ZebedeeClient} and
@@ -70,11 +76,28 @@ public class Zebedee
     String privateKey = null;
     int keyLifetime = ZBDTunnel.DFLT_KEY_LIFETIME;
     int idleTimeout = ZBDTunnel.DFLT_IDLE_TIMEOUT;
+    int handshakeTimeout = ZBDTunnel.DFLT_HANDSHAKE_TIMEOUT;
     LinkedList listenAddrList = new LinkedList();
     int connectTimeout = DFLT_CONN_TIMEOUT;
     ZBDBasicLogger logger = new ZBDBasicLogger();
     ZBDBasicValidator validator = new ZBDBasicValidator();
     String defaultTarget = null;
+    boolean nioMode = false;
+    int ioWorkers = 0;
+    String threadModel = "thread";
+    int handshakeThreads = 0;
+    int handshakeQueue = ZBDHandshakePool.DFLT_QUEUE_LIMIT;
+    ZBDExecutor executor = new ZBDThreadExecutor();
+    boolean multiplex = false;
+    int standbyTunnels = 0;
+    String cipherProvider = ZBDCipher.PROVIDER_BUILTIN;
+    boolean aesGcm = true;
+    int keyPairPool = 0;
+    int keyPairReuse = 0;
+    int keySourcePool = 0;
+    boolean streamCompression = true;
+    boolean adaptiveCompression = true;
+    LinkedList dictionaryFiles = new LinkedList();
     
     Zebedee()
     {
@@ -119,11 +142,28 @@ public class Zebedee
 	privateKey = that.privateKey;
 	keyLifetime = that.keyLifetime;
 	idleTimeout = that.idleTimeout;
+	handshakeTimeout = that.handshakeTimeout;
 	listenAddrList = that.listenAddrList;
 	connectTimeout = that.connectTimeout;
 	logger = that.logger;
 	validator = that.validator;
 	defaultTarget = that.defaultTarget;
+	nioMode = that.nioMode;
+	ioWorkers = that.ioWorkers;
+	threadModel = that.threadModel;
+	handshakeThreads = that.handshakeThreads;
+	handshakeQueue = that.handshakeQueue;
+	executor = that.executor;
+	multiplex = that.multiplex;
+	standbyTunnels = that.standbyTunnels;
+	cipherProvider = that.cipherProvider;
+	aesGcm = that.aesGcm;
+	keyPairPool = that.keyPairPool;
+	keyPairReuse = that.keyPairReuse;
+	keySourcePool = that.keySourcePool;
+	streamCompression = that.streamCompression;
+	adaptiveCompression = that.adaptiveCompression;
+	dictionaryFiles = that.dictionaryFiles;
 	
 	logger.setLevel(verbosity);
     }
@@ -323,6 +363,64 @@ public class Zebedee
 	}
     }
 
+    /**
+     * Create the NIO engine, if the "iomodel" keyword has selected it.
+     *
+     * @return The engine or <code>null</code> for the thread-per-pump model.
+     */
+
+    ZBDNioEngine createEngine() throws ZBDException
+    {
+	if (!nioMode)
+	{
+	    return null;
+	}
+
+	return new ZBDNioEngine(ioWorkers, logger);
+    }
+
+    /**
+     * Create the executor on which listeners and pumps are run, as
+     * selected by the "threadmodel" keyword. If virtual threads have
+     * been asked for but are not supported a thread pool is used
+     * instead.
+     */
+
+    ZBDExecutor createExecutor() throws ZBDException
+    {
+	if (threadModel.equals("pool"))
+	{
+	    return new ZBDPooledExecutor();
+	}
+	else if (threadModel.equals("virtual"))
+	{
+	    if (ZBDVirtualExecutor.isAvailable())
+	    {
+		return new ZBDVirtualExecutor();
+	    }
+
+	    logger.log(1, "virtual threads not supported, using a thread pool");
+	    return new ZBDPooledExecutor();
+	}
+
+	return new ZBDThreadExecutor();
+    }
+
+    /**
+     * Create a TCP listening socket. If the NIO engine is in use the
+     * socket is created from a channel so that the connections it
+     * accepts can be handed to the engine.
+     */
+
+    ServerSocket createServerSocket(InetAddress addr, int port)
+	throws IOException
+    {
+	ServerSocket sock = (nioMode ? ServerSocketChannel.open().socket()
+			     : new ServerSocket());
+	sock.bind(new InetSocketAddress(addr, port), 50);
+	return sock;
+    }
+
     public void execute() throws ZBDException
     {
 	throw new ZBDException("programmer error: Zebedee.execute() called!");
@@ -533,6 +631,7 @@ public class Zebedee
 	else if (name.equals("keylifetime")) keyLifetime = parseInt(value);
 	else if (name.equals("udptimeout")) idleTimeout = parseInt(value);
 	else if (name.equals("idletimeout")) idleTimeout = parseInt(value);
+	else if (name.equals("handshaketimeout")) handshakeTimeout = parseInt(value);
 	else if (name.equals("localsource"))
 	{
 	    if (parseBoolean(value))
@@ -567,6 +666,57 @@ public class Zebedee
 		udpMode = tcpMode = true;
 	    }
 	}
+	else if (name.equals("iomodel"))
+	{
+	    if (value.equalsIgnoreCase("thread"))
+	    {
+		nioMode = false;
+	    }
+	    else if (value.equalsIgnoreCase("nio"))
+	    {
+		nioMode = true;
+	    }
+	    else
+	    {
+		throw new ZBDParseException("invalid I/O model: " + value);
+	    }
+	}
+	else if (name.equals("ioworkers")) ioWorkers = parseInt(value);
+	else if (name.equals("handshakethreads")) handshakeThreads = parseInt(value);
+	else if (name.equals("handshakequeue")) handshakeQueue = parseInt(value);
+	else if (name.equals("multiplex")) multiplex = parseBoolean(value);
+	else if (name.equals("standbytunnels")) standbyTunnels = parseInt(value);
+	else if (name.equals("aesgcm")) aesGcm = parseBoolean(value);
+	else if (name.equals("keypairpool")) keyPairPool = parseInt(value);
+	else if (name.equals("keypairreuse")) keyPairReuse = parseInt(value);
+	else if (name.equals("keysourcepool")) keySourcePool = parseInt(value);
+	else if (name.equals("streamcompression")) streamCompression = parseBoolean(value);
+	else if (name.equals("adaptivecompression")) adaptiveCompression = parseBoolean(value);
+	else if (name.equals("compressiondictionary")) dictionaryFiles.add((Object)value);
+	else if (name.equals("cipherprovider"))
+	{
+	    if (ZBDCipher.isProvider(value.toLowerCase()))
+	    {
+		cipherProvider = value.toLowerCase();
+	    }
+	    else
+	    {
+		throw new ZBDParseException("invalid cipher provider: " + value);
+	    }
+	}
+	else if (name.equals("threadmodel"))
+	{
+	    if (value.equalsIgnoreCase("thread") ||
+		value.equalsIgnoreCase("pool") ||
+		value.equalsIgnoreCase("virtual"))
+	    {
+		threadModel = value.toLowerCase();
+	    }
+	    else
+	    {
+		throw new ZBDParseException("invalid thread model: " + value);
+	    }
+	}
 	else if (name.equals("command"))
 	{
 	    throw new ZBDParseException("'command' keyword not supported");
@@ -610,11 +760,21 @@ public class Zebedee
 		return ZBDTunnel.makeCompressionValue(ZBDTunnel.COMPRESSION_ZLIB,
 						      Integer.parseInt(s.substring(5)));
 	    }
+	    if (s.startsWith("bzip2:"))
+	    {
+		return ZBDTunnel.makeCompressionValue(ZBDTunnel.COMPRESSION_BZIP2,
+						      Integer.parseInt(s.substring(6)));
+	    }
 	    if (s.startsWith("bzip:"))
 	    {
 		return ZBDTunnel.makeCompressionValue(ZBDTunnel.COMPRESSION_BZIP2,
 						      Integer.parseInt(s.substring(5)));
 	    }
+	    if (s.startsWith("lz4:"))
+	    {
+		return ZBDTunnel.makeCompressionValue(ZBDTunnel.COMPRESSION_LZ4,
+						      Integer.parseInt(s.substring(4)));
+	    }
 	    return Integer.parseInt(s);
 	}
 	catch (Exception e)
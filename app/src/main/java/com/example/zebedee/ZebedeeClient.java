@@ -14,12 +14,16 @@ import zebedee.*;
 import java.util.*;
 import java.net.*;
 import java.io.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 import zebedee.ZBDException;
 import zebedee.ZBDExternalKeySource;
 import zebedee.ZBDLogger;
+import zebedee.ZBDMux;
 import zebedee.ZBDNetworkException;
+import zebedee.ZBDNioEngine;
 import zebedee.ZBDParseException;
+import zebedee.ZBDStandbyPool;
 import zebedee.ZBDTcpTunnelReader;
 import zebedee.ZBDTcpTunnelWriter;
 import zebedee.ZBDTimeoutException;
@@ -39,6 +43,17 @@ import zebedee.ZBDValueException;
 public class ZebedeeClient extends Zebedee
 {
     ZBDTunnelClient master;
+    ZBDNioEngine engine = null;
+
+    // The multiplexed tunnel shared by all TCP listeners, if in use.
+    // Only one listener at a time may connect a new one. The lock is
+    // held while connecting, so it is not a monitor, which would pin a
+    // virtual listener thread.
+    ZBDMux mux = null;
+    ReentrantLock muxLock = new ReentrantLock();
+
+    // Standby tunnels for the TCP listeners, if in use
+    ZBDStandbyPool standby = null;
 
 
     public ZebedeeClient()
@@ -103,14 +118,59 @@ public class ZebedeeClient extends Zebedee
 	master.setMinKeySize(minKeySize);
 	master.setKeyLifetime(keyLifetime);
 	master.setIdleTimeout(idleTimeout);
+	master.setHandshakeTimeout(handshakeTimeout);
 	master.setBufferSize(maxBufSize);
 	master.setPrivateKey(privateKey);
 	master.setLogger(logger);
 	master.setValidator(validator);
+	master.setUseChannels(nioMode);
+	master.setMultiplex(multiplex);
+	master.setStreamCompression(streamCompression);
+	master.setAdaptiveCompression(adaptiveCompression);
+	for (ListIterator iter = dictionaryFiles.listIterator(); iter.hasNext(); )
+	{
+	    master.addDictionary(ZBDDictionary.load((String)iter.next()));
+	}
+	master.setCipherProvider(cipherProvider);
+	if (aesGcm != master.setAesGcm(aesGcm))
+	{
+	    logger.log(1, "AES-GCM is not available, using Blowfish");
+	}
 	if (keyGenCmd != null)
 	{
 	    master.setKeySource(new ZBDExternalKeySource(keyGenCmd));
 	}
+	if (keySourcePool > 0 && privateKey == null)
+	{
+	    master.setKeySource(new ZBDPooledKeySource(master.getKeySource(),
+						       keySourcePool));
+	}
+	if (keyPairPool > 0 && privateKey == null)
+	{
+	    ZBDKeyPairPool pool = new ZBDKeyPairPool(master.getKeySource(),
+						     keyPairPool, keyPairReuse);
+	    pool.setLogger(master.getLogger());
+	    pool.prime(generator, modulus);
+	    master.setKeyPairPool(pool);
+	}
+
+	engine = createEngine();
+	executor = createExecutor();
+
+	// Standby tunnels are of no use for multiplexed or server-initiated
+	// connections, nor if keys expire straight away.
+
+	if (standbyTunnels > 0 && tcpMode && !multiplex && !listenMode)
+	{
+	    if (keyLifetime == 0)
+	    {
+		logger.error("standby tunnels need a non-zero key lifetime, not using them");
+	    }
+	    else
+	    {
+		standby = new ZBDStandbyPool(master, executor, standbyTunnels);
+	    }
+	}
 
 	startListeners();
     }
@@ -151,7 +211,7 @@ public class ZebedeeClient extends Zebedee
 	{
 	    try
 	    {
-		serverSocket = new ServerSocket(serverPort);
+		serverSocket = createServerSocket(null, serverPort);
 		serverSocket.setSoTimeout(connectTimeout * 1000);
 		logger.log(1, "listening for server-initiated connections on port " + serverPort);
 	    }
@@ -214,7 +274,7 @@ public class ZebedeeClient extends Zebedee
 						      toPort,
 						      serverSocket,
 						      this);
-			    new Thread(listener).start();
+			    executor.execute(listener, "zbd-udp-listener-" + fromPort);
 			}
 
 			if (tcpMode)
@@ -228,7 +288,7 @@ public class ZebedeeClient extends Zebedee
 						      toPort,
 						      serverSocket,
 						      this);
-			    new Thread(listener).start();
+			    executor.execute(listener, "zbd-tcp-listener-" + fromPort);
 			}
 		    }
 		}
@@ -310,7 +370,7 @@ class ClientTcpListener extends ClientListener
 
 	try
 	{
-	    listenSock = new ServerSocket(localPort, 50, localAddr);
+	    listenSock = client.createServerSocket(localAddr, localPort);
 	    localPort = listenSock.getLocalPort();
 	    logger.log(1, "listening on " + localAddr + ":" + localPort);
 	}
@@ -321,11 +381,17 @@ class ClientTcpListener extends ClientListener
 	    return;
 	}
 
+	if (client.standby != null)
+	{
+	    client.standby.prime(targetHost, targetPort);
+	}
+
 	boolean firstTime = true;
 	while (multiUse || firstTime)
 	{
 	    Socket clientSock = null;
 	    ZBDTunnelClient t = new ZBDTunnelClient(master);
+	    ZBDMux mux;
 
 	    t.setTcpMode(true);
 	    t.setUdpMode(false);
@@ -336,14 +402,60 @@ class ClientTcpListener extends ClientListener
 		logger.log(1, "accepted connection from " +
 			   clientSock.getInetAddress());
 
-		if (serverSocket != null)
+		// In multiplexed mode the connection becomes a new stream
+		// on the shared tunnel, if there is one. Otherwise we
+		// connect a tunnel and, if the server agrees to multiplex
+		// it, that becomes the shared tunnel.
+
+		mux = null;
+		if (client.multiplex)
 		{
-		    Socket sock = getServerConnection();
-		    t.connect(sock, targetHost, targetPort);
+		    client.muxLock.lock();
+		    try
+		    {
+			mux = client.mux;
+			if (mux == null || !mux.isOpen())
+			{
+			    mux = null;
+			    connect(t);
+			    if (t.isMultiplexed())
+			    {
+				mux = new ZBDMux(t, client.executor);
+				mux.start();
+				client.mux = mux;
+			    }
+			}
+		    }
+		    finally
+		    {
+			client.muxLock.unlock();
+		    }
+		}
+		else if (client.standby != null)
+		{
+		    ZBDTunnelClient ready = client.standby.take(targetHost, targetPort);
+		    if (ready != null)
+		    {
+			logger.log(2, "using standby tunnel");
+			t = ready;
+		    }
+		    else
+		    {
+			connect(t);
+		    }
 		}
 		else
 		{
-		    t.connect(targetHost, targetPort);
+		    connect(t);
+		}
+
+		if (mux != null)
+		{
+		    mux.openStream(clientSock, targetHost, targetPort);
+		    logger.log(1, "opened multiplexed stream to " + targetHost +
+			       ":" + targetPort);
+		    firstTime = false;
+		    continue;
 		}
 
 		logger.log(1, "connected tunnel to " + targetHost + ":" +
@@ -365,8 +477,27 @@ class ClientTcpListener extends ClientListener
 		continue;
 	    }
 
-	    new ZBDTcpTunnelReader(t, clientSock).start();
-	    new ZBDTcpTunnelWriter(t, clientSock).start();
+	    if (client.engine != null)
+	    {
+		try
+		{
+		    client.engine.attach(t, clientSock);
+		}
+		catch (ZBDException e)
+		{
+		    logger.error("failed to attach tunnel to NIO engine: " + e);
+		    try { t.close(); } catch (Exception eio) {}
+		    try { clientSock.close(); } catch (Exception eio) {}
+		    continue;
+		}
+	    }
+	    else
+	    {
+		client.executor.execute(new ZBDTcpTunnelReader(t, clientSock),
+					"zbd-tcp-reader");
+		client.executor.execute(new ZBDTcpTunnelWriter(t, clientSock),
+					"zbd-tcp-writer");
+	    }
 
 	    firstTime = false;
 	}
@@ -376,6 +507,19 @@ class ClientTcpListener extends ClientListener
 
 	try { listenSock.close(); } catch (Exception e) {}
     }
+
+    void connect(ZBDTunnelClient t) throws ZBDException
+    {
+	if (serverSocket != null)
+	{
+	    Socket sock = getServerConnection();
+	    t.connect(sock, targetHost, targetPort);
+	}
+	else
+	{
+	    t.connect(targetHost, targetPort);
+	}
+    }
 }
 
 class ClientUdpListener extends ClientListener
@@ -466,8 +610,10 @@ class ClientUdpListener extends ClientListener
 
 		    // Start a reader thread
 
-		    new ZBDUdpTunnelReader(tunnel, masterSock,
-					   fromAddr, fromPort, false).start();
+		    client.executor.execute(new ZBDUdpTunnelReader(tunnel, masterSock,
+								   fromAddr, fromPort,
+								   false),
+					    "zbd-udp-reader");
 
 		}
 
@@ -14,10 +14,14 @@ import zebedee.*;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 import zebedee.ZBDException;
 import zebedee.ZBDExternalKeySource;
+import zebedee.ZBDHandshakePool;
 import zebedee.ZBDLogger;
+import zebedee.ZBDMux;
+import zebedee.ZBDNioEngine;
 import zebedee.ZBDParseException;
 import zebedee.ZBDTcpTunnelReader;
 import zebedee.ZBDTcpTunnelWriter;
@@ -30,6 +34,8 @@ import zebedee.ZBDValueException;
 public class ZebedeeServer extends Zebedee
 {
     ZBDTunnelServer master;
+    ZBDNioEngine engine = null;
+    ZBDHandshakePool handshakes = null;
 
 
     public ZebedeeServer()
@@ -64,14 +70,45 @@ public class ZebedeeServer extends Zebedee
 	master.setMinKeySize(minKeySize);
 	master.setKeyLifetime(keyLifetime);
 	master.setIdleTimeout(idleTimeout);
+	master.setHandshakeTimeout(handshakeTimeout);
 	master.setBufferSize(maxBufSize);
 	master.setPrivateKey(privateKey);
 	master.setLogger(logger);
 	master.setValidator(validator);
+	master.setUseChannels(nioMode);
+	master.setMultiplex(multiplex);
+	master.setStreamCompression(streamCompression);
+	master.setAdaptiveCompression(adaptiveCompression);
+	for (ListIterator iter = dictionaryFiles.listIterator(); iter.hasNext(); )
+	{
+	    master.addDictionary(ZBDDictionary.load((String)iter.next()));
+	}
+	master.setCipherProvider(cipherProvider);
+	if (aesGcm != master.setAesGcm(aesGcm))
+	{
+	    logger.log(1, "AES-GCM is not available, using Blowfish");
+	}
 	if (keyGenCmd != null)
 	{
 	    master.setKeySource(new ZBDExternalKeySource(keyGenCmd));
 	}
+	if (keySourcePool > 0 && privateKey == null)
+	{
+	    master.setKeySource(new ZBDPooledKeySource(master.getKeySource(),
+						       keySourcePool));
+	}
+	if (keyPairPool > 0 && privateKey == null)
+	{
+	    ZBDKeyPairPool pool = new ZBDKeyPairPool(master.getKeySource(),
+						     keyPairPool, keyPairReuse);
+	    pool.setLogger(master.getLogger());
+	    pool.prime(generator, modulus);
+	    master.setKeyPairPool(pool);
+	}
+
+	engine = createEngine();
+	executor = createExecutor();
+	handshakes = new ZBDHandshakePool(handshakeThreads, handshakeQueue);
 
 	// If in TCP-mode or in combined TCP/UDP mode then use the
 	// default TCP server port if one has not already been set.
@@ -94,7 +131,8 @@ public class ZebedeeServer extends Zebedee
 
 	if (clientHost != null)
 	{
-	    new Thread(new ServerInitiator(master, clientHost, serverPort)).start();
+	    executor.execute(new ServerInitiator(master, clientHost, serverPort, this),
+			     "zbd-initiator");
 	}
 	else
 	{
@@ -120,12 +158,54 @@ public class ZebedeeServer extends Zebedee
 			throw new ZBDValueException("invalid local listen address: " + name);
 		    }
 
-		    new Thread(new ServerListener(master, addr, serverPort)).start();
+		    executor.execute(new ServerListener(master, addr, serverPort, this),
+				     "zbd-listener-" + name);
 		}
 	    }
 	}
     }
 
+    /**
+     * Start moving data through a newly established tunnel, either by
+     * handing it to the NIO engine or by starting a reader and writer
+     * task for it. A multiplexed tunnel is handed to a multiplexer,
+     * which opens its targets as the client asks for them.
+     */
+
+    void startTunnel(ZBDTunnelServer t)
+    {
+	if (t.isMultiplexed())
+	{
+	    new ZBDMux(t, executor).start();
+	}
+	else if (t.isUdpMode())
+	{
+	    DatagramSocket target = (DatagramSocket)t.getTargetSocket();
+
+	    executor.execute(new ZBDUdpTunnelReader(t, target, true), "zbd-udp-reader");
+	    executor.execute(new ZBDUdpTunnelWriter(t, target, true), "zbd-udp-writer");
+	}
+	else if (engine != null)
+	{
+	    try
+	    {
+		engine.attach(t, (Socket)t.getTargetSocket());
+	    }
+	    catch (ZBDException e)
+	    {
+		logger.error("failed to attach tunnel to NIO engine: " + e);
+		try { t.close(); } catch (Exception eio) {}
+	    }
+	}
+	else
+	{
+	    Socket target = (Socket)t.getTargetSocket();
+
+	    executor.execute(new ZBDTcpTunnelReader(t, target), "zbd-tcp-reader");
+	    executor.execute(new ZBDTcpTunnelWriter(t, target), "zbd-tcp-writer");
+	}
+    }
+
     public void execute(String args[]) throws ZBDException
     {
 	for (int i = 0; i < args.length; i++)
@@ -161,13 +241,16 @@ class ServerListener implements Runnable
     int port;
     ZBDTunnelServer master;
     ZBDLogger logger;
+    ZebedeeServer server;
 
 
-    ServerListener(ZBDTunnelServer master, InetAddress addr, int port)
+    ServerListener(ZBDTunnelServer master, InetAddress addr, int port,
+		   ZebedeeServer server)
     {
 	this.master = master;
 	this.port = port;
 	this.addr = addr;
+	this.server = server;
 	logger = master.getLogger();
     }
 
@@ -177,7 +260,7 @@ class ServerListener implements Runnable
 
 	try
 	{
-	    listenSock = new ServerSocket(port, 50, addr);
+	    listenSock = server.createServerSocket(addr, port);
 	    logger.log(1, "server listening on " + addr + ":" +
 		       listenSock.getLocalPort());
 	}
@@ -188,31 +271,38 @@ class ServerListener implements Runnable
 	    return;
 	}
 
+	// Negotiation is handed over to the handshake pool so that we can
+	// get straight back to accepting the next connection.
+
 	while (true)
 	{
-	    Socket client = null;
-	    ZBDTunnelServer t = new ZBDTunnelServer(master);
+	    final Socket client;
 
 	    try
 	    {
 		client = listenSock.accept();
 		logger.log(1, "accepted connection from " +
 			   client.getInetAddress());
-
-		t.connect(client);
-		logger.log(1, (t.isUdpMode() ? "UDP" : "TCP") +
-			   "-mode tunnel from " + client.getInetAddress()
-			   + " established");
 	    }
 	    catch (Exception e)
 	    {
-		logger.error("failed to establish tunnel from " +
-			     client.getInetAddress());
-		logger.error("reason: " + e);
-		if (!(e instanceof ZBDException))
+		logger.error("failed to accept connection on " + addr + ":" +
+			     port + ": " + e);
+		continue;
+	    }
+
+	    boolean queued = server.handshakes.submit(new Callable() {
+		public Object call()
 		{
-		    e.printStackTrace();
+		    return Boolean.valueOf(establish(client));
 		}
+	    });
+
+	    if (!queued)
+	    {
+		logger.error("handshake queue full, dropping connection from " +
+			     client.getInetAddress());
+		logger.log(2, server.handshakes.getStatistics());
 		try
 		{
 		    client.close();
@@ -221,20 +311,51 @@ class ServerListener implements Runnable
 		{
 		    // Ignore
 		}
-		continue;
 	    }
+	}
+    }
+
+    /**
+     * Negotiate a tunnel over a newly accepted connection and, if all
+     * goes well, start it running. This is called on a handshake pool
+     * thread.
+     *
+     * @return True if the tunnel was established.
+     */
 
-	    if (t.isUdpMode())
+    boolean establish(Socket client)
+    {
+	ZBDTunnelServer t = new ZBDTunnelServer(master);
+
+	try
+	{
+	    t.connect(client);
+	    logger.log(1, (t.isUdpMode() ? "UDP" : "TCP") +
+		       "-mode tunnel from " + client.getInetAddress()
+		       + " established");
+	}
+	catch (Exception e)
+	{
+	    logger.error("failed to establish tunnel from " +
+			 client.getInetAddress());
+	    logger.error("reason: " + e);
+	    if (!(e instanceof ZBDException))
 	    {
-		new ZBDUdpTunnelReader(t, (DatagramSocket)t.getTargetSocket(), true).start();
-		new ZBDUdpTunnelWriter(t, (DatagramSocket)t.getTargetSocket(), true).start();
+		e.printStackTrace();
 	    }
-	    else
+	    try
 	    {
-		new ZBDTcpTunnelReader(t, (Socket)t.getTargetSocket()).start();
-		new ZBDTcpTunnelWriter(t, (Socket)t.getTargetSocket()).start();
+		client.close();
 	    }
+	    catch (Exception eio)
+	    {
+		// Ignore
+	    }
+	    return false;
 	}
+
+	server.startTunnel(t);
+	return true;
     }
 }
 
@@ -244,13 +365,16 @@ class ServerInitiator implements Runnable
     int port;
     ZBDTunnelServer master;
     ZBDLogger logger;
+    ZebedeeServer server;
 
 
-    ServerInitiator(ZBDTunnelServer master, String client, int port)
+    ServerInitiator(ZBDTunnelServer master, String client, int port,
+		    ZebedeeServer server)
     {
 	this.master = master;
 	this.clientHost = client;
 	this.port = port;
+	this.server = server;
 	logger = master.getLogger();
     }
 
@@ -263,7 +387,7 @@ class ServerInitiator implements Runnable
 
 	    try
 	    {
-		clientSock = new Socket(clientHost, port);
+		clientSock = t.openSocket(clientHost, port);
 		logger.log(1, "made connection to " + clientHost +
 			   ":" + port);
 
@@ -292,16 +416,7 @@ class ServerInitiator implements Runnable
 		continue;
 	    }
 
-	    if (t.isUdpMode())
-	    {
-		new ZBDUdpTunnelReader(t, (DatagramSocket)t.getTargetSocket(), true).start();
-		new ZBDUdpTunnelWriter(t, (DatagramSocket)t.getTargetSocket(), true).start();
-	    }
-	    else
-	    {
-		new ZBDTcpTunnelReader(t, (Socket)t.getTargetSocket()).start();
-		new ZBDTcpTunnelWriter(t, (Socket)t.getTargetSocket()).start();
-	    }
+	    server.startTunnel(t);
 	}
     }
 }
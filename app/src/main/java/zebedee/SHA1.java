@@ -40,13 +40,18 @@ at http://www.professionals.com/~cmcmanis/java/
 
 //package util.crypt;
 
-import java.util.*;
-//import java.security.*;
+import java.security.MessageDigest;
 
 /**
  * This is a simple port of Steve Reid's SHA-1 code into Java.
  * I've run his test vectors through the code and they all pass.
- *
+ * <p>
+ * Whole 64-byte blocks are now hashed straight from the caller's array
+ * and the round function works on local variables, so hashing a large
+ * array no longer costs a method call per byte. Instances are not
+ * thread-safe. If the platform has a <code>MessageDigest</code> for
+ * SHA-1 it is used instead, unless this is a subclass whose message
+ * expansion differs from the standard (see {@link ZBDHash}).
  */
 public class SHA1 {
     protected int state[] = new int[5];
@@ -54,144 +59,92 @@ public class SHA1 {
     protected boolean digestValid = false;    // NDW
     protected byte[] digestBits;		    // NDW
 
-
-    public SHA1() {
-        state = new int[5];
-        count = 0;
-        if (block == null)
-            block = new int[16];
-        digestBits = new byte[20];
-        digestValid = false;
-    }
-
     /*
-     * The following array forms the basis for the transform
-     * buffer. Update puts bytes into this buffer and then
-     * transform adds it into the state of the digest.
+     * The buffer holds a partial block until there are 64 bytes to
+     * transform. The message schedule is expanded into block.
      */
-    protected int block[] = new int[16];
+    protected byte buffer[] = new byte[64];
+    protected int block[] = new int[80];
     protected int blockIndex;
 
-    /*
-     * These functions are taken out of #defines in Steve's
-     * code. Java doesn't have a preprocessor so the first
-     * step is to just promote them to real methods.
-     * Later we can optimize them out into inline code,
-     * note that by making them final some compilers will
-     * inline them when given the -O flag.
-     */
-    final int rol(int value, int bits) {
-        int q = (value << bits) | (value >>> (32 - bits));
-        return q;
-    }
-
-    final int blk0(int i) {
-        block[i] = (rol(block[i],24)&0xFF00FF00) | (rol(block[i],8)&0x00FF00FF);
-        return block[i];
-    }
-
-    // NDW -- removed the "final" so this can be overridden
-
-    /* final */ int blk(int i) {
-        block[i&15] = rol(block[(i+13)&15]^block[(i+8)&15]^
-                          block[(i+2)&15]^block[i&15], 1);
-        return (block[i&15]);
-    }
-
-    final void R0(int data[], int v, int w, int x , int y, int z, int i) {
-        data[z] += ((data[w] & (data[x] ^ data[y] )) ^ data[y]) + 
-	    blk0(i) + 0x5A827999 + rol(data[v] ,5);
-        data[w] = rol(data[w], 30);
-    }
-
-    final void R1(int data[], int v, int w, int x, int y, int z, int i) {
-        data[z] += ((data[w] & (data[x] ^ data[y])) ^ data[y]) +
-	    blk(i) + 0x5A827999 + rol(data[v] ,5);
-        data[w] = rol(data[w], 30);
-    }
-
-    final void R2(int data[], int v, int w, int x, int y, int z, int i) {
-        data[z] += (data[w] ^ data[x] ^ data[y]) +
-	    blk(i) + 0x6ED9EBA1 + rol(data[v] ,5);
-        data[w] = rol(data[w], 30);
-    }
+    // Whether the message expansion rotates, as FIPS 180-1 has it
+    private final boolean rotate;
+    // The platform implementation, if it can be used
+    private MessageDigest platform = null;
 
-    final void R3(int data[], int v, int w, int x, int y, int z, int i) {
-        data[z] += (((data[w] | data[x]) & data[y]) | (data[w] & data[x])) +
-	    blk(i) + 0x8F1BBCDC + rol(data[v] ,5);
-        data[w] = rol(data[w], 30);
+    public SHA1() {
+        this(true);
     }
 
-    final void R4(int data[], int v, int w, int x, int y, int z, int i) {
-        data[z] += (data[w] ^ data[x] ^ data[y]) +
-	    blk(i) + 0xCA62C1D6 + rol(data[v] ,5);
-        data[w] = rol(data[w], 30);
+    /**
+     * Create a digest whose message expansion does or does not include
+     * the one bit rotation that FIPS 180-1 added to the original SHA.
+     */
+    protected SHA1(boolean rotate) {
+        this.rotate = rotate;
+        digestBits = new byte[20];
+        digestValid = false;
+        if (rotate) {
+            try {
+                platform = MessageDigest.getInstance("SHA-1");
+            } catch (Exception e) {
+                platform = null;
+            }
+        }
     }
 
-
-    /*
-     * Steve's original code and comments :
-     *
-     * blk0() and blk() perform the initial expand.
-     * I got the idea of expanding during the round function from SSLeay
-     *
-     * #define blk0(i) block->l[i]
-     * #define blk(i) (block->l[i&15] = rol(block->l[(i+13)&15]^block->l[(i+8)&15] \
-     *   ^block->l[(i+2)&15]^block->l[i&15],1))
-     *
-     * (R0+R1), R2, R3, R4 are the different operations used in SHA1
-     * #define R0(v,w,x,y,z,i) z+=((w&(x^y))^y)+blk0(i)+0x5A827999+rol(v,5);w=rol(w,30);
-     * #define R1(v,w,x,y,z,i) z+=((w&(x^y))^y)+blk(i)+0x5A827999+rol(v,5);w=rol(w,30);
-     * #define R2(v,w,x,y,z,i) z+=(w^x^y)+blk(i)+0x6ED9EBA1+rol(v,5);w=rol(w,30);
-     * #define R3(v,w,x,y,z,i) z+=(((w|x)&y)|(w&x))+blk(i)+0x8F1BBCDC+rol(v,5);w=rol(w,30);
-     * #define R4(v,w,x,y,z,i) z+=(w^x^y)+blk(i)+0xCA62C1D6+rol(v,5);w=rol(w,30);
+    /**
+     * Hash a single 512-bit block, starting at <code>offset</code> in
+     * <code>data</code>. This is the core of the algorithm.
      */
+    void transform(byte[] data, int offset) {
+        int w[] = block;
 
-    int dd[] = new int[5];
+        for (int i = 0; i < 16; i++, offset += 4) {
+            w[i] = (data[offset] << 24) | ((data[offset + 1] & 0xff) << 16) |
+                ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+        }
+        if (rotate) {
+            for (int i = 16; i < 80; i++) {
+                int t = w[i - 3] ^ w[i - 8] ^ w[i - 14] ^ w[i - 16];
+                w[i] = (t << 1) | (t >>> 31);
+            }
+        } else {
+            for (int i = 16; i < 80; i++) {
+                w[i] = w[i - 3] ^ w[i - 8] ^ w[i - 14] ^ w[i - 16];
+            }
+        }
 
-    /**
-     * Hash a single 512-bit block. This is the core of the algorithm.
-     *
-     * Note that working with arrays is very inefficent in Java as it
-     * does a class cast check each time you store into the array.
-     *
-     */
+        int a = state[0];
+        int b = state[1];
+        int c = state[2];
+        int d = state[3];
+        int e = state[4];
+        int t;
+
+        for (int i = 0; i < 20; i++) {
+            t = ((a << 5) | (a >>> 27)) + ((b & c) | (~b & d)) + e + w[i] + 0x5A827999;
+            e = d; d = c; c = (b << 30) | (b >>> 2); b = a; a = t;
+        }
+        for (int i = 20; i < 40; i++) {
+            t = ((a << 5) | (a >>> 27)) + (b ^ c ^ d) + e + w[i] + 0x6ED9EBA1;
+            e = d; d = c; c = (b << 30) | (b >>> 2); b = a; a = t;
+        }
+        for (int i = 40; i < 60; i++) {
+            t = ((a << 5) | (a >>> 27)) + ((b & c) | (b & d) | (c & d)) + e + w[i] + 0x8F1BBCDC;
+            e = d; d = c; c = (b << 30) | (b >>> 2); b = a; a = t;
+        }
+        for (int i = 60; i < 80; i++) {
+            t = ((a << 5) | (a >>> 27)) + (b ^ c ^ d) + e + w[i] + 0xCA62C1D6;
+            e = d; d = c; c = (b << 30) | (b >>> 2); b = a; a = t;
+        }
 
-    void transform() {
-
-        /* Copy context->state[] to working vars */
-        dd[0] = state[0];
-        dd[1] = state[1];
-        dd[2] = state[2];
-        dd[3] = state[3];
-        dd[4] = state[4];
-        /* 4 rounds of 20 operations each. Loop unrolled. */
-        R0(dd,0,1,2,3,4, 0); R0(dd,4,0,1,2,3, 1); R0(dd,3,4,0,1,2, 2); R0(dd,2,3,4,0,1, 3);
-        R0(dd,1,2,3,4,0, 4); R0(dd,0,1,2,3,4, 5); R0(dd,4,0,1,2,3, 6); R0(dd,3,4,0,1,2, 7);
-        R0(dd,2,3,4,0,1, 8); R0(dd,1,2,3,4,0, 9); R0(dd,0,1,2,3,4,10); R0(dd,4,0,1,2,3,11);
-        R0(dd,3,4,0,1,2,12); R0(dd,2,3,4,0,1,13); R0(dd,1,2,3,4,0,14); R0(dd,0,1,2,3,4,15);
-        R1(dd,4,0,1,2,3,16); R1(dd,3,4,0,1,2,17); R1(dd,2,3,4,0,1,18); R1(dd,1,2,3,4,0,19);
-        R2(dd,0,1,2,3,4,20); R2(dd,4,0,1,2,3,21); R2(dd,3,4,0,1,2,22); R2(dd,2,3,4,0,1,23);
-        R2(dd,1,2,3,4,0,24); R2(dd,0,1,2,3,4,25); R2(dd,4,0,1,2,3,26); R2(dd,3,4,0,1,2,27);
-        R2(dd,2,3,4,0,1,28); R2(dd,1,2,3,4,0,29); R2(dd,0,1,2,3,4,30); R2(dd,4,0,1,2,3,31);
-        R2(dd,3,4,0,1,2,32); R2(dd,2,3,4,0,1,33); R2(dd,1,2,3,4,0,34); R2(dd,0,1,2,3,4,35);
-        R2(dd,4,0,1,2,3,36); R2(dd,3,4,0,1,2,37); R2(dd,2,3,4,0,1,38); R2(dd,1,2,3,4,0,39);
-        R3(dd,0,1,2,3,4,40); R3(dd,4,0,1,2,3,41); R3(dd,3,4,0,1,2,42); R3(dd,2,3,4,0,1,43);
-        R3(dd,1,2,3,4,0,44); R3(dd,0,1,2,3,4,45); R3(dd,4,0,1,2,3,46); R3(dd,3,4,0,1,2,47);
-        R3(dd,2,3,4,0,1,48); R3(dd,1,2,3,4,0,49); R3(dd,0,1,2,3,4,50); R3(dd,4,0,1,2,3,51);
-        R3(dd,3,4,0,1,2,52); R3(dd,2,3,4,0,1,53); R3(dd,1,2,3,4,0,54); R3(dd,0,1,2,3,4,55);
-        R3(dd,4,0,1,2,3,56); R3(dd,3,4,0,1,2,57); R3(dd,2,3,4,0,1,58); R3(dd,1,2,3,4,0,59);
-        R4(dd,0,1,2,3,4,60); R4(dd,4,0,1,2,3,61); R4(dd,3,4,0,1,2,62); R4(dd,2,3,4,0,1,63);
-        R4(dd,1,2,3,4,0,64); R4(dd,0,1,2,3,4,65); R4(dd,4,0,1,2,3,66); R4(dd,3,4,0,1,2,67);
-        R4(dd,2,3,4,0,1,68); R4(dd,1,2,3,4,0,69); R4(dd,0,1,2,3,4,70); R4(dd,4,0,1,2,3,71);
-        R4(dd,3,4,0,1,2,72); R4(dd,2,3,4,0,1,73); R4(dd,1,2,3,4,0,74); R4(dd,0,1,2,3,4,75);
-        R4(dd,4,0,1,2,3,76); R4(dd,3,4,0,1,2,77); R4(dd,2,3,4,0,1,78); R4(dd,1,2,3,4,0,79);
         /* Add the working vars back into context.state[] */
-        state[0] += dd[0];
-        state[1] += dd[1];
-        state[2] += dd[2];
-        state[3] += dd[3];
-        state[4] += dd[4];
+        state[0] += a;
+        state[1] += b;
+        state[2] += c;
+        state[3] += d;
+        state[4] += e;
     }
 
 
@@ -209,20 +162,24 @@ public class SHA1 {
         digestBits = new byte[20];
         digestValid = false;
         blockIndex = 0;
+        if (platform != null) {
+            platform.reset();
+        }
     }
 
     /**
      * Add one byte to the digest.
      */
-    public synchronized void update(byte b) {
-        int mask = (8 * (blockIndex & 3));
+    public void update(byte b) {
+        if (platform != null) {
+            platform.update(b);
+            return;
+        }
 
         count += 8;
-        block[blockIndex >> 2] &= ~(0xff << mask);
-        block[blockIndex >> 2] |= (b & 0xff) << mask;
-        blockIndex++;
+        buffer[blockIndex++] = b;
         if (blockIndex == 64) {
-            transform();
+            transform(buffer, 0);
             blockIndex = 0;
         }
     }
@@ -231,10 +188,8 @@ public class SHA1 {
     /**
      * Add a byte array to the digest.
      */
-    public synchronized void update(byte[] b) {
-	for (int i = 0; i < b.length; i++) {
-	    update(b[i]);
-	}
+    public void update(byte[] b) {
+	update(b, 0, b.length);
     }
 
     // NDW
@@ -242,33 +197,75 @@ public class SHA1 {
      * Add <code>len</code> bytes of byte array <code>b</code> to the digest,
      * starting from <code>offset</code>.
      */
-    public synchronized void update(byte[] b, int offset, int len) {
-	int top = offset + len;
-	if (top > b.length) {
-	    top = b.length;
+    public void update(byte[] b, int offset, int len) {
+	if (offset + len > b.length) {
+	    len = b.length - offset;
+	}
+	if (len <= 0) {
+	    return;
+	}
+	if (platform != null) {
+	    platform.update(b, offset, len);
+	    return;
 	}
-	for (int i = offset; i < top; i++) {
-	    update(b[i]);
+
+	count += 8L * len;
+
+	// Top up a partial block first
+
+	if (blockIndex > 0) {
+	    int n = Math.min(64 - blockIndex, len);
+	    System.arraycopy(b, offset, buffer, blockIndex, n);
+	    blockIndex += n;
+	    offset += n;
+	    len -= n;
+	    if (blockIndex < 64) {
+		return;
+	    }
+	    transform(buffer, 0);
+	    blockIndex = 0;
 	}
+
+	// Then whole blocks straight from the array
+
+	while (len >= 64) {
+	    transform(b, offset);
+	    offset += 64;
+	    len -= 64;
+	}
+
+	System.arraycopy(b, offset, buffer, 0, len);
+	blockIndex = len;
     }
 
     /**
      * Complete processing on the message digest.
      */
     public void finish() {
-        byte bits[] = new byte[8];
-        int i, j;
+        if (platform != null) {
+            digestBits = platform.digest();
+            digestValid = true;
+            return;
+        }
 
-        for (i = 0; i < 8; i++) {
-            bits[i] = (byte)((count >>> (((7 - i) * 8))) & 0xff);
+        long bits = count;
+
+        buffer[blockIndex++] = (byte) 128;
+        if (blockIndex > 56) {
+            while (blockIndex < 64)
+                buffer[blockIndex++] = 0;
+            transform(buffer, 0);
+            blockIndex = 0;
         }
+        while (blockIndex < 56)
+            buffer[blockIndex++] = 0;
+        for (int i = 0; i < 8; i++) {
+            buffer[56 + i] = (byte)(bits >>> ((7 - i) * 8));
+        }
+        transform(buffer, 0);
+        blockIndex = 0;
 
-        update((byte) 128);
-        while (blockIndex != 56)
-            update((byte) 0);
-        // This should cause a transform to happen.
-        update(bits);
-        for (i = 0; i < 20; i++) {
+        for (int i = 0; i < 20; i++) {
             digestBits[i] = (byte)
                 ((state[i>>2] >> ((3-(i & 3)) * 8) ) & 0xff);
         }
@@ -374,6 +371,17 @@ public class SHA1 {
         s.finish();
         System.out.println(s.digout());
         System.out.println("34AA973C D4C4DAA4 F61EEB2B DBAD2731 6534016F");
+
+/*      "abc" with the original SHA, as used by Zebedee
+        0164B8A9 14CD2A5E 74C4F7FF 082C4D97 F1EDF880 */
+
+        System.out.println("ZBDHash test is 'abc'");
+        s = new ZBDHash();
+        s.init();
+        s.update("abc".getBytes("UTF-8"));
+        s.finish();
+        System.out.println(s.digout());
+        System.out.println("0164B8A9 14CD2A5E 74C4F7FF 082C4D97 F1EDF880");
 //        MessageDigest.benchmark(s);
 //        MD5 mm = new MD5();
 //        MessageDigest.benchmark(mm);
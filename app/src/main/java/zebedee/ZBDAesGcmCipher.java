@@ -0,0 +1,193 @@
+// This program is free software and may be distributed under the terms
+// of the GNU Lesser General Public License, Version 2.1.
+// This program comes with ABSOLUTELY NO WARRANTY.
+
+package zebedee;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES in GCM mode, used by protocol version 202. Unlike Blowfish this is
+ * done by <code>javax.crypto</code>, which on most platforms uses the
+ * processor's AES and carry-less multiply instructions.
+ * <p>
+ * Each direction has its own key, derived from the negotiated key
+ * material with HMAC-SHA256 and a label naming the sender. A message is
+ * encrypted with a 96-bit nonce that is simply a count of the messages
+ * sent before it in that direction, so nothing but the 16 byte tag is
+ * added to each message. The flags from the message header are
+ * authenticated along with the message, so that a message can not be
+ * replayed, dropped, reordered or altered without the receiver noticing.
+ * <p>
+ * The AES key is 128 bits if the negotiated key size is 128 bits or
+ * less, otherwise 256 bits. A key shorter than 128 bits is still only as
+ * strong as its negotiated size.
+ */
+
+class ZBDAesGcmCipher extends ZBDCipher
+{
+    /** Bytes added to each message for the authentication tag */
+    static final int TAG_SIZE = 16;
+
+    static final int NONCE_SIZE = 12;
+
+    static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+    // Looking up the providers is slow, so it is done only once
+    static final boolean AVAILABLE = checkAvailable();
+
+    SecretKeySpec inKey;
+    SecretKeySpec outKey;
+    Cipher inCipher;
+    Cipher outCipher;
+    long inCount = 0;
+    long outCount = 0;
+
+    // Nonce and header for each direction, which run on different
+    // threads, filled in afresh for each message
+    byte[] inNonce = new byte[NONCE_SIZE];
+    byte[] outNonce = new byte[NONCE_SIZE];
+    byte[] inHeader = new byte[2];
+    byte[] outHeader = new byte[2];
+
+
+    /**
+     * Create the cipher for one end of a tunnel.
+     *
+     * @param material The negotiated key material.
+     * @param client True for the client end, false for the server.
+     *
+     * @throws ZBDException Thrown if AES-GCM is not available.
+     */
+
+    ZBDAesGcmCipher(byte[] material, boolean client) throws ZBDException
+    {
+	int keyLength = (material.length <= 16 ? 16 : 32);
+
+	try
+	{
+	    byte[] clientKey = deriveKey(material, "zebedee client", keyLength);
+	    byte[] serverKey = deriveKey(material, "zebedee server", keyLength);
+
+	    inKey = new SecretKeySpec(client ? serverKey : clientKey, "AES");
+	    outKey = new SecretKeySpec(client ? clientKey : serverKey, "AES");
+	    inCipher = Cipher.getInstance(TRANSFORMATION);
+	    outCipher = Cipher.getInstance(TRANSFORMATION);
+	}
+	catch (GeneralSecurityException e)
+	{
+	    throw new ZBDException("AES-GCM is not available: " + e);
+	}
+    }
+
+    /**
+     * Returns true if the platform supplies everything this cipher needs.
+     */
+
+    static boolean isAvailable()
+    {
+	return AVAILABLE;
+    }
+
+    private static boolean checkAvailable()
+    {
+	try
+	{
+	    Cipher.getInstance(TRANSFORMATION);
+	    Mac.getInstance("HmacSHA256");
+	    return true;
+	}
+	catch (GeneralSecurityException e)
+	{
+	    return false;
+	}
+    }
+
+    static byte[] deriveKey(byte[] material, String label, int length)
+	throws GeneralSecurityException
+    {
+	Mac mac = Mac.getInstance("HmacSHA256");
+	mac.init(new SecretKeySpec(material, "HmacSHA256"));
+
+	byte[] digest = mac.doFinal(label.getBytes(StandardCharsets.US_ASCII));
+	byte[] key = new byte[length];
+
+	System.arraycopy(digest, 0, key, 0, length);
+	return key;
+    }
+
+    public int encrypt(int flags, byte[] src, int srcOffset, byte[] dst, int dstOffset, int length)
+	throws ZBDException
+    {
+	try
+	{
+	    outCipher.init(Cipher.ENCRYPT_MODE, outKey, nextNonce(outNonce, outCount++));
+	    outCipher.updateAAD(header(outHeader, flags));
+	    return outCipher.doFinal(src, srcOffset, length, dst, dstOffset);
+	}
+	catch (GeneralSecurityException e)
+	{
+	    throw new ZBDException("AES-GCM encryption failed: " + e);
+	}
+    }
+
+    public int decrypt(int flags, byte[] src, int srcOffset, byte[] dst, int dstOffset, int length)
+	throws ZBDException
+    {
+	if (length < TAG_SIZE)
+	{
+	    throw new ZBDProtocolException("encrypted message too short (" + length + ")");
+	}
+
+	try
+	{
+	    inCipher.init(Cipher.DECRYPT_MODE, inKey, nextNonce(inNonce, inCount++));
+	    inCipher.updateAAD(header(inHeader, flags));
+	    return inCipher.doFinal(src, srcOffset, length, dst, dstOffset);
+	}
+	catch (AEADBadTagException e)
+	{
+	    throw new ZBDProtocolException("message failed authentication");
+	}
+	catch (GeneralSecurityException e)
+	{
+	    throw new ZBDException("AES-GCM decryption failed: " + e);
+	}
+    }
+
+    public int getOverhead()
+    {
+	return TAG_SIZE;
+    }
+
+    public String getProvider()
+    {
+	return PROVIDER_AES_GCM;
+    }
+
+    // The parameters hold a copy of the nonce and can not be changed,
+    // so a new one is needed for each message.
+
+    private static GCMParameterSpec nextNonce(byte[] nonce, long count)
+    {
+	for (int i = NONCE_SIZE - 1; i >= NONCE_SIZE - 8; i--)
+	{
+	    nonce[i] = (byte)count;
+	    count >>>= 8;
+	}
+	return new GCMParameterSpec(TAG_SIZE * 8, nonce);
+    }
+
+    private static byte[] header(byte[] header, int flags)
+    {
+	header[0] = (byte)(flags >> 8);
+	header[1] = (byte)flags;
+	return header;
+    }
+}
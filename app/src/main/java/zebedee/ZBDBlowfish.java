@@ -9,6 +9,9 @@
 
 package zebedee;
 
+import java.util.Arrays;
+import java.util.Random;
+
 //
 // Zebedee Blowfish routines
 //
@@ -26,6 +29,13 @@ package zebedee;
 // source so neither author can be blamed for any problems herein.
 //
 
+/**
+ * Blowfish in CBC and CFB64 modes. An instance holds the chaining state
+ * for one stream of data, such as one direction of a tunnel, and is not
+ * safe for use by more than one thread at a time. Running the class
+ * checks it against the published test vectors.
+ */
+
 public class ZBDBlowfish {
 
     static final int ROUNDS = 16;
@@ -297,162 +307,124 @@ public class ZBDBlowfish {
 	0xb74e6132, 0xce77e25b, 0x578fdfe3, 0x3ac372e6
     };
 
-    byte[] keyData = null;
-    byte[] initVec = { 0, 0, 0, 0, 0, 0, 0, 0 };
+    // The key schedule, which may be shared with other instances, and
+    // its arrays
+    ZBDBlowfishKey schedule = null;
     int[] FP = null;
     int[] FS = null;
+
+    // Chaining state, which is ours alone
+    byte[] initVec = { 0, 0, 0, 0, 0, 0, 0, 0 };
     int cfbPosition = 0;
 
+    // Working block for CBC mode, kept here so that encrypting a
+    // message does not allocate.
+    int[] block = new int[2];
+
 
-    // enc
+    // f
     //
-    // Equivalent to BF_ENC macro
+    // The round function, equivalent to the BF_ENC macro less the key
+    // mixing. Only int arithmetic is needed: the additions wrap modulo
+    // 2^32 exactly as Blowfish requires.
 
-    private int enc(int np, int L, int R)
+    private static int f(int[] s, int x)
     {
-	long s1  = (FS[        ((R >>> 24 ) & 0xff)]);
-	long s2  = (FS[0x100 + ((R >>> 16)  & 0xff)]);
-	long s3  = (FS[0x200 + ((R >>> 8)   & 0xff)]);
-	long s4  = (FS[0x300 + ((R     )    & 0xff)]);
-	long s   = (((s1 + s2) ^ s3) + s4) & (0xffffffff);
-	L ^= FP[np];
-	L ^= s;
-	return L;
+	return (((s[x >>> 24] + s[0x100 | ((x >>> 16) & 0xff)]) ^
+		 s[0x200 | ((x >>> 8) & 0xff)]) + s[0x300 | (x & 0xff)]);
     }
 
-    // encrypt
+    // encipher
     //
-    // Main encryption routine. Encrypts/decrypts the two ints in the
-    // data array
+    // Encrypt the block (l, r) with the schedule (p, s), returning it
+    // with the left half in the top 32 bits.
 
-    synchronized public void encrypt(int[] data, boolean encrypt)
+    static long encipher(int[] p, int[] s, int l, int r)
     {
-	int l = data[0];
-	int r = data[1];
-
-	if (encrypt) {
-
-	    l ^= FP[0];
-
-	    r = enc( 1, r, l);
-	    l = enc( 2, l, r);
-	    r = enc( 3, r, l);
-	    l = enc( 4, l, r);
-	    r = enc( 5, r, l);
-	    l = enc( 6, l, r);
-	    r = enc( 7, r, l);
-	    l = enc( 8, l, r);
-	    r = enc( 9, r, l);
-	    l = enc(10, l, r);
-	    r = enc(11, r, l);
-	    l = enc(12, l, r);
-	    r = enc(13, r, l);
-	    l = enc(14, l, r);
-	    r = enc(15, r, l);
-	    l = enc(16, l, r);
-
-	    r ^= FP[1 + ROUNDS];
-	}
-	else
-	{
-	    l^= FP[1 + ROUNDS];
-
-	    r = enc(16, r, l);
-	    l = enc(15, l, r);
-	    r = enc(14, r, l);
-	    l = enc(13, l, r);
-	    r = enc(12, r, l);
-	    l = enc(11, l, r);
-	    r = enc(10, r, l);
-	    l = enc( 9, l, r);
-	    r = enc( 8, r, l);
-	    l = enc( 7, l, r);
-	    r = enc( 6, r, l);
-	    l = enc( 5, l, r);
-	    r = enc( 4, r, l);
-	    l = enc( 3, l, r);
-	    r = enc( 2, r, l);
-	    l = enc( 1, l, r);
-
-	    r ^= FP[0];
-	}
-
-	data[1] = l & 0xffffffff;
-	data[0] = r & 0xffffffff;
-
-	return;
+	l ^= p[0];
+
+	r ^= f(s, l) ^ p[1];
+	l ^= f(s, r) ^ p[2];
+	r ^= f(s, l) ^ p[3];
+	l ^= f(s, r) ^ p[4];
+	r ^= f(s, l) ^ p[5];
+	l ^= f(s, r) ^ p[6];
+	r ^= f(s, l) ^ p[7];
+	l ^= f(s, r) ^ p[8];
+	r ^= f(s, l) ^ p[9];
+	l ^= f(s, r) ^ p[10];
+	r ^= f(s, l) ^ p[11];
+	l ^= f(s, r) ^ p[12];
+	r ^= f(s, l) ^ p[13];
+	l ^= f(s, r) ^ p[14];
+	r ^= f(s, l) ^ p[15];
+	l ^= f(s, r) ^ p[16];
+
+	r ^= p[1 + ROUNDS];
+
+	return ((long)r << 32) | (l & 0xffffffffL);
     }
 
-    private void setKey(byte[] data)
-    {
-	byte d;
-	int i, cnt, len;
-	int ri;  
-	int[] in = new int[2];
-
-	len = data.length;
-	if (len > ((ROUNDS + 2) * 4))
-	{
-	    len = (ROUNDS + 2) * 4;
-	}
+    // decipher
+    //
+    // Decrypt the block (l, r), returning it as for encipher.
 
-	for(i = 0, cnt = 0; i < (ROUNDS + 2); i++)
-	{
-	    d = data[cnt];
-	    ri = d & 0xff;
-	    cnt++;
-	    if (cnt >= len)
-	    {
-		cnt = 0;
-	    }
+    static long decipher(int[] p, int[] s, int l, int r)
+    {
+	l ^= p[1 + ROUNDS];
+
+	r ^= f(s, l) ^ p[16];
+	l ^= f(s, r) ^ p[15];
+	r ^= f(s, l) ^ p[14];
+	l ^= f(s, r) ^ p[13];
+	r ^= f(s, l) ^ p[12];
+	l ^= f(s, r) ^ p[11];
+	r ^= f(s, l) ^ p[10];
+	l ^= f(s, r) ^ p[9];
+	r ^= f(s, l) ^ p[8];
+	l ^= f(s, r) ^ p[7];
+	r ^= f(s, l) ^ p[6];
+	l ^= f(s, r) ^ p[5];
+	r ^= f(s, l) ^ p[4];
+	l ^= f(s, r) ^ p[3];
+	r ^= f(s, l) ^ p[2];
+	l ^= f(s, r) ^ p[1];
+
+	r ^= p[0];
+
+	return ((long)r << 32) | (l & 0xffffffffL);
+    }
 
-	    d = data[cnt];
-	    ri <<= 8;
-	    ri |= d & 0xff;
-	    cnt++;
-	    if (cnt >= len)
-	    {
-		cnt = 0;
-	    }
+    // encrypt
+    //
+    // Main encryption routine. Encrypts/decrypts the two ints in the
+    // data array
 
-	    d = data[cnt];
-	    ri <<= 8;
-	    ri |= d & 0xff;
-	    cnt++;
-	    if(cnt >= len)
-	    {
-		cnt = 0;
-	    }
+    public void encrypt(int[] data, boolean encrypt)
+    {
+	long b = (encrypt ? encipher(FP, FS, data[0], data[1]) :
+		  decipher(FP, FS, data[0], data[1]));
 
-	    d = data[cnt];
-	    ri <<= 8;
-	    ri |= d & 0xff;
-	    cnt++;
-	    if (cnt >= len)
-	    {
-		cnt = 0;
-	    }
+	data[0] = (int)(b >>> 32);
+	data[1] = (int)b;
+    }
 
-	    FP[i] ^= ri;
-	}
-      
-	in[0] = 0;
-	in[1] = 0;
-	for(i = 0; i < (ROUNDS + 2); i += 2)
-	{
-	    encrypt(in, true);
-	    FP[i] = in[0];
-	    FP[i + 1] = in[1];
-	}
+    // n2l and l2n
+    //
+    // Big-endian conversion between four bytes and an int
 
-	for (i = 0; i < 4 * 256; i += 2)
-	{
-	    encrypt(in, true);
-	    FS[i] = in[0];
-	    FS[i + 1] = in[1];
-	}
+    static int n2l(byte[] b, int i)
+    {
+	return ((b[i] << 24) | ((b[i + 1] & 0xff) << 16) |
+		((b[i + 2] & 0xff) << 8) | (b[i + 3] & 0xff));
+    }
 
-	return;
+    static void l2n(int v, byte[] b, int i)
+    {
+	b[i]     = (byte)(v >>> 24);
+	b[i + 1] = (byte)(v >>> 16);
+	b[i + 2] = (byte)(v >>> 8);
+	b[i + 3] = (byte)v;
     }
 
     // cbcEncrypt
@@ -471,7 +443,7 @@ public class ZBDBlowfish {
 	int tin0, tin1;
 	int tout0, tout1, xor0, xor1;
 	int l = in.length;
-	int[] tin = new int[2];
+	int[] tin = block;
 	int nin = inOffset;
 	int nout = outOffset;
 	byte[] iv = initVec;
@@ -693,120 +665,185 @@ public class ZBDBlowfish {
 	return;
     }
 
+    // decrypt4
+    //
+    // CFB64 decrypt four whole blocks, given the feedback register
+    // (v0, v1). All four cipher text blocks are loaded before anything
+    // is stored, so in-place operation works. The rounds for the four
+    // blocks are interleaved. Returns the last cipher text block, which
+    // is the new feedback register.
+
+    private long decrypt4(byte[] in, int nin, byte[] out, int nout, int v0, int v1)
+    {
+	final int[] p = FP;
+	final int[] s = FS;
+
+	int c0 = n2l(in, nin),      c1 = n2l(in, nin + 4);
+	int c2 = n2l(in, nin + 8),  c3 = n2l(in, nin + 12);
+	int c4 = n2l(in, nin + 16), c5 = n2l(in, nin + 20);
+	int c6 = n2l(in, nin + 24), c7 = n2l(in, nin + 28);
+
+	int l0 = v0 ^ p[0], r0 = v1;
+	int l1 = c0 ^ p[0], r1 = c1;
+	int l2 = c2 ^ p[0], r2 = c3;
+	int l3 = c4 ^ p[0], r3 = c5;
+
+	for (int i = 1; i < ROUNDS; i += 2)
+	{
+	    int pi = p[i], pj = p[i + 1];
+
+	    r0 ^= f(s, l0) ^ pi;
+	    r1 ^= f(s, l1) ^ pi;
+	    r2 ^= f(s, l2) ^ pi;
+	    r3 ^= f(s, l3) ^ pi;
+
+	    l0 ^= f(s, r0) ^ pj;
+	    l1 ^= f(s, r1) ^ pj;
+	    l2 ^= f(s, r2) ^ pj;
+	    l3 ^= f(s, r3) ^ pj;
+	}
+
+	// The halves swap over on output, as in encipher.
+
+	int pl = p[1 + ROUNDS];
+
+	l2n((r0 ^ pl) ^ c0, out, nout);
+	l2n(l0 ^ c1, out, nout + 4);
+	l2n((r1 ^ pl) ^ c2, out, nout + 8);
+	l2n(l1 ^ c3, out, nout + 12);
+	l2n((r2 ^ pl) ^ c4, out, nout + 16);
+	l2n(l2 ^ c5, out, nout + 20);
+	l2n((r3 ^ pl) ^ c6, out, nout + 24);
+	l2n(l3 ^ c7, out, nout + 28);
+
+	return ((long)c6 << 32) | (c7 & 0xffffffffL);
+    }
+
     // cfb64Encrypt
     //
-    // Stream encryption in CFB64 mode.
+    // Stream encryption in CFB64 mode. This is not synchronized: each
+    // direction of a tunnel has its own instance, used by one thread at
+    // a time.
 
     public void cfb64Encrypt(byte[] in, byte[] out, boolean encrypt)
     {
 	cfb64Encrypt(in, 0, out, 0, in.length, encrypt);
     }
 
-    synchronized public void cfb64Encrypt(byte[] in, int inOffset,
-					  byte[] out, int outOffset,
-					  int length, boolean encrypt)
+    public void cfb64Encrypt(byte[] in, int inOffset,
+			     byte[] out, int outOffset,
+			     int length, boolean encrypt)
     {
-	int v0, v1, t;
+	byte[] iv = initVec;
 	int n = cfbPosition;
-	int l = length;
-	int[] ti = new int[2];
-	int nout = outOffset;
 	int nin = inOffset;
-	int niv = 0;
-	byte c, cc;
-	byte[] iv = initVec;
+	int nout = outOffset;
+	int end = inOffset + length;
+	byte c;
 
+	// Use up what is left of the current block of key stream a byte
+	// at a time.
 
-	if (encrypt)
+	while (n != 0 && nin < end)
 	{
-	    while (l-- > 0)
+	    c = in[nin++];
+	    if (encrypt)
 	    {
-		if (n == 0)
-		{
-		    // n2l(iv, v0)
-		    v0 =  ((int)iv[0] << 24) & 0xff000000;
-		    v0 |= ((int)iv[1] << 16) & 0x00ff0000;
-		    v0 |= ((int)iv[2] << 8)  & 0x0000ff00;
-		    v0 |= ((int)iv[3])       & 0x000000ff;
-		    ti[0] = v0;
-
-		    // n2l(iv, v1)
-		    v1 =  ((int)iv[4] << 24) & 0xff000000;
-		    v1 |= ((int)iv[5] << 16) & 0x00ff0000;
-		    v1 |= ((int)iv[6] << 8)  & 0x0000ff00;
-		    v1 |= ((int)iv[7])       & 0x000000ff;
-		    ti[1] = v1;
-
-		    encrypt(ti, true);
-
-		    niv = 0;
-		    t = ti[0];
-		    // l2n(t, iv)
-		    iv[niv++] = (byte)((t >>> 24) & 0xff);
-		    iv[niv++] = (byte)((t >>> 16) & 0xff);
-	            iv[niv++] = (byte)((t >>> 8)  & 0xff);
-		    iv[niv++] = (byte)(t          & 0xff);
-
-		    t = ti[1];
-		    // l2n(t, iv)
-		    iv[niv++] = (byte)((t >>> 24) & 0xff);
-		    iv[niv++] = (byte)((t >>> 16) & 0xff);
-	            iv[niv++] = (byte)((t >>> 8)  & 0xff);
-		    iv[niv++] = (byte)(t          & 0xff);
-		}
-
-		c = (byte)(in[nin++] ^ iv[n]);
+		c ^= iv[n];
+		iv[n] = c;
 		out[nout++] = c;
+	    }
+	    else
+	    {
+		out[nout++] = (byte)(c ^ iv[n]);
 		iv[n] = c;
-		n = (n + 1) & 0x07;
 	    }
+	    n = (n + 1) & 0x07;
 	}
-	else
+
+	// Now we are on a block boundary, whole blocks can be handled a
+	// word at a time. The feedback register is held in (v0, v1) and
+	// only written back to the IV at the end. Each input block is
+	// loaded before the output is stored so that in-place operation
+	// works.
+
+	if (end - nin >= 8)
 	{
-	    while (l-- > 0)
+	    int v0 = n2l(iv, 0);
+	    int v1 = n2l(iv, 4);
+	    long k;
+
+	    if (encrypt)
 	    {
-		if (n == 0)
+		while (end - nin >= 8)
 		{
-		    // n2l(iv, v0)
-		    v0 =  ((int)iv[0] << 24) & 0xff000000;
-		    v0 |= ((int)iv[1] << 16) & 0x00ff0000;
-		    v0 |= ((int)iv[2] << 8)  & 0x0000ff00;
-		    v0 |= ((int)iv[3])       & 0x000000ff;
-		    ti[0] = v0;
-
-		    // n2l(iv, v1)
-		    v1 =  ((int)iv[4] << 24) & 0xff000000;
-		    v1 |= ((int)iv[5] << 16) & 0x00ff0000;
-		    v1 |= ((int)iv[6] << 8)  & 0x0000ff00;
-		    v1 |= ((int)iv[7])       & 0x000000ff;
-		    ti[1] = v1;
-
-		    encrypt(ti, true);
-
-		    niv = 0;
-		    t = ti[0];
-		    // l2n(t, iv)
-		    iv[niv++] = (byte)((t >>> 24) & 0xff);
-		    iv[niv++] = (byte)((t >>> 16) & 0xff);
-	            iv[niv++] = (byte)((t >>> 8)  & 0xff);
-		    iv[niv++] = (byte)(t          & 0xff);
-
-		    t = ti[1];
-		    // l2n(t, iv)
-		    iv[niv++] = (byte)((t >>> 24) & 0xff);
-		    iv[niv++] = (byte)((t >>> 16) & 0xff);
-	            iv[niv++] = (byte)((t >>> 8)  & 0xff);
-		    iv[niv++] = (byte)(t          & 0xff);
+		    k = encipher(FP, FS, v0, v1);
+		    v0 = (int)(k >>> 32) ^ n2l(in, nin);
+		    v1 = (int)k ^ n2l(in, nin + 4);
+		    l2n(v0, out, nout);
+		    l2n(v1, out, nout + 4);
+		    nin += 8;
+		    nout += 8;
 		}
+	    }
+	    else
+	    {
+		// When decrypting, the cipher text, and so the input to
+		// the cipher for each block, is already known. Four blocks
+		// at a time are run through the cipher side by side, which
+		// keeps the processor busier than one dependent chain.
 
-		cc = in[nin++];
-		c = iv[n];
-		iv[n] = cc;
-		out[nout++] = (byte)(c ^ cc);
-		n = (n + 1) & 0x07;
+		while (end - nin >= 32)
+		{
+		    k = decrypt4(in, nin, out, nout, v0, v1);
+		    v0 = (int)(k >>> 32);
+		    v1 = (int)k;
+		    nin += 32;
+		    nout += 32;
+		}
+
+		while (end - nin >= 8)
+		{
+		    k = encipher(FP, FS, v0, v1);
+		    v0 = n2l(in, nin);
+		    v1 = n2l(in, nin + 4);
+		    l2n((int)(k >>> 32) ^ v0, out, nout);
+		    l2n((int)k ^ v1, out, nout + 4);
+		    nin += 8;
+		    nout += 8;
+		}
 	    }
+
+	    l2n(v0, iv, 0);
+	    l2n(v1, iv, 4);
 	}
-	v0 = v1 = ti[0] = ti[1] = t = c = cc = 0;
+
+	// Any remaining bytes start a new block of key stream.
+
+	while (nin < end)
+	{
+	    if (n == 0)
+	    {
+		long k = encipher(FP, FS, n2l(iv, 0), n2l(iv, 4));
+		l2n((int)(k >>> 32), iv, 0);
+		l2n((int)k, iv, 4);
+	    }
+
+	    c = in[nin++];
+	    if (encrypt)
+	    {
+		c ^= iv[n];
+		iv[n] = c;
+		out[nout++] = c;
+	    }
+	    else
+	    {
+		out[nout++] = (byte)(c ^ iv[n]);
+		iv[n] = c;
+	    }
+	    n = (n + 1) & 0x07;
+	}
+
 	cfbPosition = n;
     }
 
@@ -821,67 +858,209 @@ public class ZBDBlowfish {
 	this(key, new byte[] {0, 0, 0, 0, 0, 0, 0, 0});
     }
 
+    /**
+     * Create an instance using an already expanded key. The schedule is
+     * shared, not copied, so there is no key setup cost.
+     *
+     * @param schedule The expanded key.
+     * @param iv The initialisation vector.
+     */
+
+    public ZBDBlowfish(ZBDBlowfishKey schedule, byte iv[])
+    {
+	super();
+	init(schedule, iv);
+    }
+
     synchronized public void init(byte[] key, byte iv[])
     {
-	clear();
+	init(new ZBDBlowfishKey(key), iv);
+    }
 
-	FP = new int[FP0.length];
-	System.arraycopy(FP0, 0, FP, 0, FP.length);
+    public void init(byte[] key)
+    {
+	init(key, new byte[] { 0, 0, 0, 0, 0, 0, 0, 0 });
+    }
 
-	FS = new int[FS0.length];
-	System.arraycopy(FS0, 0, FS, 0, FS.length);
+    synchronized public void init(ZBDBlowfishKey schedule, byte iv[])
+    {
+	clear();
 
-	keyData = new byte[key.length];
-	System.arraycopy(key, 0, keyData, 0, keyData.length);
+	this.schedule = schedule;
+	FP = schedule.P;
+	FS = schedule.S;
 
 	System.arraycopy(iv, 0, initVec, 0, initVec.length);
+    }
+
+    /**
+     * Forget the key and clear the chaining state. The key schedule
+     * itself is left alone as it may be in use elsewhere.
+     */
+
+    synchronized public void clear()
+    {
+	int i;
+
+	cfbPosition = 0;
+
+	for(i = 0; i < initVec.length; i++)
+	{
+	    initVec[i] = 0;
+	}
 
-	setKey(keyData);
+	schedule = null;
+	FP = null;
+	FS = null;
     }
 
-    public void init(byte[] key)
+    protected void finalize()
     {
-	init(key, new byte[] { 0, 0, 0, 0, 0, 0, 0, 0 });
+	clear();
     }
 
-    synchronized public void clear()
+    // Test vectors, from Eric Young's bftest.c
+
+    static final String[][] ECB_VECTORS = {
+	// key, plain text, cipher text
+	{ "0000000000000000", "0000000000000000", "4EF997456198DD78" },
+	{ "FFFFFFFFFFFFFFFF", "FFFFFFFFFFFFFFFF", "51866FD5B85ECB8A" },
+	{ "3000000000000000", "1000000000000001", "7D856F9A613063F2" },
+	{ "0123456789ABCDEF", "1111111111111111", "61F9C3802281B096" },
+	{ "FEDCBA9876543210", "0123456789ABCDEF", "0ACEAB0FC6A0A28D" }
+    };
+
+    static final String CFB_KEY = "0123456789ABCDEFF0E1D2C3B4A59687";
+    static final String CFB_IV = "FEDCBA9876543210";
+    static final String CFB_PLAIN = "7654321 Now is the time for \0";
+    static final String CFB_CIPHER =
+	"E73214A2822139CAF26ECF6D2EB9E76E3DA3DE04D1517200519D57A6C3";
+
+    /**
+     * Run the test vectors through the code and report whether they
+     * pass. The CFB64 vector is also tried split into two pieces at
+     * every possible point, and in place, to exercise the partial block
+     * handling. Finally the CFB64 throughput is measured.
+     */
+
+    public static void main(String args[]) throws Exception
     {
+	boolean ok = true;
 	int i;
 
-	cfbPosition = 0;
+	System.out.println("Blowfish ECB test vectors");
+	for (i = 0; i < ECB_VECTORS.length; i++)
+	{
+	    ZBDBlowfish bf = new ZBDBlowfish(ZBDTunnel.hexToBytes(ECB_VECTORS[i][0]));
+	    byte[] p = ZBDTunnel.hexToBytes(ECB_VECTORS[i][1]);
+	    int[] data = { n2l(p, 0), n2l(p, 4) };
+	    byte[] c = new byte[8];
+
+	    bf.encrypt(data, true);
+	    l2n(data[0], c, 0);
+	    l2n(data[1], c, 4);
+	    boolean pass = ZBDTunnel.bytesToHex(c).equalsIgnoreCase(ECB_VECTORS[i][2]);
+
+	    bf.encrypt(data, false);
+	    l2n(data[0], c, 0);
+	    l2n(data[1], c, 4);
+	    pass &= ZBDTunnel.bytesToHex(c).equalsIgnoreCase(ECB_VECTORS[i][1]);
+
+	    System.out.println("  " + ECB_VECTORS[i][0] + ": " + (pass ? "ok" : "FAILED"));
+	    ok &= pass;
+	}
+
+	System.out.println("Blowfish CFB64 test vector");
+	byte[] key = ZBDTunnel.hexToBytes(CFB_KEY);
+	byte[] iv = ZBDTunnel.hexToBytes(CFB_IV);
+	byte[] plain = CFB_PLAIN.getBytes("ASCII");
+	byte[] cipher = ZBDTunnel.hexToBytes(CFB_CIPHER);
+	int failed = 0;
 
-	if (keyData != null)
+	for (int split = 0; split <= plain.length; split++)
 	{
-	    for(i = 0; i < keyData.length; i++)
+	    ZBDBlowfish enc = new ZBDBlowfish(key, iv);
+	    ZBDBlowfish dec = new ZBDBlowfish(key, iv);
+	    byte[] out = new byte[plain.length];
+	    byte[] buf = new byte[plain.length];
+
+	    enc.cfb64Encrypt(plain, 0, out, 0, split, true);
+	    enc.cfb64Encrypt(plain, split, out, split, plain.length - split, true);
+
+	    System.arraycopy(out, 0, buf, 0, buf.length);
+	    dec.cfb64Encrypt(buf, 0, buf, 0, split, false);
+	    dec.cfb64Encrypt(buf, split, buf, split, buf.length - split, false);
+
+	    if (!Arrays.equals(out, cipher) || !Arrays.equals(buf, plain))
 	    {
-		keyData[i] = 0;
+		failed++;
 	    }
 	}
+	System.out.println("  " + (plain.length + 1) + " splits: " +
+			   (failed == 0 ? "ok" : failed + " FAILED"));
+	ok &= (failed == 0);
 
-	for(i = 0; i < initVec.length; i++)
-	{
-	    initVec[i] = 0;
-	}
+	// The vector is too short to reach the four block decrypt path so
+	// check that a longer message, taken in pieces of every size from
+	// one byte upward, decrypts to what it was.
+
+	System.out.println("Blowfish CFB64 round trip");
+	byte[] text = new byte[4096];
+	new Random(0).nextBytes(text);
+	failed = 0;
 
-	if (FP != null)
+	for (int piece = 1; piece <= 80; piece++)
 	{
-	    for (i = 0; i < FP.length; i++)
+	    ZBDBlowfish enc = new ZBDBlowfish(key, iv);
+	    ZBDBlowfish dec = new ZBDBlowfish(key, iv);
+	    byte[] buf = new byte[text.length];
+
+	    enc.cfb64Encrypt(text, 0, buf, 0, text.length, true);
+	    for (int off = 0; off < buf.length; off += piece)
 	    {
-		FP[i] = 0;
+		int len = (buf.length - off < piece ? buf.length - off : piece);
+		dec.cfb64Encrypt(buf, off, buf, off, len, false);
+	    }
+
+	    if (!Arrays.equals(buf, text))
+	    {
+		failed++;
 	    }
 	}
+	System.out.println("  80 piece sizes: " + (failed == 0 ? "ok" : failed + " FAILED"));
+	ok &= (failed == 0);
+
+	// Throughput on one thread, in tunnel-sized messages
 
-	if (FS != null)
+	byte[] msg = new byte[ZBDTunnel.MAX_BUFFER_SIZE];
+	int count = 8192;
+
+	for (int pass = 0; pass < 2; pass++)
 	{
-	    for (i = 0; i < FS.length; i++)
+	    boolean encrypt = (pass == 0);
+	    ZBDBlowfish bf = new ZBDBlowfish(key, iv);
+
+	    for (i = 0; i < count; i++)
 	    {
-		FS[i] = 0;
+		bf.cfb64Encrypt(msg, 0, msg, 0, msg.length, encrypt);
 	    }
+	    long start = System.currentTimeMillis();
+	    for (i = 0; i < count; i++)
+	    {
+		bf.cfb64Encrypt(msg, 0, msg, 0, msg.length, encrypt);
+	    }
+	    long elapsed = System.currentTimeMillis() - start;
+	    System.out.println("CFB64 " + (encrypt ? "encrypt" : "decrypt") +
+			       " throughput: " +
+			       ((long)count * msg.length * 1000 / 1048576 /
+				(elapsed > 0 ? elapsed : 1)) +
+			       " MB/s");
 	}
-    }
 
-    protected void finalize()
-    {
-	clear();
+	System.out.println(ok ? "All tests passed" : "TESTS FAILED");
+	if (!ok)
+	{
+	    System.exit(1);
+	}
     }
 }
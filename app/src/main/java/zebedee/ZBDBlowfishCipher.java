@@ -0,0 +1,42 @@
+// This program is free software and may be distributed under the terms
+// of the GNU Lesser General Public License, Version 2.1.
+// This program comes with ABSOLUTELY NO WARRANTY.
+
+package zebedee;
+
+/**
+ * Blowfish CFB64 using the pure Java {@link ZBDBlowfish}, the built-in
+ * provider. Both directions share one key schedule.
+ */
+
+class ZBDBlowfishCipher extends ZBDCipher
+{
+    ZBDBlowfish in;
+    ZBDBlowfish out;
+
+
+    ZBDBlowfishCipher(byte[] key, byte[] iv)
+    {
+	ZBDBlowfishKey schedule = new ZBDBlowfishKey(key);
+
+	in = new ZBDBlowfish(schedule, iv);
+	out = new ZBDBlowfish(schedule, iv);
+    }
+
+    public int encrypt(int flags, byte[] src, int srcOffset, byte[] dst, int dstOffset, int length)
+    {
+	out.cfb64Encrypt(src, srcOffset, dst, dstOffset, length, true);
+	return length;
+    }
+
+    public int decrypt(int flags, byte[] src, int srcOffset, byte[] dst, int dstOffset, int length)
+    {
+	in.cfb64Encrypt(src, srcOffset, dst, dstOffset, length, false);
+	return length;
+    }
+
+    public String getProvider()
+    {
+	return PROVIDER_BUILTIN;
+    }
+}
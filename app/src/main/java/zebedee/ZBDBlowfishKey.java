@@ -0,0 +1,116 @@
+// This program is free software and may be distributed under the terms
+// of the GNU Lesser General Public License, Version 2.1.
+// This program comes with ABSOLUTELY NO WARRANTY.
+
+package zebedee;
+
+/**
+ * An expanded Blowfish key: the P-array and S-boxes derived from a key.
+ * Expanding a key takes 521 block encryptions, and the result is never
+ * changed afterwards, so one instance can be shared by any number of
+ * {@link ZBDBlowfish} instances on any number of threads. A tunnel uses
+ * one for both directions of its connection, each direction keeping
+ * only its own chaining state.
+ */
+
+public final class ZBDBlowfishKey
+{
+    final int[] P;
+    final int[] S;
+
+
+    /**
+     * Expand the given key.
+     *
+     * @param key The key. Only the first 72 bytes are used.
+     */
+
+    public ZBDBlowfishKey(byte[] key)
+    {
+	int[] p = new int[ZBDBlowfish.FP0.length];
+	int[] s = new int[ZBDBlowfish.FS0.length];
+
+	System.arraycopy(ZBDBlowfish.FP0, 0, p, 0, p.length);
+	System.arraycopy(ZBDBlowfish.FS0, 0, s, 0, s.length);
+
+	setKey(p, s, key);
+
+	P = p;
+	S = s;
+    }
+
+    private static void setKey(int[] p, int[] s, byte[] data)
+    {
+	byte d;
+	int i, cnt, len;
+	int ri;
+	int l, r;
+	long b;
+
+	len = data.length;
+	if (len > ((ZBDBlowfish.ROUNDS + 2) * 4))
+	{
+	    len = (ZBDBlowfish.ROUNDS + 2) * 4;
+	}
+
+	for(i = 0, cnt = 0; i < (ZBDBlowfish.ROUNDS + 2); i++)
+	{
+	    d = data[cnt];
+	    ri = d & 0xff;
+	    cnt++;
+	    if (cnt >= len)
+	    {
+		cnt = 0;
+	    }
+
+	    d = data[cnt];
+	    ri <<= 8;
+	    ri |= d & 0xff;
+	    cnt++;
+	    if (cnt >= len)
+	    {
+		cnt = 0;
+	    }
+
+	    d = data[cnt];
+	    ri <<= 8;
+	    ri |= d & 0xff;
+	    cnt++;
+	    if(cnt >= len)
+	    {
+		cnt = 0;
+	    }
+
+	    d = data[cnt];
+	    ri <<= 8;
+	    ri |= d & 0xff;
+	    cnt++;
+	    if (cnt >= len)
+	    {
+		cnt = 0;
+	    }
+
+	    p[i] ^= ri;
+	}
+
+	l = 0;
+	r = 0;
+	for(i = 0; i < (ZBDBlowfish.ROUNDS + 2); i += 2)
+	{
+	    b = ZBDBlowfish.encipher(p, s, l, r);
+	    l = (int)(b >>> 32);
+	    r = (int)b;
+	    p[i] = l;
+	    p[i + 1] = r;
+	}
+
+	for (i = 0; i < 4 * 256; i += 2)
+	{
+	    b = ZBDBlowfish.encipher(p, s, l, r);
+	    l = (int)(b >>> 32);
+	    r = (int)b;
+	    s[i] = l;
+	    s[i + 1] = r;
+	}
+    }
+}
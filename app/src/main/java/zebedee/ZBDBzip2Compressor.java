@@ -0,0 +1,1263 @@
+// This program is free software and may be distributed under the terms
+// of the GNU Lesser General Public License, Version 2.1.
+// This program comes with ABSOLUTELY NO WARRANTY.
+
+package zebedee;
+
+/**
+ * Bzip2 compression. The Java platform has none, so this is a complete
+ * implementation of the bzip2 format: run-length encoding, the
+ * Burrows-Wheeler transform, move-to-front coding and up to six Huffman
+ * tables per block.
+ * <p>
+ * As with the C version of Zebedee, which uses
+ * <code>BZ2_bzBuffToBuffCompress</code>, each message is compressed on
+ * its own as a complete bzip2 stream with the compression level as the
+ * block size. Bzip2 has no way to flush part of a stream, so it is never
+ * used in streaming mode. Messages are at most {@link
+ * ZBDTunnel#MAX_BUFFER_SIZE} bytes, so the transform here is a simple
+ * prefix-doubling sort rather than the elaborate one in the C library,
+ * which is designed for blocks of up to 900K. The output may not be
+ * byte for byte the same as the C library's, but each reads the other's.
+ * <p>
+ * Randomised blocks, which only very old versions of bzip2 write, are
+ * not supported.
+ */
+
+class ZBDBzip2Compressor extends ZBDCompressor
+{
+    static final long BLOCK_MAGIC = 0x314159265359L;
+    static final long END_MAGIC = 0x177245385090L;
+
+    static final int RUNA = 0;
+    static final int RUNB = 1;
+    static final int MIN_GROUPS = 2;
+    static final int MAX_GROUPS = 6;
+    static final int GROUP_SIZE = 50;
+    static final int ITERATIONS = 4;
+    static final int MAX_ALPHA_SIZE = 258;
+    static final int MAX_SELECTORS = 18002;
+
+    // Longest code written, and longest accepted
+    static final int MAX_CODE_LEN = 17;
+    static final int MAX_DECODE_LEN = 20;
+
+    static final int[] CRC_TABLE = new int[256];
+
+    static
+    {
+	for (int i = 0; i < 256; i++)
+	{
+	    int c = i << 24;
+	    for (int j = 0; j < 8; j++)
+	    {
+		c = ((c & 0x80000000) != 0 ? (c << 1) ^ 0x04c11db7 : c << 1);
+	    }
+	    CRC_TABLE[i] = c;
+	}
+    }
+
+    int level;
+
+    // Compression state and work areas, which grow as needed
+
+    byte[] block = new byte[0];
+    int[] sa = new int[0];
+    int[] rank = new int[0];
+    int[] work = new int[0];
+    int[] count = new int[0];
+    char[] mtfv = new char[0];
+    boolean[] inUse = new boolean[256];
+    int[] mtfFreq = new int[MAX_ALPHA_SIZE];
+    byte[][] len = new byte[MAX_GROUPS][MAX_ALPHA_SIZE];
+    int[][] code = new int[MAX_GROUPS][MAX_ALPHA_SIZE];
+    int[][] rfreq = new int[MAX_GROUPS][MAX_ALPHA_SIZE];
+    byte[] selector = new byte[MAX_SELECTORS];
+    int[] weight = new int[MAX_ALPHA_SIZE * 2];
+    int[] parent = new int[MAX_ALPHA_SIZE * 2];
+    int[] heap = new int[MAX_ALPHA_SIZE + 2];
+    BitWriter out = new BitWriter();
+
+    // Decompression state and work areas
+
+    int[] tt = new int[0];
+    int[] unzftab = new int[256];
+    byte[] seqToUnseq = new byte[256];
+    byte[] dselector = new byte[MAX_SELECTORS];
+    byte[][] dlen = new byte[MAX_GROUPS][MAX_ALPHA_SIZE];
+    int[][] limit = new int[MAX_GROUPS][MAX_DECODE_LEN + 2];
+    int[][] base = new int[MAX_GROUPS][MAX_DECODE_LEN + 2];
+    int[][] perm = new int[MAX_GROUPS][MAX_ALPHA_SIZE];
+    int[] minLens = new int[MAX_GROUPS];
+    int alphaSize;
+    BitReader in = new BitReader();
+
+
+    ZBDBzip2Compressor(int level)
+    {
+	this.level = level;
+    }
+
+    //
+    // Compression
+    //
+
+    public int compress(byte[] src, int srcOffset, int length,
+			byte[] dst, int dstOffset, int maxLength)
+	throws ZBDException
+    {
+	// Only worth sending if smaller
+
+	out.start(dst, dstOffset, Math.min(maxLength, length - 1));
+
+	out.write(24, 0x425a68);		// "BZh"
+	out.write(8, '0' + level);
+
+	int combinedCrc = 0;
+	int end = srcOffset + length;
+	int blockMax = level * 100000 - 19;
+
+	for (int p = srcOffset; p < end && !out.overflow; )
+	{
+	    // Run-length encode as much as fits in a block, noting the
+	    // CRC of the original data
+
+	    ensureBlock(Math.min(length + length / 4, blockMax) + 5);
+
+	    int n = 0;
+	    int crc = -1;
+
+	    for (int i = 0; i < 256; i++)
+	    {
+		inUse[i] = false;
+	    }
+
+	    while (p < end && n < blockMax)
+	    {
+		byte b = src[p];
+		int run = 1;
+
+		while (run < 255 && p + run < end && src[p + run] == b)
+		{
+		    run++;
+		}
+		p += run;
+
+		for (int i = 0; i < run; i++)
+		{
+		    crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ b) & 0xff];
+		}
+
+		inUse[b & 0xff] = true;
+		if (run < 4)
+		{
+		    for (int i = 0; i < run; i++)
+		    {
+			block[n++] = b;
+		    }
+		}
+		else
+		{
+		    block[n++] = b;
+		    block[n++] = b;
+		    block[n++] = b;
+		    block[n++] = b;
+		    block[n++] = (byte)(run - 4);
+		    inUse[run - 4] = true;
+		}
+	    }
+
+	    crc = ~crc;
+	    combinedCrc = ((combinedCrc << 1) | (combinedCrc >>> 31)) ^ crc;
+
+	    out.write(24, (int)(BLOCK_MAGIC >>> 24));
+	    out.write(24, (int)BLOCK_MAGIC & 0xffffff);
+	    out.write(32, crc);
+	    out.write(1, 0);			// Not randomised
+
+	    writeBlock(n);
+	}
+
+	out.write(24, (int)(END_MAGIC >>> 24));
+	out.write(24, (int)END_MAGIC & 0xffffff);
+	out.write(32, combinedCrc);
+	out.flush();
+
+	return (out.overflow ? -1 : out.pos - dstOffset);
+    }
+
+    private void ensureBlock(int size)
+    {
+	if (block.length < size)
+	{
+	    block = new byte[size];
+	    sa = new int[size];
+	    rank = new int[size];
+	    work = new int[size];
+	    count = new int[Math.max(size, 256)];
+	    mtfv = new char[size + 1];
+	}
+    }
+
+    /**
+     * Transform and write the <code>n</code> bytes of run-length encoded
+     * data in <code>block</code>.
+     */
+
+    private void writeBlock(int n)
+    {
+	sortRotations(n);
+
+	// The original pointer is where the unrotated block ended up
+
+	int origPtr = 0;
+	while (sa[origPtr] != 0)
+	{
+	    origPtr++;
+	}
+	out.write(24, origPtr);
+
+	// Map the bytes used to consecutive values and note which they are
+
+	byte[] unseqToSeq = new byte[256];
+	int nInUse = 0;
+	int used16 = 0;
+
+	for (int i = 0; i < 256; i++)
+	{
+	    if (inUse[i])
+	    {
+		unseqToSeq[i] = (byte)nInUse++;
+		used16 |= 0x8000 >>> (i >> 4);
+	    }
+	}
+
+	out.write(16, used16);
+	for (int i = 0; i < 16; i++)
+	{
+	    if ((used16 & (0x8000 >>> i)) != 0)
+	    {
+		int bits = 0;
+		for (int j = 0; j < 16; j++)
+		{
+		    if (inUse[i * 16 + j])
+		    {
+			bits |= 0x8000 >>> j;
+		    }
+		}
+		out.write(16, bits);
+	    }
+	}
+
+	int nMTF = encodeMTF(n, unseqToSeq, nInUse);
+	writeHuffman(nMTF, nInUse + 2);
+    }
+
+    /**
+     * Sort the rotations of the block, leaving their starting positions
+     * in order in <code>sa</code>. Rotations are first sorted by their
+     * first byte, and then repeatedly by twice as many bytes, using the
+     * order already found for each half, until all are distinct.
+     */
+
+    private void sortRotations(int n)
+    {
+	int[] sa = this.sa;
+	int[] rank = this.rank;
+	int[] tmp = this.work;
+	int[] cnt = this.count;
+
+	for (int i = 0; i < 256; i++)
+	{
+	    cnt[i] = 0;
+	}
+	for (int i = 0; i < n; i++)
+	{
+	    cnt[block[i] & 0xff]++;
+	}
+	for (int i = 0, sum = 0; i < 256; i++)
+	{
+	    int c = cnt[i];
+	    cnt[i] = sum;
+	    sum += c;
+	}
+	for (int i = 0; i < n; i++)
+	{
+	    sa[cnt[block[i] & 0xff]++] = i;
+	}
+
+	int classes = 0;
+	rank[sa[0]] = 0;
+	for (int j = 1; j < n; j++)
+	{
+	    if (block[sa[j]] != block[sa[j - 1]])
+	    {
+		classes++;
+	    }
+	    rank[sa[j]] = classes;
+	}
+	classes++;
+
+	for (int k = 1; classes < n && k < n; k <<= 1)
+	{
+	    // Order by the second half is the order of the first half
+	    // shifted by k. A stable sort by the first half follows.
+
+	    for (int j = 0; j < n; j++)
+	    {
+		int i = sa[j] - k;
+		tmp[j] = (i < 0 ? i + n : i);
+	    }
+
+	    for (int i = 0; i < classes; i++)
+	    {
+		cnt[i] = 0;
+	    }
+	    for (int j = 0; j < n; j++)
+	    {
+		cnt[rank[tmp[j]]]++;
+	    }
+	    for (int i = 0, sum = 0; i < classes; i++)
+	    {
+		int c = cnt[i];
+		cnt[i] = sum;
+		sum += c;
+	    }
+	    for (int j = 0; j < n; j++)
+	    {
+		int i = tmp[j];
+		sa[cnt[rank[i]]++] = i;
+	    }
+
+	    // New ranks, in tmp, then swap
+
+	    classes = 0;
+	    tmp[sa[0]] = 0;
+	    for (int j = 1; j < n; j++)
+	    {
+		int i = sa[j];
+		int prev = sa[j - 1];
+		int i2 = (i + k >= n ? i + k - n : i + k);
+		int prev2 = (prev + k >= n ? prev + k - n : prev + k);
+
+		if (rank[i] != rank[prev] || rank[i2] != rank[prev2])
+		{
+		    classes++;
+		}
+		tmp[i] = classes;
+	    }
+	    classes++;
+
+	    int[] t = rank;
+	    rank = tmp;
+	    tmp = t;
+	}
+
+	this.rank = rank;
+	this.work = tmp;
+    }
+
+    /**
+     * Move-to-front code the last column of the sorted rotations, with
+     * runs of zeroes written in bijective base 2 as RUNA and RUNB.
+     *
+     * @return The number of symbols, including the end of block.
+     */
+
+    private int encodeMTF(int n, byte[] unseqToSeq, int nInUse)
+    {
+	byte[] yy = new byte[256];
+	int eob = nInUse + 1;
+	int nMTF = 0;
+	int zPend = 0;
+
+	for (int i = 0; i < nInUse; i++)
+	{
+	    yy[i] = (byte)i;
+	}
+	for (int i = 0; i <= eob; i++)
+	{
+	    mtfFreq[i] = 0;
+	}
+
+	for (int j = 0; j < n; j++)
+	{
+	    int i = sa[j] - 1;
+	    byte sym = unseqToSeq[block[i < 0 ? n - 1 : i] & 0xff];
+
+	    if (yy[0] == sym)
+	    {
+		zPend++;
+		continue;
+	    }
+
+	    if (zPend > 0)
+	    {
+		nMTF = encodeRun(zPend, nMTF);
+		zPend = 0;
+	    }
+
+	    int pos = 0;
+	    byte prev = yy[0];
+	    do
+	    {
+		pos++;
+		byte t = yy[pos];
+		yy[pos] = prev;
+		prev = t;
+	    }
+	    while (prev != sym);
+	    yy[0] = sym;
+
+	    mtfv[nMTF++] = (char)(pos + 1);
+	    mtfFreq[pos + 1]++;
+	}
+
+	if (zPend > 0)
+	{
+	    nMTF = encodeRun(zPend, nMTF);
+	}
+
+	mtfv[nMTF++] = (char)eob;
+	mtfFreq[eob]++;
+	return nMTF;
+    }
+
+    private int encodeRun(int zPend, int nMTF)
+    {
+	zPend--;
+	while (true)
+	{
+	    int sym = ((zPend & 1) != 0 ? RUNB : RUNA);
+	    mtfv[nMTF++] = (char)sym;
+	    mtfFreq[sym]++;
+	    if (zPend < 2)
+	    {
+		break;
+	    }
+	    zPend = (zPend - 2) / 2;
+	}
+	return nMTF;
+    }
+
+    /**
+     * Choose the Huffman tables, and which to use for each group of
+     * symbols, by starting with tables that each favour a range of
+     * symbols and repeatedly recomputing them from the groups they
+     * suit best. Then write the tables, the selectors and the symbols.
+     */
+
+    private void writeHuffman(int nMTF, int alphaSize)
+    {
+	int nGroups = (nMTF < 200 ? 2 : nMTF < 600 ? 3 : nMTF < 1200 ? 4 :
+		       nMTF < 2400 ? 5 : 6);
+
+	// Initial tables, each cheap for its share of the symbols
+
+	int nPart = nGroups;
+	int remF = nMTF;
+	int gs = 0;
+
+	while (nPart > 0)
+	{
+	    int tFreq = remF / nPart;
+	    int ge = gs - 1;
+	    int aFreq = 0;
+
+	    while (aFreq < tFreq && ge < alphaSize - 1)
+	    {
+		ge++;
+		aFreq += mtfFreq[ge];
+	    }
+
+	    if (ge > gs && nPart != nGroups && nPart != 1 &&
+		((nGroups - nPart) % 2 == 1))
+	    {
+		aFreq -= mtfFreq[ge];
+		ge--;
+	    }
+
+	    for (int v = 0; v < alphaSize; v++)
+	    {
+		len[nPart - 1][v] = (byte)(v >= gs && v <= ge ? 0 : 15);
+	    }
+
+	    nPart--;
+	    gs = ge + 1;
+	    remF -= aFreq;
+	}
+
+	int nSelectors = 0;
+	int[] cost = new int[MAX_GROUPS];
+
+	for (int iter = 0; iter < ITERATIONS; iter++)
+	{
+	    for (int t = 0; t < nGroups; t++)
+	    {
+		for (int v = 0; v < alphaSize; v++)
+		{
+		    rfreq[t][v] = 0;
+		}
+	    }
+
+	    nSelectors = 0;
+	    for (gs = 0; gs < nMTF; gs += GROUP_SIZE)
+	    {
+		int ge = Math.min(gs + GROUP_SIZE, nMTF);
+
+		for (int t = 0; t < nGroups; t++)
+		{
+		    byte[] l = len[t];
+		    int c = 0;
+		    for (int i = gs; i < ge; i++)
+		    {
+			c += l[mtfv[i]];
+		    }
+		    cost[t] = c;
+		}
+
+		int bt = 0;
+		for (int t = 1; t < nGroups; t++)
+		{
+		    if (cost[t] < cost[bt])
+		    {
+			bt = t;
+		    }
+		}
+
+		selector[nSelectors++] = (byte)bt;
+		int[] f = rfreq[bt];
+		for (int i = gs; i < ge; i++)
+		{
+		    f[mtfv[i]]++;
+		}
+	    }
+
+	    for (int t = 0; t < nGroups; t++)
+	    {
+		makeCodeLengths(len[t], rfreq[t], alphaSize, MAX_CODE_LEN);
+	    }
+	}
+
+	// Canonical codes
+
+	for (int t = 0; t < nGroups; t++)
+	{
+	    int minLen = 32;
+	    int maxLen = 0;
+	    for (int v = 0; v < alphaSize; v++)
+	    {
+		minLen = Math.min(minLen, len[t][v]);
+		maxLen = Math.max(maxLen, len[t][v]);
+	    }
+
+	    int vec = 0;
+	    for (int l = minLen; l <= maxLen; l++)
+	    {
+		for (int v = 0; v < alphaSize; v++)
+		{
+		    if (len[t][v] == l)
+		    {
+			code[t][v] = vec++;
+		    }
+		}
+		vec <<= 1;
+	    }
+	}
+
+	out.write(3, nGroups);
+	out.write(15, nSelectors);
+
+	// Selectors, move-to-front coded in unary
+
+	byte[] pos = new byte[MAX_GROUPS];
+	for (int t = 0; t < nGroups; t++)
+	{
+	    pos[t] = (byte)t;
+	}
+	for (int i = 0; i < nSelectors; i++)
+	{
+	    byte s = selector[i];
+	    int j = 0;
+	    byte prev = pos[0];
+	    while (prev != s)
+	    {
+		j++;
+		byte t = pos[j];
+		pos[j] = prev;
+		prev = t;
+	    }
+	    pos[0] = s;
+
+	    out.write(j + 1, ((1 << j) - 1) << 1);
+	}
+
+	// Code lengths, each as a change from the last
+
+	for (int t = 0; t < nGroups; t++)
+	{
+	    int curr = len[t][0];
+	    out.write(5, curr);
+	    for (int v = 0; v < alphaSize; v++)
+	    {
+		while (curr < len[t][v])
+		{
+		    out.write(2, 2);
+		    curr++;
+		}
+		while (curr > len[t][v])
+		{
+		    out.write(2, 3);
+		    curr--;
+		}
+		out.write(1, 0);
+	    }
+	}
+
+	// And finally the data
+
+	int sel = 0;
+	for (gs = 0; gs < nMTF && !out.overflow; gs += GROUP_SIZE)
+	{
+	    int ge = Math.min(gs + GROUP_SIZE, nMTF);
+	    int t = selector[sel++];
+	    byte[] l = len[t];
+	    int[] c = code[t];
+
+	    for (int i = gs; i < ge; i++)
+	    {
+		int v = mtfv[i];
+		out.write(l[v], c[v]);
+	    }
+	}
+    }
+
+    /**
+     * Make Huffman code lengths of at most <code>maxLen</code> bits, as
+     * the C library does. Every symbol gets a code. If any is too long the
+     * frequencies are flattened and the code made again.
+     */
+
+    private void makeCodeLengths(byte[] len, int[] freq, int alphaSize, int maxLen)
+    {
+	for (int i = 0; i < alphaSize; i++)
+	{
+	    weight[i + 1] = (freq[i] == 0 ? 1 : freq[i]) << 8;
+	}
+
+	while (true)
+	{
+	    int nNodes = alphaSize;
+	    int nHeap = 0;
+
+	    heap[0] = 0;
+	    weight[0] = 0;
+	    parent[0] = -2;
+
+	    for (int i = 1; i <= alphaSize; i++)
+	    {
+		parent[i] = -1;
+		heap[++nHeap] = i;
+		upHeap(nHeap);
+	    }
+
+	    while (nHeap > 1)
+	    {
+		int n1 = heap[1];
+		heap[1] = heap[nHeap--];
+		downHeap(1, nHeap);
+		int n2 = heap[1];
+		heap[1] = heap[nHeap--];
+		downHeap(1, nHeap);
+
+		nNodes++;
+		parent[n1] = parent[n2] = nNodes;
+		int w1 = weight[n1];
+		int w2 = weight[n2];
+		weight[nNodes] = (((w1 & 0xffffff00) + (w2 & 0xffffff00)) |
+				  (1 + Math.max(w1 & 0xff, w2 & 0xff)));
+		parent[nNodes] = -1;
+		heap[++nHeap] = nNodes;
+		upHeap(nHeap);
+	    }
+
+	    boolean tooLong = false;
+	    for (int i = 1; i <= alphaSize; i++)
+	    {
+		int j = 0;
+		for (int k = i; parent[k] >= 0; k = parent[k])
+		{
+		    j++;
+		}
+		len[i - 1] = (byte)j;
+		tooLong |= (j > maxLen);
+	    }
+
+	    if (!tooLong)
+	    {
+		return;
+	    }
+
+	    for (int i = 1; i <= alphaSize; i++)
+	    {
+		int j = weight[i] >> 8;
+		weight[i] = (1 + j / 2) << 8;
+	    }
+	}
+    }
+
+    private void upHeap(int z)
+    {
+	int tmp = heap[z];
+	while (weight[tmp] < weight[heap[z >> 1]])
+	{
+	    heap[z] = heap[z >> 1];
+	    z >>= 1;
+	}
+	heap[z] = tmp;
+    }
+
+    private void downHeap(int z, int nHeap)
+    {
+	int tmp = heap[z];
+	while (true)
+	{
+	    int y = z << 1;
+	    if (y > nHeap)
+	    {
+		break;
+	    }
+	    if (y < nHeap && weight[heap[y + 1]] < weight[heap[y]])
+	    {
+		y++;
+	    }
+	    if (weight[tmp] < weight[heap[y]])
+	    {
+		break;
+	    }
+	    heap[z] = heap[y];
+	    z = y;
+	}
+	heap[z] = tmp;
+    }
+
+    //
+    // Decompression
+    //
+
+    public int decompress(byte[] src, int srcOffset, int length,
+			  byte[] dst, int dstOffset, int maxLength)
+	throws ZBDException
+    {
+	in.start(src, srcOffset, length);
+
+	if (in.read(24) != 0x425a68)
+	{
+	    throw new ZBDProtocolException("bzip2 data has an invalid header");
+	}
+
+	int blockSize = in.read(8) - '0';
+	if (blockSize < 1 || blockSize > 9)
+	{
+	    throw new ZBDProtocolException("bzip2 data has an invalid block size");
+	}
+
+	int combinedCrc = 0;
+	int pos = dstOffset;
+	int end = dstOffset + maxLength;
+
+	while (true)
+	{
+	    long magic = ((long)in.read(24) << 24) | in.read(24);
+
+	    if (magic == END_MAGIC)
+	    {
+		if (in.read(32) != combinedCrc)
+		{
+		    throw new ZBDProtocolException("bzip2 stream CRC error");
+		}
+		break;
+	    }
+	    else if (magic != BLOCK_MAGIC)
+	    {
+		throw new ZBDProtocolException("bzip2 data has an invalid block header");
+	    }
+
+	    int blockCrc = in.read(32);
+	    if (in.read(1) != 0)
+	    {
+		throw new ZBDProtocolException("randomised bzip2 blocks are not supported");
+	    }
+	    int origPtr = in.read(24);
+
+	    // No block can decode to less than four fifths of its length,
+	    // which bounds the space needed
+
+	    int maxBlock = Math.min(blockSize * 100000, (end - pos) / 4 * 5 + 5);
+	    int n = readBlock(maxBlock);
+
+	    if (origPtr >= n)
+	    {
+		throw new ZBDProtocolException("bzip2 data has an invalid original pointer");
+	    }
+
+	    int crc = -1;
+	    int tPos = tt[origPtr] >>> 8;
+	    int last = -1;
+	    int run = 0;
+
+	    for (int k = 0; k < n; k++)
+	    {
+		tPos = tt[tPos];
+		int ch = tPos & 0xff;
+		tPos >>>= 8;
+
+		int reps = 1;
+		if (run == 4)
+		{
+		    reps = ch;
+		    ch = last;
+		    run = 0;
+		}
+		else if (ch == last)
+		{
+		    run++;
+		}
+		else
+		{
+		    run = 1;
+		    last = ch;
+		}
+
+		if (end - pos < reps)
+		{
+		    throw new ZBDProtocolException("uncompressed message larger than " +
+						   maxLength + " bytes");
+		}
+		for (int r = 0; r < reps; r++)
+		{
+		    dst[pos++] = (byte)ch;
+		    crc = (crc << 8) ^ CRC_TABLE[(crc >>> 24) ^ ch];
+		}
+	    }
+
+	    if (~crc != blockCrc)
+	    {
+		throw new ZBDProtocolException("bzip2 block CRC error");
+	    }
+	    combinedCrc = ((combinedCrc << 1) | (combinedCrc >>> 31)) ^ blockCrc;
+	}
+
+	return pos - dstOffset;
+    }
+
+    /**
+     * Read the tables and symbols of a block and undo the move-to-front
+     * coding, leaving each byte in the low 8 bits of <code>tt</code> and
+     * the inverse transform vector above them.
+     *
+     * @return The number of bytes in the block.
+     */
+
+    private int readBlock(int maxBlock) throws ZBDException
+    {
+	// Bytes used
+
+	int used16 = in.read(16);
+	int nInUse = 0;
+
+	for (int i = 0; i < 16; i++)
+	{
+	    if ((used16 & (0x8000 >>> i)) != 0)
+	    {
+		int bits = in.read(16);
+		for (int j = 0; j < 16; j++)
+		{
+		    if ((bits & (0x8000 >>> j)) != 0)
+		    {
+			seqToUnseq[nInUse++] = (byte)(i * 16 + j);
+		    }
+		}
+	    }
+	}
+
+	if (nInUse == 0)
+	{
+	    throw new ZBDProtocolException("bzip2 block uses no bytes");
+	}
+
+	alphaSize = nInUse + 2;
+	int nGroups = in.read(3);
+	int nSelectors = in.read(15);
+
+	if (nGroups < MIN_GROUPS || nGroups > MAX_GROUPS || nSelectors < 1)
+	{
+	    throw new ZBDProtocolException("bzip2 block has invalid Huffman tables");
+	}
+
+	// Selectors, undoing the move-to-front coding. Any beyond the
+	// most that can be used are read and ignored, as the C library does.
+
+	byte[] pos = new byte[MAX_GROUPS];
+	for (int t = 0; t < nGroups; t++)
+	{
+	    pos[t] = (byte)t;
+	}
+	for (int i = 0; i < nSelectors; i++)
+	{
+	    int j = 0;
+	    while (in.read(1) != 0)
+	    {
+		if (++j >= nGroups)
+		{
+		    throw new ZBDProtocolException("bzip2 block has an invalid selector");
+		}
+	    }
+
+	    byte s = pos[j];
+	    for (; j > 0; j--)
+	    {
+		pos[j] = pos[j - 1];
+	    }
+	    pos[0] = s;
+
+	    if (i < MAX_SELECTORS)
+	    {
+		dselector[i] = s;
+	    }
+	}
+	nSelectors = Math.min(nSelectors, MAX_SELECTORS);
+
+	// Code lengths and decoding tables
+
+	for (int t = 0; t < nGroups; t++)
+	{
+	    int curr = in.read(5);
+	    for (int v = 0; v < alphaSize; v++)
+	    {
+		while (true)
+		{
+		    if (curr < 1 || curr > MAX_DECODE_LEN)
+		    {
+			throw new ZBDProtocolException("bzip2 block has an invalid code length");
+		    }
+		    if (in.read(1) == 0)
+		    {
+			break;
+		    }
+		    curr += (in.read(1) == 0 ? 1 : -1);
+		}
+		dlen[t][v] = (byte)curr;
+	    }
+	    makeDecodeTables(t, alphaSize);
+	}
+
+	// Symbols
+
+	if (tt.length < maxBlock)
+	{
+	    tt = new int[Math.min(maxBlock, Math.max(2 * tt.length, 1024))];
+	}
+
+	byte[] yy = new byte[256];
+	for (int i = 0; i < 256; i++)
+	{
+	    yy[i] = (byte)i;
+	    unzftab[i] = 0;
+	}
+
+	int eob = nInUse + 1;
+	int groupNo = -1;
+	int groupPos = 0;
+	int n = 0;
+	int sym = 0;
+	int t = 0;
+
+	while (true)
+	{
+	    if (groupPos == 0)
+	    {
+		if (++groupNo >= nSelectors)
+		{
+		    throw new ZBDProtocolException("bzip2 block has too few selectors");
+		}
+		groupPos = GROUP_SIZE;
+		t = dselector[groupNo];
+	    }
+	    groupPos--;
+
+	    sym = decodeSymbol(t);
+
+	    if (sym == eob)
+	    {
+		break;
+	    }
+
+	    if (sym == RUNA || sym == RUNB)
+	    {
+		// A run of the byte at the front
+
+		int es = 0;
+		int bit = 1;
+		do
+		{
+		    es += (sym == RUNA ? bit : 2 * bit);
+		    bit <<= 1;
+		    if (es > maxBlock)
+		    {
+			throw new ZBDProtocolException("bzip2 block too large");
+		    }
+
+		    if (groupPos == 0)
+		    {
+			if (++groupNo >= nSelectors)
+			{
+			    throw new ZBDProtocolException("bzip2 block has too few selectors");
+			}
+			groupPos = GROUP_SIZE;
+			t = dselector[groupNo];
+		    }
+		    groupPos--;
+		    sym = decodeSymbol(t);
+		}
+		while (sym == RUNA || sym == RUNB);
+
+		if (n + es > maxBlock)
+		{
+		    throw new ZBDProtocolException("bzip2 block too large");
+		}
+		ensureTT(n + es, maxBlock);
+
+		int uc = seqToUnseq[yy[0] & 0xff] & 0xff;
+		unzftab[uc] += es;
+		while (es-- > 0)
+		{
+		    tt[n++] = uc;
+		}
+
+		if (sym == eob)
+		{
+		    break;
+		}
+	    }
+
+	    // A move-to-front index
+
+	    int p = sym - 1;
+	    if (p >= nInUse)
+	    {
+		throw new ZBDProtocolException("bzip2 block has an invalid symbol");
+	    }
+	    if (n >= maxBlock)
+	    {
+		throw new ZBDProtocolException("bzip2 block too large");
+	    }
+	    ensureTT(n + 1, maxBlock);
+
+	    byte s = yy[p];
+	    for (; p > 0; p--)
+	    {
+		yy[p] = yy[p - 1];
+	    }
+	    yy[0] = s;
+
+	    int uc = seqToUnseq[s & 0xff] & 0xff;
+	    unzftab[uc]++;
+	    tt[n++] = uc;
+	}
+
+	// Build the inverse transform vector
+
+	int[] cftab = new int[256];
+	for (int i = 0, sum = 0; i < 256; i++)
+	{
+	    cftab[i] = sum;
+	    sum += unzftab[i];
+	}
+	for (int i = 0; i < n; i++)
+	{
+	    int uc = tt[i] & 0xff;
+	    tt[cftab[uc]++] |= i << 8;
+	}
+
+	return n;
+    }
+
+    private void ensureTT(int size, int maxBlock)
+    {
+	if (tt.length < size)
+	{
+	    int[] t = new int[Math.min(maxBlock, Math.max(size, 2 * tt.length))];
+	    System.arraycopy(tt, 0, t, 0, tt.length);
+	    tt = t;
+	}
+    }
+
+    private void makeDecodeTables(int t, int alphaSize) throws ZBDException
+    {
+	byte[] l = dlen[t];
+	int[] lim = limit[t];
+	int[] bas = base[t];
+	int[] prm = perm[t];
+	int minLen = MAX_DECODE_LEN;
+	int maxLen = 0;
+
+	for (int v = 0; v < alphaSize; v++)
+	{
+	    minLen = Math.min(minLen, l[v]);
+	    maxLen = Math.max(maxLen, l[v]);
+	}
+
+	int pp = 0;
+	for (int i = minLen; i <= maxLen; i++)
+	{
+	    for (int v = 0; v < alphaSize; v++)
+	    {
+		if (l[v] == i)
+		{
+		    prm[pp++] = v;
+		}
+	    }
+	}
+
+	for (int i = 0; i < lim.length; i++)
+	{
+	    bas[i] = 0;
+	    lim[i] = -1;
+	}
+	for (int v = 0; v < alphaSize; v++)
+	{
+	    bas[l[v] + 1]++;
+	}
+	for (int i = 1; i < bas.length; i++)
+	{
+	    bas[i] += bas[i - 1];
+	}
+
+	int vec = 0;
+	for (int i = minLen; i <= maxLen; i++)
+	{
+	    vec += bas[i + 1] - bas[i];
+	    lim[i] = vec - 1;
+	    vec <<= 1;
+	}
+	for (int i = maxLen; i > minLen; i--)
+	{
+	    bas[i] = ((lim[i - 1] + 1) << 1) - bas[i];
+	}
+	bas[minLen] = 0;
+
+	minLens[t] = minLen;
+    }
+
+    private int decodeSymbol(int t) throws ZBDException
+    {
+	int[] lim = limit[t];
+	int zn = minLens[t];
+	int zvec = in.read(zn);
+
+	while (zvec > lim[zn])
+	{
+	    if (++zn > MAX_DECODE_LEN)
+	    {
+		throw new ZBDProtocolException("bzip2 block has an invalid code");
+	    }
+	    zvec = (zvec << 1) | in.read(1);
+	}
+
+	int i = zvec - base[t][zn];
+	if (i < 0 || i >= alphaSize)
+	{
+	    throw new ZBDProtocolException("bzip2 block has an invalid code");
+	}
+	return perm[t][i];
+    }
+
+    /**
+     * Writes bits, most significant first, to part of a byte array.
+     * Bits that do not fit are dropped and <code>overflow</code> set.
+     */
+
+    static class BitWriter
+    {
+	byte[] buf;
+	int pos;
+	int end;
+	long bits;
+	int count;
+	boolean overflow;
+
+	void start(byte[] buf, int offset, int length)
+	{
+	    this.buf = buf;
+	    pos = offset;
+	    end = offset + Math.max(length, 0);
+	    bits = 0;
+	    count = 0;
+	    overflow = false;
+	}
+
+	void write(int n, int value)
+	{
+	    bits = (bits << n) | (value & ((1L << n) - 1));
+	    count += n;
+	    while (count >= 8)
+	    {
+		count -= 8;
+		if (pos < end)
+		{
+		    buf[pos++] = (byte)(bits >>> count);
+		}
+		else
+		{
+		    overflow = true;
+		}
+	    }
+	}
+
+	void flush()
+	{
+	    if (count > 0)
+	    {
+		write(8 - count, 0);
+	    }
+	}
+    }
+
+    /**
+     * Reads bits, most significant first, from part of a byte array.
+     */
+
+    static class BitReader
+    {
+	byte[] buf;
+	int pos;
+	int end;
+	long bits;
+	int count;
+
+	void start(byte[] buf, int offset, int length)
+	{
+	    this.buf = buf;
+	    pos = offset;
+	    end = offset + length;
+	    bits = 0;
+	    count = 0;
+	}
+
+	int read(int n) throws ZBDProtocolException
+	{
+	    while (count < n)
+	    {
+		if (pos >= end)
+		{
+		    throw new ZBDProtocolException("bzip2 data is truncated");
+		}
+		bits = (bits << 8) | (buf[pos++] & 0xff);
+		count += 8;
+	    }
+	    count -= n;
+	    return (int)(bits >>> count) & (int)((1L << n) - 1);
+	}
+    }
+}
@@ -0,0 +1,186 @@
+// This program is free software and may be distributed under the terms
+// of the GNU Lesser General Public License, Version 2.1.
+// This program comes with ABSOLUTELY NO WARRANTY.
+
+package zebedee;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+
+/**
+ * A channel view of an established tunnel. Reads return the data from
+ * successive tunnel messages and writes are split into messages of at
+ * most the negotiated buffer size, which are then sent together.
+ * <p>
+ * Where the destination buffer passed to {@link #read(ByteBuffer)} has
+ * at least {@link ZBDTunnel#MAX_BUFFER_SIZE} bytes remaining, and no data
+ * is left over from a previous message, the message is decoded directly
+ * into it. Otherwise it is decoded into an internal buffer and handed
+ * out from there, just as {@link ZBDInputStream} does. Buffers may be
+ * direct or array-backed.
+ */
+
+public class ZBDChannel implements ReadableByteChannel, GatheringByteChannel
+{
+    ZBDTunnel tnl;
+    ByteBuffer buffer = ByteBuffer.allocate(ZBDTunnel.MAX_BUFFER_SIZE);
+    boolean open = true;
+
+
+    public ZBDChannel(ZBDTunnel tunnel)
+    {
+	tnl = tunnel;
+	buffer.limit(0);
+    }
+
+    synchronized public int read(ByteBuffer dst) throws IOException
+    {
+	if (!open)
+	{
+	    throw new ClosedChannelException();
+	}
+
+	// Can we satisfy this read from the buffer?
+
+	if (buffer.hasRemaining())
+	{
+	    return transfer(dst);
+	}
+
+	if (dst.remaining() == 0)
+	{
+	    return 0;
+	}
+
+	// If there is room for any message decode it in place otherwise
+	// go via the buffer.
+
+	boolean direct = (dst.remaining() >= ZBDTunnel.MAX_BUFFER_SIZE);
+	int num = 0;
+	try
+	{
+	    if (direct)
+	    {
+		num = tnl.readMessage(dst);
+	    }
+	    else
+	    {
+		buffer.clear();
+		num = tnl.readMessage(buffer);
+		buffer.flip();
+	    }
+	}
+	catch (ZBDTimeoutException et)
+	{
+	    throw new InterruptedIOException(et.toString());
+	}
+	catch (ZBDException ez)
+	{
+	    throw new IOException(ez.toString());
+	}
+
+	if (num < 0 || direct)
+	{
+	    return num;
+	}
+
+	return transfer(dst);
+    }
+
+    public int write(ByteBuffer src) throws IOException
+    {
+	return (int)write(new ByteBuffer[] { src }, 0, 1);
+    }
+
+    public long write(ByteBuffer[] srcs) throws IOException
+    {
+	return write(srcs, 0, srcs.length);
+    }
+
+    synchronized public long write(ByteBuffer[] srcs, int offset, int length)
+	throws IOException
+    {
+	if (!open)
+	{
+	    throw new ClosedChannelException();
+	}
+
+	int max = tnl.getBufferSize();
+	long total = 0;
+
+	for (int i = offset; i < offset + length; i++)
+	{
+	    ByteBuffer src = srcs[i];
+	    int limit = src.limit();
+
+	    try
+	    {
+		while (src.hasRemaining())
+		{
+		    int chunk = (src.remaining() < max ? src.remaining() : max);
+		    src.limit(src.position() + chunk);
+		    tnl.writeMessage(src);
+		    src.limit(limit);
+		    total += chunk;
+		}
+	    }
+	    catch (ZBDException ez)
+	    {
+		throw new IOException("ZBD IO error: " + ez);
+	    }
+	    finally
+	    {
+		src.limit(limit);
+	    }
+	}
+
+	// Send all of the messages together
+
+	try
+	{
+	    tnl.flushMessages();
+	}
+	catch (ZBDException ez)
+	{
+	    throw new IOException("ZBD IO error: " + ez);
+	}
+
+	return total;
+    }
+
+    public boolean isOpen()
+    {
+	return open;
+    }
+
+    synchronized public void close() throws IOException
+    {
+	open = false;
+	try
+	{
+	    tnl.close();
+	}
+	catch (Exception e)
+	{
+	    throw new IOException("ZBD error: " + e.getMessage());
+	}
+    }
+
+    /**
+     * Copy as much buffered data as will fit into <code>dst</code>.
+     */
+
+    int transfer(ByteBuffer dst)
+    {
+	int returned = (buffer.remaining() > dst.remaining() ?
+			dst.remaining() : buffer.remaining());
+	int limit = buffer.limit();
+
+	buffer.limit(buffer.position() + returned);
+	dst.put(buffer);
+	buffer.limit(limit);
+
+	return returned;
+    }
+}
@@ -0,0 +1,242 @@
+// This program is free software and may be distributed under the terms
+// of the GNU Lesser General Public License, Version 2.1.
+// This program comes with ABSOLUTELY NO WARRANTY.
+
+package zebedee;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The encryption applied to the messages on a tunnel. An instance looks
+ * after both directions of one tunnel. Each call to {@link #encrypt
+ * encrypt} or {@link #decrypt decrypt} handles one whole message, and
+ * the messages in each direction must be decrypted in the order they
+ * were encrypted. The two directions may be in use on different threads
+ * at the same time, but each by only one thread at a time. Encrypting
+ * and decrypting in place must work.
+ * <p>
+ * A cipher may add a fixed number of bytes to each message, given by
+ * {@link #getOverhead()}, and may authenticate the message along with
+ * the flags from its header.
+ * <p>
+ * Protocol version 201 uses Blowfish in CFB64 mode. Instances for it are
+ * made by {@link #create(String,byte[],byte[])} given one of the
+ * provider names:
+ * <ul>
+ * <li>{@link #PROVIDER_BUILTIN} -- the pure Java {@link ZBDBlowfish}.
+ * <li>{@link #PROVIDER_JCA} -- the Blowfish cipher of whichever
+ * <code>javax.crypto</code> provider the platform supplies.
+ * </ul>
+ * Protocol version 202 uses {@link ZBDAesGcmCipher}, whose provider name
+ * is {@link #PROVIDER_AES_GCM}. That is not a choice for
+ * {@link #create(String,byte[],byte[])}, only a way of telling it apart.
+ * Running the class compares the providers on this platform.
+ */
+
+public abstract class ZBDCipher
+{
+    /** Name of the built-in Blowfish provider */
+    public static final String PROVIDER_BUILTIN = "builtin";
+    /** Name of the javax.crypto Blowfish provider */
+    public static final String PROVIDER_JCA = "jca";
+    /** Name of the AES-GCM cipher of protocol version 202 */
+    public static final String PROVIDER_AES_GCM = "aes-gcm";
+
+
+    /**
+     * Encrypt the next outgoing message. There must be room in
+     * <code>out</code> for <code>length</code> plus
+     * {@link #getOverhead()} bytes.
+     *
+     * @param flags The message header flags.
+     *
+     * @return The encrypted length.
+     */
+
+    public abstract int encrypt(int flags,
+				byte[] in, int inOffset,
+				byte[] out, int outOffset,
+				int length) throws ZBDException;
+
+    /**
+     * Decrypt the next incoming message.
+     *
+     * @param flags The message header flags.
+     *
+     * @throws ZBDProtocolException Thrown if the message fails
+     * authentication.
+     *
+     * @return The decrypted length.
+     */
+
+    public abstract int decrypt(int flags,
+				byte[] in, int inOffset,
+				byte[] out, int outOffset,
+				int length) throws ZBDException;
+
+    /**
+     * Returns the number of bytes that encryption adds to each message.
+     */
+
+    public int getOverhead()
+    {
+	return 0;
+    }
+
+    /**
+     * Returns the name of the provider.
+     */
+
+    public abstract String getProvider();
+
+    /**
+     * Returns true if <code>name</code> is a known provider name.
+     */
+
+    public static boolean isProvider(String name)
+    {
+	return (name.equals(PROVIDER_BUILTIN) || name.equals(PROVIDER_JCA));
+    }
+
+    /**
+     * Create a cipher for a tunnel.
+     *
+     * @param provider The provider name.
+     * @param key The Blowfish key.
+     * @param iv The initialisation vector, used for both directions.
+     *
+     * @throws ZBDValueException Thrown if the provider is not known.
+     * @throws ZBDException Thrown if the provider can not handle the
+     * key, for example because it is longer than the provider allows.
+     */
+
+    public static ZBDCipher create(String provider, byte[] key, byte[] iv)
+	throws ZBDException
+    {
+	if (provider.equals(PROVIDER_BUILTIN))
+	{
+	    return new ZBDBlowfishCipher(key, iv);
+	}
+	else if (provider.equals(PROVIDER_JCA))
+	{
+	    return new ZBDJcaCipher(key, iv);
+	}
+
+	throw new ZBDValueException("unknown cipher provider: " + provider);
+    }
+
+    /**
+     * Check that every provider produces the same cipher text as the
+     * built-in one, for messages split at random points, and report the
+     * throughput of each, and of AES-GCM, on tunnel-sized messages.
+     */
+
+    public static void main(String args[]) throws Exception
+    {
+	String[] providers = { PROVIDER_BUILTIN, PROVIDER_JCA };
+	Random rand = new Random(0);
+	byte[] key = new byte[32];
+	byte[] iv = new byte[8];
+	boolean ok = true;
+
+	rand.nextBytes(key);
+	rand.nextBytes(iv);
+
+	byte[] text = new byte[65536];
+	rand.nextBytes(text);
+
+	ZBDCipher ref = create(PROVIDER_BUILTIN, key, iv);
+	byte[] expected = new byte[text.length];
+	ref.encrypt(0, text, 0, expected, 0, text.length);
+
+	for (int p = 0; p < providers.length; p++)
+	{
+	    ZBDCipher c = create(providers[p], key, iv);
+	    byte[] buf = new byte[text.length];
+	    int off = 0;
+
+	    // Encrypt in random sized pieces, separate buffers
+
+	    while (off < text.length)
+	    {
+		int len = Math.min(text.length - off, rand.nextInt(100));
+		c.encrypt(0, text, off, buf, off, len);
+		off += len;
+	    }
+	    boolean pass = Arrays.equals(buf, expected);
+
+	    // Decrypt in random sized pieces, in place
+
+	    for (off = 0; off < buf.length; )
+	    {
+		int len = Math.min(buf.length - off, rand.nextInt(3000));
+		c.decrypt(0, buf, off, buf, off, len);
+		off += len;
+	    }
+	    pass &= Arrays.equals(buf, text);
+
+	    System.out.println(providers[p] + ": " + (pass ? "matches built-in Blowfish" : "FAILED"));
+	    ok &= pass;
+	}
+
+	// Each message is encrypted by one instance and decrypted by its
+	// peer, as across a tunnel, timing the two separately.
+
+	String[] names = { PROVIDER_BUILTIN, PROVIDER_JCA, PROVIDER_AES_GCM };
+	int size = ZBDTunnel.DFLT_BUFFER_SIZE;
+	byte[] msg = new byte[size];
+	byte[] frame = new byte[size + ZBDAesGcmCipher.TAG_SIZE];
+	int count = 8192;
+
+	for (int p = 0; p < names.length; p++)
+	{
+	    ZBDCipher enc;
+	    ZBDCipher dec;
+
+	    if (p < providers.length)
+	    {
+		enc = create(providers[p], key, iv);
+		dec = create(providers[p], key, iv);
+	    }
+	    else if (ZBDAesGcmCipher.isAvailable())
+	    {
+		enc = new ZBDAesGcmCipher(key, true);
+		dec = new ZBDAesGcmCipher(key, false);
+	    }
+	    else
+	    {
+		continue;
+	    }
+
+	    long encTime = 0;
+	    long decTime = 0;
+
+	    for (int round = 0; round < 2; round++)
+	    {
+		encTime = 0;
+		decTime = 0;
+		for (int i = 0; i < count; i++)
+		{
+		    long t0 = System.nanoTime();
+		    int len = enc.encrypt(0, msg, 0, frame, 0, size);
+		    long t1 = System.nanoTime();
+		    dec.decrypt(0, frame, 0, frame, 0, len);
+		    long t2 = System.nanoTime();
+
+		    encTime += t1 - t0;
+		    decTime += t2 - t1;
+		}
+	    }
+
+	    long bytes = (long)count * size * 1000000000L / 1048576;
+	    System.out.println(names[p] + ": encrypt " + (bytes / encTime) +
+			       " MB/s, decrypt " + (bytes / decTime) + " MB/s");
+	}
+
+	if (!ok)
+	{
+	    System.exit(1);
+	}
+    }
+}
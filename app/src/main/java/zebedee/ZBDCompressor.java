@@ -0,0 +1,841 @@
+// This program is free software and may be distributed under the terms
+// of the GNU Lesser General Public License, Version 2.1.
+// This program comes with ABSOLUTELY NO WARRANTY.
+
+package zebedee;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.Vector;
+
+/**
+ * The compression applied to the messages on a tunnel. An instance looks
+ * after both directions of one tunnel, and as with {@link ZBDCipher} the
+ * two directions may be in use on different threads at the same time,
+ * but each by only one thread at a time.
+ * <p>
+ * A compressor either treats every message on its own, in which case it
+ * may decline to compress a message that does not get smaller and the
+ * message is sent as it is, or it is a <i>streaming</i> compressor that
+ * carries what it has learnt from one message over to the next. Once a
+ * streaming compressor has been given a message its state has moved on,
+ * so the result must always be sent, and it may be up to
+ * {@link #getExpansion()} bytes larger than the original. Messages must
+ * be decompressed in the order they were compressed, which the tunnel
+ * guarantees anyway for the sake of the cipher.
+ * <p>
+ * Instances are made by {@link #create(int,boolean)} from the negotiated
+ * compression value. Running the class compares the compressors on
+ * samples of typical tunnel traffic.
+ * <p>
+ * A compressor also learns when the data it is given is not worth
+ * compressing, such as TLS, JPEG or already compressed files, and skips
+ * it rather than spend the CPU time finding that out again for every
+ * message. See {@link #attempt(byte[],int,int)}.
+ */
+
+public abstract class ZBDCompressor
+{
+    // Number of successive messages that must fail to compress before
+    // messages are skipped, and the range of the number skipped before
+    // trying again. The number doubles each time a retry fails.
+    static final int LOSS_LIMIT = 3;
+    static final int MIN_BACKOFF = 8;
+    static final int MAX_BACKOFF = 256;
+
+    // Number of bytes sampled to estimate whether a message is random
+    static final int SAMPLE_SIZE = 128;
+
+    // Fewest distinct values expected among n random bytes, less an
+    // eighth for luck, indexed by n
+    static final int[] RANDOM_DISTINCT = new int[SAMPLE_SIZE + 1];
+
+    static
+    {
+	for (int n = 0; n <= SAMPLE_SIZE; n++)
+	{
+	    RANDOM_DISTINCT[n] = (int)(256 * (1 - Math.pow(255.0 / 256, n)) * 7 / 8);
+	}
+    }
+
+    boolean adaptive = true;
+
+    // Messages that look compressible: the number of successive
+    // failures, the number still to skip and the number to skip next
+    // time
+    int losses = 0;
+    int skip = 0;
+    int backoff = MIN_BACKOFF;
+
+    // Messages that look incompressible: the number skipped since one
+    // was tried, the number to skip between tries and whether the last
+    // message was such a try
+    int doubted = 0;
+    int probeInterval = MIN_BACKOFF;
+    boolean probe = false;
+
+    // Statistics
+    int attempted = 0;
+    int skipped = 0;
+    int won = 0;
+
+    // Copies of direct buffers, which grow as needed. One for each
+    // direction, as the two run on different threads.
+    byte[] cmpScratch = new byte[0];
+    byte[] uncmpScratch = new byte[0];
+
+    /**
+     * Compress the next outgoing message.
+     *
+     * @param maxLength The space available in <code>dst</code>. For a
+     * streaming compressor this must be at least
+     * <code>length + getExpansion()</code>.
+     *
+     * @return The compressed length, or -1 if the message is better sent
+     * uncompressed. A streaming compressor never returns -1.
+     */
+
+    public abstract int compress(byte[] src, int srcOffset, int length,
+				 byte[] dst, int dstOffset, int maxLength)
+	throws ZBDException;
+
+    /**
+     * Compress the next outgoing message from the remaining data in a
+     * buffer, whose position is left unchanged. Unless overridden, the
+     * array behind the buffer is used if it has one, otherwise the data
+     * is copied to a reusable array.
+     */
+
+    public int compress(ByteBuffer src, byte[] dst, int dstOffset, int maxLength)
+	throws ZBDException
+    {
+	int length = src.remaining();
+
+	if (src.hasArray())
+	{
+	    return compress(src.array(), src.arrayOffset() + src.position(), length,
+			    dst, dstOffset, maxLength);
+	}
+
+	if (cmpScratch.length < length)
+	{
+	    cmpScratch = new byte[length];
+	}
+	src.duplicate().get(cmpScratch, 0, length);
+	return compress(cmpScratch, 0, length, dst, dstOffset, maxLength);
+    }
+
+    /**
+     * Decompress the next incoming message.
+     *
+     * @param maxLength The space available in <code>dst</code>.
+     *
+     * @throws ZBDProtocolException Thrown if the data is invalid or
+     * decompresses to more than <code>maxLength</code> bytes.
+     *
+     * @return The decompressed length.
+     */
+
+    public abstract int decompress(byte[] src, int srcOffset, int length,
+				   byte[] dst, int dstOffset, int maxLength)
+	throws ZBDException;
+
+    /**
+     * Decompress the next incoming message into a buffer, starting at its
+     * current position, which is advanced. Unless overridden, this goes
+     * straight into the array behind the buffer if it has one, otherwise
+     * through a reusable array.
+     */
+
+    public int decompress(byte[] src, int srcOffset, int length, ByteBuffer dst)
+	throws ZBDException
+    {
+	int maxLength = dst.remaining();
+	int n;
+
+	if (dst.hasArray())
+	{
+	    n = decompress(src, srcOffset, length,
+			   dst.array(), dst.arrayOffset() + dst.position(), maxLength);
+	    dst.position(dst.position() + n);
+	    return n;
+	}
+
+	if (uncmpScratch.length < maxLength)
+	{
+	    uncmpScratch = new byte[maxLength];
+	}
+	n = decompress(src, srcOffset, length, uncmpScratch, 0, maxLength);
+	dst.put(uncmpScratch, 0, n);
+	return n;
+    }
+
+    /**
+     * Decide whether the next outgoing message is worth compressing, and
+     * count it as attempted or skipped. Messages are skipped if they
+     * start with the signature of a compressed format or if a sample of
+     * their bytes looks random, though every so often one is tried in
+     * case the guess is wrong. Other messages are skipped for a time if
+     * several in a row fail to compress. In either case the time before
+     * the next try doubles each time a try fails.
+     * <p>
+     * If this returns true the message must be given to
+     * <code>compress</code> and the result reported with
+     * {@link #result(int,int)}.
+     */
+
+    final boolean attempt(byte[] src, int srcOffset, int length)
+    {
+	return attempt(src, null, srcOffset, length);
+    }
+
+    /**
+     * Decide whether the remaining data in a buffer is worth compressing.
+     * See {@link #attempt(byte[],int,int)}.
+     */
+
+    final boolean attempt(ByteBuffer src)
+    {
+	return attempt(null, src, src.position(), src.remaining());
+    }
+
+    private boolean attempt(byte[] b, ByteBuffer bb, int off, int len)
+    {
+	probe = false;
+
+	if (adaptive)
+	{
+	    if (isCompressed(b, bb, off, len) || isRandom(b, bb, off, len))
+	    {
+		if (++doubted < probeInterval)
+		{
+		    skipped++;
+		    return false;
+		}
+		doubted = 0;
+		probe = true;
+	    }
+	    else if (skip > 0)
+	    {
+		skip--;
+		skipped++;
+		return false;
+	    }
+	}
+
+	attempted++;
+	return true;
+    }
+
+    /**
+     * Report the result of compressing a message.
+     *
+     * @param length The original length.
+     * @param cmpLength The value returned by <code>compress</code>.
+     */
+
+    final void result(int length, int cmpLength)
+    {
+	if (cmpLength >= 0 && cmpLength < length)
+	{
+	    won++;
+	}
+
+	// Saving less than a sixteenth is not worth the trouble
+
+	boolean good = (cmpLength >= 0 && cmpLength <= length - (length >> 4));
+
+	if (probe)
+	{
+	    probeInterval = (good ? MIN_BACKOFF :
+			     Math.min(probeInterval * 2, MAX_BACKOFF));
+	}
+	else if (good)
+	{
+	    losses = 0;
+	    backoff = MIN_BACKOFF;
+	}
+	else if (++losses >= LOSS_LIMIT)
+	{
+	    skip = backoff;
+	    backoff = Math.min(backoff * 2, MAX_BACKOFF);
+	    losses = 0;
+	}
+    }
+
+    /**
+     * Returns true if the data starts with the signature of a compressed
+     * format or is a TLS application data record.
+     */
+
+    static boolean isCompressed(byte[] b, ByteBuffer bb, int off, int len)
+    {
+	if (len < 4)
+	{
+	    return false;
+	}
+
+	int sig = ((byteAt(b, bb, off) & 0xff) << 24 |
+		   (byteAt(b, bb, off + 1) & 0xff) << 16 |
+		   (byteAt(b, bb, off + 2) & 0xff) << 8 |
+		   (byteAt(b, bb, off + 3) & 0xff));
+
+	switch (sig >>> 8)
+	{
+	case 0x1f8b08:		// gzip
+	case 0xffd8ff:		// JPEG
+	case 0x425a68:		// bzip2
+	    return true;
+
+	case 0x170301:		// TLS application data
+	case 0x170302:
+	case 0x170303:
+	    return true;
+	}
+
+	switch (sig)
+	{
+	case 0x504b0304:	// zip, jar, docx ...
+	case 0x89504e47:	// PNG
+	case 0xfd377a58:	// xz
+	case 0x28b52ffd:	// zstd
+	case 0x377abcaf:	// 7z
+	    return true;
+	}
+	return false;
+    }
+
+    /**
+     * Returns true if bytes sampled evenly across the data take about as
+     * many distinct values as random bytes would. Text and most binary
+     * protocols use far fewer.
+     */
+
+    static boolean isRandom(byte[] b, ByteBuffer bb, int off, int len)
+    {
+	int n = Math.min(len, SAMPLE_SIZE);
+	int step = len / n;
+	long s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+
+	for (int i = 0, p = off; i < n; i++, p += step)
+	{
+	    int v = byteAt(b, bb, p) & 0xff;
+	    long bit = 1L << v;
+
+	    switch (v >> 6)
+	    {
+	    case 0: s0 |= bit; break;
+	    case 1: s1 |= bit; break;
+	    case 2: s2 |= bit; break;
+	    default: s3 |= bit; break;
+	    }
+	}
+
+	int distinct = (Long.bitCount(s0) + Long.bitCount(s1) +
+			Long.bitCount(s2) + Long.bitCount(s3));
+	return (distinct >= RANDOM_DISTINCT[n]);
+    }
+
+    private static byte byteAt(byte[] b, ByteBuffer bb, int i)
+    {
+	return (b != null ? b[i] : bb.get(i));
+    }
+
+    /**
+     * Sets whether to learn which messages to skip. If not, every message
+     * offered is compressed.
+     */
+
+    public void setAdaptive(boolean onOff)
+    {
+	adaptive = onOff;
+    }
+
+    /**
+     * Returns a one-line summary of the compression statistics suitable
+     * for logging: the number of messages compressed, the number skipped
+     * as not worth it and the number that came out smaller.
+     */
+
+    public String getStatistics()
+    {
+	return "compression: attempted=" + attempted +
+	    " skipped=" + skipped +
+	    " won=" + won;
+    }
+
+    /**
+     * Prime both directions with a preset dictionary. Messages already
+     * passed are forgotten, so this must be done at the same point in
+     * the flow of messages as the peer does it, and with the same
+     * dictionary. See {@link ZBDDictionary}.
+     *
+     * @throws ZBDValueException Thrown if this kind of compression has no
+     * use for a dictionary, as is so unless overridden.
+     */
+
+    public void setDictionary(byte[] dict) throws ZBDValueException
+    {
+	throw new ZBDValueException("compression type does not support dictionaries");
+    }
+
+    /**
+     * Returns true if this is a streaming compressor.
+     */
+
+    public boolean isStreaming()
+    {
+	return false;
+    }
+
+    /**
+     * Returns the most by which a streaming compressor may enlarge a
+     * message, or 0 for one that is not streaming.
+     */
+
+    public int getExpansion()
+    {
+	return 0;
+    }
+
+    /**
+     * Create the compressor for a negotiated compression value.
+     *
+     * @param value The compression type and level, as from
+     * {@link ZBDTunnel#makeCompressionValue(int,int)}.
+     * @param stream Whether streaming compression was agreed. Bzip2
+     * can not stream and ignores this, as does the peer.
+     *
+     * @throws ZBDValueException Thrown if the type is not supported.
+     *
+     * @return The compressor, or <code>null</code> if the level is 0.
+     */
+
+    public static ZBDCompressor create(int value, boolean stream) throws ZBDValueException
+    {
+	int type = (value >> 8) & 0xf;
+	int level = value & 0xf;
+
+	if (level == 0)
+	{
+	    return null;
+	}
+
+	switch (type)
+	{
+	case ZBDTunnel.COMPRESSION_ZLIB:
+	    return new ZBDZlibCompressor(level, stream);
+
+	case ZBDTunnel.COMPRESSION_BZIP2:
+	    return new ZBDBzip2Compressor(level);
+
+	case ZBDTunnel.COMPRESSION_LZ4:
+	    return new ZBDLz4Compressor(level, stream);
+
+	default:
+	    throw new ZBDValueException("unsupported compression type: " + type);
+	}
+    }
+
+    /**
+     * Compare the compressors on samples of typical traffic, reporting
+     * the compression ratio and the CPU time per byte to compress and to
+     * decompress. Messages are handled just as the tunnel handles them:
+     * those of {@link ZBDTunnel#CMP_MINIMUM} bytes or less are not
+     * compressed, and nor are those that a compressor declines to.
+     * <p>
+     * With the argument <code>levels</code> each level of zlib is instead
+     * compared with a few of bzip2 and LZ4, reporting throughput in MB/s
+     * on one core.
+     */
+
+    public static void main(String args[]) throws Exception
+    {
+	String[] names = { "telnet", "x11", "http", "tls", "web" };
+	Vector[] samples = { telnetSample(), x11Sample(), httpSample(),
+			     tlsSample(), webSample() };
+
+	if (args.length > 0 && args[0].equals("levels"))
+	{
+	    compareLevels(names, samples);
+	    return;
+	}
+
+	String[] modes = { "zlib:6 per-message", "zlib:6 adaptive",
+			   "zlib:6 streaming", "zlib:6 stream+adaptive",
+			   "zlib:1 per-message", "zlib:1 streaming",
+			   "bzip2:9 adaptive", "lz4:1 per-message",
+			   "lz4:1 stream+adaptive", "lz4:5 stream+adaptive" };
+	int[] values = { 0x06, 0x06, 0x06, 0x06, 0x01, 0x01, 0x109, 0x201, 0x201, 0x205 };
+	boolean[] streams = { false, false, true, true, false, true, false, false, true, true };
+	boolean[] adaptives = { false, true, false, true, false, false, true, false, true, true };
+
+	for (int s = 0; s < samples.length; s++)
+	{
+	    Vector msgs = samples[s];
+	    long total = 0;
+
+	    for (int i = 0; i < msgs.size(); i++)
+	    {
+		total += ((byte[])msgs.elementAt(i)).length;
+	    }
+
+	    System.out.println(names[s] + ": " + msgs.size() + " messages, " +
+			       total + " bytes");
+
+	    for (int m = 0; m < modes.length; m++)
+	    {
+		long[] result = null;
+
+		// Best of a few runs, after warming up
+
+		for (int run = 0; run < 5; run++)
+		{
+		    long[] r = run(msgs, values[m], streams[m], adaptives[m]);
+		    if (result == null || r[1] + r[2] < result[1] + result[2])
+		    {
+			result = r;
+		    }
+		}
+
+		System.out.println("  " + pad(modes[m], 22) +
+				   " ratio " + pad(format(100.0 * result[0] / total) + "%", 7) +
+				   " compress " + pad(format((double)result[1] / total), 6) + " ns/byte" +
+				   "  decompress " + pad(format((double)result[2] / total), 6) + " ns/byte" +
+				   "  skipped " + format(100.0 * result[3] / msgs.size()) + "%");
+	    }
+	}
+    }
+
+    /**
+     * Compare each level of zlib with bzip2 and LZ4, compressing each
+     * message on its own as zlib and bzip2 do with the C version of
+     * Zebedee.
+     */
+
+    static void compareLevels(String[] names, Vector[] samples) throws Exception
+    {
+	int[] values = { 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08, 0x09,
+			 0x101, 0x109, 0x201, 0x203, 0x205, 0x209 };
+	String[] types = { "zlib:", "bzip2:", "lz4:" };
+
+	// Warm up the compressors first, on all the samples as LZ4 is
+	// quick enough for the first of them to be over before it is
+	// fully compiled
+
+	for (int run = 0; run < 3; run++)
+	{
+	    run(samples[0], 0x109, false, false);
+	    for (int s = 0; s < samples.length; s++)
+	    {
+		run(samples[s], 0x06, false, false);
+		run(samples[s], 0x201, false, false);
+		run(samples[s], 0x205, false, false);
+	    }
+	}
+
+	for (int s = 0; s < samples.length; s++)
+	{
+	    Vector msgs = samples[s];
+	    long total = 0;
+
+	    for (int i = 0; i < msgs.size(); i++)
+	    {
+		total += ((byte[])msgs.elementAt(i)).length;
+	    }
+
+	    System.out.println(names[s] + ": " + msgs.size() + " messages, " +
+			       total + " bytes");
+
+	    for (int v = 0; v < values.length; v++)
+	    {
+		long[] result = null;
+
+		for (int run = 0; run < 3; run++)
+		{
+		    long[] r = run(msgs, values[v], false, false);
+		    if (result == null || r[1] + r[2] < result[1] + result[2])
+		    {
+			result = r;
+		    }
+		}
+
+		String name = types[values[v] >> 8] + (values[v] & 0xf);
+
+		// Bytes per nanosecond is thousands of MB/s
+
+		System.out.println("  " + pad(name, 8) +
+				   " ratio " + pad(format(100.0 * result[0] / total) + "%", 7) +
+				   " compress " + pad(format(1000.0 * total / result[1]), 6) + " MB/s" +
+				   "  decompress " + (result[2] == 0 ? "-" :
+						      pad(format(1000.0 * total / result[2]), 6) + " MB/s"));
+	    }
+	}
+    }
+
+    /**
+     * Send the messages through a pair of compressors, checking that they
+     * come out unchanged.
+     *
+     * @return The bytes sent, compression time, decompression time and
+     * number of messages skipped.
+     */
+
+    static long[] run(Vector msgs, int value, boolean stream, boolean adaptive)
+	throws ZBDException
+    {
+	ZBDCompressor out = create(value, stream);
+	ZBDCompressor in = create(value, stream);
+	out.setAdaptive(adaptive);
+	byte[] frame = new byte[ZBDTunnel.MAX_BUFFER_SIZE];
+	byte[] result = new byte[ZBDTunnel.MAX_BUFFER_SIZE];
+	long sent = 0;
+	long cmpTime = 0;
+	long uncmpTime = 0;
+
+	for (int i = 0; i < msgs.size(); i++)
+	{
+	    byte[] msg = (byte[])msgs.elementAt(i);
+	    int size = -1;
+
+	    if (msg.length > ZBDTunnel.CMP_MINIMUM)
+	    {
+		long start = System.nanoTime();
+		if (out.attempt(msg, 0, msg.length))
+		{
+		    size = out.compress(msg, 0, msg.length, frame, 0,
+					msg.length + out.getExpansion());
+		    out.result(msg.length, size);
+		}
+		cmpTime += System.nanoTime() - start;
+	    }
+
+	    if (size < 0)
+	    {
+		sent += msg.length + 2;
+		continue;
+	    }
+	    sent += size + 2;
+
+	    long start = System.nanoTime();
+	    int n = in.decompress(frame, 0, size, result, 0, result.length);
+	    uncmpTime += System.nanoTime() - start;
+
+	    boolean same = (n == msg.length);
+	    for (int j = 0; same && j < n; j++)
+	    {
+		same = (result[j] == msg[j]);
+	    }
+	    if (!same)
+	    {
+		throw new ZBDException("message " + i + " did not survive compression");
+	    }
+	}
+
+	return new long[] { sent, cmpTime, uncmpTime, out.skipped };
+    }
+
+    // Samples of traffic. These are made up, from a fixed seed, to look
+    // like the real thing: an interactive shell session, X11 drawing
+    // requests, HTTP requests and responses, TLS and a web server
+    // serving both pages and images.
+
+    static Vector telnetSample()
+    {
+	Random rand = new Random(1);
+	Vector msgs = new Vector();
+	String[] cmds = { "ls -l", "cd src", "make", "git status", "vi Makefile", "ps ax" };
+	String[] files = { "Makefile", "README", "main.c", "util.c", "util.h", "zebedee.c",
+			   "huffman.c", "blowfish.c", "sha_func.c", "getopt.c" };
+
+	for (int i = 0; i < 3000; i++)
+	{
+	    String cmd = cmds[rand.nextInt(cmds.length)];
+
+	    // Keystrokes echoed one at a time, then the output
+
+	    for (int j = 0; j < cmd.length(); j++)
+	    {
+		msgs.addElement(cmd.substring(j, j + 1).getBytes());
+	    }
+
+	    StringBuffer out = new StringBuffer("\r\n");
+	    int lines = 1 + rand.nextInt(12);
+	    for (int j = 0; j < lines; j++)
+	    {
+		out.append("-rw-r--r--  1 neil  staff  ").append(rand.nextInt(60000))
+		    .append(" Oct ").append(1 + rand.nextInt(28)).append(" 1")
+		    .append(rand.nextInt(10)).append(':').append(10 + rand.nextInt(50))
+		    .append(' ').append(files[rand.nextInt(files.length)]).append("\r\n");
+	    }
+	    out.append("\u001b[01;32mneil@host\u001b[00m:\u001b[01;34m~/zebedee\u001b[00m$ ");
+	    msgs.addElement(out.toString().getBytes());
+	}
+	return msgs;
+    }
+
+    static Vector x11Sample()
+    {
+	Random rand = new Random(2);
+	Vector msgs = new Vector();
+
+	for (int i = 0; i < 3000; i++)
+	{
+	    // A batch of drawing requests: each a 4-byte header then
+	    // drawable, graphics context and a few 16-bit coordinates
+
+	    int requests = 2 + rand.nextInt(40);
+	    byte[] msg = new byte[requests * 20];
+	    int drawable = 0x04a00003 + rand.nextInt(4);
+
+	    for (int r = 0, p = 0; r < requests; r++, p += 20)
+	    {
+		int opcode = (rand.nextInt(4) == 0 ? 72 : 70);   // PutImage, PolyFillRectangle
+		putInt(msg, p, (opcode << 24) | 5);
+		putInt(msg, p + 4, drawable);
+		putInt(msg, p + 8, 0x04a00010 + rand.nextInt(3));
+		putInt(msg, p + 12, (rand.nextInt(1024) << 16) | rand.nextInt(768));
+		putInt(msg, p + 16, (16 << 16) | (8 + rand.nextInt(4) * 8));
+	    }
+	    msgs.addElement(msg);
+	}
+	return msgs;
+    }
+
+    static Vector httpSample()
+    {
+	Random rand = new Random(3);
+	Vector msgs = new Vector();
+	String[] paths = { "/", "/index.html", "/news/", "/images/logo.png", "/api/items",
+			   "/css/site.css", "/search?q=zebedee" };
+	String[] words = { "the", "tunnel", "secure", "zebedee", "client", "server", "data",
+			   "compression", "network", "connection", "and", "of", "to", "a" };
+
+	for (int i = 0; i < 600; i++)
+	{
+	    String path = paths[rand.nextInt(paths.length)];
+
+	    msgs.addElement(("GET " + path + " HTTP/1.1\r\n" +
+			     "Host: www.example.com\r\n" +
+			     "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/115.0\r\n" +
+			     "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n" +
+			     "Accept-Language: en-GB,en;q=0.5\r\n" +
+			     "Accept-Encoding: identity\r\n" +
+			     "Cookie: session=" + Long.toHexString(rand.nextLong()) + "; theme=dark\r\n" +
+			     "Connection: keep-alive\r\n\r\n").getBytes());
+
+	    StringBuffer body = new StringBuffer("<html><head><title>Example</title></head><body>\n");
+	    int paras = 2 + rand.nextInt(30);
+	    for (int p = 0; p < paras; p++)
+	    {
+		body.append("<p class=\"item\">");
+		int n = 10 + rand.nextInt(60);
+		for (int w = 0; w < n; w++)
+		{
+		    body.append(words[rand.nextInt(words.length)]).append(' ');
+		}
+		body.append("</p>\n");
+	    }
+	    body.append("</body></html>\n");
+
+	    addResponse(msgs, rand, "text/html; charset=UTF-8", body.toString().getBytes());
+	}
+	return msgs;
+    }
+
+    static Vector tlsSample()
+    {
+	Random rand = new Random(4);
+	Vector msgs = new Vector();
+
+	for (int i = 0; i < 400; i++)
+	{
+	    // Application data records, which are random to all intents
+
+	    byte[] record = new byte[5 + 100 + rand.nextInt(16384)];
+	    rand.nextBytes(record);
+	    record[0] = 0x17;
+	    record[1] = 0x03;
+	    record[2] = 0x03;
+	    addMessages(msgs, record);
+	}
+	return msgs;
+    }
+
+    static Vector webSample()
+    {
+	Random rand = new Random(5);
+	Vector msgs = new Vector();
+	Vector pages = httpSample();
+
+	for (int i = 0; i < 200; i++)
+	{
+	    // A page, then a few images
+
+	    msgs.addElement(pages.elementAt(i * 2));
+	    msgs.addElement(pages.elementAt(i * 2 + 1));
+
+	    int images = rand.nextInt(4);
+	    for (int j = 0; j < images; j++)
+	    {
+		byte[] image = new byte[1000 + rand.nextInt(40000)];
+		rand.nextBytes(image);
+		image[0] = (byte)0xff;
+		image[1] = (byte)0xd8;
+		image[2] = (byte)0xff;
+		addResponse(msgs, rand, "image/jpeg", image);
+	    }
+	}
+	return msgs;
+    }
+
+    private static void addResponse(Vector msgs, Random rand, String type, byte[] body)
+    {
+	byte[] hdr = ("HTTP/1.1 200 OK\r\n" +
+		      "Date: Mon, 17 Oct 2022 10:" + (10 + rand.nextInt(50)) + ":00 GMT\r\n" +
+		      "Server: Apache/2.4.54 (Unix)\r\n" +
+		      "Content-Type: " + type + "\r\n" +
+		      "Content-Length: " + body.length + "\r\n\r\n").getBytes();
+	byte[] response = new byte[hdr.length + body.length];
+
+	System.arraycopy(hdr, 0, response, 0, hdr.length);
+	System.arraycopy(body, 0, response, hdr.length, body.length);
+	addMessages(msgs, response);
+    }
+
+    // The tunnel sends at most a buffer's worth at a time
+
+    private static void addMessages(Vector msgs, byte[] data)
+    {
+	for (int off = 0; off < data.length; off += ZBDTunnel.DFLT_BUFFER_SIZE)
+	{
+	    int len = Math.min(ZBDTunnel.DFLT_BUFFER_SIZE, data.length - off);
+	    byte[] msg = new byte[len];
+	    System.arraycopy(data, off, msg, 0, len);
+	    msgs.addElement(msg);
+	}
+    }
+
+    private static void putInt(byte[] b, int off, int v)
+    {
+	b[off] = (byte)(v >>> 24);
+	b[off + 1] = (byte)(v >>> 16);
+	b[off + 2] = (byte)(v >>> 8);
+	b[off + 3] = (byte)v;
+    }
+
+    private static String format(double d)
+    {
+	return String.valueOf(Math.round(d * 10) / 10.0);
+    }
+
+    private static String pad(String s, int width)
+    {
+	StringBuffer sb = new StringBuffer(s);
+	while (sb.length() < width)
+	{
+	    sb.append(' ');
+	}
+	return sb.toString();
+    }
+}
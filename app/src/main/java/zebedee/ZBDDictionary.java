@@ -0,0 +1,477 @@
+// This program is free software and may be distributed under the terms
+// of the GNU Lesser General Public License, Version 2.1.
+// This program comes with ABSOLUTELY NO WARRANTY.
+
+package zebedee;
+
+import java.io.*;
+import java.util.Vector;
+import java.util.zip.Deflater;
+
+/**
+ * A preset dictionary for zlib compression. Zlib can only refer back to
+ * data it has already seen, so the first messages on a tunnel, and every
+ * message when each is compressed on its own, compress poorly however
+ * much they resemble earlier traffic. Priming the compressor and
+ * decompressor with typical content for the protocol being carried --
+ * HTTP headers, SQL statements, X11 requests -- lets even small
+ * messages refer back to it.
+ * <p>
+ * A dictionary is identified by the SHA-1 hash of its contents. During
+ * negotiation the server lists the identifiers of those it has, and the
+ * client picks the first of its own that the server also has, so both
+ * ends must have been given the same file. See
+ * {@link ZBDTunnel#addDictionary(ZBDDictionary)}.
+ * <p>
+ * Running the class trains a dictionary from samples of the traffic.
+ */
+
+public class ZBDDictionary
+{
+    /** Largest useful dictionary, the size of the zlib window. Set to 32768. */
+    public static final int MAX_SIZE = 32768;
+    /** Size of dictionary made by the training tool unless told otherwise. Set to 4096. */
+    public static final int DFLT_SIZE = 4096;
+    /** Length of a dictionary identifier, a SHA-1 hash. Set to 20. */
+    public static final int ID_SIZE = 20;
+
+    // Training parameters: the length of the substrings counted and of
+    // the segments taken from the samples, and the log of the size of
+    // the table of counts
+    static final int DMER = 8;
+    static final int SEGMENT = 64;
+    static final int TABLE_LOG = 20;
+
+    String name;
+    byte[] data;
+    byte[] id;
+
+
+    /**
+     * Create a dictionary. Only the last {@link #MAX_SIZE} bytes can be
+     * used by zlib, so any more are dropped.
+     *
+     * @param name A name for logging, such as the file it came from.
+     * @param data The contents.
+     */
+
+    public ZBDDictionary(String name, byte[] data)
+    {
+	if (data.length > MAX_SIZE)
+	{
+	    byte[] tmp = new byte[MAX_SIZE];
+	    System.arraycopy(data, data.length - MAX_SIZE, tmp, 0, MAX_SIZE);
+	    data = tmp;
+	}
+
+	this.name = name;
+	this.data = data;
+
+	SHA1 sha = new SHA1();
+	sha.init();
+	sha.update(data, 0, data.length);
+	sha.finish();
+	id = sha.digest();
+    }
+
+    /**
+     * Load a dictionary from a file.
+     *
+     * @throws ZBDException Thrown if the file can not be read or is
+     * empty.
+     */
+
+    public static ZBDDictionary load(String file) throws ZBDException
+    {
+	byte[] data = readFile(file);
+
+	if (data.length == 0)
+	{
+	    throw new ZBDException("dictionary file " + file + " is empty");
+	}
+	return new ZBDDictionary(file, data);
+    }
+
+    /**
+     * Returns the name given when it was created.
+     */
+
+    public String getName()
+    {
+	return name;
+    }
+
+    /**
+     * Returns the contents. The array must not be changed.
+     */
+
+    public byte[] getData()
+    {
+	return data;
+    }
+
+    /**
+     * Returns the identifier, the SHA-1 hash of the contents. The array
+     * must not be changed.
+     */
+
+    public byte[] getId()
+    {
+	return id;
+    }
+
+    public String toString()
+    {
+	return name + " (" + ZBDTunnel.bytesToHex(id) + ")";
+    }
+
+    static byte[] readFile(String file) throws ZBDException
+    {
+	InputStream in = null;
+
+	try
+	{
+	    in = new FileInputStream(file);
+	    ByteArrayOutputStream out = new ByteArrayOutputStream();
+	    byte[] buf = new byte[8192];
+	    int n;
+
+	    while ((n = in.read(buf)) > 0)
+	    {
+		out.write(buf, 0, n);
+	    }
+	    return out.toByteArray();
+	}
+	catch (IOException e)
+	{
+	    throw new ZBDException("can't read " + file + ": " + e);
+	}
+	finally
+	{
+	    try
+	    {
+		if (in != null) in.close();
+	    }
+	    catch (IOException e)
+	    {
+		// Ignore
+	    }
+	}
+    }
+
+    /**
+     * Build a dictionary from sample messages. Substrings found in many
+     * messages are what a dictionary should hold, so the number of
+     * messages containing each 8-byte substring is counted. The samples
+     * are then divided into as many stretches as there are 64-byte
+     * segments in the dictionary, and from each the segment whose
+     * substrings are most common is taken. Once taken, a substring
+     * counts for nothing in later segments. The best segments go at the
+     * end of the dictionary, where references to them are cheapest.
+     * This is the "cover" method of the zstd dictionary builder, much
+     * simplified.
+     *
+     * @param msgs The sample messages, as byte arrays.
+     * @param size The largest dictionary wanted.
+     *
+     * @return The contents of the dictionary, which may be smaller than
+     * asked for if the samples are small or have little in common.
+     */
+
+    static byte[] train(Vector msgs, int size)
+    {
+	int[] freq = new int[1 << TABLE_LOG];
+	int[] seen = new int[1 << TABLE_LOG];
+
+	// Put the messages end to end and count each substring once for
+	// each message it appears in
+
+	int total = 0;
+	for (int i = 0; i < msgs.size(); i++)
+	{
+	    total += ((byte[])msgs.elementAt(i)).length;
+	}
+
+	byte[] all = new byte[total];
+	int[] hashes = new int[total];
+	int pos = 0;
+
+	for (int i = 0; i < msgs.size(); i++)
+	{
+	    byte[] msg = (byte[])msgs.elementAt(i);
+	    System.arraycopy(msg, 0, all, pos, msg.length);
+
+	    for (int j = 0; j < msg.length; j++)
+	    {
+		if (j + DMER > msg.length)
+		{
+		    // Substrings crossing into the next message do not count
+		    hashes[pos + j] = -1;
+		    continue;
+		}
+
+		long v = 0;
+		for (int k = 0; k < DMER; k++)
+		{
+		    v = (v << 8) | (msg[j + k] & 0xff);
+		}
+		int h = (int)((v * 0x9e3779b97f4a7c15L) >>> (64 - TABLE_LOG));
+		hashes[pos + j] = h;
+
+		if (seen[h] != i + 1)
+		{
+		    seen[h] = i + 1;
+		    freq[h]++;
+		}
+	    }
+	    pos += msg.length;
+	}
+
+	// Substrings in only one message are no help
+
+	for (int h = 0; h < freq.length; h++)
+	{
+	    if (freq[h] < 2)
+	    {
+		freq[h] = 0;
+	    }
+	}
+
+	// Pick the best segment from each stretch
+
+	int segments = Math.max(1, size / SEGMENT);
+	int stretch = Math.max(SEGMENT, total / segments);
+	int[] inWindow = new int[1 << TABLE_LOG];
+	int width = SEGMENT - DMER + 1;
+	Vector chosen = new Vector();
+
+	for (int start = 0; start + SEGMENT <= total && chosen.size() < segments; start += stretch)
+	{
+	    int end = Math.min(start + stretch, total) - SEGMENT;
+	    int score = 0;
+	    int best = 0;
+	    int bestAt = -1;
+
+	    for (int p = start; p <= end + width - 1; p++)
+	    {
+		// Add the substring at p and drop the one that has slid
+		// out of the segment starting at p - width + 1
+
+		int h = hashes[p];
+		if (h >= 0 && inWindow[h]++ == 0)
+		{
+		    score += freq[h];
+		}
+		if (p - width >= start)
+		{
+		    int old = hashes[p - width];
+		    if (old >= 0 && --inWindow[old] == 0)
+		    {
+			score -= freq[old];
+		    }
+		}
+
+		if (p - width + 1 >= start && score > best)
+		{
+		    best = score;
+		    bestAt = p - width + 1;
+		}
+	    }
+
+	    // Clear the window counts for next time
+
+	    for (int p = end; p <= end + width - 1; p++)
+	    {
+		if (hashes[p] >= 0)
+		{
+		    inWindow[hashes[p]] = 0;
+		}
+	    }
+
+	    if (bestAt < 0)
+	    {
+		continue;
+	    }
+
+	    for (int p = bestAt; p < bestAt + width; p++)
+	    {
+		if (hashes[p] >= 0)
+		{
+		    freq[hashes[p]] = 0;
+		}
+	    }
+	    chosen.addElement(new int[] { bestAt, best });
+	}
+
+	// Sort by score, lowest first, and put them end to end
+
+	for (int i = 1; i < chosen.size(); i++)
+	{
+	    int[] seg = (int[])chosen.elementAt(i);
+	    int j = i;
+	    while (j > 0 && ((int[])chosen.elementAt(j - 1))[1] > seg[1])
+	    {
+		chosen.setElementAt(chosen.elementAt(j - 1), j);
+		j--;
+	    }
+	    chosen.setElementAt(seg, j);
+	}
+
+	byte[] dict = new byte[chosen.size() * SEGMENT];
+	for (int i = 0; i < chosen.size(); i++)
+	{
+	    System.arraycopy(all, ((int[])chosen.elementAt(i))[0], dict, i * SEGMENT, SEGMENT);
+	}
+	return dict;
+    }
+
+    /**
+     * Train a dictionary from sample traffic and write it to a file.
+     * <p>
+     * Usage: <code>java zebedee.ZBDDictionary [-s size] [-m msgsize]
+     * dictfile sample ...</code>
+     * <p>
+     * Each sample file is a capture of data sent in one direction over a
+     * tunnel, such as HTTP requests, and is cut into messages of up to
+     * <code>msgsize</code> bytes (by default {@link
+     * ZBDTunnel#DFLT_BUFFER_SIZE}), as the tunnel would send it. Every
+     * fifth message is held back, and afterwards these are compressed
+     * with zlib level 6, each on its own, with and without the new
+     * dictionary to show what it gains. A larger dictionary may compress
+     * better but, when messages are compressed on their own, costs more
+     * CPU time for each, as zlib must take in the whole dictionary first.
+     */
+
+    public static void main(String args[]) throws Exception
+    {
+	int size = DFLT_SIZE;
+	int msgSize = ZBDTunnel.DFLT_BUFFER_SIZE;
+	int arg = 0;
+
+	for (; arg < args.length - 1 && args[arg].startsWith("-"); arg += 2)
+	{
+	    if (args[arg].equals("-s"))
+	    {
+		size = Math.min(Integer.parseInt(args[arg + 1]), MAX_SIZE);
+	    }
+	    else if (args[arg].equals("-m"))
+	    {
+		msgSize = Math.min(Integer.parseInt(args[arg + 1]), ZBDTunnel.MAX_BUFFER_SIZE);
+	    }
+	    else
+	    {
+		break;
+	    }
+	}
+
+	if (args.length - arg < 2 || size <= 0 || msgSize <= 0)
+	{
+	    System.err.println("Usage: java zebedee.ZBDDictionary [-s size] [-m msgsize] dictfile sample ...");
+	    System.exit(1);
+	}
+
+	// Cut the samples into messages, holding back every fifth
+
+	Vector train = new Vector();
+	Vector test = new Vector();
+	long trainBytes = 0;
+
+	for (int f = arg + 1; f < args.length; f++)
+	{
+	    byte[] sample = readFile(args[f]);
+
+	    for (int off = 0; off < sample.length; off += msgSize)
+	    {
+		byte[] msg = new byte[Math.min(msgSize, sample.length - off)];
+		System.arraycopy(sample, off, msg, 0, msg.length);
+
+		if ((train.size() + test.size()) % 5 == 4)
+		{
+		    test.addElement(msg);
+		}
+		else
+		{
+		    train.addElement(msg);
+		    trainBytes += msg.length;
+		}
+	    }
+	}
+
+	byte[] dict = train(train, size);
+	if (dict.length == 0)
+	{
+	    System.err.println("The samples have too little in common to make a dictionary");
+	    System.exit(1);
+	}
+
+	OutputStream out = new FileOutputStream(args[arg]);
+	out.write(dict);
+	out.close();
+
+	ZBDDictionary d = new ZBDDictionary(args[arg], dict);
+	System.out.println("wrote " + dict.length + " byte dictionary " + d +
+			   " from " + train.size() + " messages, " + trainBytes + " bytes");
+
+	if (test.size() == 0)
+	{
+	    return;
+	}
+
+	long[] without = evaluate(test, null);
+	long[] with = evaluate(test, dict);
+	long total = 0;
+
+	for (int i = 0; i < test.size(); i++)
+	{
+	    total += ((byte[])test.elementAt(i)).length;
+	}
+
+	System.out.println(test.size() + " held back messages, " + total + " bytes, zlib:6 each on its own:");
+	System.out.println("  without dictionary: " + (100 * without[0] / total) + "% of original, " +
+			   (without[1] / test.size() / 1000) + " us per message");
+	System.out.println("  with dictionary:    " + (100 * with[0] / total) + "% of original, " +
+			   (with[1] / test.size() / 1000) + " us per message");
+    }
+
+    /**
+     * Compress each message on its own, best of a few runs.
+     *
+     * @return The compressed size and time taken in nanoseconds.
+     */
+
+    static long[] evaluate(Vector msgs, byte[] dict)
+    {
+	Deflater deflater = new Deflater(6);
+	byte[] out = new byte[ZBDTunnel.MAX_BUFFER_SIZE + 64];
+	long[] best = null;
+
+	for (int run = 0; run < 5; run++)
+	{
+	    long sent = 0;
+	    long start = System.nanoTime();
+
+	    for (int i = 0; i < msgs.size(); i++)
+	    {
+		byte[] msg = (byte[])msgs.elementAt(i);
+
+		deflater.reset();
+		if (dict != null)
+		{
+		    deflater.setDictionary(dict);
+		}
+		deflater.setInput(msg);
+		deflater.finish();
+		int n = deflater.deflate(out);
+		sent += ((deflater.finished() && n < msg.length) ? n : msg.length);
+	    }
+
+	    long time = System.nanoTime() - start;
+	    if (best == null || time < best[1])
+	    {
+		best = new long[] { sent, time };
+	    }
+	}
+	deflater.end();
+	return best;
+    }
+}
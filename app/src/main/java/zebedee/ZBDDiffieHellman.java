@@ -0,0 +1,506 @@
+// This program is free software and may be distributed under the terms
+// of the GNU Lesser General Public License, Version 2.1.
+// This program comes with ABSOLUTELY NO WARRANTY.
+
+package zebedee;
+
+import java.math.BigInteger;
+import java.util.Hashtable;
+
+/**
+ * The Diffie-Hellman arithmetic for one group, that is one generator and
+ * modulus. Instances are got from {@link #getInstance(String,String)},
+ * which parses the group parameters once and keeps the result, so that
+ * a handshake only has to parse the exponent and the peer's public value.
+ * <p>
+ * As the generator is fixed, the public value <i>g<sup>x</sup></i> is
+ * computed with a fixed-base window table: the powers
+ * <i>g<sup>j&middot;2<sup>wi</sup></sup></i> for every window <i>i</i> of
+ * {@link #WINDOW} bits and every digit <i>j</i> are computed once, after
+ * which <i>g<sup>x</sup></i> is just the product of one table entry for
+ * each window of <i>x</i>, with no squarings at all. The table is only
+ * built once a group has been used a few times. The table covers
+ * exponents of up to {@link #TABLE_BITS} bits, which includes the keys
+ * that {@link ZBDKeySource} generates. Longer exponents are handled by
+ * {@link BigInteger#modPow}, as is the shared secret, whose base is
+ * different every time.
+ * <p>
+ * Instances are immutable and may be used by any number of threads.
+ * Running the class checks the table against <code>modPow</code> and
+ * reports the handshake rate on one core.
+ */
+
+public final class ZBDDiffieHellman
+{
+    /** Bits in each window of the fixed-base table. Set to 5. */
+    public static final int WINDOW = 5;
+    /** Largest exponent, in bits, covered by the table. Set to 256. */
+    public static final int TABLE_BITS = 256;
+
+    // Number of public values computed the slow way before the table is
+    // built. Building it costs about as much as a few dozen public
+    // values, so a group seen only a few times -- a client talking to a
+    // server that makes up a new modulus each time, say -- is not worth
+    // it.
+    static final int TABLE_USES = 16;
+
+    // Cache of groups, keyed by "generator:modulus". It is only
+    // expected to hold the few groups actually configured, so is simply
+    // emptied if it ever grows large.
+    static final int MAX_CACHED = 16;
+    static Hashtable cache = new Hashtable();
+
+    final BigInteger generator;
+    final BigInteger modulus;
+
+    // The modulus as little-endian 32-bit words and -1/modulus mod 2^32,
+    // for Montgomery multiplication. An even modulus can not be used
+    // this way, so is left to modPow.
+    final int[] mod;
+    final int modInverse;
+    volatile int[][][] table = null;
+    int uses = 0;
+
+
+    private ZBDDiffieHellman(BigInteger generator, BigInteger modulus)
+    {
+	this.generator = generator;
+	this.modulus = modulus;
+
+	if (modulus.testBit(0) && modulus.bitLength() > 32)
+	{
+	    mod = toWords(modulus, (modulus.bitLength() + 31) / 32);
+
+	    // Newton's iteration for 1/m mod 2^32, doubling the correct
+	    // bits each time starting from the 3 that m itself gives
+
+	    int inv = mod[0];
+	    for (int i = 0; i < 4; i++)
+	    {
+		inv *= 2 - mod[0] * inv;
+	    }
+	    modInverse = -inv;
+	}
+	else
+	{
+	    mod = null;
+	    modInverse = 0;
+	}
+    }
+
+    /**
+     * Build the fixed-base table, in Montgomery form. Row i holds
+     * g^(j * 2^(WINDOW * i)) for each digit j from 1 up.
+     */
+
+    private int[][][] buildTable()
+    {
+	int rows = (TABLE_BITS + WINDOW - 1) / WINDOW;
+	int digits = 1 << WINDOW;
+	int n = mod.length;
+
+	int[][][] table = new int[rows][digits][];
+
+	long[] scratch = new long[n + 2];
+	int[] base = toWords(generator.shiftLeft(32 * n).mod(modulus), n);
+	for (int i = 0; i < rows; i++)
+	{
+	    int[][] row = table[i];
+
+	    row[1] = base;
+	    for (int j = 2; j < digits; j++)
+	    {
+		row[j] = new int[n];
+		multiply(row[j - 1], base, row[j], scratch);
+	    }
+	    base = new int[n];
+	    multiply(row[digits - 1], row[1], base, scratch);
+	}
+	return table;
+    }
+
+    /**
+     * Returns the instance for the given group.
+     *
+     * @param generator The generator as a hexadecimal string or
+     * <code>""</code> (or <code>null</code>) for the default value.
+     * @param modulus The modulus as a hexadecimal string or
+     * <code>""</code> (or <code>null</code>) for the default value.
+     *
+     * @throws NumberFormatException Thrown if either is not valid
+     * hexadecimal.
+     */
+
+    public static ZBDDiffieHellman getInstance(String generator, String modulus)
+    {
+	if (generator == null || generator.equals(""))
+	{
+	    generator = ZBDTunnel.DFLT_GENERATOR;
+	}
+
+	if (modulus == null || modulus.equals(""))
+	{
+	    modulus = ZBDTunnel.DFLT_MODULUS;
+	}
+
+	String key = generator + ":" + modulus;
+	ZBDDiffieHellman dh = (ZBDDiffieHellman)cache.get(key);
+
+	if (dh == null)
+	{
+	    dh = new ZBDDiffieHellman(new BigInteger(generator, 16),
+				      new BigInteger(modulus, 16));
+
+	    synchronized (cache)
+	    {
+		if (cache.size() >= MAX_CACHED)
+		{
+		    cache.clear();
+		}
+		cache.put(key, dh);
+	    }
+	}
+	return dh;
+    }
+
+    /**
+     * Compute the public value for a private key, that is
+     * <i>g<sup>x</sup></i> mod <i>p</i>.
+     *
+     * @param exponent The private key.
+     */
+
+    public BigInteger publicValue(BigInteger exponent)
+    {
+	if (mod == null || exponent.signum() < 0 || exponent.bitLength() > TABLE_BITS)
+	{
+	    return generator.modPow(exponent, modulus);
+	}
+
+	// Two threads may both build the table, which does no harm
+
+	int[][][] table = this.table;
+	if (table == null)
+	{
+	    if (++uses <= TABLE_USES)
+	    {
+		return generator.modPow(exponent, modulus);
+	    }
+	    table = this.table = buildTable();
+	}
+
+	int n = mod.length;
+	int[] result = null;
+	int[] tmp = new int[n];
+	long[] scratch = new long[n + 2];
+	int rows = (exponent.bitLength() + WINDOW - 1) / WINDOW;
+
+	for (int i = 0; i < rows; i++)
+	{
+	    int digit = 0;
+	    for (int b = WINDOW - 1; b >= 0; b--)
+	    {
+		digit = (digit << 1) | (exponent.testBit(i * WINDOW + b) ? 1 : 0);
+	    }
+
+	    if (digit != 0)
+	    {
+		if (result == null)
+		{
+		    result = table[i][digit].clone();
+		}
+		else
+		{
+		    multiply(result, table[i][digit], tmp, scratch);
+		    int[] t = result;
+		    result = tmp;
+		    tmp = t;
+		}
+	    }
+	}
+
+	if (result == null)
+	{
+	    return BigInteger.ONE.mod(modulus);
+	}
+
+	// Multiplying by 1 takes the result out of Montgomery form
+
+	int[] one = new int[n];
+	one[0] = 1;
+	multiply(result, one, tmp, scratch);
+	return fromWords(tmp);
+    }
+
+    /**
+     * Montgomery multiplication, r = a * b / 2^(32n) mod m, by the
+     * coarsely integrated operand scanning method. All are n words long
+     * and less than m, and r must be distinct from a and b. t is
+     * scratch space of n + 2 words.
+     */
+
+    private void multiply(int[] a, int[] b, int[] r, long[] t)
+    {
+	int[] m = mod;
+	int n = m.length;
+
+	for (int j = 0; j < n + 2; j++)
+	{
+	    t[j] = 0;
+	}
+
+	for (int i = 0; i < n; i++)
+	{
+	    long bi = b[i] & 0xffffffffL;
+	    long c = 0;
+
+	    for (int j = 0; j < n; j++)
+	    {
+		long s = t[j] + (a[j] & 0xffffffffL) * bi + c;
+		t[j] = s & 0xffffffffL;
+		c = s >>> 32;
+	    }
+	    long s = t[n] + c;
+	    t[n] = s & 0xffffffffL;
+	    t[n + 1] = s >>> 32;
+
+	    long q = (t[0] * modInverse) & 0xffffffffL;
+
+	    c = (t[0] + q * (m[0] & 0xffffffffL)) >>> 32;
+	    for (int j = 1; j < n; j++)
+	    {
+		s = t[j] + q * (m[j] & 0xffffffffL) + c;
+		t[j - 1] = s & 0xffffffffL;
+		c = s >>> 32;
+	    }
+	    s = t[n] + c;
+	    t[n - 1] = s & 0xffffffffL;
+	    t[n] = t[n + 1] + (s >>> 32);
+	}
+
+	// The result is less than 2m, so at most one subtraction
+
+	boolean subtract = (t[n] != 0);
+	if (!subtract)
+	{
+	    subtract = true;
+	    for (int j = n - 1; j >= 0; j--)
+	    {
+		long mj = m[j] & 0xffffffffL;
+		if (t[j] != mj)
+		{
+		    subtract = (t[j] > mj);
+		    break;
+		}
+	    }
+	}
+
+	if (subtract)
+	{
+	    long borrow = 0;
+	    for (int j = 0; j < n; j++)
+	    {
+		long d = t[j] - (m[j] & 0xffffffffL) - borrow;
+		r[j] = (int)d;
+		borrow = (d >>> 63);
+	    }
+	}
+	else
+	{
+	    for (int j = 0; j < n; j++)
+	    {
+		r[j] = (int)t[j];
+	    }
+	}
+    }
+
+    private static int[] toWords(BigInteger value, int n)
+    {
+	int[] words = new int[n];
+
+	for (int i = 0; i < n; i++)
+	{
+	    words[i] = value.shiftRight(32 * i).intValue();
+	}
+	return words;
+    }
+
+    private static BigInteger fromWords(int[] words)
+    {
+	byte[] bytes = new byte[words.length * 4];
+
+	for (int i = 0; i < words.length; i++)
+	{
+	    int w = words[words.length - 1 - i];
+	    bytes[4 * i] = (byte)(w >>> 24);
+	    bytes[4 * i + 1] = (byte)(w >>> 16);
+	    bytes[4 * i + 2] = (byte)(w >>> 8);
+	    bytes[4 * i + 3] = (byte)w;
+	}
+	return new BigInteger(1, bytes);
+    }
+
+    /**
+     * Compute the shared secret from the peer's public value and our
+     * private key, that is <i>y<sup>x</sup></i> mod <i>p</i>.
+     *
+     * @param peerValue The peer's public value.
+     * @param exponent Our private key.
+     */
+
+    public BigInteger sharedSecret(BigInteger peerValue, BigInteger exponent)
+    {
+	return peerValue.modPow(exponent, modulus);
+    }
+
+    /**
+     * Parse a hexadecimal number as sent in the protocol.
+     *
+     * @throws ZBDProtocolException Thrown if it is not valid hexadecimal.
+     */
+
+    public static BigInteger parse(String hex) throws ZBDProtocolException
+    {
+	try
+	{
+	    return new BigInteger(hex, 16);
+	}
+	catch (NumberFormatException e)
+	{
+	    throw new ZBDProtocolException("invalid Diffie-Hellman value: " + hex);
+	}
+    }
+
+    /**
+     * Format a number as a hexadecimal string in the form the protocol
+     * uses, which is also the form that is hashed to make session keys.
+     */
+
+    public static String format(BigInteger value)
+    {
+	return value.toString(16);
+    }
+
+    /**
+     * Returns a non-negative number as an unsigned big-endian byte
+     * array, that is without the sign byte that
+     * <code>BigInteger</code> may add.
+     */
+
+    public static byte[] toBytes(BigInteger value)
+    {
+	byte[] b = value.toByteArray();
+
+	if (b[0] == 0 && b.length > 1)
+	{
+	    byte[] t = new byte[b.length - 1];
+	    System.arraycopy(b, 1, t, 0, t.length);
+	    b = t;
+	}
+	return b;
+    }
+
+    /**
+     * Check the table against <code>modPow</code> for random private
+     * keys and report how many handshakes per second one core can do,
+     * counting the work one end of a handshake does (the public value
+     * and the shared secret), before and after.
+     */
+
+    public static void main(String args[])
+    {
+	ZBDKeySource source = new ZBDKeySource();
+	ZBDDiffieHellman dh = getInstance("", "");
+	BigInteger g = new BigInteger(ZBDTunnel.DFLT_GENERATOR, 16);
+	BigInteger p = new BigInteger(ZBDTunnel.DFLT_MODULUS, 16);
+	int count = 1000;
+	String[] keys = new String[count];
+	BigInteger[] peers = new BigInteger[count];
+
+	for (int i = 0; i < count; i++)
+	{
+	    keys[i] = source.generateKeyString();
+	    peers[i] = g.modPow(new BigInteger(source.generateKeyString(), 16), p);
+	}
+
+	// Check, including the edge cases
+
+	BigInteger[] edges = {
+	    BigInteger.ZERO, BigInteger.ONE,
+	    BigInteger.ONE.shiftLeft(TABLE_BITS).subtract(BigInteger.ONE),
+	    BigInteger.ONE.shiftLeft(TABLE_BITS),
+	    BigInteger.ONE.shiftLeft(TABLE_BITS + 100).add(BigInteger.ONE)
+	};
+	boolean ok = true;
+	for (int i = 0; i < edges.length; i++)
+	{
+	    ok &= dh.publicValue(edges[i]).equals(g.modPow(edges[i], p));
+	}
+	for (int i = 0; i < count; i++)
+	{
+	    BigInteger x = new BigInteger(keys[i], 16);
+	    ok &= dh.publicValue(x).equals(g.modPow(x, p));
+	}
+	System.out.println("fixed-base table: " + (ok ? "matches modPow" : "FAILED"));
+
+	// One end of a handshake as it was done before, parsing
+	// everything from strings each time, then as it is done now. The
+	// table was built by the check above.
+
+	for (int round = 0; round < 3; round++)
+	{
+	    long[] publicTime = new long[2];
+	    long[] sharedTime = new long[2];
+
+	    for (int pass = 0; pass < 2; pass++)
+	    {
+		for (int i = 0; i < count; i++)
+		{
+		    String peer = format(peers[i]);
+		    long start = System.nanoTime();
+
+		    if (pass == 0)
+		    {
+			new BigInteger(ZBDTunnel.DFLT_GENERATOR, 16).modPow(
+			    new BigInteger(keys[i], 16),
+			    new BigInteger(ZBDTunnel.DFLT_MODULUS, 16)).toString(16);
+			long middle = System.nanoTime();
+			new BigInteger(peer, 16).modPow(
+			    new BigInteger(keys[i], 16),
+			    new BigInteger(ZBDTunnel.DFLT_MODULUS, 16)).toString(16);
+			publicTime[pass] += middle - start;
+			sharedTime[pass] += System.nanoTime() - middle;
+		    }
+		    else
+		    {
+			ZBDDiffieHellman group = getInstance("", "");
+			BigInteger x = new BigInteger(keys[i], 16);
+			format(group.publicValue(x));
+			long middle = System.nanoTime();
+			format(group.sharedSecret(new BigInteger(peer, 16), x));
+			publicTime[pass] += middle - start;
+			sharedTime[pass] += System.nanoTime() - middle;
+		    }
+		}
+	    }
+
+	    for (int pass = 0; pass < 2; pass++)
+	    {
+		System.out.println((pass == 0 ? "before: " : "after:  ") +
+				   (count * 1000000000L / (publicTime[pass] + sharedTime[pass])) +
+				   " handshakes/s/core (public value " +
+				   (publicTime[pass] / count / 1000) + "us, shared secret " +
+				   (sharedTime[pass] / count / 1000) + "us)");
+	    }
+	}
+
+	long start = System.nanoTime();
+	dh.buildTable();
+	System.out.println("table build: " + (System.nanoTime() - start) / 1000000 + "ms");
+
+	if (!ok)
+	{
+	    System.exit(1);
+	}
+    }
+}
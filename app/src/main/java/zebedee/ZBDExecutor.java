@@ -0,0 +1,43 @@
+// This program is free software and may be distributed under the terms
+// of the GNU Lesser General Public License, Version 2.1.
+// This program comes with ABSOLUTELY NO WARRANTY.
+
+package zebedee;
+
+/**
+ * This abstract base class defines how the long-running tasks of a
+ * Zebedee client or server are scheduled. These are the listeners that
+ * accept new connections and the pumps ({@link ZBDTcpTunnelReader},
+ * {@link ZBDTcpTunnelWriter}, {@link ZBDUdpTunnelReader} and
+ * {@link ZBDUdpTunnelWriter}) that move data through established
+ * tunnels. All of them use blocking I/O and each runs until its
+ * connection is finished.
+ * <p>
+ * Three implementations are provided: {@link ZBDThreadExecutor}, which
+ * starts a new thread for every task, {@link ZBDPooledExecutor}, which
+ * re-uses a pool of platform threads, and {@link ZBDVirtualExecutor},
+ * which starts a virtual thread for every task where the Java runtime
+ * supports it.
+ */
+
+abstract public class ZBDExecutor
+{
+    /**
+     * Run the given task asynchronously.
+     *
+     * @param task The task to run.
+     * @param name A name for the thread running the task, for use in
+     * diagnostics.
+     */
+
+    abstract public void execute(Runnable task, String name);
+
+    /**
+     * Release any resources held by the executor. Tasks that are already
+     * running are not affected. The default implementation does nothing.
+     */
+
+    public void shutdown()
+    {
+    }
+}
@@ -10,11 +10,24 @@
 package zebedee;
 
 import java.io.*;
+import java.util.LinkedList;
+
+/**
+ * A key source that runs an external command to generate each key. The
+ * command prints a hexadecimal key on the first line of its standard
+ * output. Any following lines that are also hexadecimal keys are kept
+ * for the following calls, so a command that prints a batch of keys,
+ * one per line, need be run only once per batch. Other lines, such as
+ * status messages, are ignored.
+ */
 
 public class ZBDExternalKeySource extends ZBDKeySource
 {
     String command;
 
+    // Keys left over from the last run of the command
+    LinkedList spare = new LinkedList();
+
     public ZBDExternalKeySource(String cmd)
     {
 	super();
@@ -22,6 +35,35 @@ public class ZBDExternalKeySource extends ZBDKeySource
     }
 
     synchronized public String generateKeyString()
+    {
+	if (spare.isEmpty())
+	{
+	    runCommand();
+	}
+	return (spare.isEmpty() ? null : (String)spare.removeFirst());
+    }
+
+    synchronized public int generateKeyStrings(String[] keys)
+    {
+	if (spare.isEmpty())
+	{
+	    runCommand();
+	}
+
+	int n = 0;
+	while (n < keys.length && !spare.isEmpty())
+	{
+	    keys[n++] = (String)spare.removeFirst();
+	}
+	return n;
+    }
+
+    /**
+     * Run the command and add the keys it prints to the spares: the
+     * first line as it is, and any later ones that look like keys.
+     */
+
+    private void runCommand()
     {
 	Runtime rt = Runtime.getRuntime();
 	Process proc = null;
@@ -31,17 +73,28 @@ public class ZBDExternalKeySource extends ZBDKeySource
 	}
 	catch (Exception e)
 	{
-	    return null;
+	    return;
 	}
 
-	String key = null;
 	if (proc != null)
 	{
 	    BufferedReader in =
 		new BufferedReader(new InputStreamReader(proc.getInputStream()));
 	    try
 	    {
-		key = in.readLine();
+		String key = in.readLine();
+		if (key != null)
+		{
+		    spare.addLast(key);
+		}
+		while ((key = in.readLine()) != null)
+		{
+		    key = key.trim();
+		    if (isHex(key))
+		    {
+			spare.addLast(key);
+		    }
+		}
 		in.close();
 	    }
 	    catch (Exception e)
@@ -50,7 +103,21 @@ public class ZBDExternalKeySource extends ZBDKeySource
 	    }
 	    proc.destroy();
 	}
+    }
 
-	return key;
+    private static boolean isHex(String str)
+    {
+	if (str.length() == 0)
+	{
+	    return false;
+	}
+	for (int i = 0; i < str.length(); i++)
+	{
+	    if (Character.digit(str.charAt(i), 16) < 0)
+	    {
+		return false;
+	    }
+	}
+	return true;
     }
 }
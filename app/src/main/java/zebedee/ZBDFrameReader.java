@@ -0,0 +1,264 @@
+// This program is free software and may be distributed under the terms
+// of the GNU Lesser General Public License, Version 2.1.
+// This program comes with ABSOLUTELY NO WARRANTY.
+
+package zebedee;
+
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A read-ahead buffer for the tunnel connection. Each read from the
+ * underlying stream asks for as much data as will fit in the buffer so
+ * that, under interactive traffic, a single read will usually pick up
+ * the header and body of a message together and often several messages
+ * at once.
+ * <p>
+ * Complete messages are handed out in place by {@link #nextFrame()}.
+ * The body remains valid, at {@link #buf}[{@link #body}], until the next
+ * call on the reader. The ordinary <code>InputStream</code> methods are
+ * used by the protocol negotiation, which reads the same stream.
+ */
+
+class ZBDFrameReader extends FilterInputStream
+{
+    ZBDTunnel tnl;
+
+    // Big enough to hold at least one maximum-sized message as well as
+    // any remnant of the one preceding it.
+    byte[] buf = new byte[2 * (ZBDTunnel.MAX_BUFFER_SIZE + 2)];
+    int pos = 0;
+    int end = 0;
+
+    // Offset of the body of the message last returned by nextFrame
+    int body = 0;
+
+    // Held by the InputStream methods. This is not a monitor so that a
+    // virtual thread blocked reading does not pin its carrier thread.
+    ReentrantLock lock = new ReentrantLock();
+
+
+    ZBDFrameReader(InputStream in, ZBDTunnel tunnel)
+    {
+	super(in);
+	tnl = tunnel;
+    }
+
+    /**
+     * Return the header of the next complete message, reading more data
+     * as necessary. On return the message body is at
+     * <code>buf[body]</code>.
+     *
+     * @throws EOFException Thrown if the stream ends part way through a
+     * message.
+     *
+     * @return The message header or -1 if the stream ended cleanly at a
+     * message boundary.
+     */
+
+    int nextFrame() throws IOException
+    {
+	if (!ensure(2))
+	{
+	    if (pos == end)
+	    {
+		return -1;
+	    }
+	    throw new EOFException("EOF encountered reading message header");
+	}
+
+	int header = ((buf[pos] & 0xff) << 8) | (buf[pos + 1] & 0xff);
+	int size = header & ZBDTunnel.SIZE_MASK;
+
+	if (!ensure(size + 2))
+	{
+	    throw new EOFException("EOF encountered reading message of size " + size);
+	}
+
+	body = pos + 2;
+	pos += size + 2;
+
+	return header;
+    }
+
+    /**
+     * Make sure that at least <code>needed</code> bytes are buffered.
+     *
+     * @return False if EOF was reached first.
+     */
+
+    boolean ensure(int needed) throws IOException
+    {
+	if (end - pos >= needed)
+	{
+	    return true;
+	}
+
+	// Move any remnant to the start of the buffer if the rest of the
+	// message would not otherwise fit.
+
+	if (buf.length - pos < needed)
+	{
+	    System.arraycopy(buf, pos, buf, 0, end - pos);
+	    end -= pos;
+	    pos = 0;
+	}
+
+	while (end - pos < needed)
+	{
+	    if (fill() < 0)
+	    {
+		return false;
+	    }
+	}
+
+	return true;
+    }
+
+    int fill() throws IOException
+    {
+	if (pos == end)
+	{
+	    pos = end = 0;
+	}
+
+	int num = in.read(buf, end, buf.length - end);
+	if (num > 0)
+	{
+	    end += num;
+	    tnl.netReads++;
+	}
+	return num;
+    }
+
+    /**
+     * Move any data that has been read ahead into <code>dst</code>.
+     * This is used when the connection is handed over to another reader,
+     * such as {@link ZBDNioEngine}.
+     *
+     * @return The number of bytes moved.
+     */
+
+    int drain(ByteBuffer dst)
+    {
+	lock.lock();
+	try
+	{
+	    int num = end - pos;
+
+	    dst.put(buf, pos, num);
+	    pos = end = 0;
+
+	    return num;
+	}
+	finally
+	{
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Give up the buffer, once the connection has been handed over and
+     * the reader will not be used again.
+     */
+
+    void release()
+    {
+	lock.lock();
+	try
+	{
+	    buf = null;
+	    pos = end = 0;
+	}
+	finally
+	{
+	    lock.unlock();
+	}
+    }
+
+    public int read() throws IOException
+    {
+	lock.lock();
+	try
+	{
+	    if (pos == end && fill() <= 0)
+	    {
+		return -1;
+	    }
+	    return buf[pos++] & 0xff;
+	}
+	finally
+	{
+	    lock.unlock();
+	}
+    }
+
+    public int read(byte[] b, int offset, int len) throws IOException
+    {
+	lock.lock();
+	try
+	{
+	    if (len == 0)
+	    {
+		return 0;
+	    }
+
+	    if (pos == end && fill() <= 0)
+	    {
+		return -1;
+	    }
+
+	    int num = (end - pos < len ? end - pos : len);
+
+	    System.arraycopy(buf, pos, b, offset, num);
+	    pos += num;
+
+	    return num;
+	}
+	finally
+	{
+	    lock.unlock();
+	}
+    }
+
+    public long skip(long n) throws IOException
+    {
+	lock.lock();
+	try
+	{
+	    if (pos == end)
+	    {
+		return in.skip(n);
+	    }
+
+	    int num = (end - pos < n ? end - pos : (int)n);
+	    pos += num;
+
+	    return num;
+	}
+	finally
+	{
+	    lock.unlock();
+	}
+    }
+
+    public int available() throws IOException
+    {
+	lock.lock();
+	try
+	{
+	    return (end - pos) + in.available();
+	}
+	finally
+	{
+	    lock.unlock();
+	}
+    }
+
+    public boolean markSupported()
+    {
+	return false;
+    }
+}
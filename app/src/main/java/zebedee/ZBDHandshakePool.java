@@ -0,0 +1,234 @@
+// This program is free software and may be distributed under the terms
+// of the GNU Lesser General Public License, Version 2.1.
+// This program comes with ABSOLUTELY NO WARRANTY.
+
+package zebedee;
+
+import java.util.concurrent.*;
+
+/**
+ * A bounded pool of threads on which tunnel protocol negotiations are
+ * run. A listener hands each connection it accepts to the pool and goes
+ * straight back to accepting the next, so that a slow (or hostile) peer
+ * can not hold up connections from everyone else.
+ * <p>
+ * The pool has a fixed number of threads, by default one per available
+ * processor, and a limit on the number of handshakes that may be queued
+ * waiting for one. A handshake submitted when the queue is full is
+ * refused and the caller should drop the connection.
+ * <p>
+ * Simple statistics are kept and may be retrieved using
+ * {@link #getStatistics()}.
+ */
+
+public class ZBDHandshakePool
+{
+    /** Default limit on the number of queued handshakes */
+    public static final int DFLT_QUEUE_LIMIT = 100;
+
+    ThreadPoolExecutor pool;
+    int threads;
+    int queueLimit;
+
+    // Statistics
+    int submitted = 0;
+    int rejected = 0;
+    int completed = 0;
+    int failed = 0;
+    int maxQueued = 0;
+    long totalTime = 0;
+    long maxTime = 0;
+
+
+    /**
+     * Create a new pool and start its threads.
+     *
+     * @param threads The number of threads. If this is zero or less one
+     * thread per available processor is started.
+     * @param queueLimit The maximum number of handshakes that may be
+     * waiting for a thread. If this is zero or less
+     * {@link #DFLT_QUEUE_LIMIT} is used.
+     */
+
+    public ZBDHandshakePool(int threads, int queueLimit)
+    {
+	if (threads <= 0)
+	{
+	    threads = Runtime.getRuntime().availableProcessors();
+	}
+	if (queueLimit <= 0)
+	{
+	    queueLimit = DFLT_QUEUE_LIMIT;
+	}
+
+	this.threads = threads;
+	this.queueLimit = queueLimit;
+
+	pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+				      new ArrayBlockingQueue(queueLimit),
+				      new ThreadFactory() {
+					  int count = 0;
+
+					  public synchronized Thread newThread(Runnable r)
+					  {
+					      return new Thread(r, "zbd-handshake-" + count++);
+					  }
+				      },
+				      new ThreadPoolExecutor.AbortPolicy());
+	pool.prestartAllCoreThreads();
+    }
+
+    /**
+     * Queue a handshake to be run. The handshake should return
+     * <code>Boolean.TRUE</code> if the tunnel is established. Any other
+     * result, or an exception, is counted as a failure. The handshake is
+     * expected to have logged and cleaned up after any failure itself.
+     *
+     * @param handshake The handshake to run.
+     *
+     * @return True if the handshake has been queued, false if the queue
+     * is full and it has been refused.
+     */
+
+    public boolean submit(final Callable handshake)
+    {
+	Runnable task = new Runnable() {
+	    public void run()
+	    {
+		long start = System.currentTimeMillis();
+		boolean ok = false;
+		try
+		{
+		    ok = Boolean.TRUE.equals(handshake.call());
+		}
+		catch (Exception e)
+		{
+		    ok = false;
+		}
+		finally
+		{
+		    finished(ok, System.currentTimeMillis() - start);
+		}
+	    }
+	};
+
+	try
+	{
+	    pool.execute(task);
+	}
+	catch (RejectedExecutionException e)
+	{
+	    synchronized (this)
+	    {
+		rejected++;
+	    }
+	    return false;
+	}
+
+	synchronized (this)
+	{
+	    submitted++;
+	    int queued = pool.getQueue().size();
+	    if (queued > maxQueued)
+	    {
+		maxQueued = queued;
+	    }
+	}
+	return true;
+    }
+
+    synchronized void finished(boolean ok, long elapsed)
+    {
+	if (ok)
+	{
+	    completed++;
+	}
+	else
+	{
+	    failed++;
+	}
+
+	totalTime += elapsed;
+	if (elapsed > maxTime)
+	{
+	    maxTime = elapsed;
+	}
+    }
+
+    /**
+     * Stop the pool threads once any queued handshakes have been run.
+     */
+
+    public void shutdown()
+    {
+	pool.shutdown();
+    }
+
+    /**
+     * Returns the number of handshakes currently waiting for a thread.
+     */
+
+    public int getQueueDepth()
+    {
+	return pool.getQueue().size();
+    }
+
+    /**
+     * Returns the number of handshakes currently in progress.
+     */
+
+    public int getActiveCount()
+    {
+	return pool.getActiveCount();
+    }
+
+    /**
+     * Returns the number of handshakes refused because the queue was full.
+     */
+
+    public synchronized int getRejectedCount()
+    {
+	return rejected;
+    }
+
+    /**
+     * Returns the number of handshakes that have run to completion,
+     * whether they succeeded or not.
+     */
+
+    public synchronized int getFinishedCount()
+    {
+	return completed + failed;
+    }
+
+    /**
+     * Returns the average time, in millisecs, taken by a handshake.
+     */
+
+    public synchronized long getAverageTime()
+    {
+	int n = completed + failed;
+	return (n == 0 ? 0 : totalTime / n);
+    }
+
+    /**
+     * Returns a one-line summary of the pool statistics suitable for
+     * logging.
+     */
+
+    public synchronized String getStatistics()
+    {
+	int n = completed + failed;
+
+	return "handshakes: threads=" + threads +
+	    " active=" + pool.getActiveCount() +
+	    " queued=" + pool.getQueue().size() + "/" + queueLimit +
+	    " maxqueued=" + maxQueued +
+	    " submitted=" + submitted +
+	    " completed=" + completed +
+	    " failed=" + failed +
+	    " rejected=" + rejected +
+	    " avgms=" + (n == 0 ? 0 : totalTime / n) +
+	    " maxms=" + maxTime;
+    }
+}
@@ -0,0 +1,165 @@
+// This program is free software and may be distributed under the terms
+// of the GNU Lesser General Public License, Version 2.1.
+// This program comes with ABSOLUTELY NO WARRANTY.
+
+package zebedee;
+
+import java.util.*;
+
+/**
+ * Enforces the overall deadline for tunnel protocol negotiations. A
+ * single timer thread serves every tunnel. When a deadline passes the
+ * tunnel socket is closed, which causes whatever read or write the
+ * negotiation is blocked in to fail.
+ * <p>
+ * Each tunnel records the phase its negotiation has reached (see
+ * {@link ZBDTunnel#handshakePhase}) and expiries are counted by phase so
+ * that it can be seen where handshakes stall.
+ */
+
+public class ZBDHandshakeTimer
+{
+    static Timer timer = null;
+    static int cancelled = 0;
+    static Hashtable expiries = new Hashtable();
+
+
+    /**
+     * Start the deadline for the given tunnel.
+     *
+     * @param tunnel The tunnel about to start negotiation.
+     * @param seconds The time allowed for the negotiation.
+     *
+     * @return The timer task, to be passed to {@link #cancel(TimerTask)}
+     * when negotiation is over, or <code>null</code> if there is no
+     * deadline.
+     */
+
+    static TimerTask start(final ZBDTunnel tunnel, int seconds)
+    {
+	if (seconds <= 0)
+	{
+	    tunnel.handshakeDeadline = 0;
+	    return null;
+	}
+
+	tunnel.handshakeDeadline = System.currentTimeMillis() + seconds * 1000L;
+
+	TimerTask task = new TimerTask() {
+	    public void run()
+	    {
+		expire(tunnel);
+	    }
+	};
+
+	synchronized (ZBDHandshakeTimer.class)
+	{
+	    if (timer == null)
+	    {
+		timer = new Timer("zbd-handshake-timer", true);
+	    }
+	    timer.schedule(task, seconds * 1000L);
+	}
+
+	return task;
+    }
+
+    /**
+     * Cancel a deadline once negotiation is over.
+     */
+
+    static void cancel(TimerTask task)
+    {
+	if (task == null)
+	{
+	    return;
+	}
+
+	task.cancel();
+
+	// Cancelled tasks stay in the timer queue until they would have
+	// run so clear them out from time to time.
+
+	synchronized (ZBDHandshakeTimer.class)
+	{
+	    if (++cancelled >= 1000)
+	    {
+		timer.purge();
+		cancelled = 0;
+	    }
+	}
+    }
+
+    static void expire(ZBDTunnel tunnel)
+    {
+	String phase;
+	int count;
+
+	// Negotiation may just have finished
+
+	synchronized (tunnel)
+	{
+	    phase = tunnel.handshakePhase;
+	    if (phase == null)
+	    {
+		return;
+	    }
+	    tunnel.handshakeExpired = true;
+	}
+
+	synchronized (expiries)
+	{
+	    int[] n = (int[])expiries.get(phase);
+	    if (n == null)
+	    {
+		n = new int[1];
+		expiries.put(phase, n);
+	    }
+	    count = ++n[0];
+	}
+
+	try
+	{
+	    tunnel.tunnelSocket.close();
+	}
+	catch (Exception e)
+	{
+	    // Ignore
+	}
+
+	// Nothing must be allowed to kill the timer thread as that is
+	// shared by all tunnels.
+
+	try
+	{
+	    tunnel.logger.log(1, "handshake deadline expired during " + phase +
+			      " phase (" + count + " so far in this phase)");
+	}
+	catch (Throwable e)
+	{
+	    // Ignore
+	}
+    }
+
+    /**
+     * Returns the number of deadline expiries so far, by phase. The
+     * keys are the phase names and the values <code>Integer</code>s.
+     */
+
+    public static Hashtable getExpiryCounts()
+    {
+	Hashtable counts = new Hashtable();
+
+	synchronized (expiries)
+	{
+	    Enumeration e = expiries.keys();
+	    while (e.hasMoreElements())
+	    {
+		Object phase = e.nextElement();
+		counts.put(phase, Integer.valueOf(((int[])expiries.get(phase))[0]));
+	    }
+	}
+
+	return counts;
+    }
+}
@@ -15,22 +15,23 @@ package zebedee;
 
 public class ZBDHash extends SHA1
 {
-    final int blk(int i) {
+    public ZBDHash() {
 
 // NDW
-// The following definition is correct for compliance with the SHA1 FIPS
-// standard ... however, it is not quite the same as that used by the C
-// version of Zebedee.
+// The standard message expansion is correct for compliance with the SHA1
+// FIPS standard ... however, it is not quite the same as that used by the
+// C version of Zebedee.
 //
-//        block[i&15] = rol(block[(i+13)&15]^block[(i+8)&15]^
-//                          block[(i+2)&15]^block[i&15], 1);
+//        block[i] = rol(block[i-3]^block[i-8]^block[i-14]^block[i-16], 1);
 //
 // This is the Zebedee-compatible version, note the absence of the rol()
 // call. This was apparently added by NIST before the FIPS was published
 // but after SHA had appeared in Applied Cryptography ...
+//
+// That earlier algorithm is what is now called SHA-0, which platform
+// MessageDigest implementations do not provide, so this never delegates
+// to one.
 
-        block[i&15] = (block[(i+13)&15]^block[(i+8)&15]^
-                          block[(i+2)&15]^block[i&15]);
-        return (block[i&15]);
+        super(false);
     }
 }
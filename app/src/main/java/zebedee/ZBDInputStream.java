@@ -10,13 +10,28 @@
 package zebedee;
 
 import java.io.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 
+/**
+ * An input stream view of an established tunnel. Each message is read
+ * into an internal buffer and handed out from there. The buffered data
+ * lies between the {@link #pos} and {@link #end} cursors so partial reads
+ * never need to shuffle the remainder down the buffer. Where the caller
+ * supplies room for a whole message, and nothing is buffered, the
+ * message is decoded straight into the caller's array.
+ */
+
 public class ZBDInputStream extends InputStream
 {
     ZBDTunnel tnl;
     byte[] buffer = new byte[ZBDTunnel.MAX_BUFFER_SIZE];
-    int buffered = 0;
+    int pos = 0;
+    int end = 0;
+
+    // A lock rather than a monitor, as it is held while the tunnel is
+    // read and a monitor would pin a virtual thread to its carrier
+    ReentrantLock lock = new ReentrantLock();
 
 
     public ZBDInputStream(ZBDTunnel tunnel)
@@ -25,93 +40,137 @@ public class ZBDInputStream extends InputStream
 	tnl = tunnel;
     }
 
-    synchronized public int read(byte[] b, int offset, int len) throws IOException
+    public int read(byte[] b, int offset, int len) throws IOException
     {
-	// Can we satisfy this read from the buffer?
-
-	if (buffered > 0)
+	lock.lock();
+	try
 	{
-	    int returned = (buffered > len ? len : buffered);
+	    // Can we satisfy this read from the buffer?
 
-	    System.arraycopy(buffer, 0, b, offset, returned);
-	    buffered -= returned;
-	    if (buffered > 0)
+	    if (pos < end)
 	    {
-		System.arraycopy(buffer, returned, buffer, 0, buffered);
+		int returned = (end - pos > len ? len : end - pos);
+
+		System.arraycopy(buffer, pos, b, offset, returned);
+		pos += returned;
+		return returned;
 	    }
-	    return returned;
-	}
 
-	// We need to get some more data ...
+	    if (len == 0)
+	    {
+		return 0;
+	    }
 
-	int num = 0;
-	try
-	{
-	    num = tnl.readMessage(buffer);
+	    // We need to get some more data ...
+
+	    boolean direct = (len >= ZBDTunnel.MAX_BUFFER_SIZE);
+	    int num = fill(direct ? b : buffer, direct ? offset : 0,
+			   direct ? len : buffer.length);
+
+	    if (num < 0 || direct)
+	    {
+		return num;
+	    }
+
+	    // If we read less than requested just return it immediately
+	    // otherwise we need to buffer up the extra data for next time.
+
+	    int returned = (num > len ? len : num);
+
+	    System.arraycopy(buffer, 0, b, offset, returned);
+	    pos = returned;
+	    end = num;
+	    return returned;
 	}
-	catch (ZBDTimeoutException et)
+	finally
 	{
-	    throw new InterruptedIOException(et.toString());
+	    lock.unlock();
 	}
-	catch (ZBDException ez)
+    }
+
+    public int read() throws IOException
+    {
+	lock.lock();
+	try
 	{
-	    throw new IOException(ez.toString());
-	}
+	    while (pos >= end)
+	    {
+		int num = fill(buffer, 0, buffer.length);
+		if (num < 0) return -1;
+		pos = 0;
+		end = num;
+	    }
 
-	if (num < 0)
+	    return ((int)buffer[pos++] & 0xff);
+	}
+	finally
 	{
-	    return num;
+	    lock.unlock();
 	}
+    }
 
-	// If we read less than requested just return it immediately
-	// otherwise we need to buffer up the extra data for next time.
-
-	if (num <= len)
+    public int available()
+    {
+	lock.lock();
+	try
 	{
-	    System.arraycopy(buffer, 0, b, offset, num);
-	    return num;
+	    return end - pos;
 	}
-	else
+	finally
 	{
-	    System.arraycopy(buffer, 0, b, offset, len);
-	    buffered = (num - len);
-	    System.arraycopy(buffer, len, buffer, 0, buffered);
-	    return len;
+	    lock.unlock();
 	}
     }
 
-    synchronized public int read() throws IOException
-    {
-	byte[] single = new byte[1];
-	if (read(single) < 0) return -1;
-	return ((int)single[0] & 0xff);
-    }
+    /**
+     * Read the next message into the given array, translating tunnel
+     * exceptions into I/O exceptions.
+     */
 
-    synchronized public int available()
+    int fill(byte[] b, int offset, int len) throws IOException
     {
-	return buffered;
+	try
+	{
+	    return tnl.readMessage(b, offset, len);
+	}
+	catch (ZBDTimeoutException et)
+	{
+	    throw new InterruptedIOException(et.toString());
+	}
+	catch (ZBDException ez)
+	{
+	    throw new IOException(ez.toString());
+	}
     }
 
-    synchronized public void close() throws IOException
+    public void close() throws IOException
     {
+	lock.lock();
 	try
-	{
-	    tnl.shutdownInput();
-	}
-	catch (NoSuchMethodError en)
 	{
 	    try
 	    {
-		tnl.close();
+		tnl.shutdownInput();
+	    }
+	    catch (NoSuchMethodError en)
+	    {
+		try
+		{
+		    tnl.close();
+		}
+		catch (Exception e)
+		{
+		    throw new IOException("ZBD error: " + e.getMessage());
+		}
 	    }
 	    catch (Exception e)
 	    {
 		throw new IOException("ZBD error: " + e.getMessage());
 	    }
 	}
-	catch (Exception e)
+	finally
 	{
-	    throw new IOException("ZBD error: " + e.getMessage());
+	    lock.unlock();
 	}
     }
 }
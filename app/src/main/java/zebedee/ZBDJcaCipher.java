@@ -0,0 +1,193 @@
+// This program is free software and may be distributed under the terms
+// of the GNU Lesser General Public License, Version 2.1.
+// This program comes with ABSOLUTELY NO WARRANTY.
+
+package zebedee;
+
+import java.security.GeneralSecurityException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Blowfish CFB64 using <code>javax.crypto</code>. On platforms whose
+ * provider has an optimised or hardware-assisted Blowfish this can be
+ * faster than {@link ZBDBlowfish}, and the output is identical so either
+ * end of a tunnel may use either.
+ * <p>
+ * The difficulty is that a JCA CFB64 cipher holds back the last partial
+ * block of each update until the block is complete, whereas a tunnel
+ * needs every byte of a message as soon as it is sent. So the whole
+ * blocks are left to the JCA cipher and the bytes of a partial block
+ * are produced here from the key stream block, which is got from an ECB
+ * cipher under the same key. The partial bytes are still fed to the CFB
+ * cipher to keep it in step, and whatever it produces for them is thrown
+ * away.
+ * <p>
+ * Note that the SunJCE provider only takes Blowfish keys of between 32
+ * and 448 bits.
+ */
+
+class ZBDJcaCipher extends ZBDCipher
+{
+    Direction in;
+    Direction out;
+
+
+    ZBDJcaCipher(byte[] key, byte[] iv) throws ZBDException
+    {
+	SecretKeySpec spec = new SecretKeySpec(key, "Blowfish");
+
+	try
+	{
+	    in = new Direction(spec, iv, false);
+	    out = new Direction(spec, iv, true);
+	}
+	catch (GeneralSecurityException e)
+	{
+	    throw new ZBDException("javax.crypto Blowfish is not available for a " +
+				   (key.length * 8) + " bit key: " + e);
+	}
+    }
+
+    public int encrypt(int flags, byte[] src, int srcOffset, byte[] dst, int dstOffset, int length)
+	throws ZBDException
+    {
+	out.update(src, srcOffset, dst, dstOffset, length);
+	return length;
+    }
+
+    public int decrypt(int flags, byte[] src, int srcOffset, byte[] dst, int dstOffset, int length)
+	throws ZBDException
+    {
+	in.update(src, srcOffset, dst, dstOffset, length);
+	return length;
+    }
+
+    public String getProvider()
+    {
+	return PROVIDER_JCA;
+    }
+
+    /**
+     * The state of one direction.
+     */
+
+    static final class Direction
+    {
+	static final int BLOCK = 8;
+
+	boolean encrypt;
+	Cipher cfb;
+	Cipher ecb;
+
+	// The last whole block of cipher text, from which the key stream
+	// for the next partial block is derived
+	byte[] feedback = new byte[BLOCK];
+	// The key stream for the current partial block
+	byte[] keyStream = new byte[BLOCK];
+	// Cipher text of the current partial block so far
+	byte[] partial = new byte[BLOCK];
+	// Number of bytes of the current partial block done
+	int num = 0;
+	// Somewhere for the CFB output to go that is not wanted
+	byte[] scratch = new byte[2 * BLOCK];
+
+	Direction(SecretKeySpec key, byte[] iv, boolean encrypt)
+	    throws GeneralSecurityException
+	{
+	    this.encrypt = encrypt;
+
+	    cfb = Cipher.getInstance("Blowfish/CFB64/NoPadding");
+	    cfb.init(encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE,
+		     key, new IvParameterSpec(iv, 0, BLOCK));
+
+	    // CFB only ever runs the block cipher forwards
+
+	    ecb = Cipher.getInstance("Blowfish/ECB/NoPadding");
+	    ecb.init(Cipher.ENCRYPT_MODE, key);
+
+	    System.arraycopy(iv, 0, feedback, 0, BLOCK);
+	}
+
+	void update(byte[] src, int srcOffset, byte[] dst, int dstOffset, int length)
+	    throws ZBDException
+	{
+	    try
+	    {
+		// Finish off a partial block left from last time
+
+		if (num != 0 && length > 0)
+		{
+		    int n = Math.min(length, BLOCK - num);
+
+		    cfb.update(src, srcOffset, n, scratch, 0);
+		    partialBytes(src, srcOffset, dst, dstOffset, n);
+		    srcOffset += n;
+		    dstOffset += n;
+		    length -= n;
+		}
+
+		// Whole blocks. When decrypting the feedback must be taken
+		// before the cipher text is overwritten.
+
+		int whole = length & ~(BLOCK - 1);
+
+		if (whole > 0)
+		{
+		    if (!encrypt)
+		    {
+			System.arraycopy(src, srcOffset + whole - BLOCK, feedback, 0, BLOCK);
+		    }
+		    cfb.update(src, srcOffset, whole, dst, dstOffset);
+		    if (encrypt)
+		    {
+			System.arraycopy(dst, dstOffset + whole - BLOCK, feedback, 0, BLOCK);
+		    }
+		    srcOffset += whole;
+		    dstOffset += whole;
+		    length -= whole;
+		}
+
+		// Start a new partial block with anything left
+
+		if (length > 0)
+		{
+		    ecb.doFinal(feedback, 0, BLOCK, keyStream, 0);
+		    cfb.update(src, srcOffset, length, scratch, 0);
+		    partialBytes(src, srcOffset, dst, dstOffset, length);
+		}
+	    }
+	    catch (GeneralSecurityException e)
+	    {
+		throw new ZBDException("javax.crypto Blowfish failed: " + e);
+	    }
+	}
+
+	/**
+	 * XOR bytes of a partial block with the key stream, recording the
+	 * cipher text so that it becomes the feedback once the block is
+	 * complete.
+	 */
+
+	private void partialBytes(byte[] src, int srcOffset, byte[] dst, int dstOffset, int n)
+	{
+	    for (int i = 0; i < n; i++)
+	    {
+		byte c = src[srcOffset + i];
+		byte p = (byte)(c ^ keyStream[num]);
+
+		dst[dstOffset + i] = p;
+		partial[num++] = (encrypt ? p : c);
+	    }
+
+	    if (num == BLOCK)
+	    {
+		byte[] tmp = feedback;
+		feedback = partial;
+		partial = tmp;
+		num = 0;
+	    }
+	}
+    }
+}
@@ -0,0 +1,350 @@
+// This program is free software and may be distributed under the terms
+// of the GNU Lesser General Public License, Version 2.1.
+// This program comes with ABSOLUTELY NO WARRANTY.
+
+package zebedee;
+
+import java.util.*;
+
+/**
+ * A pool of precomputed Diffie-Hellman key pairs. Each pair is a private
+ * key (exponent) from a {@link ZBDKeySource} and the corresponding public
+ * value, which takes a modular exponentiation to compute. With a pool in
+ * place a handshake need only compute the shared secret, so a burst of
+ * handshakes -- every client reconnecting after a network outage, say --
+ * costs half as much while it lasts.
+ * <p>
+ * Pairs are kept separately for each generator and modulus, and the
+ * pool is filled by a single background thread of minimum priority so
+ * that it only uses otherwise idle time. Normally each pair is used for
+ * one handshake only. If a reuse lifetime is set then a pair is instead
+ * handed out again to every handshake for that many seconds after it was
+ * first used, which bounds the work done in a burst of any size at the
+ * cost of the connections in that period sharing a private key. This is
+ * the same trade off as fixing the private key with
+ * {@link ZBDTunnel#setPrivateKey(String)}, but limited in time.
+ */
+
+public class ZBDKeyPairPool implements Runnable
+{
+    /** Suggested number of pairs kept ready for each group. Set to 16. */
+    public static final int DFLT_SIZE = 16;
+
+    ZBDKeySource keySource;
+    int size;
+    int reuseLifetime;
+
+    // Pairs for each group, keyed by "generator:modulus"
+    Hashtable groups = new Hashtable();
+    Thread thread;
+    boolean running = true;
+    ZBDLogger logger = new ZBDNullLogger();
+
+    // Statistics
+    int hits = 0;
+    int misses = 0;
+    int reused = 0;
+    int generated = 0;
+    int failures = 0;
+
+
+    /**
+     * Create a new pool and start its background thread. Nothing is
+     * computed until a group is {@link #prime(String,String) primed} or
+     * first asked for.
+     *
+     * @param keySource The source of private keys.
+     * @param size The number of pairs kept ready for each group.
+     * @param reuseLifetime The time in seconds for which a pair may be
+     * reused after it is first handed out, or 0 to use each pair only
+     * once.
+     */
+
+    public ZBDKeyPairPool(ZBDKeySource keySource, int size, int reuseLifetime)
+    {
+	this.keySource = keySource;
+	this.size = size;
+	this.reuseLifetime = reuseLifetime;
+
+	thread = new Thread(this, "zbd-keypairs");
+	thread.setDaemon(true);
+	thread.setPriority(Thread.MIN_PRIORITY);
+	thread.start();
+    }
+
+    /**
+     * Set the logger to which failures of the background thread are
+     * reported.
+     */
+
+    public void setLogger(ZBDLogger logger)
+    {
+	this.logger = logger;
+    }
+
+    /**
+     * Start filling the pool for the given group.
+     *
+     * @param generator The generator as a hexadecimal string or
+     * <code>""</code> for the default value.
+     * @param modulus The modulus as a hexadecimal string or
+     * <code>""</code> for the default value.
+     */
+
+    public synchronized void prime(String generator, String modulus)
+    {
+	getGroup(generator, modulus);
+	notifyAll();
+    }
+
+    /**
+     * Take a key pair for the given group, if one is ready.
+     *
+     * @param generator The generator, as for {@link #prime(String,String)}.
+     * @param modulus The modulus, as for {@link #prime(String,String)}.
+     *
+     * @return An array holding the private key and public value as
+     * hexadecimal strings, or <code>null</code> if there is none ready,
+     * in which case the caller must compute its own.
+     */
+
+    public synchronized String[] take(String generator, String modulus)
+    {
+	Group group = getGroup(generator, modulus);
+	long now = System.currentTimeMillis();
+
+	if (group.current != null && now < group.current.expiry)
+	{
+	    reused++;
+	    return group.current.pair;
+	}
+	group.current = null;
+
+	// Whatever happens the group needs topping up
+
+	notifyAll();
+
+	if (group.ready.isEmpty())
+	{
+	    misses++;
+	    return null;
+	}
+
+	KeyPair kp = (KeyPair)group.ready.removeFirst();
+	hits++;
+
+	if (reuseLifetime > 0)
+	{
+	    kp.expiry = now + reuseLifetime * 1000L;
+	    group.current = kp;
+	}
+	return kp.pair;
+    }
+
+    /**
+     * Hand back a pair that the caller computed itself after
+     * {@link #take(String,String)} found none ready. If pairs may be
+     * reused this one is then handed out for the reuse lifetime, so
+     * that a burst of handshakes that empties the pool does not leave
+     * every one to compute its own.
+     */
+
+    public synchronized void put(String generator, String modulus, String[] pair)
+    {
+	Group group = getGroup(generator, modulus);
+
+	if (reuseLifetime > 0 && group.current == null)
+	{
+	    KeyPair kp = new KeyPair(pair[0], pair[1]);
+	    kp.expiry = System.currentTimeMillis() + reuseLifetime * 1000L;
+	    group.current = kp;
+	}
+    }
+
+    synchronized Group getGroup(String generator, String modulus)
+    {
+	if (generator == null || generator.equals(""))
+	{
+	    generator = ZBDTunnel.DFLT_GENERATOR;
+	}
+	if (modulus == null || modulus.equals(""))
+	{
+	    modulus = ZBDTunnel.DFLT_MODULUS;
+	}
+
+	String key = generator + ":" + modulus;
+	Group group = (Group)groups.get(key);
+
+	if (group == null)
+	{
+	    group = new Group(generator, modulus);
+	    groups.put(key, group);
+	}
+	return group;
+    }
+
+    /**
+     * The background thread. It computes a pair for whichever group is
+     * furthest below strength, or waits until one is.
+     */
+
+    public void run()
+    {
+	while (true)
+	{
+	    Group group = null;
+
+	    synchronized (this)
+	    {
+		while (running && (group = neediest()) == null)
+		{
+		    try
+		    {
+			wait();
+		    }
+		    catch (InterruptedException e)
+		    {
+			return;
+		    }
+		}
+
+		if (!running)
+		{
+		    return;
+		}
+	    }
+
+	    String exponent = keySource.generateKeyString();
+
+	    if (exponent == null)
+	    {
+		// Most likely an external key generation command that has
+		// failed. Let the handshakes find out for themselves and
+		// try again later.
+
+		synchronized (this)
+		{
+		    failures++;
+		    try
+		    {
+			wait(1000);
+		    }
+		    catch (InterruptedException e)
+		    {
+			return;
+		    }
+		}
+		continue;
+	    }
+
+	    // A bad key, such as one that is not hexadecimal, must not
+	    // stop the thread or the pool would never be refilled
+
+	    String publicKey = null;
+	    try
+	    {
+		publicKey = ZBDTunnel.diffieHellman(group.generator,
+						    group.modulus,
+						    exponent);
+	    }
+	    catch (RuntimeException e)
+	    {
+		logger.log(1, "failed to compute a pooled key pair: " + e);
+		synchronized (this)
+		{
+		    failures++;
+		    try
+		    {
+			wait(1000);
+		    }
+		    catch (InterruptedException ei)
+		    {
+			return;
+		    }
+		}
+		continue;
+	    }
+
+	    synchronized (this)
+	    {
+		group.ready.addLast(new KeyPair(exponent, publicKey));
+		generated++;
+	    }
+	}
+    }
+
+    private Group neediest()
+    {
+	Group best = null;
+
+	for (Enumeration e = groups.elements(); e.hasMoreElements(); )
+	{
+	    Group group = (Group)e.nextElement();
+
+	    if (group.ready.size() < size &&
+		(best == null || group.ready.size() < best.ready.size()))
+	    {
+		best = group;
+	    }
+	}
+	return best;
+    }
+
+    /**
+     * Stop the background thread and discard all pairs.
+     */
+
+    public synchronized void shutdown()
+    {
+	running = false;
+	groups.clear();
+	notifyAll();
+    }
+
+    /**
+     * Returns a one-line summary of the pool statistics suitable for
+     * logging.
+     */
+
+    public synchronized String getStatistics()
+    {
+	int ready = 0;
+
+	for (Enumeration e = groups.elements(); e.hasMoreElements(); )
+	{
+	    ready += ((Group)e.nextElement()).ready.size();
+	}
+
+	return "DH key pairs: ready=" + ready +
+	    " hits=" + hits +
+	    " misses=" + misses +
+	    " reused=" + reused +
+	    " generated=" + generated +
+	    " failures=" + failures;
+    }
+
+    static class Group
+    {
+	String generator;
+	String modulus;
+	LinkedList ready = new LinkedList();
+	KeyPair current = null;
+
+	Group(String generator, String modulus)
+	{
+	    this.generator = generator;
+	    this.modulus = modulus;
+	}
+    }
+
+    static class KeyPair
+    {
+	String[] pair;
+	long expiry = 0;
+
+	KeyPair(String exponent, String publicKey)
+	{
+	    pair = new String[] { exponent, publicKey };
+	}
+    }
+}
@@ -13,10 +13,12 @@ import java.security.SecureRandom;
 
 public class ZBDKeySource
 {
-    SecureRandom rand = new SecureRandom();
+    SecureRandom rand;
 
     public ZBDKeySource()
     {
+	rand = new SecureRandom();
+
 	// Kick off a thread to initialise the SecureRandom generator
 
 	new Thread() {
@@ -24,10 +26,40 @@ public class ZBDKeySource
 	}.start();
     }
 
+    /**
+     * For subclasses that pass every request on to another source, and
+     * so have no need of a generator of their own.
+     */
+
+    ZBDKeySource(ZBDKeySource source)
+    {
+	rand = null;
+    }
+
     public synchronized String generateKeyString()
     {
 	byte[] key = new byte[20];
 	rand.nextBytes(key);
 	return ZBDTunnel.bytesToHex(key);
     }
+
+    /**
+     * Generate a number of keys at once, filling <code>keys</code> from
+     * the start. By default this just calls {@link #generateKeyString()}
+     * for each, stopping at the first failure, so a subclass need only
+     * override that.
+     *
+     * @return The number of keys generated, which may be fewer than were
+     * asked for, and is 0 on failure.
+     */
+
+    public int generateKeyStrings(String[] keys)
+    {
+	int n = 0;
+	while (n < keys.length && (keys[n] = generateKeyString()) != null)
+	{
+	    n++;
+	}
+	return n;
+    }
 }
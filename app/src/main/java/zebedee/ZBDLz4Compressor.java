@@ -0,0 +1,703 @@
+// This program is free software and may be distributed under the terms
+// of the GNU Lesser General Public License, Version 2.1.
+// This program comes with ABSOLUTELY NO WARRANTY.
+
+package zebedee;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Fast compression in the LZ4 block format, for links where zlib costs
+ * more CPU time than it saves in transmission. There is no entropy
+ * coding, just literals and back-references of up to 64K, so it
+ * compresses less well than zlib but several times faster and
+ * decompresses faster still.
+ * <p>
+ * At level 1 matches are found from a hash table of recent positions,
+ * skipping ahead faster the longer it goes without finding one, as the
+ * LZ4 library does by default. Higher levels keep a chain of earlier
+ * positions for each hash and search up to 2<sup>level - 1</sup> of
+ * them for the longest match, skipping ahead in the same way.
+ * <p>
+ * By default each message is compressed on its own. In streaming mode
+ * each side keeps the last 64K of the data it has seen, and matches may
+ * refer back into earlier messages, as with streaming zlib. No other
+ * state is carried over, so each message is a complete LZ4 block that
+ * would decompress with the preceding data as its dictionary.
+ * <p>
+ * This type is only understood by this version, and as it has the
+ * highest value the usual rule of accepting the lower of the two
+ * compression values settles on zlib (or bzip2) with peers that do not
+ * ask for it.
+ */
+
+class ZBDLz4Compressor extends ZBDCompressor
+{
+    static final int MIN_MATCH = 4;
+    static final int MAX_OFFSET = 65535;
+    static final int WINDOW = 65536;
+
+    // The last five bytes are always literals and no match starts in
+    // the last twelve, as the format requires. Shorter messages are all
+    // literals.
+    static final int LAST_LITERALS = 5;
+    static final int MF_LIMIT = 12;
+    static final int MIN_LENGTH = MF_LIMIT + 1;
+
+    // After this many misses in a row the fast search starts skipping
+    static final int SKIP_TRIGGER = 6;
+
+    static final int FAST_HASH_LOG = 12;
+    static final int CHAIN_HASH_LOG = 15;
+
+    // Positions are kept in the tables relative to the whole data seen
+    // so far, and the tables are cleared before they overflow
+    static final int MAX_POSITION = 1 << 30;
+
+    // Most by which a message can be larger than the original: a token
+    // and a length byte for every 255 literals, plus a little to spare.
+    // Sized for the largest tunnel message.
+    static final int STREAM_EXPANSION = ZBDTunnel.MAX_BUFFER_SIZE / 255 + 16;
+
+    int level;
+    boolean stream;
+
+    int[] table;
+    int[] chain = null;
+    int hashShift;
+    int depth;
+    int found;
+
+    // Position of the next byte to be compressed, counting from 1 so
+    // that 0 in the tables means nothing
+    int next = 1;
+
+    // Streaming only: the data compressed so far and that decompressed
+    // so far, each ending with at least the last 64K
+    byte[] cmpWindow = null;
+    int cmpEnd = 0;
+    byte[] uncmpWindow = null;
+    int uncmpEnd = 0;
+
+
+    ZBDLz4Compressor(int level, boolean stream)
+    {
+	this.level = level;
+	this.stream = stream;
+
+	if (level == 1)
+	{
+	    table = new int[1 << FAST_HASH_LOG];
+	    hashShift = 32 - FAST_HASH_LOG;
+	}
+	else
+	{
+	    table = new int[1 << CHAIN_HASH_LOG];
+	    hashShift = 32 - CHAIN_HASH_LOG;
+	    chain = new int[WINDOW];
+	    depth = 1 << (level - 1);
+	}
+
+	if (stream)
+	{
+	    cmpWindow = new byte[2 * WINDOW];
+	    uncmpWindow = new byte[2 * WINDOW];
+	}
+    }
+
+    public int compress(byte[] src, int srcOffset, int length,
+			byte[] dst, int dstOffset, int maxLength)
+	throws ZBDException
+    {
+	if (stream)
+	{
+	    int start = append(length);
+	    System.arraycopy(src, srcOffset, cmpWindow, start, length);
+	    return compressWindow(start, length, dst, dstOffset, maxLength);
+	}
+
+	return compressMessage(src, srcOffset, length, dst, dstOffset, maxLength);
+    }
+
+    public int compress(ByteBuffer src, byte[] dst, int dstOffset, int maxLength)
+	throws ZBDException
+    {
+	int length = src.remaining();
+
+	if (stream)
+	{
+	    int start = append(length);
+	    src.duplicate().get(cmpWindow, start, length);
+	    return compressWindow(start, length, dst, dstOffset, maxLength);
+	}
+	if (src.hasArray())
+	{
+	    return compressMessage(src.array(), src.arrayOffset() + src.position(), length,
+				   dst, dstOffset, maxLength);
+	}
+	return super.compress(src, dst, dstOffset, maxLength);
+    }
+
+    private int compressMessage(byte[] src, int srcOffset, int length,
+				byte[] dst, int dstOffset, int maxLength)
+    {
+	if (next > MAX_POSITION - length)
+	{
+	    clear();
+	}
+
+	// Only this message may be referred to. Anything older in the
+	// tables is below the start and ignored.
+
+	int base = next - srcOffset;
+	next += length;
+
+	return encode(src, base, srcOffset, srcOffset, srcOffset + length,
+		      dst, dstOffset, dstOffset + Math.min(maxLength, length - 1));
+    }
+
+    private int compressWindow(int start, int length,
+			       byte[] dst, int dstOffset, int maxLength)
+	throws ZBDException
+    {
+	int n = encode(cmpWindow, next - start, 0, start, start + length,
+		       dst, dstOffset, dstOffset + maxLength);
+	next += length;
+
+	if (n < 0)
+	{
+	    throw new ZBDException("internal error: compressed message larger than " +
+				   maxLength + " bytes");
+	}
+	return n;
+    }
+
+    /**
+     * Make room for the next message at the end of the compression
+     * window, sliding the last 64K down to the start if need be.
+     *
+     * @return Where the message goes.
+     */
+
+    private int append(int length)
+    {
+	if (cmpEnd + length > cmpWindow.length)
+	{
+	    int keep = Math.min(cmpEnd, WINDOW);
+	    cmpWindow = slide(cmpWindow, cmpEnd, keep, length);
+	    cmpEnd = keep;
+	}
+	if (next > MAX_POSITION - length)
+	{
+	    clear();
+	}
+
+	int start = cmpEnd;
+	cmpEnd += length;
+	return start;
+    }
+
+    /**
+     * Move the last <code>keep</code> bytes of a window to its start,
+     * making a larger one if there would not then be room for another
+     * <code>length</code> bytes.
+     */
+
+    private static byte[] slide(byte[] window, int end, int keep, int length)
+    {
+	byte[] to = window;
+
+	if (keep + length > window.length)
+	{
+	    to = new byte[keep + Math.max(length, WINDOW)];
+	}
+	System.arraycopy(window, end - keep, to, 0, keep);
+	return to;
+    }
+
+    /**
+     * Forget all earlier positions. The decompressor is not affected, as
+     * the compressor merely stops referring to older data.
+     */
+
+    private void clear()
+    {
+	Arrays.fill(table, 0);
+	next = cmpEnd + 1;
+    }
+
+    /**
+     * Compress <code>buf[pos]</code> to <code>buf[end - 1]</code>, which
+     * may refer back as far as <code>buf[low]</code>.
+     *
+     * @param base Added to an index in <code>buf</code> to give the
+     * position recorded in the tables.
+     * @param limit The end of the space available in <code>dst</code>.
+     *
+     * @return The compressed length, or -1 if it does not fit.
+     */
+
+    private int encode(byte[] buf, int base, int low, int pos, int end,
+		       byte[] dst, int dstOffset, int limit)
+    {
+	int op = dstOffset;
+	int anchor = pos;
+
+	if (end - pos >= MIN_LENGTH)
+	{
+	    int mfLimit = end - MF_LIMIT;
+	    int matchLimit = end - LAST_LITERALS;
+	    int lowest = base + low;
+	    int ip = pos;
+
+	    while (ip <= mfLimit)
+	    {
+		int match;
+		int len;
+		int searched = ip;
+
+		if (chain == null)
+		{
+		    // Fast search: one candidate per position, stepping
+		    // further each time after a run of misses
+
+		    int misses = 1 << SKIP_TRIGGER;
+
+		    match = -1;
+		    while (true)
+		    {
+			int h = hash(buf, ip);
+			int cand = table[h];
+			table[h] = ip + base;
+
+			if (cand >= lowest && ip + base - cand <= MAX_OFFSET &&
+			    read32(buf, cand - base) == read32(buf, ip))
+			{
+			    match = cand - base;
+			    break;
+			}
+
+			ip += (misses++ >> SKIP_TRIGGER);
+			if (ip > mfLimit)
+			{
+			    break;
+			}
+		    }
+		    if (match < 0)
+		    {
+			break;
+		    }
+
+		    len = MIN_MATCH + count(buf, ip + MIN_MATCH, match + MIN_MATCH, matchLimit);
+		}
+		else
+		{
+		    // Search the chains, but skip ahead in the same way
+
+		    int misses = 1 << SKIP_TRIGGER;
+
+		    len = 0;
+		    match = -1;
+		    while (ip <= mfLimit)
+		    {
+			searched = ip;
+			len = longest(buf, base, lowest, ip, matchLimit);
+			insert(buf, base, ip);
+			if (len != 0)
+			{
+			    match = found;
+			    break;
+			}
+			ip += (misses++ >> SKIP_TRIGGER);
+		    }
+		    if (match < 0)
+		    {
+			break;
+		    }
+		}
+
+		// Take in any matching bytes just before, which the search
+		// would have skipped over
+
+		while (ip > anchor && match > low && buf[ip - 1] == buf[match - 1])
+		{
+		    ip--;
+		    match--;
+		    len++;
+		}
+
+		op = sequence(buf, anchor, ip - anchor, ip - match, len, dst, op, limit);
+		if (op < 0)
+		{
+		    return -1;
+		}
+
+		// Record the positions matched over, all of those not yet
+		// in the chains and just one for the fast table
+
+		if (chain == null)
+		{
+		    if (ip + len - 2 <= mfLimit)
+		    {
+			table[hash(buf, ip + len - 2)] = ip + len - 2 + base;
+		    }
+		}
+		else
+		{
+		    int to = Math.min(ip + len, mfLimit + 1);
+		    for (int p = searched + 1; p < to; p++)
+		    {
+			insert(buf, base, p);
+		    }
+		}
+
+		ip += len;
+		anchor = ip;
+	    }
+	}
+
+	// The rest as literals
+
+	op = literals(buf, anchor, end - anchor, dst, op, limit);
+	return (op < 0 ? -1 : op - dstOffset);
+    }
+
+    /**
+     * Search the chain for the longest match at <code>buf[ip]</code>,
+     * leaving its index in <code>found</code>.
+     *
+     * @return The length of the match, or 0 if there is none.
+     */
+
+    private int longest(byte[] buf, int base, int lowest, int ip, int matchLimit)
+    {
+	int cand = table[hash(buf, ip)];
+	int best = 0;
+	int bestLen = MIN_MATCH - 1;
+	int first = read32(buf, ip);
+
+	for (int i = 0; i < depth && cand >= lowest && ip + base - cand <= MAX_OFFSET; i++)
+	{
+	    int m = cand - base;
+
+	    if (buf[m + bestLen] == buf[ip + bestLen] && read32(buf, m) == first)
+	    {
+		int len = MIN_MATCH + count(buf, ip + MIN_MATCH, m + MIN_MATCH, matchLimit);
+		if (len > bestLen)
+		{
+		    bestLen = len;
+		    best = m;
+		    if (ip + len >= matchLimit)
+		    {
+			break;
+		    }
+		}
+	    }
+
+	    int prev = chain[cand & (WINDOW - 1)];
+	    if (prev >= cand)
+	    {
+		break;
+	    }
+	    cand = prev;
+	}
+
+	found = best;
+	return (bestLen < MIN_MATCH ? 0 : bestLen);
+    }
+
+    private void insert(byte[] buf, int base, int p)
+    {
+	int h = hash(buf, p);
+
+	chain[(p + base) & (WINDOW - 1)] = table[h];
+	table[h] = p + base;
+    }
+
+    private int hash(byte[] buf, int p)
+    {
+	return (read32(buf, p) * -1640531535) >>> hashShift;
+    }
+
+    private static int read32(byte[] buf, int p)
+    {
+	return ((buf[p] & 0xff) | ((buf[p + 1] & 0xff) << 8) |
+		((buf[p + 2] & 0xff) << 16) | (buf[p + 3] << 24));
+    }
+
+    /**
+     * Returns the number of bytes that match at <code>a</code> and
+     * <code>b</code>, stopping at <code>limit</code>.
+     */
+
+    private static int count(byte[] buf, int a, int b, int limit)
+    {
+	int start = a;
+
+	while (a < limit && buf[a] == buf[b])
+	{
+	    a++;
+	    b++;
+	}
+	return a - start;
+    }
+
+    /**
+     * Write a sequence of literals followed by a match.
+     *
+     * @return The new output offset, or -1 if it does not fit.
+     */
+
+    private static int sequence(byte[] buf, int lit, int litLen, int offset, int len,
+				byte[] dst, int op, int limit)
+    {
+	int matchLen = len - MIN_MATCH;
+
+	if (op + 3 + litLen + litLen / 255 + 1 + matchLen / 255 + 1 > limit)
+	{
+	    return -1;
+	}
+
+	int token = op++;
+	op = putLength(dst, op, litLen);
+	System.arraycopy(buf, lit, dst, op, litLen);
+	op += litLen;
+
+	dst[op++] = (byte)offset;
+	dst[op++] = (byte)(offset >> 8);
+
+	int tokenBits = (litLen < 15 ? litLen : 15) << 4;
+	dst[token] = (byte)(tokenBits | (matchLen < 15 ? matchLen : 15));
+	return putLength(dst, op, matchLen);
+    }
+
+    /**
+     * Write the final literals.
+     *
+     * @return The new output offset, or -1 if it does not fit.
+     */
+
+    private static int literals(byte[] buf, int lit, int litLen, byte[] dst, int op, int limit)
+    {
+	if (op + 1 + litLen + litLen / 255 + 1 > limit)
+	{
+	    return -1;
+	}
+
+	dst[op++] = (byte)((litLen < 15 ? litLen : 15) << 4);
+	op = putLength(dst, op, litLen);
+	System.arraycopy(buf, lit, dst, op, litLen);
+	return op + litLen;
+    }
+
+    /**
+     * Write the extra bytes of a length of 15 or more.
+     */
+
+    private static int putLength(byte[] dst, int op, int len)
+    {
+	if (len >= 15)
+	{
+	    for (len -= 15; len >= 255; len -= 255)
+	    {
+		dst[op++] = (byte)255;
+	    }
+	    dst[op++] = (byte)len;
+	}
+	return op;
+    }
+
+    public int decompress(byte[] src, int srcOffset, int length,
+			  byte[] dst, int dstOffset, int maxLength)
+	throws ZBDException
+    {
+	if (stream)
+	{
+	    return decompressWindow(src, srcOffset, length, maxLength, dst, dstOffset, null);
+	}
+
+	return decode(src, srcOffset, srcOffset + length,
+		      dst, dstOffset, dstOffset, dstOffset + maxLength) - dstOffset;
+    }
+
+    public int decompress(byte[] src, int srcOffset, int length, ByteBuffer dst)
+	throws ZBDException
+    {
+	if (stream)
+	{
+	    return decompressWindow(src, srcOffset, length, dst.remaining(), null, 0, dst);
+	}
+	if (dst.hasArray())
+	{
+	    int start = dst.arrayOffset() + dst.position();
+	    int n = decode(src, srcOffset, srcOffset + length, dst.array(),
+			   start, start, start + dst.remaining()) - start;
+
+	    dst.position(dst.position() + n);
+	    return n;
+	}
+	return super.decompress(src, srcOffset, length, dst);
+    }
+
+    /**
+     * Decompress into the end of the window, then copy the result to
+     * either the array or the buffer.
+     */
+
+    private int decompressWindow(byte[] src, int srcOffset, int length, int maxLength,
+				 byte[] dst, int dstOffset, ByteBuffer dstBuf)
+	throws ZBDException
+    {
+	if (uncmpEnd + maxLength > uncmpWindow.length)
+	{
+	    int keep = Math.min(uncmpEnd, WINDOW);
+	    uncmpWindow = slide(uncmpWindow, uncmpEnd, keep, maxLength);
+	    uncmpEnd = keep;
+	}
+
+	int start = uncmpEnd;
+	uncmpEnd = decode(src, srcOffset, srcOffset + length,
+			  uncmpWindow, 0, start, start + maxLength);
+
+	int n = uncmpEnd - start;
+	if (dstBuf != null)
+	{
+	    dstBuf.put(uncmpWindow, start, n);
+	}
+	else
+	{
+	    System.arraycopy(uncmpWindow, start, dst, dstOffset, n);
+	}
+	return n;
+    }
+
+    /**
+     * Decompress <code>src[ip]</code> to <code>src[end - 1]</code> into
+     * <code>dst[op]</code> onwards, checking that nothing is read or
+     * written out of bounds.
+     *
+     * @param low The earliest output that may be referred back to.
+     * @param limit The end of the space available for output.
+     *
+     * @return The new output offset.
+     */
+
+    private static int decode(byte[] src, int ip, int end,
+			      byte[] dst, int low, int op, int limit)
+	throws ZBDException
+    {
+	if (ip >= end)
+	{
+	    throw new ZBDProtocolException("compressed message is empty");
+	}
+
+	while (true)
+	{
+	    // Every message ends with literals, not a match
+
+	    if (ip >= end)
+	    {
+		throw new ZBDProtocolException("compressed message is truncated");
+	    }
+	    int token = src[ip++] & 0xff;
+
+	    // Literals
+
+	    int len = token >>> 4;
+	    if (len == 15)
+	    {
+		int b;
+		do
+		{
+		    if (ip >= end)
+		    {
+			throw new ZBDProtocolException("compressed message is truncated");
+		    }
+		    b = src[ip++] & 0xff;
+		    len += b;
+		}
+		while (b == 255);
+	    }
+	    if (len > end - ip)
+	    {
+		throw new ZBDProtocolException("compressed message is truncated");
+	    }
+	    if (len > limit - op)
+	    {
+		throw new ZBDProtocolException("compressed message too large");
+	    }
+	    System.arraycopy(src, ip, dst, op, len);
+	    ip += len;
+	    op += len;
+
+	    // The last sequence has no match
+
+	    if (ip == end)
+	    {
+		return op;
+	    }
+
+	    // Match
+
+	    if (end - ip < 2)
+	    {
+		throw new ZBDProtocolException("compressed message is truncated");
+	    }
+	    int offset = (src[ip] & 0xff) | ((src[ip + 1] & 0xff) << 8);
+	    ip += 2;
+	    if (offset == 0 || offset > op - low)
+	    {
+		throw new ZBDProtocolException("invalid match offset in compressed message: " + offset);
+	    }
+
+	    len = token & 0xf;
+	    if (len == 15)
+	    {
+		int b;
+		do
+		{
+		    if (ip >= end)
+		    {
+			throw new ZBDProtocolException("compressed message is truncated");
+		    }
+		    b = src[ip++] & 0xff;
+		    len += b;
+		}
+		while (b == 255);
+	    }
+	    len += MIN_MATCH;
+	    if (len > limit - op)
+	    {
+		throw new ZBDProtocolException("compressed message too large");
+	    }
+
+	    // Overlapping copies repeat the last offset bytes, so must go
+	    // a byte at a time
+
+	    int from = op - offset;
+	    if (offset >= len)
+	    {
+		System.arraycopy(dst, from, dst, op, len);
+		op += len;
+	    }
+	    else
+	    {
+		for (int stop = op + len; op < stop; )
+		{
+		    dst[op++] = dst[from++];
+		}
+	    }
+	}
+    }
+
+    public boolean isStreaming()
+    {
+	return stream;
+    }
+
+    public int getExpansion()
+    {
+	return (stream ? STREAM_EXPANSION : 0);
+    }
+}
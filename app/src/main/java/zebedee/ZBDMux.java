@@ -0,0 +1,836 @@
+// This program is free software and may be distributed under the terms
+// of the GNU Lesser General Public License, Version 2.1.
+// This program comes with ABSOLUTELY NO WARRANTY.
+
+package zebedee;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Carries many TCP streams over a single tunnel connection. This is
+ * used once negotiation has agreed multiplexed mode (see
+ * {@link ZBDTunnel#setMultiplex(boolean)}) and saves the client from
+ * connecting and negotiating afresh for every local connection.
+ * <p>
+ * Every tunnel message then starts with a one byte type and a two byte
+ * stream id. The client opens a stream by naming its target, in the same
+ * form as the protocol header does, and the server replies once it has
+ * connected to it. Thereafter data flows in both directions until each
+ * side has signalled end of file, or until either side abandons the
+ * stream.
+ * <p>
+ * Each stream has its own flow control window. A sender may have no
+ * more than {@link #DFLT_WINDOW} bytes outstanding and the receiver
+ * returns credit as it writes the data to the local socket. So the
+ * reader of the tunnel never blocks on a slow local connection, and
+ * one stream can not hold up the others. Senders also take turns, in
+ * the order that they arrive, at writing each message, so a stream with
+ * a lot of data to send does not crowd out interactive ones.
+ */
+
+public class ZBDMux implements Runnable
+{
+    /** Per-stream flow control window, in bytes. Set to 65536. */
+    public static final int DFLT_WINDOW = 65536;
+
+    // Message types. Each message carries a type byte and a stream id.
+
+    static final int MUX_OPEN = 1;	// Port (2 bytes) and address (4 bytes)
+    static final int MUX_ACCEPT = 2;	// Target connected, window granted
+    static final int MUX_DATA = 3;	// Stream data
+    static final int MUX_CREDIT = 4;	// Window update (4 bytes)
+    static final int MUX_EOF = 5;	// Sender has no more data
+    static final int MUX_CLOSE = 6;	// Stream abandoned
+    static final int MUX_HDR_SIZE = 3;
+
+    ZBDTunnel tnl;
+    ZBDExecutor executor;
+    ZBDLogger logger;
+    boolean server;
+    int window = DFLT_WINDOW;
+
+    // Active streams, by id
+    Hashtable streams = new Hashtable();
+    int lastId = 0;
+    volatile boolean open = true;
+
+    // Writers queue in arrival order. The message buffer for control
+    // messages is only used while the lock is held.
+    ReentrantLock writeLock = new ReentrantLock(true);
+    byte[] control = new byte[MUX_HDR_SIZE + 6];
+
+    // Statistics
+    int opened = 0;
+    int failed = 0;
+
+
+    /**
+     * Create a multiplexer for a tunnel that has negotiated multiplexed
+     * mode.
+     *
+     * @param tunnel The connected tunnel.
+     * @param executor Used to run the tunnel reader and the tasks
+     * moving data for each stream.
+     */
+
+    public ZBDMux(ZBDTunnel tunnel, ZBDExecutor executor)
+    {
+	tnl = tunnel;
+	this.executor = executor;
+	logger = tunnel.getLogger();
+	server = (tunnel instanceof ZBDTunnelServer);
+    }
+
+    /**
+     * Start reading from the tunnel.
+     */
+
+    public void start()
+    {
+	executor.execute(this, "zbd-mux-reader");
+    }
+
+    /**
+     * Returns false once the tunnel has failed or been closed, after
+     * which no more streams can be opened.
+     */
+
+    public boolean isOpen()
+    {
+	return open;
+    }
+
+    /**
+     * Returns the number of streams currently open.
+     */
+
+    public int getStreamCount()
+    {
+	return streams.size();
+    }
+
+    /**
+     * Open a new stream, on the client side, carrying the data from the
+     * given local connection to the given target.
+     *
+     * @param local The local connection.
+     * @param host The target host. If this is the same as the server
+     * host then the server's default target is used, just as it would be
+     * for an ordinary tunnel.
+     * @param port The target port.
+     *
+     * @throws ZBDNetworkException Thrown if the tunnel is closed.
+     * @throws ZBDException Thrown if the target can not be resolved.
+     */
+
+    public void openStream(Socket local, String host, int port) throws ZBDException
+    {
+	if (server)
+	{
+	    throw new ZBDException("streams may only be opened by the client");
+	}
+
+	int addr = 0;
+	if (!host.equals(tnl.serverHost))
+	{
+	    try
+	    {
+		byte[] b = InetAddress.getByName(host).getAddress();
+		addr = ((b[0] & 0xff) << 24) | ((b[1] & 0xff) << 16) |
+		    ((b[2] & 0xff) << 8) | (b[3] & 0xff);
+	    }
+	    catch (Exception e)
+	    {
+		throw new ZBDException("can't resolve target " + host + ": " + e);
+	    }
+	}
+
+	Stream s;
+
+	synchronized (streams)
+	{
+	    if (!open || streams.size() > 0xffff)
+	    {
+		throw new ZBDNetworkException("multiplexed tunnel closed or full");
+	    }
+
+	    do
+	    {
+		lastId = (lastId + 1) & 0xffff;
+	    }
+	    while (streams.containsKey(Integer.valueOf(lastId)));
+
+	    s = new Stream(lastId);
+	    s.sock = local;
+	    streams.put(Integer.valueOf(lastId), s);
+	}
+
+	// No data may be sent until the server grants a window by
+	// accepting the stream, but data from the server may arrive
+	// straight away.
+
+	writeLock.lock();
+	try
+	{
+	    setHeader(control, MUX_OPEN, s.id);
+	    control[3] = (byte)(port >> 8);
+	    control[4] = (byte)port;
+	    control[5] = (byte)(addr >> 24);
+	    control[6] = (byte)(addr >> 16);
+	    control[7] = (byte)(addr >> 8);
+	    control[8] = (byte)addr;
+	    send(control, MUX_HDR_SIZE + 6);
+	}
+	catch (ZBDException e)
+	{
+	    s.reset(false);
+	    throw e;
+	}
+	finally
+	{
+	    writeLock.unlock();
+	}
+
+	logger.log(3, "opened stream " + s.id + " to " + host + ":" + port);
+	s.start();
+    }
+
+    /**
+     * Read messages from the tunnel and hand them to their streams. When
+     * the tunnel ends all streams are closed.
+     */
+
+    public void run()
+    {
+	byte[] msg = new byte[ZBDTunnel.MAX_BUFFER_SIZE];
+
+	try
+	{
+	    int num;
+	    while ((num = tnl.readMessage(msg)) >= 0)
+	    {
+		if (num < MUX_HDR_SIZE)
+		{
+		    throw new ZBDProtocolException("multiplexed message too short (" +
+						   num + " bytes)");
+		}
+		dispatch(msg, num);
+	    }
+	    logger.log(2, "multiplexed tunnel closed by peer");
+	}
+	catch (ZBDException e)
+	{
+	    if (open)
+	    {
+		logger.error("multiplexed tunnel failed: " + e);
+	    }
+	}
+	finally
+	{
+	    close();
+	}
+    }
+
+    void dispatch(byte[] msg, int num) throws ZBDException
+    {
+	int type = msg[0] & 0xff;
+	int id = ((msg[1] & 0xff) << 8) | (msg[2] & 0xff);
+	Stream s = (Stream)streams.get(Integer.valueOf(id));
+
+	if (type == MUX_OPEN)
+	{
+	    if (!server || num != MUX_HDR_SIZE + 6)
+	    {
+		throw new ZBDProtocolException("invalid stream open request for stream " + id);
+	    }
+
+	    // Ids wrap, and our end of a stream can outlive the client's,
+	    // say while still writing to a slow target. Refuse just the
+	    // new stream rather than give up on the whole tunnel.
+
+	    if (s != null)
+	    {
+		logger.error("stream " + id + ": id still in use, refusing new stream");
+		synchronized (this)
+		{
+		    failed++;
+		}
+		sendControl(MUX_CLOSE, id, 0, 0);
+		return;
+	    }
+	    int port = ((msg[3] & 0xff) << 8) | (msg[4] & 0xff);
+	    int addr = ((msg[5] & 0xff) << 24) | ((msg[6] & 0xff) << 16) |
+		((msg[7] & 0xff) << 8) | (msg[8] & 0xff);
+	    accept(id, ZBDTunnelServer.addrToString(addr), port);
+	    return;
+	}
+
+	// Anything else for a stream we no longer know about was sent
+	// before the other side heard that it had gone.
+
+	if (s == null)
+	{
+	    return;
+	}
+
+	switch (type)
+	{
+	case MUX_ACCEPT:
+	    s.grant(window);
+	    break;
+
+	case MUX_DATA:
+	    s.deliver(msg, MUX_HDR_SIZE, num - MUX_HDR_SIZE);
+	    break;
+
+	case MUX_CREDIT:
+	    if (num != MUX_HDR_SIZE + 4)
+	    {
+		throw new ZBDProtocolException("invalid credit message for stream " + id);
+	    }
+	    s.grant(((msg[3] & 0xff) << 24) | ((msg[4] & 0xff) << 16) |
+		    ((msg[5] & 0xff) << 8) | (msg[6] & 0xff));
+	    break;
+
+	case MUX_EOF:
+	    s.endOfInput();
+	    break;
+
+	case MUX_CLOSE:
+	    logger.log(3, "stream " + id + " closed by peer");
+	    s.reset(false);
+	    break;
+
+	default:
+	    throw new ZBDProtocolException("unknown multiplexed message type " + type);
+	}
+    }
+
+    /**
+     * Handle a request, on the server side, to open a stream. The target
+     * connection is made on a separate task so that the tunnel reader
+     * is not held up.
+     */
+
+    void accept(int id, final String host, final int port)
+    {
+	final Stream s = new Stream(id);
+
+	synchronized (streams)
+	{
+	    streams.put(Integer.valueOf(id), s);
+	}
+
+	executor.execute(new Runnable() {
+	    public void run()
+	    {
+		Socket sock = null;
+		try
+		{
+		    sock = ((ZBDTunnelServer)tnl).openStreamTarget(host, port);
+		}
+		catch (ZBDException e)
+		{
+		    logger.error("stream " + s.id + ": " + e.getMessage());
+		    synchronized (ZBDMux.this)
+		    {
+			failed++;
+		    }
+		    s.reset(true);
+		    return;
+		}
+
+		s.lock.lock();
+		try
+		{
+		    if (s.closed)
+		    {
+			try { sock.close(); } catch (IOException eio) {}
+			return;
+		    }
+		    s.sock = sock;
+		}
+		finally
+		{
+		    s.lock.unlock();
+		}
+
+		try
+		{
+		    sendControl(MUX_ACCEPT, s.id, 0, 0);
+		}
+		catch (ZBDException e)
+		{
+		    s.reset(false);
+		    return;
+		}
+
+		logger.log(3, "stream " + s.id + " connected to " + host + ":" + port);
+		s.grant(window);
+		s.start();
+	    }
+	}, "zbd-mux-connect");
+    }
+
+    /**
+     * Write a message to the tunnel. This must be called with the write
+     * lock held. The message is only flushed once no other writer is
+     * waiting, so that messages from several streams go out together.
+     */
+
+    void send(byte[] buf, int len) throws ZBDException
+    {
+	tnl.queueMessage(buf, 0, len);
+	if (!writeLock.hasQueuedThreads())
+	{
+	    tnl.flushMessages();
+	}
+    }
+
+    /**
+     * Send a control message with an optional integer argument.
+     *
+     * @param size The size of the argument, either 0 or 4 bytes.
+     */
+
+    void sendControl(int type, int id, int value, int size) throws ZBDException
+    {
+	writeLock.lock();
+	try
+	{
+	    setHeader(control, type, id);
+	    if (size == 4)
+	    {
+		control[3] = (byte)(value >> 24);
+		control[4] = (byte)(value >> 16);
+		control[5] = (byte)(value >> 8);
+		control[6] = (byte)value;
+	    }
+	    send(control, MUX_HDR_SIZE + size);
+	}
+	finally
+	{
+	    writeLock.unlock();
+	}
+    }
+
+    static void setHeader(byte[] buf, int type, int id)
+    {
+	buf[0] = (byte)type;
+	buf[1] = (byte)(id >> 8);
+	buf[2] = (byte)id;
+    }
+
+    void remove(Stream s)
+    {
+	synchronized (streams)
+	{
+	    streams.remove(Integer.valueOf(s.id));
+	}
+    }
+
+    /**
+     * Close the tunnel and every stream running over it.
+     */
+
+    public void close()
+    {
+	Vector all;
+
+	synchronized (streams)
+	{
+	    if (!open)
+	    {
+		return;
+	    }
+	    open = false;
+	    all = new Vector(streams.values());
+	}
+
+	for (int i = 0; i < all.size(); i++)
+	{
+	    ((Stream)all.elementAt(i)).reset(false);
+	}
+
+	try
+	{
+	    tnl.close();
+	}
+	catch (ZBDException e)
+	{
+	    // Ignore
+	}
+
+	logger.log(2, "multiplexed tunnel closed: " + getStatistics());
+    }
+
+    /**
+     * Returns a one-line summary of the multiplexer statistics suitable
+     * for logging.
+     */
+
+    public synchronized String getStatistics()
+    {
+	return "streams: open=" + streams.size() +
+	    " opened=" + opened +
+	    " failed=" + failed;
+    }
+
+    /**
+     * One logical connection. The uplink task reads from the local
+     * socket and sends data within the window granted by the peer. The
+     * downlink task writes data received from the peer to the local
+     * socket and returns credit for it.
+     */
+
+    class Stream
+    {
+	int id;
+	Socket sock = null;
+
+	// Flow control and state, guarded by lock. The tasks wait on a
+	// condition rather than a monitor, which would pin them to their
+	// carrier threads if they are virtual.
+	ReentrantLock lock = new ReentrantLock();
+	Condition changed = lock.newCondition();
+	int sendWindow = 0;
+	LinkedList received = new LinkedList();
+	int queued = 0;
+
+	boolean inputEnded = false;	// Peer has sent EOF
+	boolean uplinkDone = false;
+	boolean downlinkDone = false;
+	boolean closed = false;
+
+
+	Stream(int id)
+	{
+	    this.id = id;
+	}
+
+	void start()
+	{
+	    synchronized (ZBDMux.this)
+	    {
+		opened++;
+	    }
+
+	    executor.execute(new Runnable() {
+		public void run()
+		{
+		    uplink();
+		}
+	    }, "zbd-mux-uplink-" + id);
+
+	    executor.execute(new Runnable() {
+		public void run()
+		{
+		    downlink();
+		}
+	    }, "zbd-mux-downlink-" + id);
+	}
+
+	void grant(int credit)
+	{
+	    lock.lock();
+	    try
+	    {
+		sendWindow += credit;
+		changed.signalAll();
+	    }
+	    finally
+	    {
+		lock.unlock();
+	    }
+	}
+
+	/**
+	 * Queue data received from the peer. A peer that sends more than
+	 * its window allows has the stream closed on it.
+	 */
+
+	void deliver(byte[] buf, int offset, int len)
+	{
+	    lock.lock();
+	    try
+	    {
+		if (closed || inputEnded)
+		{
+		    return;
+		}
+		if (queued + len <= window)
+		{
+		    byte[] data = new byte[len];
+		    System.arraycopy(buf, offset, data, 0, len);
+		    received.addLast(data);
+		    queued += len;
+		    changed.signalAll();
+		    return;
+		}
+	    }
+	    finally
+	    {
+		lock.unlock();
+	    }
+
+	    logger.error("stream " + id + ": peer exceeded flow control window");
+	    reset(true);
+	}
+
+	void endOfInput()
+	{
+	    lock.lock();
+	    try
+	    {
+		inputEnded = true;
+		changed.signalAll();
+	    }
+	    finally
+	    {
+		lock.unlock();
+	    }
+	}
+
+	void uplink()
+	{
+	    byte[] buf = new byte[tnl.getBufferSize()];
+	    int max = buf.length - MUX_HDR_SIZE;
+	    InputStream in;
+
+	    try
+	    {
+		in = sock.getInputStream();
+
+		while (true)
+		{
+		    int allowed;
+
+		    lock.lock();
+		    try
+		    {
+			while (sendWindow == 0 && !closed)
+			{
+			    changed.await();
+			}
+			if (closed)
+			{
+			    return;
+			}
+			allowed = (sendWindow < max ? sendWindow : max);
+		    }
+		    finally
+		    {
+			lock.unlock();
+		    }
+
+		    int num = in.read(buf, MUX_HDR_SIZE, allowed);
+		    if (num < 0)
+		    {
+			break;
+		    }
+
+		    lock.lock();
+		    try
+		    {
+			sendWindow -= num;
+		    }
+		    finally
+		    {
+			lock.unlock();
+		    }
+
+		    writeLock.lock();
+		    try
+		    {
+			setHeader(buf, MUX_DATA, id);
+			send(buf, num + MUX_HDR_SIZE);
+		    }
+		    finally
+		    {
+			writeLock.unlock();
+		    }
+		}
+
+		sendControl(MUX_EOF, id, 0, 0);
+	    }
+	    catch (Exception e)
+	    {
+		if (!closed)
+		{
+		    logger.log(2, "stream " + id + " failed reading local socket: " + e);
+		    reset(true);
+		}
+		return;
+	    }
+
+	    try
+	    {
+		sock.shutdownInput();
+	    }
+	    catch (IOException e)
+	    {
+		// Ignore
+	    }
+	    finished(true);
+	}
+
+	void downlink()
+	{
+	    OutputStream out;
+	    int credit = 0;
+
+	    try
+	    {
+		out = sock.getOutputStream();
+
+		while (true)
+		{
+		    byte[] data;
+		    boolean idle;
+
+		    lock.lock();
+		    try
+		    {
+			while (received.isEmpty() && !inputEnded && !closed)
+			{
+			    changed.await();
+			}
+			if (closed)
+			{
+			    return;
+			}
+			if (received.isEmpty())
+			{
+			    break;
+			}
+			data = (byte[])received.removeFirst();
+		    }
+		    finally
+		    {
+			lock.unlock();
+		    }
+
+		    out.write(data);
+
+		    // Return credit in batches while more data is waiting,
+		    // but straight away once we have caught up.
+
+		    lock.lock();
+		    try
+		    {
+			queued -= data.length;
+			idle = received.isEmpty();
+		    }
+		    finally
+		    {
+			lock.unlock();
+		    }
+
+		    credit += data.length;
+		    if (idle || credit >= window / 4)
+		    {
+			sendControl(MUX_CREDIT, id, credit, 4);
+			credit = 0;
+		    }
+		}
+
+		sock.shutdownOutput();
+	    }
+	    catch (Exception e)
+	    {
+		if (!closed)
+		{
+		    logger.log(2, "stream " + id + " failed writing local socket: " + e);
+		    reset(true);
+		}
+		return;
+	    }
+
+	    finished(false);
+	}
+
+	/**
+	 * Record that one direction has ended cleanly. Once both have
+	 * the stream is closed.
+	 */
+
+	void finished(boolean uplink)
+	{
+	    lock.lock();
+	    try
+	    {
+		if (uplink)
+		{
+		    uplinkDone = true;
+		}
+		else
+		{
+		    downlinkDone = true;
+		}
+
+		if (!uplinkDone || !downlinkDone || closed)
+		{
+		    return;
+		}
+		closed = true;
+	    }
+	    finally
+	    {
+		lock.unlock();
+	    }
+
+	    remove(this);
+	    try { sock.close(); } catch (IOException e) {}
+	    logger.log(3, "stream " + id + " finished");
+	}
+
+	/**
+	 * Abandon the stream, telling the peer if <code>notify</code> is
+	 * true.
+	 */
+
+	void reset(boolean notify)
+	{
+	    Socket s;
+
+	    lock.lock();
+	    try
+	    {
+		if (closed)
+		{
+		    return;
+		}
+		closed = true;
+		s = sock;
+		changed.signalAll();
+	    }
+	    finally
+	    {
+		lock.unlock();
+	    }
+
+	    remove(this);
+
+	    if (s != null)
+	    {
+		try { s.close(); } catch (IOException e) {}
+	    }
+
+	    if (notify && open)
+	    {
+		try
+		{
+		    sendControl(MUX_CLOSE, id, 0, 0);
+		}
+		catch (ZBDException e)
+		{
+		    // The tunnel reader will notice
+		}
+	    }
+	}
+    }
+}
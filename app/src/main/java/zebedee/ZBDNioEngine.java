@@ -0,0 +1,542 @@
+// This program is free software and may be distributed under the terms
+// of the GNU Lesser General Public License, Version 2.1.
+// This program comes with ABSOLUTELY NO WARRANTY.
+
+package zebedee;
+
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * An event-driven alternative to running a {@link ZBDTcpTunnelReader} and
+ * {@link ZBDTcpTunnelWriter} thread pair for every established TCP-mode
+ * tunnel. A small, fixed set of worker threads, each with its own
+ * {@link Selector}, services all of the tunnels attached to the engine.
+ * Tunnels are assigned to the workers in turn.
+ * <p>
+ * The protocol negotiation itself is still performed using blocking I/O.
+ * Once a tunnel has been connected it, and the local socket with which
+ * it is paired, are switched to non-blocking mode and handed to the
+ * engine using {@link #attach(ZBDTunnel,Socket)}. From then on messages
+ * are assembled, decrypted and uncompressed (and in the other direction
+ * compressed, encrypted and framed) by the worker threads using
+ * {@link ZBDTunnel#decodeMessage(int,byte[],int,byte[])} and
+ * {@link ZBDTunnel#encodeMessage(byte[],int,int,byte[],int)}.
+ * <p>
+ * Both sockets must have been created from a {@link SocketChannel}. See
+ * {@link ZBDTunnel#setUseChannels(boolean)}.
+ */
+
+public class ZBDNioEngine
+{
+    /** Interval, in millisecs, at which idle tunnels are looked for */
+    static final long SWEEP_INTERVAL = 1000;
+
+    Worker[] workers;
+    int nextWorker = 0;
+    ZBDLogger logger;
+
+
+    /**
+     * Create a new engine and start its worker threads.
+     *
+     * @param threads The number of worker threads. If this is zero or
+     * less one worker per available processor is started.
+     * @param logger The logger for engine-wide messages.
+     *
+     * @throws ZBDException Thrown if a selector can not be opened.
+     */
+
+    public ZBDNioEngine(int threads, ZBDLogger logger) throws ZBDException
+    {
+	if (threads <= 0)
+	{
+	    threads = Runtime.getRuntime().availableProcessors();
+	}
+
+	this.logger = logger;
+	workers = new Worker[threads];
+
+	for (int i = 0; i < threads; i++)
+	{
+	    try
+	    {
+		workers[i] = new Worker(i);
+	    }
+	    catch (IOException eio)
+	    {
+		throw new ZBDException("can't open selector: " + eio);
+	    }
+	    workers[i].setDaemon(true);
+	    workers[i].start();
+	}
+
+	logger.log(2, "NIO engine started with " + threads + " worker threads");
+    }
+
+    /**
+     * Returns the number of tunnels currently being serviced.
+     */
+
+    public int getTunnelCount()
+    {
+	int count = 0;
+	for (int i = 0; i < workers.length; i++)
+	{
+	    count += workers[i].tunnelCount;
+	}
+	return count;
+    }
+
+    /**
+     * Hand a connected tunnel and the local socket with which it is to
+     * be paired over to the engine. Data read from the tunnel will be
+     * written to the local socket and vice versa until both directions
+     * reach EOF, at which point both are closed.
+     *
+     * @param tunnel A connected tunnel.
+     * @param local The local (source or target) socket.
+     *
+     * @throws ZBDException Thrown if either socket is not associated
+     * with a channel or can not be switched to non-blocking mode.
+     */
+
+    public void attach(ZBDTunnel tunnel, Socket local) throws ZBDException
+    {
+	SocketChannel netChan = tunnel.tunnelSocket.getChannel();
+	SocketChannel localChan = local.getChannel();
+
+	if (netChan == null || localChan == null)
+	{
+	    throw new ZBDException("sockets must be created from channels to use the NIO engine");
+	}
+
+	try
+	{
+	    netChan.configureBlocking(false);
+	    localChan.configureBlocking(false);
+	}
+	catch (IOException eio)
+	{
+	    throw new ZBDNetworkException("can't set non-blocking mode: " + eio);
+	}
+
+	Worker w;
+	synchronized (this)
+	{
+	    w = workers[nextWorker];
+	    nextWorker = (nextWorker + 1) % workers.length;
+	}
+
+	w.add(new Pipe(tunnel, netChan, localChan));
+    }
+
+    /**
+     * A worker thread. This runs a select loop over the channels of
+     * all of the tunnels that have been assigned to it.
+     */
+
+    class Worker extends Thread
+    {
+	Selector selector;
+	LinkedList pending = new LinkedList();
+	volatile int tunnelCount = 0;
+
+
+	Worker(int id) throws IOException
+	{
+	    super("zbd-nio-" + id);
+	    selector = Selector.open();
+	}
+
+	void add(Pipe p)
+	{
+	    synchronized (pending)
+	    {
+		pending.add(p);
+	    }
+	    selector.wakeup();
+	}
+
+	public void run()
+	{
+	    long lastSweep = System.currentTimeMillis();
+
+	    while (true)
+	    {
+		try
+		{
+		    selector.select(SWEEP_INTERVAL);
+		}
+		catch (IOException eio)
+		{
+		    logger.error("select failed: " + eio);
+		    continue;
+		}
+
+		registerPending();
+
+		Iterator iter = selector.selectedKeys().iterator();
+		while (iter.hasNext())
+		{
+		    SelectionKey key = (SelectionKey)iter.next();
+		    iter.remove();
+
+		    Pipe p = (Pipe)key.attachment();
+		    p.service(key);
+		}
+
+		long now = System.currentTimeMillis();
+		if (now - lastSweep >= SWEEP_INTERVAL)
+		{
+		    sweepIdle(now);
+		    lastSweep = now;
+		}
+	    }
+	}
+
+	void registerPending()
+	{
+	    synchronized (pending)
+	    {
+		while (pending.size() > 0)
+		{
+		    Pipe p = (Pipe)pending.removeFirst();
+		    try
+		    {
+			p.netKey = p.net.register(selector, SelectionKey.OP_READ, p);
+			p.localKey = p.local.register(selector, SelectionKey.OP_READ, p);
+			p.worker = this;
+			p.lastActive = System.currentTimeMillis();
+			tunnelCount++;
+
+			if (p.netIn.position() > 0)
+			{
+			    p.service(p.netKey);
+			}
+		    }
+		    catch (IOException eio)
+		    {
+			p.tunnel.logger.error("can't register tunnel with selector: " + eio);
+			p.close();
+		    }
+		}
+	    }
+	}
+
+	void sweepIdle(long now)
+	{
+	    Iterator iter = selector.keys().iterator();
+	    while (iter.hasNext())
+	    {
+		SelectionKey key = (SelectionKey)iter.next();
+		Pipe p = (Pipe)key.attachment();
+
+		if (key.isValid() && key == p.netKey && p.idleExpired(now))
+		{
+		    p.tunnel.logger.log(1, "timeout reached reading tunnel");
+		    p.close();
+		}
+	    }
+	}
+    }
+
+    /**
+     * The state for a single tunnel and its local socket. Only the
+     * worker that owns a pipe ever touches it once it has been registered.
+     */
+
+    static class Pipe
+    {
+	ZBDTunnel tunnel;
+	SocketChannel net;
+	SocketChannel local;
+	SelectionKey netKey;
+	SelectionKey localKey;
+	Worker worker;
+	long lastActive;
+
+	// Bytes received from the tunnel, not yet decoded. This is big
+	// enough to hold at least one maximum-sized message as well as
+	// any remnant of the one preceding it.
+
+	ByteBuffer netIn = ByteBuffer.allocate(2 * (ZBDTunnel.MAX_BUFFER_SIZE + 2));
+
+	// Decoded message data waiting to be written to the local socket
+
+	byte[] message = new byte[ZBDTunnel.MAX_BUFFER_SIZE];
+	ByteBuffer toLocal = ByteBuffer.wrap(message);
+
+	// Data read from the local socket
+
+	byte[] localData;
+	ByteBuffer localIn;
+
+	// Encoded messages waiting to be written to the tunnel
+
+	byte[] frame;
+	ByteBuffer toNet;
+
+	boolean netEOF = false;
+	boolean localEOF = false;
+	boolean netShut = false;
+	boolean localShut = false;
+	boolean closed = false;
+
+
+	Pipe(ZBDTunnel tunnel, SocketChannel net, SocketChannel local)
+	{
+	    this.tunnel = tunnel;
+	    this.net = net;
+	    this.local = local;
+
+	    localData = new byte[tunnel.getBufferSize()];
+	    localIn = ByteBuffer.wrap(localData);
+	    frame = new byte[ZBDTunnel.COALESCE_FRAMES *
+			     tunnel.maxEncodedSize(localData.length)];
+	    toNet = ByteBuffer.wrap(frame);
+
+	    toLocal.limit(0);
+	    toNet.limit(0);
+
+	    // Pick up anything that was read ahead of the negotiation
+
+	    if (tunnel.frameReader != null)
+	    {
+		tunnel.frameReader.drain(netIn);
+	    }
+	    tunnel.releaseStreamBuffers();
+	}
+
+	boolean idleExpired(long now)
+	{
+	    int timeout = tunnel.getIdleTimeout();
+	    return (timeout > 0 && (now - lastActive) > timeout * 1000L);
+	}
+
+	/**
+	 * Handle readiness of one of the two channels and then recompute
+	 * the interest sets of both.
+	 */
+
+	void service(SelectionKey key)
+	{
+	    if (closed || !key.isValid())
+	    {
+		return;
+	    }
+
+	    try
+	    {
+		if (key == netKey)
+		{
+		    if (key.isWritable())
+		    {
+			net.write(toNet);
+		    }
+		    if (key.isReadable())
+		    {
+			readNet();
+		    }
+		}
+		else
+		{
+		    if (key.isWritable())
+		    {
+			local.write(toLocal);
+		    }
+		    if (key.isReadable())
+		    {
+			readLocal();
+		    }
+		}
+
+		drainNet();
+		checkEOF();
+	    }
+	    catch (Exception e)
+	    {
+		if (!(e instanceof IOException) || tunnel.readable())
+		{
+		    tunnel.logger.error("failed servicing tunnel: " + e);
+		}
+		close();
+		return;
+	    }
+
+	    if (!closed)
+	    {
+		updateInterest();
+	    }
+	}
+
+	void readNet() throws IOException
+	{
+	    int num = net.read(netIn);
+	    if (num < 0)
+	    {
+		netEOF = true;
+	    }
+	    else if (num > 0)
+	    {
+		lastActive = System.currentTimeMillis();
+		tunnel.netReads++;
+	    }
+	}
+
+	void readLocal() throws IOException, ZBDException
+	{
+	    if (toNet.hasRemaining())
+	    {
+		return;
+	    }
+
+	    // Keep reading until the local socket has nothing more to give
+	    // or there is no room for another message, then send all of
+	    // the messages in one write.
+
+	    int end = 0;
+	    int num = 0;
+	    while (frame.length - end >= tunnel.maxEncodedSize(localData.length))
+	    {
+		localIn.clear();
+		num = local.read(localIn);
+		if (num <= 0)
+		{
+		    break;
+		}
+		end += tunnel.encodeMessage(localData, 0, num, frame, end);
+	    }
+
+	    if (num < 0)
+	    {
+		localEOF = true;
+	    }
+
+	    if (end > 0)
+	    {
+		toNet.clear();
+		toNet.limit(end);
+		net.write(toNet);
+		tunnel.netWrites++;
+		lastActive = System.currentTimeMillis();
+	    }
+	}
+
+	/**
+	 * Decode as many complete messages from the tunnel input buffer as
+	 * can be written to the local socket without blocking.
+	 */
+
+	void drainNet() throws IOException, ZBDException
+	{
+	    netIn.flip();
+
+	    while (!toLocal.hasRemaining() && netIn.remaining() >= 2)
+	    {
+		int pos = netIn.position();
+		int header = ((netIn.get(pos) & 0xff) << 8) | (netIn.get(pos + 1) & 0xff);
+		int size = header & ZBDTunnel.SIZE_MASK;
+
+		if (netIn.remaining() < size + 2)
+		{
+		    break;
+		}
+
+		int num = tunnel.decodeMessage(header, netIn.array(),
+					       netIn.arrayOffset() + pos + 2,
+					       message);
+		netIn.position(pos + size + 2);
+
+		toLocal.clear();
+		toLocal.limit(num);
+		local.write(toLocal);
+	    }
+
+	    netIn.compact();
+	}
+
+	/**
+	 * Propagate EOF from one side to the other once all data pending
+	 * in that direction has been written.
+	 */
+
+	void checkEOF() throws IOException, ZBDException
+	{
+	    if (netEOF && !localShut && !toLocal.hasRemaining())
+	    {
+		tunnel.logger.log(1, "EOF encountered on tunnel connection");
+		tunnel.readOK = false;
+		local.socket().shutdownOutput();
+		localShut = true;
+	    }
+
+	    if (localEOF && !netShut && !toNet.hasRemaining())
+	    {
+		tunnel.logger.log(1, "EOF encountered on source socket");
+		tunnel.shutdownOutput();
+		netShut = true;
+	    }
+
+	    if (localShut && netShut)
+	    {
+		close();
+	    }
+	}
+
+	void updateInterest()
+	{
+	    int netOps = 0;
+	    int localOps = 0;
+
+	    if (!netEOF && !toLocal.hasRemaining())
+	    {
+		netOps |= SelectionKey.OP_READ;
+	    }
+	    if (toNet.hasRemaining())
+	    {
+		netOps |= SelectionKey.OP_WRITE;
+	    }
+	    if (!localEOF && !toNet.hasRemaining())
+	    {
+		localOps |= SelectionKey.OP_READ;
+	    }
+	    if (toLocal.hasRemaining())
+	    {
+		localOps |= SelectionKey.OP_WRITE;
+	    }
+
+	    netKey.interestOps(netOps);
+	    localKey.interestOps(localOps);
+	}
+
+	void close()
+	{
+	    if (closed)
+	    {
+		return;
+	    }
+	    closed = true;
+
+	    if (netKey != null)
+	    {
+		netKey.cancel();
+	    }
+	    if (localKey != null)
+	    {
+		localKey.cancel();
+	    }
+	    if (worker != null)
+	    {
+		worker.tunnelCount--;
+	    }
+
+	    try { tunnel.close(); } catch (Exception e) {}
+	    try { local.close(); } catch (Exception e) {}
+	}
+    }
+}
@@ -10,11 +10,30 @@
 package zebedee;
 
 import java.io.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 
+/**
+ * An output stream view of an established tunnel. Each write is split
+ * into messages of at most the negotiated buffer size and these are sent
+ * together in a single write to the network.
+ * <p>
+ * If auto-flush is turned off messages are instead left in the tunnel's
+ * output buffer, which is only written out when it fills or when
+ * {@link #flush()} is called. This is used by {@link ZBDTcpTunnelWriter}
+ * to send everything read from the local socket in one go once there is
+ * no more immediately available.
+ */
+
 public class ZBDOutputStream extends OutputStream
 {
     ZBDTunnel tnl;
+    byte[] single = new byte[1];
+    boolean autoFlush = true;
+
+    // Held while writing to the tunnel, so not a monitor: see
+    // ZBDInputStream
+    ReentrantLock lock = new ReentrantLock();
 
 
     public ZBDOutputStream(ZBDTunnel tunnel)
@@ -23,27 +42,36 @@ public class ZBDOutputStream extends OutputStream
 	tnl = tunnel;
     }
 
-    synchronized public void write(byte[] b, int offset, int len) throws IOException
+    public void write(byte[] b, int offset, int len) throws IOException
     {
-	int left = len;
-	int myOffset = offset;
-	int max = tnl.getBufferSize();
+	lock.lock();
+	try
+	{
+	    int left = len;
+	    int myOffset = offset;
+	    int max = tnl.getBufferSize();
 
 
-	while (left > 0)
-	{
 	    try
 	    {
-		if (left < max)
+		while (left > 0)
 		{
-		    tnl.writeMessage(b, myOffset, left);
-		    left = 0;
+		    if (left < max)
+		    {
+			tnl.queueMessage(b, myOffset, left);
+			left = 0;
+		    }
+		    else
+		    {
+			tnl.queueMessage(b, myOffset, max);
+			left -= max;
+			myOffset += max;
+		    }
 		}
-		else
+
+		if (autoFlush)
 		{
-		    tnl.writeMessage(b, myOffset, max);
-		    left -= max;
-		    myOffset += max;
+		    tnl.flushMessages();
 		}
 	    }
 	    catch (ZBDException ez)
@@ -51,35 +79,101 @@ public class ZBDOutputStream extends OutputStream
 		throw new IOException("ZBD IO error: " + ez);
 	    }
 	}
+	finally
+	{
+	    lock.unlock();
+	}
+    }
+
+    public void write(int b) throws IOException
+    {
+	lock.lock();
+	try
+	{
+	    single[0] = (byte)b;
+	    write(single, 0, 1);
+	}
+	finally
+	{
+	    lock.unlock();
+	}
     }
 
-    synchronized public void write(int b) throws IOException
+    public void flush() throws IOException
     {
-	byte[] single = new byte[1];
-	single[0] = (byte)b;
-	write(single, 0, 1);
+	lock.lock();
+	try
+	{
+	    try
+	    {
+		tnl.flushMessages();
+	    }
+	    catch (ZBDException ez)
+	    {
+		throw new IOException("ZBD IO error: " + ez);
+	    }
+	}
+	finally
+	{
+	    lock.unlock();
+	}
     }
 
-    synchronized public void close() throws IOException
+    /**
+     * Set whether each write is sent immediately (the default) or left
+     * for a later {@link #flush()}.
+     */
+
+    public void setAutoFlush(boolean onOff)
     {
+	lock.lock();
 	try
 	{
-	    tnl.shutdownOutput();
+	    autoFlush = onOff;
+	}
+	finally
+	{
+	    lock.unlock();
 	}
-	catch (NoSuchMethodError en)
+    }
+
+    public void close() throws IOException
+    {
+	lock.lock();
+	try
 	{
 	    try
 	    {
-		tnl.close();
+		tnl.flushMessages();
+	    }
+	    catch (ZBDException ez)
+	    {
+		// Carry on and shut the connection down anyway
+	    }
+
+	    try
+	    {
+		tnl.shutdownOutput();
+	    }
+	    catch (NoSuchMethodError en)
+	    {
+		try
+		{
+		    tnl.close();
+		}
+		catch (Exception e)
+		{
+		    throw new IOException("ZBD error: " + e.getMessage());
+		}
 	    }
 	    catch (Exception e)
 	    {
 		throw new IOException("ZBD error: " + e.getMessage());
 	    }
 	}
-	catch (Exception e)
+	finally
 	{
-	    throw new IOException("ZBD error: " + e.getMessage());
+	    lock.unlock();
 	}
     }
 
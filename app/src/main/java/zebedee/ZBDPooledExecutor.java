@@ -0,0 +1,89 @@
+// This program is free software and may be distributed under the terms
+// of the GNU Lesser General Public License, Version 2.1.
+// This program comes with ABSOLUTELY NO WARRANTY.
+
+package zebedee;
+
+import java.util.concurrent.*;
+
+/**
+ * An implementation of {@link ZBDExecutor} that runs tasks on a pool of
+ * platform threads. Threads are created as they are needed and are kept
+ * for re-use once their task has finished, so that the cost of starting
+ * a thread is not paid for every tunnel. Threads that have been idle for
+ * longer than the keep-alive time are discarded.
+ * <p>
+ * Because every task blocks for the lifetime of its connection the pool
+ * has no upper bound: a task is never queued behind another.
+ */
+
+public class ZBDPooledExecutor extends ZBDExecutor
+{
+    /** Default time, in seconds, for which idle threads are kept */
+    public static final int DFLT_KEEP_ALIVE = 60;
+
+    ThreadPoolExecutor pool;
+
+
+    public ZBDPooledExecutor()
+    {
+	this(DFLT_KEEP_ALIVE);
+    }
+
+    /**
+     * Create a new pool.
+     *
+     * @param keepAlive The time in seconds for which idle threads are kept.
+     */
+
+    public ZBDPooledExecutor(int keepAlive)
+    {
+	pool = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+				      keepAlive, TimeUnit.SECONDS,
+				      new SynchronousQueue());
+    }
+
+    public void execute(final Runnable task, final String name)
+    {
+	pool.execute(new Runnable() {
+	    public void run()
+	    {
+		Thread self = Thread.currentThread();
+		String poolName = self.getName();
+
+		self.setName(name);
+		try
+		{
+		    task.run();
+		}
+		finally
+		{
+		    self.setName(poolName);
+		}
+	    }
+	});
+    }
+
+    public void shutdown()
+    {
+	pool.shutdown();
+    }
+
+    /**
+     * Returns the number of threads currently in the pool.
+     */
+
+    public int getPoolSize()
+    {
+	return pool.getPoolSize();
+    }
+
+    /**
+     * Returns the number of threads currently running tasks.
+     */
+
+    public int getActiveCount()
+    {
+	return pool.getActiveCount();
+    }
+}
@@ -0,0 +1,175 @@
+// This program is free software and may be distributed under the terms
+// of the GNU Lesser General Public License, Version 2.1.
+// This program comes with ABSOLUTELY NO WARRANTY.
+
+package zebedee;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A key source that hands out private keys generated in advance by
+ * another key source. A background thread of minimum priority keeps a
+ * bounded queue of keys topped up, so that handshakes neither wait on
+ * the lock around the underlying source's <code>SecureRandom</code> nor,
+ * when keys come from {@link ZBDExternalKeySource}, run the external
+ * command. The queue is lock-free and taking a key never blocks.
+ * <p>
+ * Keys are asked for in batches with
+ * {@link ZBDKeySource#generateKeyStrings(String[])}, so an external
+ * command that prints several keys is run once for all of them. When
+ * the queue falls to half full it is refilled. If it is ever empty the
+ * key is got from the underlying source directly, just as without the
+ * pool.
+ */
+
+public class ZBDPooledKeySource extends ZBDKeySource implements Runnable
+{
+    /** Suggested number of keys kept ready. Set to 32. */
+    public static final int DFLT_SIZE = 32;
+
+    ZBDKeySource source;
+    int size;
+
+    ConcurrentLinkedQueue keys = new ConcurrentLinkedQueue();
+    AtomicInteger ready = new AtomicInteger(0);
+    Thread thread;
+    volatile boolean running = true;
+
+    // Statistics
+    AtomicInteger hits = new AtomicInteger(0);
+    AtomicInteger misses = new AtomicInteger(0);
+    int batches = 0;
+    int failures = 0;
+
+
+    /**
+     * Create a new pool and start its background thread, which fills it
+     * straight away.
+     *
+     * @param source The source of the keys.
+     * @param size The number of keys kept ready.
+     */
+
+    public ZBDPooledKeySource(ZBDKeySource source, int size)
+    {
+	super(source);
+	this.source = source;
+	this.size = size;
+
+	thread = new Thread(this, "zbd-keysource");
+	thread.setDaemon(true);
+	thread.setPriority(Thread.MIN_PRIORITY);
+	thread.start();
+    }
+
+    /**
+     * Take a key from the pool, or get one from the underlying source if
+     * there is none ready.
+     *
+     * @return A hexadecimal key string or <code>null</code> if the
+     * underlying source fails.
+     */
+
+    public String generateKeyString()
+    {
+	String key = (String)keys.poll();
+
+	if (key == null)
+	{
+	    misses.incrementAndGet();
+	    LockSupport.unpark(thread);
+	    return source.generateKeyString();
+	}
+
+	hits.incrementAndGet();
+	if (ready.decrementAndGet() <= size / 2)
+	{
+	    LockSupport.unpark(thread);
+	}
+	return key;
+    }
+
+    /**
+     * Keys taken in bulk come straight from the underlying source, so as
+     * not to empty the pool.
+     */
+
+    public int generateKeyStrings(String[] keys)
+    {
+	return source.generateKeyStrings(keys);
+    }
+
+    /**
+     * The background thread. It refills the pool whenever it falls to
+     * half full, and otherwise sleeps until woken by a taker.
+     */
+
+    public void run()
+    {
+	while (running)
+	{
+	    int wanted = size - ready.get();
+
+	    if (wanted < size - size / 2)
+	    {
+		LockSupport.park(this);
+		continue;
+	    }
+
+	    while (running && wanted > 0)
+	    {
+		String[] batch = new String[wanted];
+		int n = source.generateKeyStrings(batch);
+
+		if (n == 0)
+		{
+		    // Most likely an external key generation command that
+		    // has failed. Takers will find out for themselves, so
+		    // just try again later.
+
+		    failures++;
+		    LockSupport.parkNanos(this, 1000000000L);
+		    break;
+		}
+
+		// Count them first so that the count never falls short
+		// of what is queued, which keeps the queue bounded
+
+		ready.addAndGet(n);
+		for (int i = 0; i < n; i++)
+		{
+		    keys.offer(batch[i]);
+		}
+		batches++;
+		wanted -= n;
+	    }
+	}
+    }
+
+    /**
+     * Stop the background thread and discard all keys.
+     */
+
+    public void shutdown()
+    {
+	running = false;
+	keys.clear();
+	LockSupport.unpark(thread);
+    }
+
+    /**
+     * Returns a one-line summary of the pool statistics suitable for
+     * logging.
+     */
+
+    public String getStatistics()
+    {
+	return "private keys: ready=" + ready.get() +
+	    " hits=" + hits.get() +
+	    " misses=" + misses.get() +
+	    " batches=" + batches +
+	    " failures=" + failures;
+    }
+}
@@ -0,0 +1,397 @@
+// This program is free software and may be distributed under the terms
+// of the GNU Lesser General Public License, Version 2.1.
+// This program comes with ABSOLUTELY NO WARRANTY.
+
+package zebedee;
+
+import java.util.*;
+
+/**
+ * A pool of standby tunnels on the client side. For each target host
+ * and port a number of tunnels are connected and negotiated in advance
+ * so that a new local connection can be handed one straight away,
+ * without waiting for the connection to the server, the protocol
+ * exchange and the challenge-response dialogue. The pool is refilled in
+ * the background as tunnels are taken.
+ * <p>
+ * Note that the server connects to the target when a tunnel is
+ * negotiated, so each standby tunnel also holds a connection to its
+ * target open.
+ * <p>
+ * A standby tunnel is not kept beyond the expiry of the shared key it
+ * was negotiated under (see {@link ZBDTunnel#setKeyLifetime(int)}), or
+ * for longer than the idle timeout, and any that the server has closed
+ * in the meantime are discarded. These checks are made every
+ * {@link #SWEEP_INTERVAL} seconds and again when a tunnel is taken.
+ */
+
+public class ZBDStandbyPool
+{
+    /** Interval between checks of the standby tunnels, in seconds. Set to 10. */
+    public static final int SWEEP_INTERVAL = 10;
+
+    ZBDTunnelClient master;
+    ZBDExecutor executor;
+    ZBDLogger logger;
+    int size;
+
+    // Standby tunnels for each target, keyed by "host:port"
+    Hashtable targets = new Hashtable();
+    Timer timer;
+
+    // Statistics
+    int hits = 0;
+    int misses = 0;
+    int created = 0;
+    int evicted = 0;
+    int failures = 0;
+
+
+    /**
+     * Create a new pool. Nothing is connected until a target is
+     * {@link #prime(String,int) primed}.
+     *
+     * @param master The tunnel whose settings are used for the standby
+     * tunnels.
+     * @param executor Used to run the tasks that connect standby
+     * tunnels.
+     * @param size The number of standby tunnels kept for each target.
+     */
+
+    public ZBDStandbyPool(ZBDTunnelClient master, ZBDExecutor executor, int size)
+    {
+	this.master = master;
+	this.executor = executor;
+	this.size = size;
+	logger = master.getLogger();
+
+	timer = new Timer("zbd-standby-sweeper", true);
+	timer.schedule(new TimerTask() {
+	    public void run()
+	    {
+		sweep();
+	    }
+	}, SWEEP_INTERVAL * 1000L, SWEEP_INTERVAL * 1000L);
+    }
+
+    /**
+     * Start filling the pool for the given target.
+     *
+     * @param host The target host.
+     * @param port The target port.
+     */
+
+    public void prime(String host, int port)
+    {
+	refill(getTarget(host, port));
+    }
+
+    /**
+     * Take a standby tunnel for the given target, if one is ready. A
+     * replacement is connected in the background.
+     *
+     * @param host The target host.
+     * @param port The target port.
+     *
+     * @return A connected tunnel or <code>null</code> if there is none.
+     */
+
+    public ZBDTunnelClient take(String host, int port)
+    {
+	Target target = getTarget(host, port);
+	ZBDTunnelClient tunnel = null;
+
+	while (tunnel == null)
+	{
+	    Standby s;
+
+	    synchronized (this)
+	    {
+		if (target.idle.isEmpty())
+		{
+		    misses++;
+		    break;
+		}
+		s = (Standby)target.idle.removeFirst();
+	    }
+
+	    if (s.expired(System.currentTimeMillis()) || s.tunnel.peerClosed())
+	    {
+		discard(s);
+	    }
+	    else
+	    {
+		tunnel = s.tunnel;
+		synchronized (this)
+		{
+		    hits++;
+		}
+	    }
+	}
+
+	refill(target);
+	return tunnel;
+    }
+
+    synchronized Target getTarget(String host, int port)
+    {
+	String key = host + ":" + port;
+	Target target = (Target)targets.get(key);
+
+	if (target == null)
+	{
+	    target = new Target(host, port);
+	    targets.put(key, target);
+	}
+	return target;
+    }
+
+    /**
+     * Start connecting enough tunnels to bring the target back up to
+     * strength, unless the last attempt failed, in which case this is
+     * left until the next sweep.
+     */
+
+    void refill(final Target target)
+    {
+	int wanted;
+
+	synchronized (this)
+	{
+	    if (target.failed)
+	    {
+		return;
+	    }
+	    wanted = size - target.idle.size() - target.checking - target.pending;
+	    if (wanted <= 0)
+	    {
+		return;
+	    }
+	    target.pending += wanted;
+	}
+
+	for (int i = 0; i < wanted; i++)
+	{
+	    executor.execute(new Runnable() {
+		public void run()
+		{
+		    connect(target);
+		}
+	    }, "zbd-standby-" + target.port);
+	}
+    }
+
+    void connect(Target target)
+    {
+	ZBDTunnelClient t = new ZBDTunnelClient(master);
+	t.setTcpMode(true);
+	t.setUdpMode(false);
+
+	try
+	{
+	    t.connect(target.host, target.port);
+	}
+	catch (ZBDException e)
+	{
+	    logger.log(2, "failed to connect standby tunnel to " + target.host +
+		       ":" + target.port + ": " + e);
+	    synchronized (this)
+	    {
+		target.pending--;
+		target.failed = true;
+		failures++;
+	    }
+	    return;
+	}
+
+	synchronized (this)
+	{
+	    target.pending--;
+	    target.idle.addLast(new Standby(t));
+	    created++;
+	}
+	logger.log(3, "standby tunnel to " + target.host + ":" + target.port + " ready");
+    }
+
+    /**
+     * Discard any standby tunnels that have expired or been closed by
+     * the server and refill the pool.
+     */
+
+    void sweep()
+    {
+	Vector all;
+	long now = System.currentTimeMillis();
+
+	synchronized (this)
+	{
+	    all = new Vector(targets.values());
+	}
+
+	for (int i = 0; i < all.size(); i++)
+	{
+	    Target target = (Target)all.elementAt(i);
+	    Vector stale = new Vector();
+	    LinkedList live = new LinkedList();
+
+	    // Take the tunnels out of the pool while they are checked, as
+	    // checking each waits briefly on its socket and nothing else
+	    // should wait for that
+
+	    synchronized (this)
+	    {
+		while (!target.idle.isEmpty())
+		{
+		    Standby s = (Standby)target.idle.removeFirst();
+		    if (s.expired(now))
+		    {
+			stale.addElement(s);
+		    }
+		    else
+		    {
+			live.addLast(s);
+		    }
+		}
+		target.checking = live.size();
+		target.failed = false;
+	    }
+
+	    for (Iterator iter = live.iterator(); iter.hasNext(); )
+	    {
+		Standby s = (Standby)iter.next();
+		if (s.tunnel.peerClosed())
+		{
+		    iter.remove();
+		    stale.addElement(s);
+		}
+	    }
+
+	    synchronized (this)
+	    {
+		target.idle.addAll(0, live);
+		target.checking = 0;
+	    }
+
+	    for (int j = 0; j < stale.size(); j++)
+	    {
+		discard((Standby)stale.elementAt(j));
+	    }
+
+	    refill(target);
+	}
+    }
+
+    void discard(Standby s)
+    {
+	synchronized (this)
+	{
+	    evicted++;
+	}
+
+	try
+	{
+	    s.tunnel.close();
+	}
+	catch (ZBDException e)
+	{
+	    // Ignore
+	}
+    }
+
+    /**
+     * Stop refilling the pool and close all standby tunnels.
+     */
+
+    public void shutdown()
+    {
+	Vector all = new Vector();
+
+	timer.cancel();
+	synchronized (this)
+	{
+	    for (Enumeration e = targets.elements(); e.hasMoreElements(); )
+	    {
+		Target target = (Target)e.nextElement();
+		all.addAll(target.idle);
+		target.idle.clear();
+		target.failed = true;
+	    }
+	}
+
+	for (int i = 0; i < all.size(); i++)
+	{
+	    discard((Standby)all.elementAt(i));
+	}
+    }
+
+    /**
+     * Returns a one-line summary of the pool statistics suitable for
+     * logging.
+     */
+
+    public synchronized String getStatistics()
+    {
+	int ready = 0;
+
+	for (Enumeration e = targets.elements(); e.hasMoreElements(); )
+	{
+	    ready += ((Target)e.nextElement()).idle.size();
+	}
+
+	return "standby tunnels: ready=" + ready +
+	    " hits=" + hits +
+	    " misses=" + misses +
+	    " created=" + created +
+	    " evicted=" + evicted +
+	    " failures=" + failures;
+    }
+
+    static class Target
+    {
+	String host;
+	int port;
+	LinkedList idle = new LinkedList();
+	int checking = 0;
+	int pending = 0;
+	boolean failed = false;
+
+	Target(String host, int port)
+	{
+	    this.host = host;
+	    this.port = port;
+	}
+    }
+
+    static class Standby
+    {
+	ZBDTunnelClient tunnel;
+	long expiry;
+
+	Standby(ZBDTunnelClient tunnel)
+	{
+	    this.tunnel = tunnel;
+
+	    // Honour the key lifetime, measured from when the shared key
+	    // was negotiated if we know it, and the idle timeout, after
+	    // which the server would close the connection anyway.
+
+	    long now = System.currentTimeMillis();
+
+	    expiry = tunnel.keyExpiry;
+	    if (expiry == 0)
+	    {
+		expiry = now + tunnel.getKeyLifetime() * 1000L;
+	    }
+	    if (tunnel.idleTimeout > 0 &&
+		now + tunnel.idleTimeout * 1000L < expiry)
+	    {
+		expiry = now + tunnel.idleTimeout * 1000L;
+	    }
+	}
+
+	boolean expired(long now)
+	{
+	    return (now >= expiry);
+	}
+    }
+}
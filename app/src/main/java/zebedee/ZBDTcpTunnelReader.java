@@ -17,7 +17,7 @@ import java.net.*;
  * Read data from a tunnel and write it to a local TCP/IP socket.
  */
 
-public class ZBDTcpTunnelReader extends Thread
+public class ZBDTcpTunnelReader implements Runnable
 {
     ZBDTunnel tunnel;
     Socket localSock;
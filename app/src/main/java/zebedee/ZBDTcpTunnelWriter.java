@@ -17,7 +17,7 @@ import java.net.*;
  * Read data from a local TCP/IP socket and write it to a tunnel.
  */
 
-public class ZBDTcpTunnelWriter extends Thread
+public class ZBDTcpTunnelWriter implements Runnable
 {
     ZBDTunnel tunnel;
     Socket localSock;
@@ -48,11 +48,23 @@ public class ZBDTcpTunnelWriter extends Thread
 	    return;
 	}
 
+	// Messages are only sent once everything that is immediately
+	// available from the local socket has been read.
+
+	if (out instanceof ZBDOutputStream)
+	{
+	    ((ZBDOutputStream)out).setAutoFlush(false);
+	}
+
 	try
 	{
 	    while (tunnel.writeable() && (num = in.read(buffer)) > 0)
 	    {
 		out.write(buffer, 0, num);
+		if (in.available() == 0)
+		{
+		    out.flush();
+		}
 	    }
 
 	    tunnel.logger.log(1, "EOF encountered on source socket or tunnel connection closed");
@@ -0,0 +1,18 @@
+// This program is free software and may be distributed under the terms
+// of the GNU Lesser General Public License, Version 2.1.
+// This program comes with ABSOLUTELY NO WARRANTY.
+
+package zebedee;
+
+/**
+ * The default implementation of {@link ZBDExecutor}. Every task is run
+ * in a new thread of its own.
+ */
+
+public class ZBDThreadExecutor extends ZBDExecutor
+{
+    public void execute(Runnable task, String name)
+    {
+	new Thread(task, name).start();
+    }
+}
@@ -14,6 +14,8 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.zip.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.security.SecureRandom;
 import java.math.*;
 
@@ -56,6 +58,8 @@ public class ZBDTunnel implements Cloneable
     public static final int DFLT_KEY_LIFETIME = 3600;
     /** Default idle connection timeout in seconds. Set to 0 (infinite). */
     public static final int DFLT_IDLE_TIMEOUT = 0;
+    /** Default time allowed for protocol negotiation in seconds. Set to 60. */
+    public static final int DFLT_HANDSHAKE_TIMEOUT = 60;
 
     /** Maximum key size in bits. Set to 576 bits. */
     public static final int MAX_KEY_SIZE = 576;
@@ -74,20 +78,26 @@ public class ZBDTunnel implements Cloneable
     public static final int COMPRESSION_ZLIB = 0x0;
     /** Bzip2 compression type */
     public static final int COMPRESSION_BZIP2 = 0x1;
+    /** LZ4 block compression type, which only this version supports */
+    public static final int COMPRESSION_LZ4 = 0x2;
 
     // Package-wide constants
     // Only classes implementing the protocol need to know these!
 
     static final int PROTOCOL_V201 = 0x0201;
+    static final int PROTOCOL_V202 = 0x0202;   // V201 with AES-GCM
 
-    static final int MAX_HDR_SIZE = 26; // For protocol version 201
+    static final int MAX_HDR_SIZE = 26; // For protocol versions 201 and 202
     static final int HDR_FLAG_UDPMODE = 0x1;
+    static final int HDR_FLAG_MULTIPLEX = 0x2;
+    static final int HDR_FLAG_CMPSTREAM = 0x4;
+    static final int HDR_FLAG_CMPDICT = 0x8;
     static final int NONCE_SIZE = 8;
     static final int FLAG_COMPRESSED = 0x4000;
     static final int FLAG_ENCRYPTED = 0x8000;
     static final int SIZE_MASK = 0xffff ^ (FLAG_ENCRYPTED | FLAG_COMPRESSED);
     static final int CMP_MINIMUM = 32;
-    static final int CMP_OVERHEAD = 250;
+    static final int COALESCE_FRAMES = 4;	// Messages gathered per write
     static final int CHALLENGE_SIZE = 4;
     static final int THE_ANSWER = 42;	// Of course!
 
@@ -109,8 +119,32 @@ public class ZBDTunnel implements Cloneable
     int minKeySize = 0;
     int keyLifetime = DFLT_KEY_LIFETIME;
     int idleTimeout = DFLT_IDLE_TIMEOUT;
+    int handshakeTimeout = DFLT_HANDSHAKE_TIMEOUT;
     int bufferSize = DFLT_BUFFER_SIZE;
     String privateKey = null;
+    boolean useChannels = false;
+    boolean multiplex = false;
+    boolean aesGcm = ZBDAesGcmCipher.AVAILABLE;
+    String cipherProvider = ZBDCipher.PROVIDER_BUILTIN;
+    boolean streamCompression = true;
+    boolean adaptiveCompression = true;
+    Vector dictionaries = new Vector();
+
+    // When the shared key this connection was negotiated under expires,
+    // or 0 if not known. Set by the client only.
+    long keyExpiry = 0;
+
+    // Set once negotiation has agreed to carry multiple streams over
+    // this connection. See ZBDMux.
+    boolean muxMode = false;
+
+    // Set once negotiation has agreed to compress as a stream
+    boolean cmpStream = false;
+
+    // Set once negotiation has agreed to choose a preset dictionary, and
+    // the one chosen, if any
+    boolean cmpDict = false;
+    ZBDDictionary dictionary = null;
 
     // The default (null) message logger
     ZBDLogger logger = new ZBDNullLogger();
@@ -121,6 +155,9 @@ public class ZBDTunnel implements Cloneable
     // The default key source
     ZBDKeySource keySource;
 
+    // Precomputed DH key pairs, if wanted
+    ZBDKeyPairPool keyPairs = null;
+
     // The token table is maintained automatically
     ZBDTokenTable tokens;
 
@@ -134,7 +171,15 @@ public class ZBDTunnel implements Cloneable
     // The socket for the tunnel connection
     Socket tunnelSocket;
 
-    // Tunnel data i/o streams
+    // Negotiation progress, for the handshake deadline. See
+    // ZBDHandshakeTimer.
+    volatile String handshakePhase = "connect";
+    volatile boolean handshakeExpired = false;
+    long handshakeDeadline = 0;
+
+    // Tunnel data i/o streams. The input stream is layered over a
+    // read-ahead buffer from which whole messages are taken.
+    ZBDFrameReader frameReader;
     DataInputStream dataIn;
     DataOutputStream dataOut;
 
@@ -142,9 +187,8 @@ public class ZBDTunnel implements Cloneable
     byte[] clientNonce = new byte[NONCE_SIZE];
     byte[] serverNonce = new byte[NONCE_SIZE];
 
-    // Blowfish encryption contexts for input and output
-    ZBDBlowfish bfIn;
-    ZBDBlowfish bfOut;
+    // Encryption for input and output, null until a key is agreed
+    ZBDCipher cipher;
 
     // Blowfish initialisation vector
     byte[] initVec = new byte[] {
@@ -152,9 +196,8 @@ public class ZBDTunnel implements Cloneable
 	0x34, 0x42, 0x65, 0x64	    // said Zebedee ...
     };
 
-    // Zlib compressor/uncompressor
-    Inflater inflater;
-    Deflater deflater;
+    // Compressor/uncompressor, null unless compression was agreed
+    ZBDCompressor compressor;
 
     // Statistics
     int readCount = 0;
@@ -163,14 +206,20 @@ public class ZBDTunnel implements Cloneable
     int rawBytesOut = 0;
     int msgBytesIn = 0;
     int msgBytesOut = 0;
+    int netReads = 0;
+    int netWrites = 0;
 
-    // Default message read and temporary working buffers
-    byte[] message = new byte[MAX_BUFFER_SIZE];
-    byte[] rawIn = new byte[MAX_BUFFER_SIZE];
-    byte[] rawOut = new byte[MAX_BUFFER_SIZE + 2];
+    // Default message read buffer and the buffer in which outgoing
+    // messages are gathered before being written. Both are allocated
+    // when first used, and dropped if the tunnel is handed over to the
+    // NIO engine, which has its own.
+    byte[] message = null;
+    byte[] rawOut = null;
+    int outPending = 0;
 
     ZBDInputStream inputStream = null;
     ZBDOutputStream outputStream = null;
+    ZBDChannel channel = null;
 
     /**
      * Default constructor. This allocate a new token table and
@@ -215,11 +264,20 @@ public class ZBDTunnel implements Cloneable
 	    keySize = master.keySize;
 	    keyLifetime = master.keyLifetime;
 	    idleTimeout = master.idleTimeout;
+	    handshakeTimeout = master.handshakeTimeout;
 	    bufferSize = master.bufferSize;
 	    privateKey = master.privateKey;
+	    useChannels = master.useChannels;
+	    multiplex = master.multiplex;
+	    aesGcm = master.aesGcm;
+	    cipherProvider = master.cipherProvider;
+	    streamCompression = master.streamCompression;
+	    adaptiveCompression = master.adaptiveCompression;
+	    dictionaries = master.dictionaries;
 	    logger = master.logger;
 	    validator = master.validator;
 	    keySource = master.keySource;
+	    keyPairs = master.keyPairs;
 
 	    // The token table (which is associated with a specific server)
 	    // is shared, not duplicated.
@@ -280,6 +338,184 @@ public class ZBDTunnel implements Cloneable
 	return udpMode;
     }
 
+    /**
+     * Sets whether multiplexed mode is wanted. On the client this
+     * requests that the connection carry many streams, each to its own
+     * target, rather than just one. On the server it permits clients to
+     * make such a request. See {@link ZBDMux}. Multiplexing only
+     * applies to TCP-mode tunnels.
+     */
+
+    synchronized public boolean setMultiplex(boolean onOff)
+    {
+	multiplex = onOff;
+	return multiplex;
+    }
+
+    /**
+     * Returns whether multiplexed mode is wanted.
+     */
+
+    public boolean getMultiplex()
+    {
+	return multiplex;
+    }
+
+    /**
+     * Sets whether protocol version 202, which encrypts with AES-GCM
+     * rather than Blowfish, is wanted. On the client this offers the
+     * newer version, falling back to version 201 if the server does not
+     * support it. On the server it permits clients to use it. The default
+     * is true if the platform supports AES-GCM. It can not be set true
+     * if it does not.
+     *
+     * @return The new setting.
+     */
+
+    synchronized public boolean setAesGcm(boolean onOff)
+    {
+	aesGcm = (onOff && ZBDAesGcmCipher.isAvailable());
+	return aesGcm;
+    }
+
+    /**
+     * Returns whether protocol version 202 is wanted.
+     */
+
+    public boolean getAesGcm()
+    {
+	return aesGcm;
+    }
+
+    /**
+     * Sets whether streaming compression is wanted. Rather than
+     * compressing each message on its own, the compressor is then kept
+     * going from one message to the next, so that repeats of earlier data
+     * compress well. On the client this offers streaming compression,
+     * falling back to compressing each message if the server does not
+     * support it. On the server it permits clients to use it. It only
+     * applies to TCP-mode tunnels, and the default is true.
+     *
+     * @return The new setting.
+     */
+
+    synchronized public boolean setStreamCompression(boolean onOff)
+    {
+	streamCompression = onOff;
+	return streamCompression;
+    }
+
+    /**
+     * Returns whether streaming compression is wanted.
+     */
+
+    public boolean getStreamCompression()
+    {
+	return streamCompression;
+    }
+
+    /**
+     * Sets whether compression adapts to the data. If so, messages that
+     * look incompressible, or that follow several that failed to
+     * compress, are sent without trying. Only the sending side is
+     * affected, so each end may choose independently. The default is
+     * true.
+     *
+     * @return The new setting.
+     */
+
+    synchronized public boolean setAdaptiveCompression(boolean onOff)
+    {
+	adaptiveCompression = onOff;
+	return adaptiveCompression;
+    }
+
+    /**
+     * Returns whether compression adapts to the data.
+     */
+
+    public boolean getAdaptiveCompression()
+    {
+	return adaptiveCompression;
+    }
+
+    /**
+     * Returns a one-line summary of the outgoing compression statistics
+     * suitable for logging, or <code>null</code> if no compression was
+     * agreed. See {@link ZBDCompressor#getStatistics()}.
+     */
+
+    public String getCompressionStatistics()
+    {
+	ZBDCompressor c = compressor;
+	return (c == null ? null : c.getStatistics());
+    }
+
+    /**
+     * Add a preset dictionary for zlib compression. The client offers
+     * to use one if it has any, and the server lists the identifiers of
+     * all of its own in reply. The first of the client's that is in the
+     * list is then used for both directions. If there is none in common,
+     * or some other type of compression is agreed, none is used. The
+     * dictionaries are shared with all tunnels cloned from this one.
+     *
+     * @param dict The dictionary.
+     */
+
+    synchronized public void addDictionary(ZBDDictionary dict)
+    {
+	dictionaries.addElement(dict);
+    }
+
+    /**
+     * Returns the dictionaries added, as a vector of
+     * {@link ZBDDictionary}.
+     */
+
+    public Vector getDictionaries()
+    {
+	return dictionaries;
+    }
+
+    /**
+     * Returns the dictionary that negotiation chose, or <code>null</code>
+     * if none.
+     */
+
+    public ZBDDictionary getDictionary()
+    {
+	return dictionary;
+    }
+
+    /**
+     * Returns the dictionary with the given identifier, or
+     * <code>null</code> if there is none.
+     */
+
+    ZBDDictionary findDictionary(byte[] id)
+    {
+	for (int i = 0; i < dictionaries.size(); i++)
+	{
+	    ZBDDictionary dict = (ZBDDictionary)dictionaries.elementAt(i);
+	    if (Arrays.equals(dict.getId(), id))
+	    {
+		return dict;
+	    }
+	}
+	return null;
+    }
+
+    /**
+     * Returns true if negotiation agreed to multiplex streams over this
+     * connection, in which case it must be handed to a {@link ZBDMux}
+     * rather than read and written directly.
+     */
+
+    public boolean isMultiplexed()
+    {
+	return muxMode;
+    }
+
     /**
      * Return the current server host.
      */
@@ -423,9 +659,9 @@ public class ZBDTunnel implements Cloneable
 
     /**
      * Returns the single integer combined compression value for the given
-     * type and level. The type must be one of {@link #COMPRESSION_ZLIB} or
-     * {@link #COMPRESSION_BZIP2} and the level between 0 and
-     * {@link #MAX_COMPRESSION}.
+     * type and level. The type must be one of {@link #COMPRESSION_ZLIB},
+     * {@link #COMPRESSION_BZIP2} or {@link #COMPRESSION_LZ4} and the level
+     * between 0 and {@link #MAX_COMPRESSION}.
      *
      * @param type The compression type.
      * @param level The compression level.
@@ -437,11 +673,8 @@ public class ZBDTunnel implements Cloneable
 
     public static int makeCompressionValue(int type, int level) throws ZBDValueException
     {
-	if (type == COMPRESSION_BZIP2)
-	{
-	    throw new ZBDValueException("bzip2 compression is not supported in this version");
-	}
-	else if (type != COMPRESSION_ZLIB)
+	if (type != COMPRESSION_ZLIB && type != COMPRESSION_BZIP2 &&
+	    type != COMPRESSION_LZ4)
 	{
 	    throw new ZBDValueException("invalid compression type: " + type);
 	}
@@ -471,11 +704,8 @@ public class ZBDTunnel implements Cloneable
 
     synchronized public int setCompression(int value) throws ZBDValueException
     {
-	if ((value >> 8) == COMPRESSION_BZIP2)
-	{
-	    throw new ZBDValueException("bzip2 compression is not supported in this version");
-	}
-	else if ((value >> 8) != COMPRESSION_ZLIB)
+	if ((value >> 8) != COMPRESSION_ZLIB && (value >> 8) != COMPRESSION_BZIP2 &&
+	    (value >> 8) != COMPRESSION_LZ4)
 	{
 	    throw new ZBDValueException("invalid compression type: " + (value >> 8));
 	}
@@ -494,8 +724,9 @@ public class ZBDTunnel implements Cloneable
     }
 
     /**
-     * Returns the compression type (either {@link #COMPRESSION_ZLIB} or
-     * {@link #COMPRESSION_BZIP2}) for the given compression value.
+     * Returns the compression type ({@link #COMPRESSION_ZLIB},
+     * {@link #COMPRESSION_BZIP2} or {@link #COMPRESSION_LZ4}) for the given
+     * compression value.
      *
      * @param value The compression value.
      */
@@ -671,6 +902,41 @@ public class ZBDTunnel implements Cloneable
 	return idleTimeout;
     }
 
+    /**
+     * Sets the overall time allowed for protocol negotiation. This
+     * covers every phase of the negotiation, from the exchange of
+     * protocol versions to the final challenge response, and applies
+     * whatever the idle timeout. If negotiation has not finished in
+     * time the connection is closed and a {@link ZBDTimeoutException}
+     * is thrown. A value of 0 means no limit.
+     *
+     * @param time The handshake timeout, in seconds.
+     *
+     * @throws ZBDValueException Thrown if the timeout is less than zero.
+     *
+     * @return The timeout value set.
+     */
+
+    synchronized public int setHandshakeTimeout(int time) throws ZBDValueException
+    {
+	if (time < 0)
+	{
+	    throw new ZBDValueException("handshake timeout less than zero (" + time + ")");
+	}
+
+	handshakeTimeout = time;
+	return handshakeTimeout;
+    }
+
+    /**
+     * Retrieves the handshake timeout value.
+     */
+
+    synchronized public int getHandshakeTimeout()
+    {
+	return handshakeTimeout;
+    }
+
     /**
      * Sets the requested or maximum permitted message buffer size.
      * If the supplied value is greater than {@link #MAX_BUFFER_SIZE}
@@ -765,6 +1031,223 @@ public class ZBDTunnel implements Cloneable
 	return privateKey;
     }
 
+    /**
+     * Sets whether sockets opened by the tunnel itself (the connection
+     * to the server on the client side, the connection to the target on
+     * the server side) should be created from a
+     * {@link java.nio.channels.SocketChannel}. This is required if the
+     * tunnel is to be handed to a {@link ZBDNioEngine} once connected.
+     *
+     * @param onOff True to create channel-backed sockets.
+     *
+     * @return The new setting.
+     */
+
+    synchronized public boolean setUseChannels(boolean onOff)
+    {
+	useChannels = onOff;
+	return useChannels;
+    }
+
+    /**
+     * Returns whether channel-backed sockets are being created.
+     */
+
+    synchronized public boolean getUseChannels()
+    {
+	return useChannels;
+    }
+
+    /**
+     * Sets which implementation of the Blowfish cipher is used by
+     * protocol version 201, one of
+     * {@link ZBDCipher#PROVIDER_BUILTIN} (the default) or
+     * {@link ZBDCipher#PROVIDER_JCA}. The choice is purely local: the
+     * data on the wire is the same either way. If the JCA provider can
+     * not be used for the negotiated key the built-in one is used instead.
+     *
+     * @param provider The provider name.
+     *
+     * @throws ZBDValueException Thrown if the name is not known.
+     *
+     * @return The new setting.
+     */
+
+    synchronized public String setCipherProvider(String provider) throws ZBDValueException
+    {
+	if (!ZBDCipher.isProvider(provider))
+	{
+	    throw new ZBDValueException("unknown cipher provider: " + provider);
+	}
+
+	cipherProvider = provider;
+	return cipherProvider;
+    }
+
+    /**
+     * Returns the name of the cipher provider.
+     */
+
+    synchronized public String getCipherProvider()
+    {
+	return cipherProvider;
+    }
+
+    /**
+     * Open a TCP connection to the given host and port. If
+     * {@link #setUseChannels(boolean) channels are in use} the socket
+     * is obtained from a {@link java.nio.channels.SocketChannel},
+     * otherwise it is a plain {@link Socket}.
+     *
+     * @param host The host name or address.
+     * @param port The port number.
+     *
+     * @throws IOException Thrown if the connection can not be made.
+     */
+
+    public final Socket openSocket(String host, int port) throws IOException
+    {
+	// Don't let a connection made during negotiation outlast the
+	// handshake deadline.
+
+	int timeout = 0;
+	if (handshakeDeadline > 0)
+	{
+	    long left = handshakeDeadline - System.currentTimeMillis();
+	    timeout = (left > 0 ? (int)left : 1);
+	}
+
+	return openSocket(host, port, timeout);
+    }
+
+    /**
+     * Open a TCP connection as {@link #openSocket(String,int)} does, but
+     * with the given connection timeout.
+     *
+     * @param host The host name or address.
+     * @param port The port number.
+     * @param timeout The connection timeout in milliseconds, or 0 for
+     * none.
+     *
+     * @throws IOException Thrown if the connection can not be made.
+     */
+
+    public final Socket openSocket(String host, int port, int timeout)
+	throws IOException
+    {
+	Socket sock = (useChannels ? SocketChannel.open().socket() : new Socket());
+
+	try
+	{
+	    sock.connect(new InetSocketAddress(host, port), timeout);
+	}
+	catch (IOException e)
+	{
+	    try { sock.close(); } catch (IOException eio) {}
+	    throw e;
+	}
+
+	return sock;
+    }
+
+    /**
+     * Start the handshake deadline. This must be followed by a call to
+     * {@link #endHandshake(TimerTask,ZBDException)} once negotiation is
+     * over, whether it succeeded or not.
+     *
+     * @return The deadline.
+     */
+
+    final TimerTask startHandshake()
+    {
+	handshakePhase = "protocol";
+	handshakeExpired = false;
+	return ZBDHandshakeTimer.start(this, handshakeTimeout);
+    }
+
+    /**
+     * Cancel the handshake deadline. If the deadline has already expired
+     * then the negotiation is deemed to have failed and a timeout
+     * exception, naming the phase reached, is thrown in place of any
+     * error that the negotiation itself ran into.
+     *
+     * @param deadline The deadline returned by {@link #startHandshake()}.
+     * @param failure The exception that ended negotiation, or
+     * <code>null</code> if it completed.
+     *
+     * @throws ZBDTimeoutException Thrown if the deadline expired.
+     * @throws ZBDException Thrown with <code>failure</code>, if given.
+     */
+
+    final void endHandshake(TimerTask deadline, ZBDException failure)
+	throws ZBDException
+    {
+	String phase;
+
+	ZBDHandshakeTimer.cancel(deadline);
+	synchronized (this)
+	{
+	    phase = handshakePhase;
+	    handshakePhase = null;
+	}
+	handshakeDeadline = 0;
+
+	if (handshakeExpired)
+	{
+	    readOK = false;
+	    writeOK = false;
+	    throw new ZBDTimeoutException("handshake deadline expired during " +
+					  phase + " phase");
+	}
+
+	if (failure != null)
+	{
+	    throw failure;
+	}
+    }
+
+    /**
+     * Set up the data streams for a newly opened tunnel connection.
+     * Reads go through a {@link ZBDFrameReader} so that as many
+     * messages as have arrived are picked up by each read from the
+     * socket.
+     *
+     * @param sock The tunnel socket.
+     *
+     * @throws IOException Thrown if the socket streams can not be
+     * obtained.
+     */
+
+    final void openStreams(Socket sock) throws IOException
+    {
+	frameReader = new ZBDFrameReader(sock.getInputStream(), this);
+	dataIn = new DataInputStream(frameReader);
+	dataOut = new DataOutputStream(sock.getOutputStream());
+    }
+
+    /**
+     * Returns the average number of messages received for each read from
+     * the tunnel socket. This includes the messages of the protocol
+     * negotiation.
+     */
+
+    public float getFramesPerRead()
+    {
+	int reads = netReads;
+	return (reads == 0 ? 0 : (float)readCount / reads);
+    }
+
+    /**
+     * Returns the average number of messages sent in each write to the
+     * tunnel socket.
+     */
+
+    public float getFramesPerWrite()
+    {
+	int writes = netWrites;
+	return (writes == 0 ? 0 : (float)writeCount / writes);
+    }
+
     /**
      * Sets the message logger instance. The <code>ZBDTunnel</code> class
      * and its sub-classes are instrumented to log varying amounts of
@@ -845,39 +1328,57 @@ public class ZBDTunnel implements Cloneable
     }
 
     /**
-     * Creates a new hexadecimal session key string. This is done by
-     * hashing together the client nonce, server nonce and a portion of
-     * the ASCII string representation of the current shared secret key.
+     * Set the pool of precomputed Diffie-Hellman key pairs, or
+     * <code>null</code> to compute them as needed. The pool is shared
+     * with all tunnels cloned from this one. It is not used if a private
+     * key has been set.
+     */
+
+    synchronized public ZBDKeyPairPool setKeyPairPool(ZBDKeyPairPool pool)
+    {
+	keyPairs = pool;
+	return pool;
+    }
+
+    /**
+     * Get the pool of precomputed Diffie-Hellman key pairs.
+     */
+
+    synchronized public ZBDKeyPairPool getKeyPairPool()
+    {
+	return keyPairs;
+    }
+
+    /**
+     * Creates a new session key. This is done by hashing together the
+     * client nonce, server nonce and a portion of the ASCII hexadecimal
+     * string representation of the current shared secret key.
      *
-     * @param sharedKey The shared Diffie-Hellman key as a hexadecimal string.
+     * @param sharedKey The shared Diffie-Hellman key, as an unsigned
+     * big-endian number.
      *
-     * @return The hexadecimal session key.
+     * @return The session key.
      */
 
-    final String generateSessionKey(String sharedKey)
+    final byte[] generateSessionKey(byte[] sharedKey)
     {
 	// Allocate space for key -- SHA hashes are 160 bits long
 	// so we allocate multiples of 20 bytes.
 
 	byte[] key = new byte[((keySize / 160) + 1) * 20];
 
-	// Convert the key string to ASCII before hashing
+	// The protocol hashes the key as an ASCII hexadecimal string
 
-	byte[] asciiKey = null;
-	try
-	{
-	    asciiKey = sharedKey.getBytes("ASCII");
-	}
-	catch (UnsupportedEncodingException e)
-	{
-	    // Can not happen -- ASCII is guaranteed
-	}
+	byte[] asciiKey = numberToHexAscii(sharedKey);
 	int len = asciiKey.length;
 
-	logger.log(999, "secret key = " + sharedKey);
-	logger.log(999, "secret key length = " + len);
-	logger.log(999, "client nonce = " + bytesToHex(clientNonce));
-	logger.log(999, "server nonce = " + bytesToHex(serverNonce));
+	if (logger.getLevel() >= 999)
+	{
+	    logger.log(999, "secret key = " + bytesToHex(sharedKey));
+	    logger.log(999, "secret key length = " + len);
+	    logger.log(999, "client nonce = " + bytesToHex(clientNonce));
+	    logger.log(999, "server nonce = " + bytesToHex(serverNonce));
+	}
 
 	// Now create the hash. Mix in the client and server nonces
 	// with chunks of the shared secret key (as an ASCII string).
@@ -902,9 +1403,7 @@ public class ZBDTunnel implements Cloneable
 	    System.arraycopy(digest, 0, key, bits / 8, digest.length);
 	}
 
-	// Return the final result as a String
-
-	return bytesToHex(key);
+	return key;
     }
 
     /**
@@ -932,31 +1431,125 @@ public class ZBDTunnel implements Cloneable
     }
 
     /**
-     * Initialise the input and output Blowfish encryption streams using
-     * the supplied key. The key is a hexadecimal string.
+     * Generate a private key and the corresponding public Diffie-Hellman
+     * value for the current generator and modulus. These come from the
+     * key pair pool if there is one ready, otherwise they are computed
+     * here.
      *
-     * @param stringKey A hexadecimal key string
+     * @return An array holding the private key and public value as
+     * hexadecimal strings.
      */
 
-    final void setupBlowfish(String stringKey)
+    final String[] generateKeyPair() throws ZBDException
     {
-	byte[] binData;
-	try
+	if (privateKey == null && keyPairs != null)
 	{
-	    binData = hexToBytes(stringKey);
+	    String[] pair = keyPairs.take(generator, modulus);
+	    if (pair != null)
+	    {
+		logger.log(3, "using precomputed DH key pair");
+		return pair;
+	    }
 	}
-	catch (ZBDException ez)
+
+	String exponent = generatePrivateKey();
+	String[] pair = new String[] { exponent, diffieHellman(generator, modulus, exponent) };
+
+	if (privateKey == null && keyPairs != null)
 	{
-	    return; // Things will fail gracefully higher up ... I hope ...
+	    keyPairs.put(generator, modulus, pair);
 	}
+	return pair;
+    }
+
+    /**
+     * Initialise the compression once it has been negotiated. A
+     * streaming compressor may enlarge a message a little, so the buffer
+     * size is reduced, if need be, so that such a message still fits in
+     * the largest allowed.
+     *
+     * @param stream Whether streaming compression was agreed.
+     *
+     * @throws ZBDValueException Thrown if the compression type is not
+     * supported.
+     */
+
+    final void setupCompression(boolean stream) throws ZBDValueException
+    {
+	compressor = ZBDCompressor.create(compressionInfo, stream);
+
+	if (compressor != null)
+	{
+	    compressor.setAdaptive(adaptiveCompression);
+	    logger.log(3, "compressing " + (compressor.isStreaming() ? "as a stream" :
+					    "each message"));
+	    limitBufferSize();
+	}
+    }
+
+    /**
+     * Prime the compressor with the dictionary negotiation chose, if
+     * any. Each end does so at the same point in the challenge: the
+     * client after sending its choice and the server after reading it.
+     * A stream compressor starts afresh there, as the key exchange may
+     * already have used it.
+     *
+     * @throws ZBDValueException Thrown if the compressor can not use a
+     * dictionary.
+     */
+
+    final void setupDictionary() throws ZBDValueException
+    {
+	if (dictionary != null && compressor != null)
+	{
+	    compressor.setDictionary(dictionary.getData());
+	    logger.log(3, "compressing with dictionary " + dictionary);
+	}
+    }
+
+    /**
+     * Reduce the buffer size, if need be, so that a message of that size
+     * still fits in {@link #MAX_BUFFER_SIZE} bytes after compression and
+     * encryption. Both ends of the tunnel do the same, having agreed the
+     * same size, compression and cipher.
+     */
+
+    final void limitBufferSize()
+    {
+	int limit = MAX_BUFFER_SIZE -
+	    (cipher == null ? 0 : cipher.getOverhead()) -
+	    (compressor == null ? 0 : compressor.getExpansion());
+
+	if (bufferSize > limit)
+	{
+	    bufferSize = limit;
+	}
+    }
+
+    /**
+     * Initialise the input and output encryption using the supplied
+     * session key. This is Blowfish for protocol version 201 and AES-GCM
+     * for version 202. As AES-GCM adds a tag to each message the buffer
+     * size is reduced, if need be, so that an encrypted message still
+     * fits in the largest allowed.
+     *
+     * @param sessionKey The session key, as from
+     * {@link #generateSessionKey(byte[])}.
+     *
+     * @throws ZBDException Thrown if AES-GCM was agreed but can not be
+     * set up.
+     */
+
+    final void setupCipher(byte[] sessionKey) throws ZBDException
+    {
+	int bits = keySize;
 
-	int bits = keySize;
-
 	// Round key size up to multiple of 4
 
 	bits = ((bits + 3) / 4) * 4;
 
-	logger.log(999, "setting up Blowfish with a " + bits + " bit key");
+	logger.log(999, "setting up " + (protocol >= PROTOCOL_V202 ? "AES-GCM" : "Blowfish") +
+		   " with a " + bits + " bit key");
 
 	// Figure out how many bytes this is and allocate the key
 
@@ -965,16 +1558,35 @@ public class ZBDTunnel implements Cloneable
 	// Copy in the data and then mask the least significant nybble
 	// if necessary.
 
-	System.arraycopy(binData, 0, key, 0, key.length);
+	System.arraycopy(sessionKey, 0, key, 0, key.length);
 	if ((bits % 8) != 0)
 	{
 	    key[key.length - 1] &= 0xf0;
 	}
 
-	logger.log(999, "key is " + bytesToHex(key));
+	if (logger.getLevel() >= 999)
+	{
+	    logger.log(999, "key is " + bytesToHex(key));
+	}
 
-	bfIn = new ZBDBlowfish(key, initVec);
-	bfOut = new ZBDBlowfish(key, initVec);
+	if (protocol >= PROTOCOL_V202)
+	{
+	    cipher = new ZBDAesGcmCipher(key, !(this instanceof ZBDTunnelServer));
+	    limitBufferSize();
+	}
+	else
+	{
+	    try
+	    {
+		cipher = ZBDCipher.create(cipherProvider, key, initVec);
+	    }
+	    catch (ZBDException e)
+	    {
+		logger.log(2, "using built-in Blowfish: " + e);
+		cipher = new ZBDBlowfishCipher(key, initVec);
+	    }
+	}
+	logger.log(3, "cipher provider = " + cipher.getProvider());
     }
 
     /**
@@ -1035,6 +1647,57 @@ public class ZBDTunnel implements Cloneable
 	return outputStream;
     }
 
+    /**
+     * Retrieve the {@link ZBDChannel} for this tunnel. This provides the
+     * same data as the streams returned by {@link #getInputStream()} and
+     * {@link #getOutputStream()} but through the
+     * {@link java.nio.channels.ReadableByteChannel} and
+     * {@link java.nio.channels.GatheringByteChannel} interfaces, so that
+     * data can be moved to and from {@link ByteBuffer}s directly. A
+     * tunnel should be read either through its channel or its input
+     * stream, not both.
+     *
+     * @throws ZBDException Thrown if the tunnel has not yet been connected
+     * or a prior read or write error has occurred.
+     */
+
+    public ZBDChannel getChannel() throws ZBDException
+    {
+	if (channel != null)
+	{
+	    return channel;
+	}
+	else if (!readOK && !writeOK)
+	{
+	    throw new ZBDException("tunnel is not connected or an I/O error has occurred");
+	}
+
+	channel = new ZBDChannel(this);
+	return channel;
+    }
+
+    // Tables for hexadecimal conversion. HEX_VALUES gives the value of
+    // each ASCII character as a hexadecimal digit, or -1 if it is not one.
+
+    static final char[] HEX_DIGITS = {
+	'0', '1', '2', '3', '4', '5', '6', '7',
+	'8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+    };
+    static final byte[] HEX_VALUES = new byte[128];
+
+    static
+    {
+	for (int i = 0; i < HEX_VALUES.length; i++)
+	{
+	    HEX_VALUES[i] = -1;
+	}
+	for (int i = 0; i < 16; i++)
+	{
+	    HEX_VALUES[HEX_DIGITS[i]] = (byte)i;
+	    HEX_VALUES[Character.toUpperCase(HEX_DIGITS[i])] = (byte)i;
+	}
+    }
+
     /**
      * Utility function to convert a byte array to a hexadecimal string.
      *
@@ -1060,18 +1723,16 @@ public class ZBDTunnel implements Cloneable
 
     static final public String bytesToHex(byte[] bArray, int offset, int length)
     {
-	StringBuffer s = new StringBuffer(2 * length);
-	char[] digits = new char[] {
-	    '0', '1', '2', '3', '4', '5', '6', '7',
-	    '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
-	};
+	int end = Math.min(offset + length, bArray.length);
+	char[] s = new char[2 * Math.max(end - offset, 0)];
 
-	for (int i = offset; i < offset + length && i < bArray.length; i++)
+	for (int i = offset, j = 0; i < end; i++)
 	{
-	    s.append(digits[(bArray[i] >>> 4) & 0xf]).append(digits[(bArray[i] & 0xf)]);
+	    s[j++] = HEX_DIGITS[(bArray[i] >>> 4) & 0xf];
+	    s[j++] = HEX_DIGITS[bArray[i] & 0xf];
 	}
 
-	return s.toString();
+	return new String(s);
     }
 
     /**
@@ -1087,60 +1748,77 @@ public class ZBDTunnel implements Cloneable
 
     static final public byte[] hexToBytes(String s) throws ZBDValueException
     {
-	
-	// Purge whitespace
+	// Count the digits, ignoring whitespace
 
-	char[] ch = new char[s.length()];
-	s.getChars(0, s.length(), ch, 0);
-	StringBuffer sb = new StringBuffer(s.length());
-	for (int i = 0; i < ch.length; i++)
+	int digits = 0;
+	for (int i = 0; i < s.length(); i++)
 	{
-	    if (!Character.isWhitespace(ch[i]))
+	    char c = s.charAt(i);
+
+	    if (c < 128 && HEX_VALUES[c] >= 0)
 	    {
-		sb.append(ch[i]);
+		digits++;
+	    }
+	    else if (!Character.isWhitespace(c))
+	    {
+		throw new ZBDValueException("invalid hexadecimal digit: " + c);
 	    }
 	}
 
-	// Pad to even number of characters
+	// An odd number of digits is taken to have a leading zero
+
+	byte[] b = new byte[(digits + 1) / 2];
+	int pos = digits % 2;
+
+	for (int i = 0; i < s.length(); i++)
+	{
+	    char c = s.charAt(i);
+
+	    if (c < 128 && HEX_VALUES[c] >= 0)
+	    {
+		b[pos >> 1] |= HEX_VALUES[c] << ((pos & 1) == 0 ? 4 : 0);
+		pos++;
+	    }
+	}
+
+	return b;
+    }
+
+    /**
+     * Convert an unsigned big-endian number to hexadecimal as ASCII
+     * bytes, without leading zeros. This is the form in which numbers are
+     * sent in the protocol, and the same as <code>BigInteger</code> gives.
+     *
+     * @param number The number.
+     */
+
+    static final byte[] numberToHexAscii(byte[] number)
+    {
+	int start = 0;
+	while (start < number.length && number[start] == 0)
+	{
+	    start++;
+	}
 
-	if (sb.length() % 2 != 0)
+	if (start == number.length)
 	{
-	    // Pad with a leading zero if the number of characters is odd.
-	    sb.insert(0, "0");
+	    return new byte[] { '0' };
 	}
 
-	byte[] b = new byte[sb.length() / 2];
+	boolean odd = ((number[start] & 0xf0) == 0);
+	byte[] ascii = new byte[2 * (number.length - start) - (odd ? 1 : 0)];
+	int j = 0;
 
-	for (int i = 0; i < sb.length(); i += 2)
+	for (int i = start; i < number.length; i++)
 	{
-	    b[i / 2] = 0;
-	    for (int j = 0; j < 2; j++)
+	    if (i != start || !odd)
 	    {
-		switch (sb.charAt(i + j))
-		{
-		    case '0': b[i / 2] |= (0x0 << ((1 - j) * 4)); break;
-		    case '1': b[i / 2] |= (0x1 << ((1 - j) * 4)); break;
-		    case '2': b[i / 2] |= (0x2 << ((1 - j) * 4)); break;
-		    case '3': b[i / 2] |= (0x3 << ((1 - j) * 4)); break;
-		    case '4': b[i / 2] |= (0x4 << ((1 - j) * 4)); break;
-		    case '5': b[i / 2] |= (0x5 << ((1 - j) * 4)); break;
-		    case '6': b[i / 2] |= (0x6 << ((1 - j) * 4)); break;
-		    case '7': b[i / 2] |= (0x7 << ((1 - j) * 4)); break;
-		    case '8': b[i / 2] |= (0x8 << ((1 - j) * 4)); break;
-		    case '9': b[i / 2] |= (0x9 << ((1 - j) * 4)); break;
-		    case 'a': case 'A': b[i / 2] |= (0xa << ((1 - j) * 4)); break;
-		    case 'b': case 'B': b[i / 2] |= (0xb << ((1 - j) * 4)); break;
-		    case 'c': case 'C': b[i / 2] |= (0xc << ((1 - j) * 4)); break;
-		    case 'd': case 'D': b[i / 2] |= (0xd << ((1 - j) * 4)); break;
-		    case 'e': case 'E': b[i / 2] |= (0xe << ((1 - j) * 4)); break;
-		    case 'f': case 'F': b[i / 2] |= (0xf << ((1 - j) * 4)); break;
-		    default: 
-			throw new ZBDValueException("invalid hexadecimal digit: " + ch[i + j]);
-		}
+		ascii[j++] = (byte)HEX_DIGITS[(number[i] >>> 4) & 0xf];
 	    }
+	    ascii[j++] = (byte)HEX_DIGITS[number[i] & 0xf];
 	}
 
-	return b;
+	return ascii;
     }
 
     /**
@@ -1161,23 +1839,116 @@ public class ZBDTunnel implements Cloneable
      */
 
     final int readMessage(byte[] msgBuf) throws ZBDException
+    {
+	return readMessage(msgBuf, 0, msgBuf.length);
+    }
+
+    /**
+     * Read a message from the tunnel into part of the supplied buffer.
+     * See {@link #readMessage(byte[])}.
+     *
+     * @param msgBuf The message buffer byte array.
+     * @param msgOffset The offset at which to place the message.
+     * @param msgLength The space available from <code>msgOffset</code>.
+     * This must be at least {@link #MAX_BUFFER_SIZE}.
+     *
+     * @return The number of bytes read or -1 on end of file.
+     */
+
+    final int readMessage(byte[] msgBuf, int msgOffset, int msgLength)
+	throws ZBDException
+    {
+	int header = readFrame();
+	if (header < 0)
+	{
+	    return -1;
+	}
+
+	int size = header & SIZE_MASK;
+
+	if ((header & FLAG_ENCRYPTED) != 0 && cipher != null)
+	{
+	    size -= cipher.getOverhead();
+	}
+
+	// A compressed message may be larger than the buffer, and will be
+	// checked once it is uncompressed
+
+	if (size > msgLength && (header & FLAG_COMPRESSED) == 0)
+	{
+	    throw new ZBDProtocolException("incoming message size (" + size +
+					   ") greater than buffer size (" +
+					   msgLength + ")");
+	}
+
+	return decodeMessage(header, frameReader.buf, frameReader.body,
+			     msgBuf, msgOffset, msgLength);
+    }
+
+    /**
+     * Read a potentially compressed and encrypted message from the
+     * tunnel into the supplied buffer. The message data is placed
+     * at the buffer's current position, which is advanced accordingly.
+     * The buffer may be a direct buffer, in which case the message is
+     * uncompressed straight into it with no intermediate copy.
+     * There must be enough space remaining to accept any message that
+     * arrives.
+     *
+     * @param dst The buffer into which the message is to be read.
+     *
+     * @throws ZBDNetworkException Thrown on encountering any kind of
+     * problem in reading from the network. This includes premature EOF and
+     * connection idle timeout.
+     * @throws ZBDProtocolException Thrown if invalid data is detected.
+     * @throws ZBDException Thrown on any other error.
+     *
+     * @return The number of bytes read or -1 on end of file.
+     */
+
+    final int readMessage(ByteBuffer dst) throws ZBDException
+    {
+	int header = readFrame();
+	if (header < 0)
+	{
+	    return -1;
+	}
+
+	return decodeMessage(header, frameReader.buf, frameReader.body, dst);
+    }
+
+    /**
+     * Read the next message header and body from the tunnel. The body
+     * is left, still compressed and encrypted, in the read-ahead buffer
+     * at <code>frameReader.buf[frameReader.body]</code>. It remains valid
+     * until the next read from the tunnel.
+     *
+     * @throws ZBDNetworkException Thrown on encountering any kind of
+     * problem in reading from the network. This includes premature EOF and
+     * connection idle timeout.
+     *
+     * @return The message header or -1 on end of file.
+     */
+
+    final int readFrame() throws ZBDException
     {
 	if (!readOK)
 	{
 	    return -1;
 	}
 
-	// Read the header -- a short integer
+	// Pick up the next complete message. Any further messages that
+	// arrived along with it are left buffered for next time.
 
 	int header = 0;
 
 	try
 	{
-	    header = dataIn.readShort();
+	    header = frameReader.nextFrame();
 	}
 	catch (EOFException eof)
 	{
-	    return -1;
+	    readOK = false;
+	    throw new ZBDNetworkException(eof.getMessage());
 	}
 	catch (InterruptedIOException eint)
 	{
@@ -1187,245 +1958,584 @@ public class ZBDTunnel implements Cloneable
 	catch (IOException eio)
 	{
 	    readOK = false;
-	    throw new ZBDNetworkException("IO error reading message header: " + eio);
+	    throw new ZBDNetworkException("IO error while reading message: " + eio);
 	}
 
-	logger.log(5, "message header = " + header);
+	if (header >= 0 && logger.getLevel() >= 5)
+	{
+	    logger.log(5, "message header = " + header);
+	}
+
+	// Note that you can validly get "oversize" messages during the
+	// initial protocol exchange -- for example the DH key value -- so
+	// the size is not checked against the buffer size here.
+
+	return header;
+    }
 
-	rawBytesIn += 2;
+    /**
+     * Decode a single message whose body has already been read from the
+     * tunnel. The body is decrypted and uncompressed, as indicated by the
+     * flags in <code>header</code>, into the supplied buffer. This is the
+     * second half of {@link #readMessage(byte[])} and is also used by
+     * {@link ZBDNioEngine}, which assembles message bodies without
+     * blocking.
+     *
+     * @param header The message header (flags and payload size).
+     * @param raw The buffer holding the message body as received. Its
+     * contents may be overwritten.
+     * @param rawOffset The offset of the body within <code>raw</code>.
+     * @param msgBuf The message buffer byte array.
+     * @param msgOffset The offset in <code>msgBuf</code> at which to place
+     * the message.
+     * @param msgLength The space available in <code>msgBuf</code>.
+     *
+     * @throws ZBDProtocolException Thrown if invalid data is detected.
+     * @throws ZBDException Thrown on any other error.
+     *
+     * @return The number of message bytes decoded.
+     */
 
+    final int decodeMessage(int header, byte[] raw, int rawOffset,
+			    byte[] msgBuf, int msgOffset, int msgLength)
+	throws ZBDException
+    {
 	// Determine whether encrypted and compressed
 
-	boolean compressed = ((header & FLAG_COMPRESSED) == FLAG_COMPRESSED);
-	boolean encrypted = ((header & FLAG_ENCRYPTED) == FLAG_ENCRYPTED);
+	boolean compressed = ((header & FLAG_COMPRESSED) == FLAG_COMPRESSED);
+	boolean encrypted = ((header & FLAG_ENCRYPTED) == FLAG_ENCRYPTED);
+
+	// Extract the message payload size, and what the cipher will take
+	// off it
+
+	int size = header & SIZE_MASK;
+	int overhead = ((encrypted && cipher != null) ? cipher.getOverhead() : 0);
+
+	boolean trace = (logger.getLevel() >= 5);
+
+	if (trace)
+	{
+	    logger.log(5, "decoding a " + size + " byte message, " +
+		       (encrypted ? "" : "un") + "encrypted, " +
+		       (compressed ? "" : "un") + "compressed");
+	}
+
+	if (!compressed && size - overhead > msgLength)
+	{
+	    throw new ZBDProtocolException("incoming message size (" + size +
+					   ") greater than buffer size (" +
+					   msgLength + ")");
+	}
+
+	// Once a cipher is established everything is sent encrypted, so
+	// anything else has been injected along the way
+
+	if (!encrypted && cipher != null)
+	{
+	    throw new ZBDProtocolException("unencrypted message received after encryption established");
+	}
+
+	readCount++;
+	rawBytesIn += size + 2;
+
+	// Decrypt, if necessary. Compressed data is decrypted in place,
+	// ready to be inflated, otherwise it is decrypted straight into
+	// the message buffer.
+
+	if (encrypted)
+	{
+	    if (cipher == null)
+	    {
+		throw new ZBDProtocolException("encrypted messaged received without an encryption context established");
+	    }
+
+	    if (compressed)
+	    {
+		size = cipher.decrypt(header & ~SIZE_MASK, raw, rawOffset,
+				      raw, rawOffset, size);
+	    }
+	    else
+	    {
+		size = cipher.decrypt(header & ~SIZE_MASK, raw, rawOffset,
+				      msgBuf, msgOffset, size);
+	    }
+	}
+
+	// Uncompress, if necessary
+
+	if (compressed)
+	{
+	    if (compressor == null)
+	    {
+		readOK = false;
+		throw new ZBDProtocolException("compressed message received without compression established");
+	    }
+
+	    try
+	    {
+		size = compressor.decompress(raw, rawOffset, size,
+					     msgBuf, msgOffset, msgLength);
+	    }
+	    catch (ZBDException e)
+	    {
+		readOK = false;
+		throw e;
+	    }
+	}
+	else if (!encrypted)
+	{
+	    System.arraycopy(raw, rawOffset, msgBuf, msgOffset, size);
+	}
+
+	if (trace) logger.log(5, "successfully read message, final size = " + size);
+
+	msgBytesIn += size;
+	return size;
+    }
+
+    /**
+     * Decode a single message into a byte array. See
+     * {@link #decodeMessage(int,byte[],int,byte[],int,int)}.
+     */
+
+    final int decodeMessage(int header, byte[] raw, int rawOffset, byte[] msgBuf)
+	throws ZBDException
+    {
+	return decodeMessage(header, raw, rawOffset, msgBuf, 0, msgBuf.length);
+    }
+
+    /**
+     * Decode a single message into a {@link ByteBuffer}, starting at its
+     * current position. Array-backed buffers are handled exactly as
+     * byte arrays. For direct buffers the body is decrypted in place
+     * and then uncompressed (or copied) straight into the buffer. See
+     * {@link #decodeMessage(int,byte[],int,byte[],int,int)}.
+     */
+
+    final int decodeMessage(int header, byte[] raw, int rawOffset, ByteBuffer dst)
+	throws ZBDException
+    {
+	if (dst.hasArray())
+	{
+	    int num = decodeMessage(header, raw, rawOffset, dst.array(),
+				    dst.arrayOffset() + dst.position(),
+				    dst.remaining());
+	    dst.position(dst.position() + num);
+	    return num;
+	}
+
+	boolean compressed = ((header & FLAG_COMPRESSED) == FLAG_COMPRESSED);
+	boolean encrypted = ((header & FLAG_ENCRYPTED) == FLAG_ENCRYPTED);
+	int size = header & SIZE_MASK;
+	int overhead = ((encrypted && cipher != null) ? cipher.getOverhead() : 0);
+
+	boolean trace = (logger.getLevel() >= 5);
+
+	if (trace)
+	{
+	    logger.log(5, "decoding a " + size + " byte message into a direct buffer, " +
+		       (encrypted ? "" : "un") + "encrypted, " +
+		       (compressed ? "" : "un") + "compressed");
+	}
+
+	if (!compressed && size - overhead > dst.remaining())
+	{
+	    throw new ZBDProtocolException("incoming message size (" + size +
+					   ") greater than buffer size (" +
+					   dst.remaining() + ")");
+	}
+
+	// Once a cipher is established everything is sent encrypted, so
+	// anything else has been injected along the way
+
+	if (!encrypted && cipher != null)
+	{
+	    throw new ZBDProtocolException("unencrypted message received after encryption established");
+	}
+
+	readCount++;
+	rawBytesIn += size + 2;
+
+	if (encrypted)
+	{
+	    if (cipher == null)
+	    {
+		throw new ZBDProtocolException("encrypted messaged received without an encryption context established");
+	    }
+
+	    size = cipher.decrypt(header & ~SIZE_MASK, raw, rawOffset,
+				  raw, rawOffset, size);
+	}
+
+	if (compressed)
+	{
+	    if (compressor == null)
+	    {
+		readOK = false;
+		throw new ZBDProtocolException("compressed message received without compression established");
+	    }
+
+	    try
+	    {
+		size = compressor.decompress(raw, rawOffset, size, dst);
+	    }
+	    catch (ZBDException e)
+	    {
+		readOK = false;
+		throw e;
+	    }
+	}
+	else
+	{
+	    dst.put(raw, rawOffset, size);
+	}
+
+	if (trace) logger.log(5, "successfully read message, final size = " + size);
+
+	msgBytesIn += size;
+	return size;
+    }
+
+    /**
+     * Reads a message from the tunnel into the default buffer
+     * ({@link #message)}. See {@link #readMessage(byte[])} for further
+     * details.
+     */
+
+    final int readMessage() throws ZBDException
+    {
+	if (message == null)
+	{
+	    message = new byte[MAX_BUFFER_SIZE];
+	}
+	return readMessage(message);
+    }
+
+    /**
+     * Write the supplied data to the tunnel, compressed and encrypted as
+     * required.
+     *
+     * @param msg The message buffer.
+     * @param offset The offet from within the buffer from which to start
+     * writing the data.
+     * @param size The number of bytes to write.
+     *
+     * @throws ZBDNetworkException Thrown on encountering any kind of
+     * problem in reading from the network. This includes premature EOF and
+     * connection idle timeout.
+     * @throws ZBDException Thrown on any other error.
+     */
+
+    final void writeMessage(byte[] msg, int offset, int size) throws ZBDException
+    {
+	queueMessage(msg, offset, size);
+	flushMessages();
+    }
+
+    /**
+     * Write the remaining data in the supplied buffer to the tunnel as a
+     * single message, compressed and encrypted as required. The buffer's
+     * position is advanced to its limit. The buffer may be a direct
+     * buffer. See {@link #writeMessage(byte[],int,int)}.
+     *
+     * @param src The buffer holding the message data.
+     *
+     * @throws ZBDNetworkException Thrown on encountering any kind of
+     * problem in writing to the network.
+     * @throws ZBDException Thrown on any other error.
+     */
+
+    final void writeMessage(ByteBuffer src) throws ZBDException
+    {
+	queueMessage(src);
+	flushMessages();
+    }
+
+    /**
+     * Build a message from the supplied data and add it to those waiting
+     * in the output buffer. Nothing is written to the network until the
+     * buffer fills or {@link #flushMessages()} is called, so that a run of
+     * messages goes out in a single write. See
+     * {@link #writeMessage(byte[],int,int)}.
+     *
+     * @throws ZBDNetworkException Thrown on encountering any kind of
+     * problem in writing to the network.
+     * @throws ZBDException Thrown on any other error.
+     */
+
+    final void queueMessage(byte[] msg, int offset, int size) throws ZBDException
+    {
+	if (!writeOK)
+	{
+	    throw new ZBDNetworkException("previous unrecoverable error prohibits writing");
+	}
+
+	reserve(maxEncodedSize(size));
+	outPending += encodeMessage(msg, offset, size, rawOut, outPending);
+    }
+
+    /**
+     * Build a message from the remaining data in the supplied buffer and
+     * add it to those waiting in the output buffer. See
+     * {@link #queueMessage(byte[],int,int)}.
+     */
+
+    final void queueMessage(ByteBuffer src) throws ZBDException
+    {
+	if (!writeOK)
+	{
+	    throw new ZBDNetworkException("previous unrecoverable error prohibits writing");
+	}
+
+	reserve(maxEncodedSize(src.remaining()));
+	outPending += encodeMessage(src, rawOut, outPending);
+    }
+
+    /**
+     * Make room for <code>needed</code> more bytes in the output buffer,
+     * flushing it if need be. The buffer is made big enough for
+     * {@link #COALESCE_FRAMES} messages of the negotiated buffer size
+     * when first used, and grows if the cipher or compression set up
+     * later need more.
+     */
+
+    private void reserve(int needed) throws ZBDException
+    {
+	if (rawOut != null && rawOut.length - outPending >= needed)
+	{
+	    return;
+	}
+
+	flushMessages();
+
+	if (rawOut == null || rawOut.length < needed)
+	{
+	    int size = COALESCE_FRAMES * maxEncodedSize(bufferSize);
+	    rawOut = new byte[size > needed ? size : needed];
+	}
+    }
+
+    /**
+     * Drop the buffers used by the stream-based methods, once the
+     * connection has been handed over to a reader and writer that have
+     * their own, such as {@link ZBDNioEngine}. Anything read ahead must
+     * already have been taken with {@link ZBDFrameReader#drain}.
+     */
 
-	// Extract the message payload size
+    final void releaseStreamBuffers()
+    {
+	message = null;
+	rawOut = null;
+	if (frameReader != null)
+	{
+	    frameReader.release();
+	}
+    }
 
-	int size = header & SIZE_MASK;
+    /**
+     * Returns the most space that a message of <code>size</code> bytes
+     * can take once encoded, including its header.
+     */
 
-	logger.log(5, "reading a " + size + " byte message, " +
-	     (encrypted ? "" : "un") + "encrypted, " +
-	     (compressed ? "" : "un") + "compressed");
+    final int maxEncodedSize(int size)
+    {
+	return size + 2 + (cipher == null ? 0 : cipher.getOverhead()) +
+	    (compressor == null ? 0 : compressor.getExpansion());
+    }
 
-	// Some sanity checks ...
+    /**
+     * Write any messages waiting in the output buffer to the network.
+     *
+     * @throws ZBDNetworkException Thrown on encountering any kind of
+     * problem in writing to the network.
+     */
 
-// You can validly get "oversize" messages during the initial protocol
-// exchange -- for example the DH key value.
-//
-//	if (size > bufferSize)
-//	{
-//	    throw new ZBDProtocolException("incoming message size (" + size +
-//					   ") greater than maximum buffer size (" +
-//					   bufferSize + ")");
-//	}
+    final void flushMessages() throws ZBDException
+    {
+	int len = outPending;
 
-	if (size > msgBuf.length)
+	if (len == 0)
 	{
-	    throw new ZBDProtocolException("incoming message size (" + size +
-					   ") greater than buffer size (" +
-					   msgBuf.length + ")");
+	    return;
 	}
 
-	// Now read the (potentially fragmented) message body. This is
-	// assembled in the "rawIn" buffer.
+	outPending = 0;
+
+	// Write the data!
 
-	int needed = size;
-	int offset = 0;
 	try
 	{
-	    while (needed > 0)
-	    {
-		int num = dataIn.read(rawIn, offset, needed);
-		if (num == -1)
-		{
-		    throw new ZBDNetworkException("EOF encountered reading message of size " + size);
-		}
-		needed -= num;
-		offset += num;
-	    }
-	}
-	catch (InterruptedIOException eint)
-	{
-	    readOK = false;
-	    throw new ZBDTimeoutException("connection timed out while reading data");
+	    dataOut.write(rawOut, 0, len);
 	}
-	catch (IOException eio)
+	catch (Exception e)
 	{
-	    readOK = false;
-	    throw new ZBDNetworkException("IO error while reading message");
+	    writeOK = false;
+	    throw new ZBDNetworkException("error writing message of " + len
+					  + "bytes");
 	}
 
-	readCount++;
-	rawBytesIn += size;
+	netWrites++;
+    }
 
-	// Decrypt, if necessary
+    /**
+     * Build a complete message from the remaining data in a
+     * {@link ByteBuffer}, advancing its position to its limit.
+     * Array-backed buffers are handled exactly as byte arrays. Data in
+     * a direct buffer is deflated or copied straight into the frame and
+     * then encrypted in place. See
+     * {@link #encodeMessage(byte[],int,int,byte[],int)}.
+     */
 
-	if (encrypted)
-	{
-	    if (bfIn == null)
-	    {
-		throw new ZBDProtocolException("encrypted messaged received without an encryption context established");
-	    }
+    final int encodeMessage(ByteBuffer src, byte[] frame, int frameOffset)
+	throws ZBDException
+    {
+	int size = src.remaining();
 
-	    bfIn.cfb64Encrypt(rawIn, 0, msgBuf, 0, size, false);
-	    System.arraycopy(msgBuf, 0, rawIn, 0, size);
+	if (src.hasArray())
+	{
+	    int len = encodeMessage(src.array(), src.arrayOffset() + src.position(),
+				    size, frame, frameOffset);
+	    src.position(src.limit());
+	    return len;
 	}
 
-	// Uncompress, if necessary
+	int start = src.position();
+	int body = frameOffset + 2;
+	int cmpSize = size;
+	int header = size;
 
-	if (compressed)
-	{
-	    // FIX-ME
-	    // Should check the compression type but we only handle Zlib
-	    // so I will not bother for the moment ...
+	boolean trace = (logger.getLevel() >= 5);
 
-	    int uncmp = 0;
-	    try
-	    {
-		inflater.setInput(rawIn, 0, size);
-		uncmp = inflater.inflate(msgBuf);
-		inflater.reset();
-	    }
-	    catch (DataFormatException edf)
-	    {
-		readOK = false;
-		throw new ZBDProtocolException("data format error uncompressing message buffer: " + edf);
-	    }
+	if (trace) logger.log(5, "Writing message of size " + size + " from a direct buffer");
 
-	    if (uncmp == 0)
-	    {
-		readOK = false;
-		throw new ZBDException("internal error: more input or preset dictionary required uncompressing data buffer");
-	    }
+	// Compress straight into the frame. If that gains nothing then
+	// the original data is sent instead.
+
+	boolean deflated = false;
+	if (compressor != null && size > CMP_MINIMUM && compressor.attempt(src))
+	{
+	    cmpSize = compressor.compress(src, frame, body,
+					  size + compressor.getExpansion());
+	    compressor.result(size, cmpSize);
+	    deflated = (cmpSize >= 0);
+	}
 
-	    size = uncmp;
+	if (deflated)
+	{
+	    header = FLAG_COMPRESSED | cmpSize;
+	    if (trace) logger.log(5, "message compressed to " + cmpSize + " bytes");
 	}
 	else
 	{
-	    System.arraycopy(rawIn, 0, msgBuf, 0, size);
+	    src.position(start);
+	    src.get(frame, body, size);
+	    cmpSize = size;
 	}
+	src.position(start + size);
 
-	logger.log(5, "successfully read message, final size = " + size);
+	if (cipher != null)
+	{
+	    header = (header & ~SIZE_MASK) | FLAG_ENCRYPTED;
+	    cmpSize = cipher.encrypt(header, frame, body, frame, body, cmpSize);
+	    header |= cmpSize;
+	    if (trace) logger.log(5, "message encrypted");
+	}
 
-	msgBytesIn += size;
-	return size;
-    }
+	frame[frameOffset] = (byte)((header >> 8) & 0xff);
+	frame[frameOffset + 1] = (byte)(header & 0xff);
 
-    /**
-     * Reads a message from the tunnel into the default buffer
-     * ({@link #message)}. See {@link #readMessage(byte[])} for further
-     * details.
-     */
+	writeCount++;
+	rawBytesOut += cmpSize + 2;
+	msgBytesOut += size;
 
-    final int readMessage() throws ZBDException
-    {
-	return readMessage(message);
+	return cmpSize + 2;
     }
 
     /**
-     * Write the supplied data to the tunnel, compressed and encrypted as
-     * required.
+     * Compress and encrypt the supplied data, as required, and build a
+     * complete message (header plus body) ready to be written to the
+     * tunnel. This is the first half of {@link #writeMessage(byte[],int,int)}
+     * and is also used by {@link ZBDNioEngine}.
      *
      * @param msg The message buffer.
      * @param offset The offet from within the buffer from which to start
-     * writing the data.
-     * @param size The number of bytes to write.
+     * reading the data.
+     * @param size The number of bytes to encode.
+     * @param frame The buffer into which to build the message. There must
+     * be room for at least {@link #maxEncodedSize(int) maxEncodedSize(size)}
+     * bytes.
+     * @param frameOffset The offset within <code>frame</code> at which to
+     * start.
      *
-     * @throws ZBDNetworkException Thrown on encountering any kind of
-     * problem in reading from the network. This includes premature EOF and
-     * connection idle timeout.
-     * @throws ZBDException Thrown on any other error.
+     * @throws ZBDException Thrown on any error.
+     *
+     * @return The total number of bytes in the encoded message.
      */
 
-    final void writeMessage(byte[] msg, int offset, int size) throws ZBDException
+    final int encodeMessage(byte[] msg, int offset, int size,
+			    byte[] frame, int frameOffset) throws ZBDException
     {
-	if (!writeOK)
-	{
-	    throw new ZBDNetworkException("previous unrecoverable error prohibits writing");
-	}
-
-	// Get a temporary buffer -- big enough to allow for the data itself
-	// plus any possible compression overhead
-
-	byte[] tmp = new byte[size + CMP_OVERHEAD];
-
+	int body = frameOffset + 2;
 	int cmpSize = size;
 	int header = size;
+	boolean trace = (logger.getLevel() >= 5);
 
-	logger.log(5, "Writing message of size " + size);
+	if (trace) logger.log(5, "Writing message of size " + size);
 
-	// If we are compressing and the message size warrants it ...
+	// If we are compressing and the message size warrants it, and the
+	// compressor does not expect it to be a waste of time ...
+	// The data is compressed straight into the frame. A compressor
+	// that treats each message on its own declines if that gains
+	// nothing, and the original is sent instead. A streaming one has
+	// always to be used, but is allowed a little more room.
 
-	if (compressionInfo > 0 && size > CMP_MINIMUM)
+	boolean deflated = false;
+	if (compressor != null && size > CMP_MINIMUM &&
+	    compressor.attempt(msg, offset, size))
 	{
-	    // FIX-ME
-	    // Should select compression type here but we will only do
-	    // Zlib so ...
-
-	    deflater.reset();
-	    deflater.setInput(msg, offset, size);
-	    deflater.finish();
-	    cmpSize = deflater.deflate(tmp);
-
-	    // Only compress if it gains anything otherwise copy the
-	    // original data to the temporary buffer.
+	    cmpSize = compressor.compress(msg, offset, size, frame, body,
+					  size + compressor.getExpansion());
+	    compressor.result(size, cmpSize);
+	    deflated = (cmpSize >= 0);
+	}
 
-	    if (cmpSize >= size)
-	    {
-		System.arraycopy(msg, offset, tmp, 0, size);
-		cmpSize = size;
-		logger.log(5, "message uncompressed");
-	    }
-	    else
-	    {
-		header = FLAG_COMPRESSED | cmpSize;
-		logger.log(5, "message compressed to " + cmpSize + " bytes");
-	    }
+	if (deflated)
+	{
+	    header = FLAG_COMPRESSED | cmpSize;
+	    if (trace) logger.log(5, "message compressed to " + cmpSize + " bytes");
 	}
 	else
 	{
-	    System.arraycopy(msg, offset, tmp, 0, size);
+	    cmpSize = size;
+	    System.arraycopy(msg, offset, frame, body, size);
 	}
 
-	// tmp will now contain message data either compressed or not.
-	// cmpSize will contain the size.
+	// The frame body now contains message data either compressed or
+	// not. If encryption has been set up then use it, in place.
 
-	// If encryption has been set up then use it.
-
-	if (bfOut != null)
-	{
-	    bfOut.cfb64Encrypt(tmp, 0, rawOut, 2, cmpSize, true);
-	    header |= FLAG_ENCRYPTED;
-	    logger.log(5, "message encrypted");
-	}
-	else
+	if (cipher != null)
 	{
-	    System.arraycopy(tmp, 0, rawOut, 2, cmpSize);
+	    header = (header & ~SIZE_MASK) | FLAG_ENCRYPTED;
+	    cmpSize = cipher.encrypt(header, frame, body, frame, body, cmpSize);
+	    header |= cmpSize;
+	    if (trace) logger.log(5, "message encrypted");
 	}
 
 	// Add in header info (short integer, network byte order)
 
-	rawOut[0] = (byte)((header >> 8) & 0xff);
-	rawOut[1] = (byte)(header & 0xff);
+	frame[frameOffset] = (byte)((header >> 8) & 0xff);
+	frame[frameOffset + 1] = (byte)(header & 0xff);
 
-	logger.log(999, "raw output data = " + bytesToHex(rawOut, 0, cmpSize + 2));
-
-	// Write the data!
-
-	try
+	if (logger.getLevel() >= 999)
 	{
-	    dataOut.write(rawOut, 0, cmpSize + 2);
-	}
-	catch (Exception e)
-	{
-	    writeOK = false;
-	    throw new ZBDNetworkException("error writing message of " + (cmpSize + 2)
-					  + "bytes");
+	    logger.log(999, "raw output data = " + bytesToHex(frame, frameOffset, cmpSize + 2));
 	}
 
 	writeCount++;
 	rawBytesOut += cmpSize + 2;
 	msgBytesOut += size;
+
+	return cmpSize + 2;
     }
 
     /**
@@ -1466,6 +2576,11 @@ public class ZBDTunnel implements Cloneable
     /**
      * Perform the the Diffie-Hellman exponentiation and return the result
      * as a string.
+     * <p>
+     * This computes the public value for a private key, and the group
+     * parameters are kept for next time, so it should not be used to
+     * compute a shared secret, for which see
+     * {@link #sharedSecret(String,String,String,String)}.
      *
      * @param generator The generator as a hexadecimal string or <code>""</code>
      * for the default value.
@@ -1476,22 +2591,33 @@ public class ZBDTunnel implements Cloneable
 
     public static String diffieHellman(String generator, String modulus, String exponent)
     {
-	if (generator == null || generator.equals(""))
-	{
-	    generator = DFLT_GENERATOR;
-	}
+	ZBDDiffieHellman dh = ZBDDiffieHellman.getInstance(generator, modulus);
 
-	if (modulus == null || modulus.equals(""))
-	{
-	    modulus = DFLT_MODULUS;
-	}
+	return ZBDDiffieHellman.format(dh.publicValue(new BigInteger(exponent, 16)));
+    }
+
+    /**
+     * Compute the Diffie-Hellman shared secret from the peer's public
+     * value and return it as an unsigned big-endian number.
+     *
+     * @param generator The generator as a hexadecimal string or <code>""</code>
+     * for the default value.
+     * @param modulus The modulus as a hexadecimal string or <code>""</code>
+     * for the default value.
+     * @param peerKey The peer's public value as a hexadecimal string.
+     * @param exponent The exponent (private key) as a hexadecimal string.
+     *
+     * @throws ZBDProtocolException Thrown if the peer's value is not
+     * valid hexadecimal.
+     */
 
-	BigInteger gen = new BigInteger(generator, 16);
-	BigInteger mod = new BigInteger(modulus, 16);
-	BigInteger exp = new BigInteger(exponent, 16);
-	BigInteger key = gen.modPow(exp, mod);
+    static byte[] sharedSecret(String generator, String modulus, String peerKey, String exponent)
+	throws ZBDProtocolException
+    {
+	ZBDDiffieHellman dh = ZBDDiffieHellman.getInstance(generator, modulus);
 
-	return key.toString(16);
+	return ZBDDiffieHellman.toBytes(dh.sharedSecret(ZBDDiffieHellman.parse(peerKey),
+							new BigInteger(exponent, 16)));
     }
 
     /**
@@ -1517,12 +2643,56 @@ public class ZBDTunnel implements Cloneable
 	}
     }
 
+    /**
+     * Check whether the peer has closed a connection on which nothing is
+     * currently being read, waiting no more than a moment to find out.
+     * Any data that has arrived is left buffered for the next read.
+     *
+     * @return True if the connection has been closed or has failed.
+     */
+
+    final boolean peerClosed()
+    {
+	if (!readOK)
+	{
+	    return true;
+	}
+
+	try
+	{
+	    if (frameReader.available() > 0)
+	    {
+		return false;
+	    }
+
+	    tunnelSocket.setSoTimeout(1);
+	    try
+	    {
+		return (frameReader.fill() < 0);
+	    }
+	    catch (InterruptedIOException e)
+	    {
+		return false;
+	    }
+	    finally
+	    {
+		tunnelSocket.setSoTimeout(idleTimeout * 1000);
+	    }
+	}
+	catch (IOException e)
+	{
+	    return true;
+	}
+    }
+
     /**
      * Close the tunnel connection.
      */
 
     synchronized public void close() throws ZBDException
     {
+	logCompression();
+
 	try
 	{
 	    readOK = false;
@@ -1535,12 +2705,26 @@ public class ZBDTunnel implements Cloneable
 	}
     }
 
+    /**
+     * Log the compression statistics when the output side is closed.
+     */
+
+    private void logCompression()
+    {
+	if (writeOK && compressor != null)
+	{
+	    logger.log(3, compressor.getStatistics());
+	}
+    }
+
     /**
      * Shutdown the output side of the tunnel connection.
      */
 
     synchronized public void shutdownOutput() throws ZBDException
     {
+	logCompression();
+
 	try
 	{
 	    writeOK = false;
@@ -1587,6 +2771,165 @@ public class ZBDTunnel implements Cloneable
 	return writeOK;
     }
 
+    /**
+     * Check that the data path does not allocate for each message. One
+     * tunnel writes messages through a {@link ZBDOutputStream} into a
+     * buffer in memory and another reads them back through a
+     * {@link ZBDInputStream}, and the bytes allocated by this thread are
+     * counted with the HotSpot <code>ThreadMXBean</code>. Blowfish, alone
+     * and with per-message or streaming compression, should allocate
+     * nothing once warmed up, beyond the odd one-off growth in LZ4. The
+     * JCA allocates for each AES-GCM message, starting with its
+     * <code>GCMParameterSpec</code>, so that is only reported.
+     */
+
+    public static void main(String args[]) throws Exception
+    {
+	// Looked up by name as the management classes are not part of
+	// Android
+
+	Object bean = Class.forName("java.lang.management.ManagementFactory").
+	    getMethod("getThreadMXBean").invoke(null);
+	java.lang.reflect.Method allocated =
+	    Class.forName("com.sun.management.ThreadMXBean").
+	    getMethod("getThreadAllocatedBytes", long.class);
+	Long self = Long.valueOf(Thread.currentThread().getId());
+
+	String[] modes = { "blowfish", "blowfish zlib:6", "blowfish zlib:6 streaming",
+			   "blowfish lz4:1 streaming", "aes-gcm" };
+	int[] values = { 0, 0x06, 0x06, 0x201, 0 };
+	boolean[] streams = { false, false, true, true, false };
+
+	Random rand = new Random(0);
+	byte[] key = new byte[16];
+	rand.nextBytes(key);
+
+	// Text-like data, so that compression has something to do
+
+	byte[] msg = new byte[DFLT_BUFFER_SIZE];
+	for (int i = 0; i < msg.length; i++)
+	{
+	    msg[i] = (byte)('a' + rand.nextInt(8));
+	}
+	byte[] got = new byte[MAX_BUFFER_SIZE];
+	int count = 20000;
+	boolean ok = true;
+
+	for (int m = 0; m < modes.length; m++)
+	{
+	    boolean gcm = (m == modes.length - 1);
+
+	    if (gcm && !ZBDAesGcmCipher.isAvailable())
+	    {
+		continue;
+	    }
+
+	    ZBDTunnel writer = new ZBDTunnel();
+	    ZBDTunnel reader = new ZBDTunnel();
+	    ZBDTunnel[] ends = { writer, reader };
+	    Loopback pipe = new Loopback(4 * MAX_BUFFER_SIZE);
+
+	    for (int e = 0; e < ends.length; e++)
+	    {
+		ZBDTunnel t = ends[e];
+
+		t.cipher = (gcm ? (ZBDCipher)new ZBDAesGcmCipher(key, e == 0) :
+			    (ZBDCipher)new ZBDBlowfishCipher(key, t.initVec));
+		t.compressionInfo = values[m];
+		t.setupCompression(streams[m]);
+		t.limitBufferSize();
+	    }
+	    writer.dataOut = new DataOutputStream(pipe.out);
+	    reader.frameReader = new ZBDFrameReader(pipe, reader);
+	    reader.dataIn = new DataInputStream(reader.frameReader);
+
+	    ZBDOutputStream out = new ZBDOutputStream(writer);
+	    ZBDInputStream in = new ZBDInputStream(reader);
+	    long bytes = 0;
+
+	    // The first round warms up
+
+	    for (int round = 0; round < 2; round++)
+	    {
+		long before = ((Long)allocated.invoke(bean, self)).longValue();
+
+		for (int i = 0; i < count; i++)
+		{
+		    out.write(msg, 0, msg.length);
+		    for (int n = 0; n < msg.length; )
+		    {
+			n += in.read(got, 0, got.length);
+		    }
+		}
+
+		bytes = ((Long)allocated.invoke(bean, self)).longValue() - before;
+	    }
+
+	    double perMessage = (double)bytes / count;
+	    boolean pass = gcm || perMessage < 1.0;
+
+	    System.out.println(modes[m] + ": " + (Math.round(perMessage * 100) / 100.0) +
+			       " bytes allocated per message" +
+			       (gcm ? "" : pass ? "" : "  FAILED"));
+	    ok &= pass;
+	}
+
+	if (!ok)
+	{
+	    System.exit(1);
+	}
+    }
+
+    /**
+     * An in-memory pipe for {@link #main}, which reuses its buffer.
+     */
+
+    static class Loopback extends InputStream
+    {
+	byte[] buf;
+	int pos = 0;
+	int end = 0;
+
+	OutputStream out = new OutputStream()
+	{
+	    public void write(int b)
+	    {
+		buf[end++] = (byte)b;
+	    }
+
+	    public void write(byte[] b, int offset, int len)
+	    {
+		if (pos == end)
+		{
+		    pos = end = 0;
+		}
+		System.arraycopy(b, offset, buf, end, len);
+		end += len;
+	    }
+	};
+
+	Loopback(int size)
+	{
+	    buf = new byte[size];
+	}
+
+	public int read()
+	{
+	    return (pos < end ? buf[pos++] & 0xff : -1);
+	}
+
+	public int read(byte[] b, int offset, int len)
+	{
+	    if (pos == end)
+	    {
+		return -1;
+	    }
+	    int num = (end - pos < len ? end - pos : len);
+	    System.arraycopy(buf, pos, b, offset, num);
+	    pos += num;
+	    return num;
+	}
+    }
 }
 
 /**
@@ -1622,10 +2965,10 @@ class ZBDTokenTable // This could probably be an inner class of ZBDTunnel
 
     private class KeyInfo
     {
-	String key;
+	byte[] key;
 	long expiry;
 
-	KeyInfo(String key, int lifetime)
+	KeyInfo(byte[] key, int lifetime)
 	{
 	    this.key = key;
 	    expiry = System.currentTimeMillis() + lifetime * 1000;
@@ -1723,14 +3066,14 @@ class ZBDTokenTable // This could probably be an inner class of ZBDTunnel
     }
 
     /**
-     * Sets the current reuse token and associates the given key string
+     * Sets the current reuse token and associates the given key
      * with it.
      *
      * @param token The token value.
-     * @param key The key string.
+     * @param key The shared key.
      */
 
-    synchronized int setCurrentToken(int token, String key)
+    synchronized int setCurrentToken(int token, byte[] key)
     {
 	setKeyForToken(token, key);
 	currentToken = token;
@@ -1738,12 +3081,12 @@ class ZBDTokenTable // This could probably be an inner class of ZBDTunnel
     }
 
     /**
-     * Retrieves the key string, if any, associated with the given token.
+     * Retrieves the shared key, if any, associated with the given token.
      * If no matching token is found or the key has expired then returns
      * <code>null</code>.
      */
 
-    synchronized String getKeyForToken(int token)
+    synchronized byte[] getKeyForToken(int token)
     {
 	// Save a table search
 
@@ -1752,7 +3095,7 @@ class ZBDTokenTable // This could probably be an inner class of ZBDTunnel
 	    return null;
 	}
 
-	KeyInfo info = (KeyInfo)keyInfoTable.get(new Integer(token));
+	KeyInfo info = (KeyInfo)keyInfoTable.get(Integer.valueOf(token));
 	if (info != null)
 	{
 	    if (System.currentTimeMillis() < info.expiry)
@@ -1764,12 +3107,24 @@ class ZBDTokenTable // This could probably be an inner class of ZBDTunnel
     }
 
     /**
-     * Associates the specified key string with the given token. The expiry
+     * Retrieves the time, in millisecs, at which the key associated with
+     * the given token expires or 0 if there is no such key.
+     */
+
+    synchronized long getExpiry(int token)
+    {
+	KeyInfo info = (KeyInfo)keyInfoTable.get(new Integer(token));
+
+	return (info == null ? 0 : info.expiry);
+    }
+
+    /**
+     * Associates the specified shared key with the given token. The expiry
      * time is set to the current time plus the current key lifetime
      * (see {@link #getKeyLifetime()}).
      */
 
-    synchronized void setKeyForToken(int token, String key)
+    synchronized void setKeyForToken(int token, byte[] key)
     {
 	KeyInfo ki = new KeyInfo(key, keyLifetime);
 
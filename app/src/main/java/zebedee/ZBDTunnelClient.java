@@ -119,7 +119,7 @@ public class ZBDTunnelClient extends ZBDTunnel
 
 	try
 	{
-	    tunnelSocket = new Socket(serverHost, serverPort);
+	    tunnelSocket = openSocket(serverHost, serverPort);
 	}
 	catch (IOException e)
 	{
@@ -183,8 +183,7 @@ public class ZBDTunnelClient extends ZBDTunnel
 
 	try
 	{
-	    dataIn = new DataInputStream(sock.getInputStream());
-	    dataOut = new DataOutputStream(sock.getOutputStream());
+	    openStreams(sock);
 	}
 	catch (IOException eio)
 	{
@@ -196,9 +195,21 @@ public class ZBDTunnelClient extends ZBDTunnel
 
 	new Random().nextBytes(clientNonce);
 
-	// Now enter negotiation with the server
+	// Now enter negotiation with the server,
 
-	negotiate();
+	// under the overall handshake deadline.
+
+	TimerTask deadline = startHandshake();
+	ZBDException failure = null;
+	try
+	{
+	    negotiate();
+	}
+	catch (ZBDException e)
+	{
+	    failure = e;
+	}
+	endHandshake(deadline, failure);
 
 	// Indicate that we are connected and ready to go!
 
@@ -216,12 +227,25 @@ public class ZBDTunnelClient extends ZBDTunnel
 	int response = 0;
 	int serverToken = 0;
 
+	// Offer the highest version we are willing to use. A server that
+	// does not know it answers with the version it does support, in
+	// which case we fall back to that if we can.
+
+	protocol = (aesGcm ? PROTOCOL_V202 : PROTOCOL_V201);
+
 	try
 	{
 	    dataOut.writeShort(protocol);
 	    response = dataIn.readShort();
 
-	    if (response != protocol)
+	    if (response == PROTOCOL_V201 && protocol > PROTOCOL_V201)
+	    {
+		logger.log(3, "server does not support protocol version " +
+			   Integer.toHexString(protocol) + ", falling back to " +
+			   Integer.toHexString(response));
+		protocol = response;
+	    }
+	    else if (response != protocol)
 	    {
 		throw new ZBDProtocolException("server responded with incompatible protocol version (requested "
 				       + Integer.toHexString(protocol)
@@ -245,6 +269,8 @@ public class ZBDTunnelClient extends ZBDTunnel
 	logger.log(3, "sent protocol version " + protocol + ", received " +
 	     response);
 
+	handshakePhase = "header";
+
 	// Create a byte array output stream for the header data.
 	// We wrap this into a DataOutputStream to allow easy
 	// writing of the data.
@@ -254,8 +280,15 @@ public class ZBDTunnelClient extends ZBDTunnel
 
 	try
 	{
-	    logger.log(3, "requesting " + (udpMode ? "UDP mode" : "TCP mode"));
-	    dHdrOut.writeShort(udpMode ? HDR_FLAG_UDPMODE : 0);
+	    logger.log(3, "requesting " + (udpMode ? "UDP mode" :
+					    (multiplex ? "multiplexed TCP mode" :
+					     "TCP mode")));
+	    dHdrOut.writeShort(udpMode ? HDR_FLAG_UDPMODE :
+			       ((multiplex ? HDR_FLAG_MULTIPLEX : 0) |
+				(streamCompression && compressionInfo > 0 ?
+				 HDR_FLAG_CMPSTREAM : 0) |
+				(!dictionaries.isEmpty() && compressionInfo > 0 ?
+				 HDR_FLAG_CMPDICT : 0)));
 
 	    logger.log(3, "requesting buffer size = " + bufferSize);
 	    dHdrOut.writeShort(bufferSize);
@@ -312,6 +345,13 @@ public class ZBDTunnelClient extends ZBDTunnel
 	    // Check TCP vs UDP mode
 
 	    response = dataIn.readShort();
+	    muxMode = (!udpMode && multiplex &&
+		       (response & HDR_FLAG_MULTIPLEX) != 0);
+	    cmpStream = (!udpMode && streamCompression &&
+			 (response & HDR_FLAG_CMPSTREAM) != 0);
+	    cmpDict = (!udpMode && !dictionaries.isEmpty() &&
+		       (response & HDR_FLAG_CMPDICT) != 0);
+	    response &= ~(HDR_FLAG_MULTIPLEX | HDR_FLAG_CMPSTREAM | HDR_FLAG_CMPDICT);
 	    if ((udpMode && response != HDR_FLAG_UDPMODE) ||
 		(tcpMode && response == HDR_FLAG_UDPMODE))
 	    {
@@ -321,7 +361,9 @@ public class ZBDTunnelClient extends ZBDTunnel
 					       (tcpMode ? "TCP" : "UDP") +
 					       " mode");
 	    }
-	    logger.log(3, "accepted " + (udpMode ? "UDP mode" : "TCP mode"));
+	    logger.log(3, "accepted " + (udpMode ? "UDP mode" :
+					  (muxMode ? "multiplexed TCP mode" :
+					   "TCP mode")));
 
 	    // Accept server buffer size provided > 0
 
@@ -346,14 +388,9 @@ public class ZBDTunnelClient extends ZBDTunnel
 	    logger.log(3, "accepted compression = " + response);
 
 	    // Now we know whether compression will be applied we
-	    // can initialise the inflater/deflater.
-	    // FIX-ME handle BZIP2 too.
+	    // can initialise the compressor.
 
-	    if (compressionInfo > 0)
-	    {
-		inflater = new Inflater(false);
-		deflater = new Deflater(compressionInfo, false);
-	    }
+	    setupCompression(cmpStream);
 
 	    // Check that the port was accepted
 
@@ -384,13 +421,43 @@ public class ZBDTunnelClient extends ZBDTunnel
 
 	    // Get the server nonce value
 
-	    dataIn.read(serverNonce, 0, NONCE_SIZE);
+	    dataIn.readFully(serverNonce, 0, NONCE_SIZE);
 	    logger.log(3, "server nonce = " + bytesToHex(serverNonce));
 
 	    // Skip the target address data -- we do not need the response
 	    // but we must consume it!
 
 	    dataIn.readInt();
+
+	    // If agreed the server lists its dictionaries, and we choose
+	    // the first of ours that it has. We tell it which during the
+	    // challenge.
+
+	    if (cmpDict)
+	    {
+		int count = dataIn.readUnsignedByte();
+		byte[][] ids = new byte[count][ZBDDictionary.ID_SIZE];
+
+		for (int i = 0; i < count; i++)
+		{
+		    dataIn.readFully(ids[i], 0, ZBDDictionary.ID_SIZE);
+		}
+
+		for (int i = 0; i < dictionaries.size() && dictionary == null; i++)
+		{
+		    ZBDDictionary dict = (ZBDDictionary)dictionaries.elementAt(i);
+		    for (int j = 0; j < count && dictionary == null; j++)
+		    {
+			if (Arrays.equals(dict.getId(), ids[j]))
+			{
+			    dictionary = dict;
+			}
+		    }
+		}
+		logger.log(3, "server offered " + count + " compression dictionaries, " +
+			   (dictionary == null ? "none" : "including " + dictionary.getName()) +
+			   " in common");
+	    }
 	}
 	catch (EOFException eof)
 	{
@@ -409,16 +476,16 @@ public class ZBDTunnelClient extends ZBDTunnel
 	// have a previously generated secret key associated with the
 	// token returned by the server.
 
-	String contextKey = tokens.getKeyForToken(serverToken);
-	String sessionKey = null;
+	byte[] contextKey = tokens.getKeyForToken(serverToken);
+	byte[] sessionKey = null;
 
 	if (contextKey != null)
 	{
 	    sessionKey = generateSessionKey(contextKey);
 
-	    // Initialise input and output Blowfish streams
+	    // Initialise input and output encryption
 
-	    setupBlowfish(sessionKey);
+	    setupCipher(sessionKey);
 
 	    // Perform challenge-response dialogue
 
@@ -426,6 +493,8 @@ public class ZBDTunnelClient extends ZBDTunnel
 	}
 	else if (keySize > 0)
 	{
+	    handshakePhase = "key exchange";
+
 	    // Read the DH generator
 
 	    int num = readMessage();
@@ -492,13 +561,12 @@ public class ZBDTunnelClient extends ZBDTunnel
 		logger.log(3, "validated server identity");
 	    }
 
-	    // Generate our private key (the DH exponent)
-
-	    String exponent = generatePrivateKey();
-
-	    // Now do the Diffie-Hellman calculation
+	    // Generate our private key (the DH exponent) and do the
+	    // Diffie-Hellman calculation, or take a precomputed pair
 
-	    String dhKey = diffieHellman(generator, modulus, exponent);
+	    String[] pair = generateKeyPair();
+	    String exponent = pair[0];
+	    String dhKey = pair[1];
 
 	    // Send this to the server as a ASCII, null-terminated
 	    // string.
@@ -514,19 +582,21 @@ public class ZBDTunnelClient extends ZBDTunnel
 
 	    // Now generate the shared secret key
 
-	    String sharedKey = diffieHellman(serverDhKey, modulus, exponent);
-
-	    logger.log(5, "shared key = " + sharedKey);
+	    byte[] sharedKey = sharedSecret(generator, modulus, serverDhKey, exponent);
 
 	    // Create a shared session key
 
 	    sessionKey = generateSessionKey(sharedKey);
 
-	    logger.log(5, "session key = " + sessionKey);
+	    if (logger.getLevel() >= 5)
+	    {
+		logger.log(5, "shared key = " + bytesToHex(sharedKey));
+		logger.log(5, "session key = " + bytesToHex(sessionKey));
+	    }
 
-	    // Initialise Blowfish state
+	    // Initialise encryption state
 
-	    setupBlowfish(sessionKey);
+	    setupCipher(sessionKey);
 
 	    // Perform challenge-response dialogue
 
@@ -537,6 +607,8 @@ public class ZBDTunnelClient extends ZBDTunnel
 	    tokens.setCurrentToken(serverToken, sharedKey);
 	}
 
+	keyExpiry = tokens.getExpiry(serverToken);
+
 	// Yippee! We made it!
     }
 
@@ -546,6 +618,8 @@ public class ZBDTunnelClient extends ZBDTunnel
 
     final void challengeResponse() throws ZBDException
     {
+	handshakePhase = "challenge";
+
 	byte[] serverChallenge = new byte[CHALLENGE_SIZE];
 
 	// Read the challenge from the server
@@ -587,6 +661,23 @@ public class ZBDTunnelClient extends ZBDTunnel
 	    throw new ZBDNetworkException("failed writing client challenge to server: " + e);
 	}
 
+	// Followed by the identifier of the dictionary we chose, all
+	// zeroes if none
+
+	if (cmpDict)
+	{
+	    try
+	    {
+		writeMessage(dictionary == null ? new byte[ZBDDictionary.ID_SIZE] :
+			     dictionary.getId());
+	    }
+	    catch (ZBDException e)
+	    {
+		throw new ZBDNetworkException("failed writing compression dictionary to server: " + e);
+	    }
+	    setupDictionary();
+	}
+
 	// Get the reponse and validate it
 
 	if (readMessage() != CHALLENGE_SIZE)
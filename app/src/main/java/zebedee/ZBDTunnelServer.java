@@ -97,8 +97,7 @@ public class ZBDTunnelServer extends ZBDTunnel
 
 	try
 	{
-	    dataIn = new DataInputStream(tunnelSocket.getInputStream());
-	    dataOut = new DataOutputStream(tunnelSocket.getOutputStream());
+	    openStreams(tunnelSocket);
 	}
 	catch (IOException eio)
 	{
@@ -109,9 +108,21 @@ public class ZBDTunnelServer extends ZBDTunnel
 
 	new Random().nextBytes(serverNonce);
 
-	// Now enter negotiation with the client
+	// Now enter negotiation with the client,
 
-	negotiate();
+	// under the overall handshake deadline.
+
+	TimerTask deadline = startHandshake();
+	ZBDException failure = null;
+	try
+	{
+	    negotiate();
+	}
+	catch (ZBDException e)
+	{
+	    failure = e;
+	}
+	endHandshake(deadline, failure);
 
 	// Indicated that we are connected and read to go!
 
@@ -132,13 +143,18 @@ public class ZBDTunnelServer extends ZBDTunnel
 	{
 	    request = dataIn.readShort();
 
-	    if (request < protocol)
+	    if (request < PROTOCOL_V201)
 	    {
 		throw new ZBDProtocolException("client requested incompatible protocol version ("
 				       + Integer.toHexString(request) + ")");
 	    }
 
-	    // Send back our supported version
+	    // Send back the version we will use: the highest that we both
+	    // support. A client that asked for a later version than that
+	    // falls back to ours.
+
+	    protocol = ((request >= PROTOCOL_V202 && aesGcm) ?
+			PROTOCOL_V202 : PROTOCOL_V201);
 
 	    dataOut.writeShort(protocol);
 	}
@@ -176,6 +192,8 @@ public class ZBDTunnelServer extends ZBDTunnel
 	String clientTargetAddr;
 	boolean refused = false;
 
+	handshakePhase = "header";
+
 	try
 	{
 	    // Read all of the header fields
@@ -186,7 +204,7 @@ public class ZBDTunnelServer extends ZBDTunnel
 	    clientTargetPort = dataIn.readUnsignedShort();
 	    clientKeySize = dataIn.readUnsignedShort();
 	    clientToken = dataIn.readInt();
-	    dataIn.read(clientNonce, 0, NONCE_SIZE);
+	    dataIn.readFully(clientNonce, 0, NONCE_SIZE);
 	    clientTargetAddr = addrToString(dataIn.readInt());
 	}
 	catch (EOFException eof)
@@ -210,7 +228,33 @@ public class ZBDTunnelServer extends ZBDTunnel
 	    throw new ZBDNetworkException("EOF encountered while reading protocol header");
 	}
 
-	clientUdpMode = (clientUdpRequest == HDR_FLAG_UDPMODE);
+	clientUdpMode = ((clientUdpRequest & HDR_FLAG_UDPMODE) != 0);
+
+	// A multiplexed TCP tunnel is only agreed if we permit it. Older
+	// clients never set the flag and older servers ignore it, in
+	// which case an ordinary tunnel results.
+
+	muxMode = (!clientUdpMode && multiplex && targetSocket == null &&
+		   (clientUdpRequest & HDR_FLAG_MULTIPLEX) != 0);
+
+	// Likewise streaming compression, which older clients never ask
+	// for. The flag is echoed back if we permit it, and takes effect
+	// if compression is agreed below.
+
+	cmpStream = (!clientUdpMode && streamCompression &&
+		     (clientUdpRequest & HDR_FLAG_CMPSTREAM) != 0);
+
+	// And the choice of a preset dictionary, which only applies to
+	// zlib. If agreed we list ours after the header and the client
+	// tells us which it will use during the challenge, so there must
+	// be one.
+
+	int cmpInfo = (clientCmpInfo > compressionInfo ? compressionInfo : clientCmpInfo);
+
+	cmpDict = (!clientUdpMode && !dictionaries.isEmpty() && clientKeySize > 0 &&
+		   (clientUdpRequest & HDR_FLAG_CMPDICT) != 0 &&
+		   getCompressionType(cmpInfo) == COMPRESSION_ZLIB &&
+		   getCompressionLevel(cmpInfo) > 0);
 
 	try
 	{
@@ -229,10 +273,15 @@ public class ZBDTunnelServer extends ZBDTunnel
 	    }
 	    else
 	    {
-		dHdrOut.writeShort(tcpMode ? 0 : HDR_FLAG_UDPMODE);
+		dHdrOut.writeShort((tcpMode ? 0 : HDR_FLAG_UDPMODE) |
+				   (muxMode ? HDR_FLAG_MULTIPLEX : 0) |
+				   (cmpStream ? HDR_FLAG_CMPSTREAM : 0) |
+				   (cmpDict ? HDR_FLAG_CMPDICT : 0));
 	    }
 
-	    logger.log(3, "accepted request for " + (clientUdpMode ? "UDP mode" : "TCP mode"));
+	    logger.log(3, "accepted request for " + (clientUdpMode ? "UDP mode" :
+						     (muxMode ? "multiplexed TCP mode" :
+						      "TCP mode")));
 
 	    // Accept buffer size request provided > 0 and < bufferSize
 
@@ -250,19 +299,14 @@ public class ZBDTunnelServer extends ZBDTunnel
 
 	    // Accept server compression level provided <= ours
 
-	    setCompression(clientCmpInfo > compressionInfo ? compressionInfo : clientCmpInfo);
+	    setCompression(cmpInfo);
 	    dHdrOut.writeShort(compressionInfo);
 	    logger.log(3, "responding with compression = " + Integer.toHexString(compressionInfo));
 
 	    // Now we know whether compression will be applied we
-	    // can initialise the inflater/deflater.
-	    // FIX-ME handle BZIP2 too.
+	    // can initialise the compressor.
 
-	    if (compressionInfo > 0)
-	    {
-		inflater = new Inflater(false);
-		deflater = new Deflater(compressionInfo, false);
-	    }
+	    setupCompression(cmpStream);
 
 	    // Check the target port/host combination
 
@@ -278,8 +322,19 @@ public class ZBDTunnelServer extends ZBDTunnel
 		dHdrOut.writeShort(0);
 		refused = true;
 	    }
+	    else if (muxMode)
+	    {
+		// Each stream names its own target once the tunnel is up.
+		// This one has been validated so that a client falling back
+		// to an ordinary tunnel would get the same answer.
+
+		logger.log(3, "accepted initial target = " + clientTargetAddr +
+			   ":" + clientTargetPort);
+		dHdrOut.writeShort(clientTargetPort);
+	    }
 	    else if (targetSocket == null)
 	    {
+		handshakePhase = "target";
 		try
 		{
 		    if (clientUdpMode)
@@ -291,7 +346,7 @@ public class ZBDTunnelServer extends ZBDTunnel
 		    }
 		    else
 		    {
-			targetSocket = new Socket(clientTargetAddr, clientTargetPort);
+			targetSocket = openSocket(clientTargetAddr, clientTargetPort);
 		    }
 		    logger.log(3, "accepted target = " + clientTargetAddr +
 			       ":" + clientTargetPort);
@@ -346,6 +401,21 @@ public class ZBDTunnelServer extends ZBDTunnel
 
 	    dHdrOut.writeInt(0);
 
+	    // List the identifiers of our dictionaries, at most 255
+
+	    if (cmpDict)
+	    {
+		int count = Math.min(dictionaries.size(), 255);
+
+		logger.log(3, "offering " + count + " compression dictionaries");
+		dHdrOut.writeByte(count);
+		for (int i = 0; i < count; i++)
+		{
+		    dHdrOut.write(((ZBDDictionary)dictionaries.elementAt(i)).getId(),
+				  0, ZBDDictionary.ID_SIZE);
+		}
+	    }
+
 	    // Now send the header data and then read the request
 
 	    logger.log(3, "sending protocol header, size = " + hdrOut.size() + " bytes");
@@ -371,18 +441,21 @@ public class ZBDTunnelServer extends ZBDTunnel
 	// have a previously generated secret key associated with the
 	// clientToken.
 
-	String contextKey = tokens.getKeyForToken(clientToken);
-	String sessionKey = null;
+	byte[] contextKey = tokens.getKeyForToken(clientToken);
+	byte[] sessionKey = null;
 
 	if (contextKey != null)
 	{
-	    logger.log(5, "found context key: " + contextKey);
+	    if (logger.getLevel() >= 5)
+	    {
+		logger.log(5, "found context key: " + bytesToHex(contextKey));
+	    }
 
 	    sessionKey = generateSessionKey(contextKey);
 
-	    // Initialise input and output Blowfish streams
+	    // Initialise input and output encryption
 
-	    setupBlowfish(sessionKey);
+	    setupCipher(sessionKey);
 
 	    // Perform challenge-request dialogue
 
@@ -390,6 +463,8 @@ public class ZBDTunnelServer extends ZBDTunnel
 	}
 	else if (clientKeySize > 0)
 	{
+	    handshakePhase = "key exchange";
+
 	    // Send the DH generator
 
 	    logger.log(3, "sending DH generator: " + generator);
@@ -412,13 +487,12 @@ public class ZBDTunnelServer extends ZBDTunnel
 		throw new ZBDNetworkException("error writing DH modulus: " + e);
 	    }
 
-	    // Generate our private key (the DH exponent)
+	    // Generate our private key (the DH exponent) and do the
+	    // Diffie-Hellman calculation, or take a precomputed pair
 
-	    String exponent = generatePrivateKey();
-
-	    // Now do the Diffie-Hellman calculation
-
-	    String dhKey = diffieHellman(generator, modulus, exponent);
+	    String[] pair = generateKeyPair();
+	    String exponent = pair[0];
+	    String dhKey = pair[1];
 	    logger.log(5, "public DH key is " + dhKey);
 
 	    // Send this to the client
@@ -464,19 +538,21 @@ public class ZBDTunnelServer extends ZBDTunnel
 
 	    // Now generate the shared secret key
 
-	    String sharedKey = diffieHellman(clientDhKey, modulus, exponent);
-
-	    logger.log(5, "shared key = " + sharedKey);
+	    byte[] sharedKey = sharedSecret(generator, modulus, clientDhKey, exponent);
 
 	    // Create a shared session key
 
 	    sessionKey = generateSessionKey(sharedKey);
 
-	    logger.log(5, "session key = " + sessionKey);
+	    if (logger.getLevel() >= 5)
+	    {
+		logger.log(5, "shared key = " + bytesToHex(sharedKey));
+		logger.log(5, "session key = " + bytesToHex(sessionKey));
+	    }
 
-	    // Initialise Blowfish state
+	    // Initialise encryption state
 
-	    setupBlowfish(sessionKey);
+	    setupCipher(sessionKey);
 
 	    // Perform challenge-request dialogue
 
@@ -515,12 +591,52 @@ public class ZBDTunnelServer extends ZBDTunnel
 	return clientUdpMode;
     }
 
+    /**
+     * Open a connection to the target of one stream of a multiplexed
+     * tunnel. The target is checked with the validator and the socket
+     * opened with {@link #openSocket(String,int,int)} just as for the one
+     * named during negotiation, and the connection attempt is allowed no
+     * longer than the handshake timeout.
+     *
+     * @param host The target host, or "0.0.0.0" for the default target.
+     * @param port The target port.
+     *
+     * @throws ZBDValidationException Thrown if the target is not allowed.
+     * @throws ZBDNetworkException Thrown if the connection fails.
+     */
+
+    Socket openStreamTarget(String host, int port) throws ZBDException
+    {
+	if (host.equals("0.0.0.0"))
+	{
+	    host = defaultTarget;
+	}
+
+	if (!validator.validateTarget(host, port, false))
+	{
+	    throw new ZBDValidationException("stream requested connection to disallowed target "
+					     + host + ":" + port);
+	}
+
+	try
+	{
+	    return openSocket(host, port, handshakeTimeout * 1000);
+	}
+	catch (IOException e)
+	{
+	    throw new ZBDNetworkException("failed to connect to target " + host +
+					  ":" + port + ": " + e);
+	}
+    }
+
     // challengeResponse
     //
     // Engage in challenge-request dialogue with the client
 
     final void challengeResponse() throws ZBDException
     {
+	handshakePhase = "challenge";
+
 	// Generate our challenge and send it to the client
 
 	byte[] challenge = generateChallenge();
@@ -561,6 +677,35 @@ public class ZBDTunnelServer extends ZBDTunnel
 
 	logger.log(999, "read challenge " + bytesToHex(clientChallenge));
 
+	// Followed by the identifier of the dictionary the client chose,
+	// all zeroes if none
+
+	if (cmpDict)
+	{
+	    if (readMessage() != ZBDDictionary.ID_SIZE)
+	    {
+		throw new ZBDNetworkException("failed to read compression dictionary from client");
+	    }
+
+	    byte[] id = new byte[ZBDDictionary.ID_SIZE];
+	    System.arraycopy(message, 0, id, 0, ZBDDictionary.ID_SIZE);
+
+	    if (!Arrays.equals(id, new byte[ZBDDictionary.ID_SIZE]))
+	    {
+		dictionary = findDictionary(id);
+		if (dictionary == null)
+		{
+		    throw new ZBDProtocolException("client chose unknown compression dictionary " +
+						   bytesToHex(id));
+		}
+		setupDictionary();
+	    }
+	    else
+	    {
+		logger.log(3, "client has no compression dictionary in common");
+	    }
+	}
+
 	// Transform the challenge into the answer
 
 	challengeAnswer(clientChallenge);
@@ -17,7 +17,7 @@ import java.net.*;
  * Read data from a tunnel and write it to a local UDP socket.
  */
 
-public class ZBDUdpTunnelReader extends Thread
+public class ZBDUdpTunnelReader implements Runnable
 {
     ZBDTunnel tunnel;
     DatagramSocket localSock;
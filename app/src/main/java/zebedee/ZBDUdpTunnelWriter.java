@@ -17,7 +17,7 @@ import java.net.*;
  * Read data from a local UDP socket and write it to the tunnel.
  */
 
-public class ZBDUdpTunnelWriter extends Thread
+public class ZBDUdpTunnelWriter implements Runnable
 {
     ZBDTunnel tunnel;
     DatagramSocket localSock;
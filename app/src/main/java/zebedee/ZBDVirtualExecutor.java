@@ -0,0 +1,87 @@
+// This program is free software and may be distributed under the terms
+// of the GNU Lesser General Public License, Version 2.1.
+// This program comes with ABSOLUTELY NO WARRANTY.
+
+package zebedee;
+
+import java.lang.reflect.Method;
+
+/**
+ * An implementation of {@link ZBDExecutor} that runs every task in a
+ * virtual thread of its own. Virtual threads are cheap enough that a
+ * server can run tens of thousands of tunnels, each with its pair of
+ * blocking pumps, without the memory cost of as many platform threads.
+ * <p>
+ * Virtual threads need a Java 21 or later runtime. They are not
+ * available on Android. As this code must also build for Android the
+ * <code>Thread.Builder</code> API is used by reflection. Use
+ * {@link #isAvailable()} to check whether this executor can be used.
+ */
+
+public class ZBDVirtualExecutor extends ZBDExecutor
+{
+    static Method ofVirtual = null;
+    static Method nameMethod = null;
+    static Method startMethod = null;
+
+    static
+    {
+	try
+	{
+	    Class builderClass = Class.forName("java.lang.Thread$Builder");
+
+	    nameMethod = builderClass.getMethod("name", new Class[] { String.class });
+	    startMethod = builderClass.getMethod("start", new Class[] { Runnable.class });
+	    ofVirtual = Thread.class.getMethod("ofVirtual", new Class[0]);
+	}
+	catch (Throwable e)
+	{
+	    ofVirtual = null;
+	}
+    }
+
+
+    /**
+     * Create a new virtual thread executor.
+     *
+     * @throws ZBDException Thrown if the runtime does not support virtual
+     * threads.
+     */
+
+    public ZBDVirtualExecutor() throws ZBDException
+    {
+	if (!isAvailable())
+	{
+	    throw new ZBDException("virtual threads are not supported by this Java runtime");
+	}
+    }
+
+    /**
+     * Returns true if the runtime supports virtual threads.
+     */
+
+    public static boolean isAvailable()
+    {
+	return (ofVirtual != null);
+    }
+
+    public void execute(Runnable task, String name)
+    {
+	try
+	{
+	    // Builders are not thread-safe so each task starts from a
+	    // fresh one.
+
+	    Object b = ofVirtual.invoke(null, new Object[0]);
+	    b = nameMethod.invoke(b, new Object[] { name });
+	    startMethod.invoke(b, new Object[] { task });
+	}
+	catch (Exception e)
+	{
+	    // Should not happen once the methods have been found, but do
+	    // not lose the task if it does.
+
+	    new Thread(task, name).start();
+	}
+    }
+}
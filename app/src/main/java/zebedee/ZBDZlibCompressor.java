@@ -0,0 +1,214 @@
+// This program is free software and may be distributed under the terms
+// of the GNU Lesser General Public License, Version 2.1.
+// This program comes with ABSOLUTELY NO WARRANTY.
+
+package zebedee;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Zlib compression, using <code>java.util.zip</code>.
+ * <p>
+ * By default each message is compressed on its own as a complete zlib
+ * stream, as the C version of Zebedee does. Small messages gain little
+ * that way, since each starts with an empty window. In streaming mode,
+ * which must be agreed with the peer, the compressor and decompressor
+ * instead each keep one zlib stream going for the life of the tunnel,
+ * and each message is ended with a sync flush so that the receiver can
+ * decompress all of it straight away. Later messages can then refer
+ * back to anything in the last 32K of earlier ones.
+ * <p>
+ * Either way the compressor may be primed with a preset dictionary, so
+ * that even the first message can refer back to typical content. When
+ * each message is compressed on its own the dictionary must be taken in
+ * afresh for every message, which costs time in proportion to its size.
+ * <p>
+ * Direct buffers go through the arrays that {@link ZBDCompressor}
+ * provides, as the <code>ByteBuffer</code> forms of
+ * <code>Deflater</code> and <code>Inflater</code> only arrived in Java 11
+ * and older Android releases lack them.
+ */
+
+class ZBDZlibCompressor extends ZBDCompressor
+{
+    // Most by which a sync-flushed message can be larger than the
+    // original: a stored block header, the empty stored block that marks
+    // the flush, any partly filled byte and, on the first message, the
+    // zlib header. Generous, as running out of room would be fatal.
+    static final int STREAM_EXPANSION = 64;
+
+    int level;
+    boolean stream;
+    Deflater deflater;
+    Inflater inflater;
+    byte[] dictionary = null;
+    byte[] spare = new byte[1];
+
+
+    ZBDZlibCompressor(int level, boolean stream)
+    {
+	this.level = level;
+	this.stream = stream;
+
+	deflater = new Deflater(level, false);
+	inflater = new Inflater(false);
+    }
+
+    public int compress(byte[] src, int srcOffset, int length,
+			byte[] dst, int dstOffset, int maxLength)
+	throws ZBDException
+    {
+	if (stream)
+	{
+	    deflater.setInput(src, srcOffset, length);
+	    return flush(dst, dstOffset, maxLength);
+	}
+
+	deflater.reset();
+	if (dictionary != null)
+	{
+	    deflater.setDictionary(dictionary);
+	}
+	deflater.setInput(src, srcOffset, length);
+	deflater.finish();
+	return finish(dst, dstOffset, Math.min(maxLength, length), length);
+    }
+
+    private int finish(byte[] dst, int dstOffset, int maxLength, int length)
+    {
+	int n = deflater.deflate(dst, dstOffset, maxLength);
+
+	return ((deflater.finished() && n < length) ? n : -1);
+    }
+
+    private int flush(byte[] dst, int dstOffset, int maxLength) throws ZBDException
+    {
+	int n = deflater.deflate(dst, dstOffset, maxLength, Deflater.SYNC_FLUSH);
+
+	// Filling the space means there may be more to come, which can
+	// not be sent now that the stream has moved on
+
+	if (n == maxLength || !deflater.needsInput())
+	{
+	    throw new ZBDException("internal error: compressed message larger than " +
+				   maxLength + " bytes");
+	}
+	return n;
+    }
+
+    public int decompress(byte[] src, int srcOffset, int length,
+			  byte[] dst, int dstOffset, int maxLength)
+	throws ZBDException
+    {
+	inflater.setInput(src, srcOffset, length);
+
+	int n;
+	try
+	{
+	    n = inflater.inflate(dst, dstOffset, maxLength);
+	    if (n == 0 && prime())
+	    {
+		n = inflater.inflate(dst, dstOffset, maxLength);
+	    }
+	}
+	catch (DataFormatException edf)
+	{
+	    throw new ZBDProtocolException("data format error uncompressing message buffer: " + edf);
+	}
+	return check(n, maxLength);
+    }
+
+    /**
+     * Supply the dictionary if the data asks for one, as it does at the
+     * start of each message, or of the stream when streaming.
+     *
+     * @return True if it was supplied.
+     */
+
+    private boolean prime() throws ZBDException
+    {
+	if (dictionary == null || !inflater.needsDictionary())
+	{
+	    return false;
+	}
+
+	try
+	{
+	    inflater.setDictionary(dictionary);
+	}
+	catch (IllegalArgumentException e)
+	{
+	    throw new ZBDProtocolException("compressed message uses a different dictionary");
+	}
+	return true;
+    }
+
+    private int check(int n, int maxLength) throws ZBDException
+    {
+	if (!stream)
+	{
+	    // Each message is a whole zlib stream, so it must have ended.
+	    // If not, either it was cut short or there was more than
+	    // would fit.
+
+	    boolean done = inflater.finished();
+	    inflater.reset();
+
+	    if (!done)
+	    {
+		throw new ZBDProtocolException("compressed message too large, truncated or uses an unknown dictionary");
+	    }
+	    return n;
+	}
+
+	// All of a sync-flushed message must come out now
+
+	boolean more = (inflater.getRemaining() != 0 || inflater.finished() ||
+			inflater.needsDictionary());
+	if (!more && n == maxLength)
+	{
+	    try
+	    {
+		more = (inflater.inflate(spare) != 0);
+	    }
+	    catch (DataFormatException edf)
+	    {
+		more = true;
+	    }
+	}
+
+	if (more)
+	{
+	    throw new ZBDProtocolException("compressed message too large or not flushed");
+	}
+	return n;
+    }
+
+    public void setDictionary(byte[] dict)
+    {
+	dictionary = dict;
+
+	// A stream takes it in once, at the start. The handshake may
+	// already have used both, so they start afresh here, which the
+	// peer does at the same point.
+
+	if (stream)
+	{
+	    deflater.reset();
+	    deflater.setDictionary(dict);
+	    inflater.reset();
+	}
+    }
+
+    public boolean isStreaming()
+    {
+	return stream;
+    }
+
+    public int getExpansion()
+    {
+	return (stream ? STREAM_EXPANSION : 0);
+    }
+}